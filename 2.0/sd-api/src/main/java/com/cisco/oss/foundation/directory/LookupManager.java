@@ -18,6 +18,7 @@ package com.cisco.oss.foundation.directory;
 import java.util.List;
 
 import com.cisco.oss.foundation.directory.entity.ServiceInstance;
+import com.cisco.oss.foundation.directory.lb.LoadBalancerStrategy;
 import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery;
 
 /**
@@ -32,7 +33,8 @@ public interface LookupManager {
     /**
      * Look up a service instance by the service name.
      *
-     * It selects one instance from a set of instances for a given service based on round robin strategy.
+     * It selects one instance from a set of instances for a given service based on round robin strategy,
+     * or based on the reported latency and error rate when the property lb.latency.aware.enabled is true.
      *
      * @param serviceName    The Service name.
      * @return                The ServiceInstance.
@@ -40,6 +42,38 @@ public interface LookupManager {
      */
     public ServiceInstance lookupInstance(String serviceName);
 
+    /**
+     * Look up a service instance by the service name and the load balancing strategy.
+     *
+     * It selects one instance from the UP instances of the given service by the strategy, such as
+     * the WeightedRoundRobinStrategy, LeastOutstandingRequestsStrategy or PowerOfTwoChoicesStrategy.
+     * The strategy keeps its own state, the caller reuses the same strategy for the service.
+     *
+     * Throw IllegalArgumentException if strategy is null.
+     *
+     * @param serviceName    The Service name.
+     * @param strategy        The LoadBalancerStrategy.
+     * @return                The ServiceInstance.
+     * @throws ServiceException
+     */
+    public ServiceInstance lookupInstance(String serviceName, LoadBalancerStrategy strategy);
+
+    /**
+     * Report the outcome of a request to the service instance.
+     *
+     * The latency and the error rate are kept as the EWMA of the instance. When the property
+     * lb.latency.aware.enabled is true, lookupInstance by the service name prefers the instance
+     * with the lower latency and error rate.
+     *
+     * Throw IllegalArgumentException if instance is null.
+     *
+     * @param instance        The ServiceInstance returned by the lookup.
+     * @param latencyNanos    The request latency in nanoseconds.
+     * @param success        Whether the request succeeded.
+     * @throws ServiceException
+     */
+    public void report(ServiceInstance instance, long latencyNanos, boolean success);
+
     /**
      * Look up a list of service instances for a given service.
      *
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.async;
+
+import java.util.List;
+
+import com.cisco.oss.foundation.directory.proto.ServiceInstanceOperate;
+
+/**
+ * The Service Watcher which accepts the ServiceInstance updates in batch.
+ *
+ * SD API invokes processBatch once with all the ServiceInstanceOperates of a Service
+ * in a WatcherEvent, instead of invoking process for each of them.
+ *
+ */
+public interface BatchWatcher extends Watcher {
+
+    /**
+     * The method invoked for the Watcher for the Service updates.
+     *
+     * @param name
+     *         the ServiceName.
+     * @param operates
+     *         the ServiceInstance update Operations of the Service, in the event order.
+     */
+    public void processBatch(String name, List<ServiceInstanceOperate> operates);
+}
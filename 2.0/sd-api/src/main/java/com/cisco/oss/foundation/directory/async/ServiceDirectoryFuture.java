@@ -15,11 +15,19 @@
  */
 package com.cisco.oss.foundation.directory.async;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
 import com.cisco.oss.foundation.directory.exception.ServiceException;
 import com.cisco.oss.foundation.directory.proto.Response;
 
@@ -29,9 +37,14 @@ import com.cisco.oss.foundation.directory.proto.Response;
  * For the asynchronized method in DirectoryServiceClient, it returns this Future object.
  * Then the upper application can use the Future.
  *
+ * It is a ListenableFuture, the listeners run on their Executor once the Future
+ * completes, fails or is cancelled, so it can be composed with the Guava Futures
+ * utilities without blocking a thread in get().
  *
  */
-public class ServiceDirectoryFuture implements Future<Response> {
+public class ServiceDirectoryFuture implements ListenableFuture<Response> {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(ServiceDirectoryFuture.class);
 
     /**
      * Indicate whether the Future complete.
@@ -53,22 +66,49 @@ public class ServiceDirectoryFuture implements Future<Response> {
      */
     private volatile ServiceException ex;
 
+    /**
+     * The listeners to run when the Future is done, null after done.
+     */
+    private List<ListenerExecutor> listeners = new ArrayList<ListenerExecutor>();
+
     /**
      * Cancel the Directory Request.
      *
      * {@inheritDoc}
      */
     @Override
-    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
-        if (completed) {
-            return false;
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized(this){
+            if (completed) {
+                return false;
+            }
+            this.completed = true;
+            this.cancelled = true;
+            notifyAll();
         }
-        this.completed = true;
-        this.cancelled = true;
-        notifyAll();
+        executeListeners();
         return true;
     }
 
+    /**
+     * Add the listener to run on the Executor when the Future is done.
+     *
+     * It runs at once when the Future is already done.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void addListener(Runnable listener, Executor executor) {
+        ListenerExecutor le = new ListenerExecutor(listener, executor);
+        synchronized(this){
+            if(! completed){
+                listeners.add(le);
+                return;
+            }
+        }
+        le.execute();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -136,13 +176,16 @@ public class ServiceDirectoryFuture implements Future<Response> {
      * @return
      *         true for complete success.
      */
-    public synchronized boolean complete(Response result) {
-        if (completed) {
-            return false;
+    public boolean complete(Response result) {
+        synchronized(this){
+            if (completed) {
+                return false;
+            }
+            completed = true;
+            this.result = result;
+            notifyAll();
         }
-        completed = true;
-        this.result = result;
-        notifyAll();
+        executeListeners();
         return true;
     }
 
@@ -154,13 +197,16 @@ public class ServiceDirectoryFuture implements Future<Response> {
      * @return
      *         true for success.
      */
-    public synchronized boolean fail(ServiceException ex) {
-        if (completed) {
-            return false;
+    public boolean fail(ServiceException ex) {
+        synchronized(this){
+            if (completed) {
+                return false;
+            }
+            this.completed = true;
+            this.ex = ex;
+            notifyAll();
         }
-        this.completed = true;
-        this.ex = ex;
-        notifyAll();
+        executeListeners();
         return true;
     }
 
@@ -175,9 +221,70 @@ public class ServiceDirectoryFuture implements Future<Response> {
      *         the ServiceException.
      */
     private synchronized Response getResult() throws ExecutionException {
+        if (this.cancelled) {
+            throw new CancellationException("The Directory Request is cancelled.");
+        }
         if (this.ex != null) {
             throw new ExecutionException(ex);
         }
         return this.result;
     }
+
+    /**
+     * Run the registered listeners, it is invoked once after the Future is done.
+     */
+    private void executeListeners() {
+        List<ListenerExecutor> list;
+        synchronized(this){
+            list = listeners;
+            listeners = null;
+        }
+        if(list != null){
+            for(ListenerExecutor le : list){
+                le.execute();
+            }
+        }
+    }
+
+    /**
+     * The listener and the Executor to run it.
+     */
+    private static class ListenerExecutor {
+        /**
+         * The listener.
+         */
+        private final Runnable listener;
+
+        /**
+         * The Executor.
+         */
+        private final Executor executor;
+
+        /**
+         * Constructor.
+         *
+         * @param listener
+         *         the listener.
+         * @param executor
+         *         the Executor.
+         */
+        ListenerExecutor(Runnable listener, Executor executor){
+            if(listener == null || executor == null){
+                throw new NullPointerException("The listener and executor can not be null.");
+            }
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        /**
+         * Run the listener on the Executor.
+         */
+        void execute(){
+            try {
+                executor.execute(listener);
+            } catch (RuntimeException e) {
+                LOGGER.error("Execute the ServiceDirectoryFuture listener get exception, listener=" + listener, e);
+            }
+        }
+    }
 }
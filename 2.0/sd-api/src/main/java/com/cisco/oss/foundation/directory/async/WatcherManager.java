@@ -50,7 +50,9 @@ public class WatcherManager {
      *         The Service WatcherRegistration.
      */
     public void register(WatcherRegistration watcherRegistration){
-        this.addWatcher(watcherRegistration.getName(), watcherRegistration.getWatcher());
+        for(String name : watcherRegistration.getNames()){
+            this.addWatcher(name, watcherRegistration.getWatcher());
+        }
     }
 
     /**
@@ -155,6 +157,40 @@ public class WatcherManager {
         }
     }
 
+    /**
+     * Get the number of the Services which have Watchers.
+     *
+     * @return
+     *         the watched Service number.
+     */
+    public int getWatchedServiceCount(){
+        int count = 0;
+        synchronized(watchers){
+            for(Set<Watcher> set : watchers.values()){
+                if(! set.isEmpty()){
+                    count ++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of the Watchers of all Services.
+     *
+     * @return
+     *         the Watcher number.
+     */
+    public int getWatcherCount(){
+        int count = 0;
+        synchronized(watchers){
+            for(Set<Watcher> set : watchers.values()){
+                count += set.size();
+            }
+        }
+        return count;
+    }
+
     /**
      * Cleanup all Watchers in the WatcherManager.
      *
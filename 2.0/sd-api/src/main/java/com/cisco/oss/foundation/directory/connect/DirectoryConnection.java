@@ -19,20 +19,30 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+import javax.management.ObjectName;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.cisco.oss.foundation.directory.Configurations;
 import com.cisco.oss.foundation.directory.ServiceDirectoryThread;
+import com.cisco.oss.foundation.directory.async.BatchWatcher;
 import com.cisco.oss.foundation.directory.async.Callback.ProtocolCallback;
 import com.cisco.oss.foundation.directory.async.ServiceDirectoryFuture;
 import com.cisco.oss.foundation.directory.async.Watcher;
@@ -66,7 +76,10 @@ import com.cisco.oss.foundation.directory.proto.ServerEvent.CloseSessionEvent;
 import com.cisco.oss.foundation.directory.proto.ServiceInstanceOperate;
 import com.cisco.oss.foundation.directory.proto.ServiceInstanceOperate.OperateType;
 import com.cisco.oss.foundation.directory.proto.WatcherEvent;
+import com.cisco.oss.foundation.directory.stats.DirectoryConnectionMXBean;
+import com.cisco.oss.foundation.directory.stats.MBeanRegistry;
 import com.cisco.oss.foundation.directory.stats.PacketLatency;
+import com.cisco.oss.foundation.directory.stats.PacketLatency.Stage;
 import com.cisco.oss.foundation.directory.utils.ObfuscatUtil;
 
 /**
@@ -90,6 +103,47 @@ public class DirectoryConnection {
      */
     private final static int SESSION_TIMEOUT_DEFAULT_VALUE = 4000;
 
+    /**
+     * The request timeout property name, in milliseconds, 0 for no timeout.
+     */
+    public final static String REQUEST_TIMEOUT_PROPERTY_NAME = "request.timeout";
+
+    /**
+     * The default request timeout value.
+     */
+    private final static int REQUEST_TIMEOUT_DEFAULT_VALUE = 30000;
+
+    /**
+     * The max in-flight request number property name, 0 for unbounded.
+     */
+    public final static String MAX_INFLIGHT_PROPERTY_NAME = "request.max.inflight";
+
+    /**
+     * The default max in-flight request number.
+     */
+    private final static int MAX_INFLIGHT_DEFAULT_VALUE = 1024;
+
+    /**
+     * The property name of whether the request blocks until its timeout when the in-flight window is full,
+     * otherwise it fails fast.
+     */
+    public final static String INFLIGHT_BLOCK_PROPERTY_NAME = "request.inflight.block";
+
+    /**
+     * The default in-flight window full policy, block.
+     */
+    private final static boolean INFLIGHT_BLOCK_DEFAULT_VALUE = true;
+
+    /**
+     * The index of the DirectoryConnections in the JVM, used to name the MBean.
+     */
+    private final static AtomicInteger connectionIndex = new AtomicInteger();
+
+    /**
+     * The delay in milliseconds to retry the connect.
+     */
+    private final static long CONNECT_RETRY_DELAY = 50;
+
     /**
      * The packet length limitation.
      */
@@ -107,9 +161,32 @@ public class DirectoryConnection {
     private AuthData authData = generateDirectoryAuthData("anonymous", null);
 
     /**
-     * The Queue for the all pending Packet that submitted and not get response from Directory Server.
+     * All pending Packets that submitted and not get response from Directory Server, keyed by xid.
+     *
+     * The Directory Server may answer the requests in any order, the Response is matched
+     * to its Packet by the xid.
+     */
+    private final ConcurrentHashMap<Integer, Packet> pendingQueue = new ConcurrentHashMap<Integer, Packet>();
+
+    /**
+     * The lock to serialize the xid generation and the DirectorySocket send.
      */
-    private final LinkedList<Packet> pendingQueue = new LinkedList<Packet>();
+    private final Object sendLock = new Object();
+
+    /**
+     * The in-flight request window, null for unbounded.
+     */
+    private Semaphore inflightWindow;
+
+    /**
+     * Whether the request blocks when the in-flight window is full.
+     */
+    private boolean inflightBlock = INFLIGHT_BLOCK_DEFAULT_VALUE;
+
+    /**
+     * The default request timeout in milliseconds, 0 for no timeout.
+     */
+    private int requestTimeOut = 0;
 
     /**
      * The ServiceDirectoryListener list registered.
@@ -142,14 +219,30 @@ public class DirectoryConnection {
     private volatile ConnectionStatus status = ConnectionStatus.NEW;
 
     /**
-     * The EventThread to handle the Event.
+     * The EventThread to handle the Packet completion, ServerEvent and ClientEvent.
      */
     private EventThread eventThread;
 
     /**
-     * The deamon thread to maintain the Conenction.
+     * The WatcherEventDispatcher to process the WatcherEvent in parallel, ordered per service.
+     * It is shared by all the DirectoryConnections of the JVM.
+     */
+    private WatcherEventDispatcher watcherDispatcher;
+
+    /**
+     * The executor to run the blocking connect off the timer, at most one connect is in progress.
+     */
+    private ThreadPoolExecutor connectExecutor;
+
+    /**
+     * The timer to drive the connect, ping, session idle check and request deadline.
+     */
+    private HashedWheelTimer timer;
+
+    /**
+     * The scheduled ConnectTask to maintain the Connection.
      */
-    private Thread connectionThread;
+    private volatile HashedWheelTimer.Timeout connectTimeout;
 
     private DirectorySocket clientSocket;
 
@@ -158,6 +251,31 @@ public class DirectoryConnection {
      */
     private InetSocketAddress directoryServer;
 
+    /**
+     * The ConnectionStatus transition count.
+     */
+    private final AtomicLong statusTransitions = new AtomicLong();
+
+    /**
+     * The established session count.
+     */
+    private final AtomicLong sessionsEstablished = new AtomicLong();
+
+    /**
+     * The registered ObjectName of the DirectoryConnectionMXBean.
+     */
+    private ObjectName mbeanName;
+
+    /**
+     * The DirectoryServers to fail over, null for no fail over.
+     */
+    private DirectoryServers directoryServers;
+
+    /**
+     * The time in milliseconds since the DirectorySocket is not connected, 0 when connected.
+     */
+    private long socketLostTime = 0;
+
     /**
      * The WatcherManager that manages all Service Watchers.
      */
@@ -182,6 +300,10 @@ public class DirectoryConnection {
     /**
      * The DirectoryConnection constructor.
      *
+     * The connection shares the timer and the WatcherEventDispatcher of the JVM. It owns an
+     * EventThread, which keeps its callbacks and client events in order, and a connect
+     * thread which is only alive while connecting.
+     *
      * @param directoryServer
      *         the Directory Server to connect.
      * @param watcherManager
@@ -201,6 +323,12 @@ public class DirectoryConnection {
         session = new Session();
 
         session.timeOut = Configurations.getInt(SESSION_TIMEOUT_PROPERTY_NAME, SESSION_TIMEOUT_DEFAULT_VALUE);
+        requestTimeOut = Configurations.getInt(REQUEST_TIMEOUT_PROPERTY_NAME, REQUEST_TIMEOUT_DEFAULT_VALUE);
+        int maxInflight = Configurations.getInt(MAX_INFLIGHT_PROPERTY_NAME, MAX_INFLIGHT_DEFAULT_VALUE);
+        if(maxInflight > 0){
+            inflightWindow = new Semaphore(maxInflight);
+        }
+        inflightBlock = Configurations.getBoolean(INFLIGHT_BLOCK_PROPERTY_NAME, INFLIGHT_BLOCK_DEFAULT_VALUE);
 
         if(userName != null && ! userName.isEmpty()){
             this.authData = this.generateDirectoryAuthData(userName, password);
@@ -208,6 +336,42 @@ public class DirectoryConnection {
         clientSocket.setConnection(this);
         clientSocket.setConnectTimeOut(session.timeOut *2 /3);
         eventThread = new EventThread();
+        timer = HashedWheelTimer.getSharedTimer();
+        watcherDispatcher = WatcherEventDispatcher.getSharedDispatcher();
+        connectExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory(){
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return ServiceDirectoryThread.getThread(r, "Directory_Connect", true);
+                    }
+
+                });
+    }
+
+    /**
+     * The DirectoryConnection constructor with fail over.
+     *
+     * When the DirectorySocket can not connect to the Directory Server in the connect timeout,
+     * the DirectoryConnection selects another Directory Server from the DirectoryServers.
+     *
+     * @param directoryServers
+     *         the DirectoryServers to fail over.
+     * @param directoryServer
+     *         the Directory Server to connect.
+     * @param watcherManager
+     *         the WatcherManager.
+     * @param clientSocket
+     *         the DirectorySocket implementation that used.
+     * @param userName
+     *         the user name for auth.
+     * @param password
+     *         the password.
+     */
+    public DirectoryConnection(DirectoryServers directoryServers, InetSocketAddress directoryServer,
+            WatcherManager watcherManager, DirectorySocket clientSocket, String userName, String password){
+        this(directoryServer, watcherManager, clientSocket, userName, password);
+        this.directoryServers = directoryServers;
     }
 
     /**
@@ -287,10 +451,29 @@ public class DirectoryConnection {
         InetSocketAddress address = directoryServer;
         clientSocket.connect(address);
         eventThread.start();
-        connectionThread = new Thread(new ConnectTask());
-        connectionThread.setDaemon(true);
-        connectionThread.setName(ServiceDirectoryThread.getThreadName("Client_Connect_Thread"));
-        connectionThread.start();
+        scheduleConnectTask(0);
+        mbeanName = MBeanRegistry.register(new ConnectionStats(), "DirectoryConnection",
+                "connection-" + connectionIndex.incrementAndGet());
+    }
+
+    /**
+     * Get the number of the pending Packets which are waiting for the Response.
+     *
+     * @return
+     *         the pending Packet number.
+     */
+    public int getPendingPacketCount(){
+        return pendingQueue.size();
+    }
+
+    /**
+     * Get the last directory transaction id seen in the Responses.
+     *
+     * @return
+     *         the last dxid, -1 if no Response has it.
+     */
+    public long getLastDxid(){
+        return lastDxid;
     }
 
     /**
@@ -317,6 +500,21 @@ public class DirectoryConnection {
                       + getSessionId());
         }
         connectRun.set(false);
+        HashedWheelTimer.Timeout t = connectTimeout;
+        if(t != null){
+            t.cancel();
+        }
+        connectExecutor.shutdown();
+        MBeanRegistry.unregister(mbeanName);
+        mbeanName = null;
+
+        setStatus(ConnectionStatus.CLOSED);
+        try{
+            // send it before the cleanup, the DirectorySocket doesn't send after it.
+            sendCloseSession();
+        } catch(IOException e){
+            LOGGER.warn("Send the CloseSession Protocol failed when close - " + e.getMessage());
+        }
 
         try{
             clientSocket.cleanup();
@@ -325,12 +523,12 @@ public class DirectoryConnection {
         }
 
         try {
-            setStatus(ConnectionStatus.CLOSED);
-            sendCloseSession();
             closeSession();
-            eventThread.queueEventOfDeath();
         } catch (ServiceException e) {
             LOGGER.warn("Execute the CloseSession Protocol failed when close", e);
+        } finally {
+            onSessionClose();
+            eventThread.queueEventOfDeath();
         }
     }
 
@@ -348,11 +546,45 @@ public class DirectoryConnection {
      */
     public Response submitRequest(ProtocolHeader h, Protocol request,
             WatcherRegistration wr){
-        Packet packet = queuePacket(h, request, null, null, null, wr);
+        return submitRequest(h, request, wr, requestTimeOut);
+    }
+
+    /**
+     * Submit a Request with the timeout.
+     *
+     * When the Request doesn't complete in the timeout, it fails with ErrorCode.REQUEST_TIMEOUT.
+     *
+     * @param h
+     *         the ProtocolHeader.
+     * @param request
+     *         the Protocol.
+     * @param wr
+     *         the WatcherRegistration
+     * @param timeOut
+     *         the timeout in milliseconds, 0 for no timeout.
+     * @return
+     *         the Response of the Request.
+     */
+    public Response submitRequest(ProtocolHeader h, Protocol request,
+            WatcherRegistration wr, long timeOut){
+        Packet packet = queuePacket(h, request, null, null, null, wr, timeOut);
         synchronized (packet) {
             while (!packet.finished) {
                 try {
-                    packet.wait();
+                    long to = 0;
+                    if(packet.deadline > 0){
+                        to = packet.deadline - System.currentTimeMillis();
+                        if(to <= 0){
+                            expirePacket(packet);
+                            if(packet.finished){
+                                break;
+                            }
+                            // the Packet is out of the pendingQueue, whoever removed it finishes
+                            // and notifies it, wait without polling.
+                            to = 0;
+                        }
+                    }
+                    packet.wait(to);
                 } catch (InterruptedException e) {
                     ServiceDirectoryError sde = new ServiceDirectoryError(ErrorCode.REQUEST_INTERUPTED);
                     throw new ServiceException(sde, e);
@@ -382,7 +614,7 @@ public class DirectoryConnection {
      *         the Context object of the Callback.
      */
     public void submitCallbackRequest(ProtocolHeader h, Protocol request, ProtocolCallback callBack, Object context){
-        queuePacket(h, request, callBack, context, null, null);
+        queuePacket(h, request, callBack, context, null, null, requestTimeOut);
     }
 
     /**
@@ -399,8 +631,29 @@ public class DirectoryConnection {
      *         the Future.
      */
     public ServiceDirectoryFuture submitAsyncRequest(ProtocolHeader h, Protocol request, WatcherRegistration wr){
+        return submitAsyncRequest(h, request, wr, requestTimeOut);
+    }
+
+    /**
+     * Submit a Request in asynchronizing with the timeout, it return a Future for the
+     * Request Response.
+     *
+     * When the Request doesn't complete in the timeout, the Future fails with ErrorCode.REQUEST_TIMEOUT.
+     *
+     * @param h
+     *         the ProtocolHeader.
+     * @param request
+     *         the Protocol.
+     * @param wr
+     *         the WatcherRegistration of the Service.
+     * @param timeOut
+     *         the timeout in milliseconds, 0 for no timeout.
+     * @return
+     *         the Future.
+     */
+    public ServiceDirectoryFuture submitAsyncRequest(ProtocolHeader h, Protocol request, WatcherRegistration wr, long timeOut){
         ServiceDirectoryFuture future = new ServiceDirectoryFuture();
-        queuePacket(h, request, null, null, future, wr);
+        queuePacket(h, request, null, null, future, wr, timeOut);
         return future;
     }
 
@@ -422,11 +675,13 @@ public class DirectoryConnection {
      *         the Future.
      * @param wr
      *         WatcherRegistration
+     * @param timeOut
+     *         the timeout in milliseconds, 0 for no timeout.
      * @return
      *         the queued Packet.
      */
     private Packet queuePacket(ProtocolHeader header, Protocol protocol,
-            ProtocolCallback cb, Object context, ServiceDirectoryFuture future, WatcherRegistration wr)
+            ProtocolCallback cb, Object context, ServiceDirectoryFuture future, WatcherRegistration wr, long timeOut)
     {
         Packet packet = new Packet(header, protocol, wr);
         PacketLatency.initPacket(packet);
@@ -434,28 +689,52 @@ public class DirectoryConnection {
         packet.cb = cb;
         packet.context = context;
         packet.future = future;
+        if(timeOut > 0){
+            packet.deadline = System.currentTimeMillis() + timeOut;
+        }
 
         if (! clientSocket.isConnected() || closing) {
             onLossPacket(packet);
+        } else if(! acquireWindow(packet)){
+            failPacket(packet, ErrorCode.REQUEST_WINDOW_FULL);
+        } else if(packet.deadline > 0 && packet.deadline <= System.currentTimeMillis()){
+            // the deadline passed while blocking on the window.
+            releaseWindow(packet);
+            failPacket(packet, ErrorCode.REQUEST_TIMEOUT);
         } else {
 
-            synchronized (pendingQueue) {
+            synchronized (sendLock) {
 
                 if (LOGGER.isTraceEnabled()) {
                     LOGGER.trace("Add the packet in queuePacket, type=" + header.getType());
                 }
-                header.setXid(xid.incrementAndGet());
+                int packetXid = xid.incrementAndGet();
+                header.setXid(packetXid);
+                // stamp the QUEUE before the Packet is published, the Response may finish it at once.
+                PacketLatency.queuePacket(packet);
+                // register the Packet before send, the Response may come back before sendPacket returns.
+                pendingQueue.put(packetXid, packet);
+                if(packet.deadline > 0){
+                    final Packet expiring = packet;
+                    // schedule on the time left, acquireWindow may have blocked a part of the timeout.
+                    packet.timeout = timer.newTimeout(new Runnable(){
+
+                        @Override
+                        public void run() {
+                            expirePacket(expiring);
+                        }
+
+                    }, packet.deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                }
                 try{
-                    PacketLatency.queuePacket(packet);
+                    // the SEND is stamped by the DirectorySocket when the frame is written.
                     clientSocket.sendPacket(header, protocol);
-                    pendingQueue.add(packet);
-                    PacketLatency.sendPacket(packet);
                 } catch(IOException e){
                     LOGGER.error("ClientSocket send packet failed.");
                     if(LOGGER.isTraceEnabled()){
                         LOGGER.trace("ClientSocket send packet failed.", e);
                     }
-                    if(packet != null){
+                    if(removePendingPacket(packetXid) != null){
                         onLossPacket(packet);
                     }
                 }
@@ -465,6 +744,125 @@ public class DirectoryConnection {
         return packet;
     }
 
+    /**
+     * Acquire the in-flight window for the Packet.
+     *
+     * The CreateSession Packet doesn't take the window, the session must be able to reopen
+     * when the window is full of the stalled requests.
+     *
+     * @param packet
+     *         the Packet.
+     * @return
+     *         false if the window is full.
+     */
+    private boolean acquireWindow(Packet packet){
+        if(inflightWindow == null || ProtocolType.CreateSession.equals(packet.protoHeader.getType())){
+            return true;
+        }
+        boolean acquired = false;
+        if(! inflightBlock){
+            acquired = inflightWindow.tryAcquire();
+        } else {
+            try {
+                if(packet.deadline > 0){
+                    acquired = inflightWindow.tryAcquire(packet.deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                } else {
+                    inflightWindow.acquire();
+                    acquired = true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(! acquired){
+            LOGGER.warn("The in-flight request window is full, fail the packet, type=" + packet.protoHeader.getType());
+        }
+        packet.windowed = acquired;
+        return acquired;
+    }
+
+    /**
+     * Release the in-flight window of the Packet if it holds one.
+     *
+     * @param packet
+     *         the Packet.
+     */
+    private void releaseWindow(Packet packet){
+        if(packet.windowed){
+            packet.windowed = false;
+            inflightWindow.release();
+        }
+    }
+
+    /**
+     * Remove the Packet from the pendingQueue, and release its in-flight window.
+     *
+     * @param packetXid
+     *         the xid of the Packet.
+     * @return
+     *         the Packet removed, null if it is not pending.
+     */
+    private Packet removePendingPacket(int packetXid){
+        Packet p = pendingQueue.remove(packetXid);
+        if(p != null && p.windowed){
+            inflightWindow.release();
+        }
+        return p;
+    }
+
+    /**
+     * Expire the Packet out of its deadline.
+     *
+     * It fails the Packet with ErrorCode.REQUEST_TIMEOUT if it is still pending.
+     *
+     * @param p
+     *         the Packet.
+     */
+    private void expirePacket(Packet p){
+        int packetXid = p.protoHeader.getXid();
+        if(pendingQueue.remove(packetXid, p)){
+            if(p.windowed){
+                inflightWindow.release();
+            }
+            if(LOGGER.isTraceEnabled()){
+                LOGGER.trace("Packet timeout, xid=" + packetXid + ", type=" + p.protoHeader.getType());
+            }
+            failPacket(p, ErrorCode.REQUEST_TIMEOUT);
+        }
+    }
+
+    /**
+     * Fail the Packet with the ErrorCode.
+     *
+     * @param p
+     *         the Packet.
+     * @param code
+     *         the ErrorCode.
+     */
+    private void failPacket(Packet p, ErrorCode code){
+        if (p.respHeader == null) {
+            p.respHeader = new ResponseHeader(-1, -1, code);
+        }
+        p.respHeader.setErr(code);
+        finishPacket(p);
+    }
+
+    /**
+     * On the DirectorySocket drops the Packet before it is written.
+     *
+     * The pending Packet fails with the connection loss error at once. The admin Packets
+     * are not pending and are ignored.
+     *
+     * @param packetXid
+     *         the xid of the Packet.
+     */
+    public void onPacketLost(int packetXid){
+        Packet p = removePendingPacket(packetXid);
+        if(p != null){
+            onLossPacket(p);
+        }
+    }
+
     /**
      * On the DirectoryConnection receive Response from DirectorySocket.
      *
@@ -494,7 +892,7 @@ public class DirectoryConnection {
             if(LOGGER.isTraceEnabled()){
                 LOGGER.trace("Got Watcher " + event + " for sessionid 0x" + session.id);
             }
-            eventThread.queueWatcherEvent( event );
+            dispatchWatcherEvent( event );
             return;
         }
 
@@ -522,49 +920,14 @@ public class DirectoryConnection {
             }
 
             pingResponse.set(header);
-            synchronized(pingResponse){
-                pingResponse.notifyAll();
-            }
             return;
         }
 
-        synchronized(pendingQueue){
-            // the XID out of order, we don't close session here.
-            // it doesn't mean the data integrate has problem.
-            if(pendingQueue.isEmpty()){
-                LOGGER.warn("The request queue is empty, but get packet xid=" + header.getXid());
-                // we don't  close session here.
-                return;
-            }
-            int recvXid = header.getXid();
-            packet = pendingQueue.remove();
-
-            if (packet.protoHeader.getXid() != recvXid) {
-                if(LOGGER.isDebugEnabled()){
-                    LOGGER.debug("Packet xid out of order, type=" + packet.protoHeader.getType()
-                            + ", queuedXid=" + packet.protoHeader.getXid() + ", xid=" + header.getXid());
-                }
-
-                // trim the pendingQueue to the received packet.
-                if(packet.protoHeader.getXid() > recvXid){
-                    LOGGER.error("Packet xid out of order, drop the received packet, xid=" + header.getXid());
-                    pendingQueue.addLast(packet);
-                    packet = null;
-                } else {
-                    while(packet.protoHeader.getXid() != recvXid){
-                        LOGGER.error("Packet xid out of order, drop the queued packet, type=" + packet.protoHeader.getType()
-                                + ", queuedXid=" + packet.protoHeader.getXid());
-                        packet.respHeader.setErr(ErrorCode.CONNECTION_LOSS);
-                        finishPacket(packet);
-
-                        if(! pendingQueue.isEmpty()){
-                            packet = pendingQueue.remove();
-                        } else {
-                            return ;
-                        }
-                    }
-                }
-            }
+        packet = removePendingPacket(header.getXid());
+        if(packet == null){
+            // the Packet already finished, lost or never queued, we don't close session here.
+            LOGGER.warn("No pending packet matches the response, drop it, xid=" + header.getXid());
+            return;
         }
 
         PacketLatency.receivePacket(packet);
@@ -630,6 +993,7 @@ public class DirectoryConnection {
         if(! this.status.equals(status)){
             ConnectionStatus pre = this.status;
             this.status = status;
+            statusTransitions.incrementAndGet();
             eventThread.queueClientEvent(new ClientStatusEvent(pre, status));
         }
     }
@@ -683,6 +1047,7 @@ public class DirectoryConnection {
         session.id = sessionId;
         session.password = sessionPassword;
         session.serverId = serverId;
+        sessionsEstablished.incrementAndGet();
         if(getStatus().isAlive()){
             setStatus(ConnectionStatus.CONNECTED);
         }
@@ -698,6 +1063,21 @@ public class DirectoryConnection {
 
     }
 
+    /**
+     * On the frame of the Packet written to the network by the DirectorySocket.
+     *
+     * The Packet finished before it, by a fast Response, is not stamped.
+     *
+     * @param packetXid
+     *         the xid of the Packet.
+     */
+    public void onPacketSent(int packetXid){
+        Packet p = pendingQueue.get(packetXid);
+        if(p != null){
+            PacketLatency.sendPacket(p);
+        }
+    }
+
     /**
      * On the DirectorySocket has error.
      */
@@ -726,7 +1106,10 @@ public class DirectoryConnection {
     private void doConnect() throws SessionTimeOutException{
         long to = getConnectTimeOut();
 
-        if(clientSocket.isConnected()){
+        if(! clientSocket.isConnected()){
+            failOver(to);
+        } else {
+            socketLostTime = 0;
             ErrorCode ec = sendConnectProtocol(to);
             // CONNECTION_LOSS means client data is inconsistence with server. now we check the last dxid of client.
             // if dxid of the client is bigger than server actual dxid, return CONNECTION_LOSS.
@@ -737,6 +1120,39 @@ public class DirectoryConnection {
         }
     }
 
+    /**
+     * Fail over to another Directory Server when the DirectorySocket can not connect
+     * to the current one in the connect timeout.
+     *
+     * @param to
+     *         the connect timeout.
+     */
+    private void failOver(long to){
+        if(directoryServers == null){
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if(socketLostTime == 0){
+            socketLostTime = now;
+            return;
+        }
+        if(now - socketLostTime < to){
+            return;
+        }
+        InetSocketAddress failed = directoryServer;
+        directoryServers.onConnectFailure(failed);
+        InetSocketAddress server = directoryServers.selectDirectoryServer((int) to);
+        if(server == null || ! connectRun.get()){
+            socketLostTime = System.currentTimeMillis();
+            return;
+        }
+        LOGGER.info("Directory Server " + failed + " is not reachable, fail over to " + server);
+        directoryServer = server;
+        clientSocket.cleanup();
+        clientSocket.connect(server);
+        socketLostTime = System.currentTimeMillis();
+    }
+
     /**
      * Send the Connect Protocol to the remote Directory Server.
      *
@@ -751,7 +1167,7 @@ public class DirectoryConnection {
 
         ConnectProtocol conReq = new ConnectProtocol(0, lastDxid,
                 session.timeOut, sessId, session.password, authData.userName, authData.secret, authData.obfuscated);
-        ServiceDirectoryFuture future = submitAsyncRequest(new ProtocolHeader(0, ProtocolType.CreateSession), conReq, null);
+        ServiceDirectoryFuture future = submitAsyncRequest(new ProtocolHeader(0, ProtocolType.CreateSession), conReq, null, to);
 
         try {
             ConnectResponse resp = null;
@@ -776,7 +1192,7 @@ public class DirectoryConnection {
     /**
      * Send the packet to Directory Server directory.
      *
-     * It doesn't queue the packet in the pendingQueue. It used internally to send
+     * It doesn't register the packet in the pendingQueue. It used internally to send
      * administration Protocol.
      *
      * @param header
@@ -794,6 +1210,9 @@ public class DirectoryConnection {
      *         the Packet.
      */
     private void finishPacket(Packet p) {
+        if(p.timeout != null){
+            p.timeout.cancel();
+        }
 
         if (p.watcherRegistration != null) {
             if(ErrorCode.OK.equals(p.respHeader.getErr())){
@@ -809,8 +1228,34 @@ public class DirectoryConnection {
             }
         }
 
-        eventThread.queuePacket(p);
+        if(p.future != null){
+            completeFuture(p);
+        }
+        if(p.cb != null){
+            eventThread.queuePacket(p);
+        }
+
+    }
 
+    /**
+     * Complete the ServiceDirectoryFuture of the Packet.
+     *
+     * It is done in the response path directly, the Future listeners run on
+     * their own Executor, so it doesn't wait for the EventThread.
+     *
+     * @param p
+     *         the Packet.
+     */
+    private void completeFuture(Packet p){
+        PacketLatency.callbackPacket(p);
+        ErrorCode rc = p.respHeader.getErr();
+        if(rc == null || ErrorCode.OK.equals(rc)){
+            if(! p.future.isCancelled()){
+                p.future.complete(p.response);
+            }
+        } else {
+            p.future.fail(new ServiceException(new ServiceDirectoryError(rc)));
+        }
     }
 
     /**
@@ -840,9 +1285,9 @@ public class DirectoryConnection {
      * On the session close.
      */
     private void onSessionClose(){
-        synchronized(pendingQueue){
-            while(! pendingQueue.isEmpty()){
-                Packet p = pendingQueue.remove();
+        for(Integer packetXid : pendingQueue.keySet()){
+            Packet p = removePendingPacket(packetXid);
+            if(p != null){
                 onLossPacket(p);
             }
         }
@@ -903,38 +1348,78 @@ public class DirectoryConnection {
     /**
      * Send the Ping Request.
      *
-     * @return
-     *         the ErrorCode, OK for success.
+     * It doesn't wait for the Ping Response, the timer checks the Response
+     * after the ping wait timeout.
+     *
      * @throws IOException
      *         the IOException.
      */
-    private ErrorCode sendPing() throws IOException {
+    private void sendPing() throws IOException {
         if(LOGGER.isTraceEnabled()){
             LOGGER.trace("......................send Ping");
         }
         lastPingSentNs = System.currentTimeMillis();
+        pingResponse.set(null);
         ProtocolHeader h = new ProtocolHeader(-2, ProtocolType.Ping);
         sendAdminPacket(h, null);
 
-        int waitTime = session.pingWaitTimeOut;
+        timer.newTimeout(new Runnable(){
 
-        synchronized(pingResponse){
-            while(waitTime > 0){
-                try {
-                    pingResponse.wait(waitTime);
-                } catch (InterruptedException e) {
-                    // Do nothing.
+            @Override
+            public void run() {
+                ResponseHeader header = pingResponse.getAndSet(null);
+                ErrorCode error = header == null ? ErrorCode.PING_TIMEOUT : header.getErr();
+                if(! ErrorCode.OK.equals(error)){
+                    onPingFailed(error);
                 }
+            }
 
-                ResponseHeader header = pingResponse.get();
-                if (header != null) {
-                    pingResponse.set(null);
-                    return header.getErr();
-                }
-                waitTime -= (System.currentTimeMillis() - lastPingSentNs);
+        }, session.pingWaitTimeOut, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Check the session idle of the connected DirectoryConnection, and send the Ping when
+     * it is idle for half of the session timeout.
+     *
+     * @return
+     *         the delay in milliseconds to the next check.
+     */
+    private long checkSession(){
+        updateNow();
+        long idle = getRecvIdle();
+
+        if(idle > session.timeOut){
+            LOGGER.info("Doesn't heared response from Directory Server in timeout " + session.timeOut + ", close the session.");
+            onSessionTimeOut();
+            return CONNECT_RETRY_DELAY;
+        }
+        long delay = session.timeOut / 2 - idle;
+        if(delay > 0){
+            return delay;
+        }
+        try {
+            sendPing();
+        } catch (IOException ioe) {
+            if(LOGGER.isTraceEnabled()){
+                LOGGER.trace("Ping get exception.", ioe);
             }
+            onPingFailed(null);
+            return CONNECT_RETRY_DELAY;
+        }
+        // check again after the ping wait timeout, it pings again if the Response doesn't come.
+        return session.pingWaitTimeOut;
+    }
+
+    /**
+     * Schedule the ConnectTask on the timer.
+     *
+     * @param delay
+     *         the delay in milliseconds.
+     */
+    private void scheduleConnectTask(long delay){
+        if(connectRun.get()){
+            connectTimeout = timer.newTimeout(new ConnectTask(), delay, TimeUnit.MILLISECONDS);
         }
-        return ErrorCode.PING_TIMEOUT;
     }
 
     /**
@@ -1062,6 +1547,46 @@ public class DirectoryConnection {
          */
         long createTime;
 
+        /**
+         * The create time of the Packet in nanoseconds, written before the Packet is published.
+         */
+        volatile long createNanos;
+
+        /**
+         * The queued time in nanoseconds, written by the caller before the Packet is published.
+         */
+        volatile long queueNanos;
+
+        /**
+         * The sent time in nanoseconds, written by the DirectorySocket write path, 0 if not sent.
+         */
+        volatile long sendNanos;
+
+        /**
+         * The Response received time in nanoseconds, written by the response thread.
+         */
+        volatile long receiveNanos;
+
+        /**
+         * The finished time in nanoseconds, written by the thread finishing the Packet.
+         */
+        volatile long finishNanos;
+
+        /**
+         * The deadline in milliseconds of the Packet, 0 for no deadline.
+         */
+        long deadline;
+
+        /**
+         * Indicate whether the Packet takes the in-flight window.
+         */
+        boolean windowed;
+
+        /**
+         * The deadline Timeout of the Packet.
+         */
+        HashedWheelTimer.Timeout timeout;
+
         /**
          * The constructor.
          *
@@ -1120,6 +1645,98 @@ public class DirectoryConnection {
             return this.createTime;
         }
 
+        /**
+         * Set the create time in nanoseconds.
+         *
+         * @param createNanos
+         *         the create time in nanoseconds.
+         */
+        public void setCreateNanos(long createNanos){
+            this.createNanos = createNanos;
+        }
+
+        /**
+         * Get the create time in nanoseconds.
+         *
+         * @return
+         *         the create time in nanoseconds.
+         */
+        public long getCreateNanos(){
+            return this.createNanos;
+        }
+
+        /**
+         * Set the time in nanoseconds the Packet reaches the latency stage.
+         *
+         * Each stage has a single writer thread.
+         *
+         * @param stage
+         *         the Stage, one of QUEUE, SEND, SERVER and FINISH.
+         * @param nanos
+         *         the stage time in nanoseconds.
+         */
+        public void setStageNanos(Stage stage, long nanos){
+            switch(stage){
+            case QUEUE:
+                queueNanos = nanos;
+                break;
+            case SEND:
+                sendNanos = nanos;
+                break;
+            case SERVER:
+                receiveNanos = nanos;
+                break;
+            case FINISH:
+                finishNanos = nanos;
+                break;
+            default:
+                throw new IllegalArgumentException("The stage time is not kept - " + stage);
+            }
+        }
+
+        /**
+         * Get the time in nanoseconds the Packet reaches the latency stage.
+         *
+         * @param stage
+         *         the Stage, one of QUEUE, SEND, SERVER and FINISH.
+         * @return
+         *         the stage time in nanoseconds, 0 if not reached.
+         */
+        public long getStageNanos(Stage stage){
+            switch(stage){
+            case QUEUE:
+                return queueNanos;
+            case SEND:
+                return sendNanos;
+            case SERVER:
+                return receiveNanos;
+            case FINISH:
+                return finishNanos;
+            default:
+                throw new IllegalArgumentException("The stage time is not kept - " + stage);
+            }
+        }
+
+        /**
+         * Get the ProtocolType of the Packet.
+         *
+         * @return
+         *         the ProtocolType.
+         */
+        public ProtocolType getProtocolType(){
+            return protoHeader == null ? null : protoHeader.getType();
+        }
+
+        /**
+         * Get the ErrorCode of the Response.
+         *
+         * @return
+         *         the ErrorCode, null if no Response.
+         */
+        public ErrorCode getErrorCode(){
+            return respHeader == null ? null : respHeader.getErr();
+        }
+
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder();
@@ -1134,6 +1751,67 @@ public class DirectoryConnection {
         }
     }
 
+    /**
+     * The DirectoryConnectionMXBean implementation.
+     */
+    class ConnectionStats implements DirectoryConnectionMXBean {
+
+        @Override
+        public String getStatus() {
+            return DirectoryConnection.this.getStatus().name();
+        }
+
+        @Override
+        public long getStatusTransitions() {
+            return statusTransitions.get();
+        }
+
+        @Override
+        public long getReconnects() {
+            return Math.max(0, sessionsEstablished.get() - 1);
+        }
+
+        @Override
+        public String getDirectoryServer() {
+            return String.valueOf(directoryServer);
+        }
+
+        @Override
+        public String getSessionId() {
+            return session.id;
+        }
+
+        @Override
+        public int getInflightPackets() {
+            return getPendingPacketCount();
+        }
+
+        @Override
+        public int getEventQueueDepth() {
+            return eventThread.getQueueDepth();
+        }
+
+        @Override
+        public int getWatchedServices() {
+            return watcherManager.getWatchedServiceCount();
+        }
+
+        @Override
+        public int getWatchers() {
+            return watcherManager.getWatcherCount();
+        }
+
+        @Override
+        public long getBytesSent() {
+            return clientSocket.getBytesSent();
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return clientSocket.getBytesReceived();
+        }
+    }
+
     /**
      * The Session of the DirectoryServer.
      *
@@ -1165,6 +1843,8 @@ public class DirectoryConnection {
     /**
      * The EventThread to handle the event.
      *
+     * Each DirectoryConnection owns one, it completes the callbacks and delivers the
+     * client and server events of the connection in order.
      *
      */
     class EventThread extends Thread {
@@ -1192,6 +1872,16 @@ public class DirectoryConnection {
            setDaemon(true);
        }
 
+       /**
+        * Get the number of the events waiting in the queue.
+        *
+        * @return
+        *         the queue depth.
+        */
+       int getQueueDepth(){
+           return waitingEvents.size();
+       }
+
        /**
         * Queue a Server Event.
         *
@@ -1212,16 +1902,6 @@ public class DirectoryConnection {
            waitingEvents.add(event);
        }
 
-       /**
-        * Queue a Watcher Event.
-        *
-        * @param event
-        *         the WatcherEvent.
-        */
-       public void queueWatcherEvent(WatcherEvent event) {
-           waitingEvents.add(event);
-       }
-
        /**
         * Queue a Packet.
         *
@@ -1292,42 +1972,6 @@ public class DirectoryConnection {
                   EventType type = ((Event) event).getEventType();
                   if(EventType.Server.equals(type)){
 
-                  } else if(EventType.Watcher.equals(type)){
-                      WatcherEvent watcherEvent = (WatcherEvent) event;
-
-                      if(watcherEvent.getServices() != null && watcherEvent.getServices().size() > 0){
-                          for(WatchedService wService : watcherEvent.getServices()){
-                              String serviceName = wService.getService().getName();
-                              List<Watcher> watchers = watcherManager.getWatchers(serviceName);
-
-                              if(watchers == null || watchers.size() == 0
-                                      || wService.getServiceInstanceEvents() == null || wService.getServiceInstanceEvents().size() == 0){
-                                  continue;
-                              }
-
-                              for(ServiceInstanceEvent instanceEvent : wService.getServiceInstanceEvents()){
-                                  String instanceId = instanceEvent.getInstanceId();
-                                  ModelServiceInstance serviceInstance = null;
-                                  if(! OperateType.Delete.equals(instanceEvent.getOperateType())){
-                                      for(ModelServiceInstance k : watcherEvent.getServiceInstances()){
-                                          if(serviceName.equals(k.getServiceName()) && instanceId.equals(k.getInstanceId())){
-                                              serviceInstance = k;
-                                          }
-                                      }
-                                  }
-                                  ServiceInstanceOperate o = new ServiceInstanceOperate(serviceName, instanceId,
-                                          serviceInstance, instanceEvent.getOperateType());
-                                  for(Watcher w : watchers){
-                                      try{
-                                          w.process(serviceName, o);
-                                      } catch(Exception e){
-                                          LOGGER.warn("Watcher process failed, name=" + serviceName, e);
-                                      }
-                                  }
-                              }
-                          }
-                      }
-
                   } else {
                       LOGGER.error("Unkonwn event type - " + type);
                   }
@@ -1362,18 +2006,6 @@ public class DirectoryConnection {
                       }
                   }
 
-                  if(p.future != null){
-                      if(ErrorCode.OK.equals(rc)){
-                          if(! p.future.isCancelled()){
-                              p.future.complete(p.response);
-                          }
-
-                      } else {
-
-                          p.future.fail(new ServiceException(new ServiceDirectoryError(rc)));
-                      }
-                  }
-
               }
           } catch (Throwable t) {
               LOGGER.error("Caught unexpected throwable", t);
@@ -1381,6 +2013,108 @@ public class DirectoryConnection {
        }
     }
 
+    /**
+     * Dispatch the WatcherEvent to the WatcherEventDispatcher.
+     *
+     * Every WatchedService is processed on the stripe of its service name, so the events
+     * of one service keep the order and different services are processed in parallel.
+     * The ServiceInstances of the event are indexed by service name and instanceId once here.
+     *
+     * @param event
+     *         the WatcherEvent.
+     */
+    private void dispatchWatcherEvent(WatcherEvent event){
+        if(event.getServices() == null || event.getServices().isEmpty()){
+            return;
+        }
+        final Map<String, Map<String, ModelServiceInstance>> index = indexServiceInstances(event.getServiceInstances());
+        for(final WatchedService wService : event.getServices()){
+            final String serviceName = wService.getService().getName();
+            watcherDispatcher.dispatch(serviceName, new Runnable(){
+
+                @Override
+                public void run() {
+                    processWatchedService(wService, index.get(serviceName));
+                }
+
+            });
+        }
+    }
+
+    /**
+     * Index the ServiceInstances by service name and instanceId.
+     *
+     * @param instances
+     *         the ModelServiceInstance list, can be null.
+     * @return
+     *         the ModelServiceInstance map keyed by service name and instanceId.
+     */
+    static Map<String, Map<String, ModelServiceInstance>> indexServiceInstances(List<ModelServiceInstance> instances){
+        Map<String, Map<String, ModelServiceInstance>> index = new HashMap<String, Map<String, ModelServiceInstance>>();
+        if(instances != null){
+            for(ModelServiceInstance instance : instances){
+                Map<String, ModelServiceInstance> serviceInstances = index.get(instance.getServiceName());
+                if(serviceInstances == null){
+                    serviceInstances = new HashMap<String, ModelServiceInstance>();
+                    index.put(instance.getServiceName(), serviceInstances);
+                }
+                serviceInstances.put(instance.getInstanceId(), instance);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Invoke the Watchers of the WatchedService.
+     *
+     * The Watcher list is resolved once, the ServiceInstanceOperates are built once and
+     * shared by all the Watchers. A BatchWatcher gets them in one processBatch call.
+     *
+     * @param wService
+     *         the WatchedService in the WatcherEvent.
+     * @param instances
+     *         the ModelServiceInstances of the service in the WatcherEvent keyed by instanceId, can be null.
+     */
+    private void processWatchedService(WatchedService wService, Map<String, ModelServiceInstance> instances){
+        String serviceName = wService.getService().getName();
+        List<Watcher> watchers = watcherManager.getWatchers(serviceName);
+
+        if(watchers == null || watchers.size() == 0
+                || wService.getServiceInstanceEvents() == null || wService.getServiceInstanceEvents().size() == 0){
+            return;
+        }
+
+        List<ServiceInstanceOperate> operates = new ArrayList<ServiceInstanceOperate>(wService.getServiceInstanceEvents().size());
+        for(ServiceInstanceEvent instanceEvent : wService.getServiceInstanceEvents()){
+            String instanceId = instanceEvent.getInstanceId();
+            ModelServiceInstance serviceInstance = null;
+            if(instances != null && ! OperateType.Delete.equals(instanceEvent.getOperateType())){
+                serviceInstance = instances.get(instanceId);
+            }
+            operates.add(new ServiceInstanceOperate(serviceName, instanceId,
+                    serviceInstance, instanceEvent.getOperateType()));
+        }
+        operates = Collections.unmodifiableList(operates);
+
+        for(Watcher w : watchers){
+            if(w instanceof BatchWatcher){
+                try{
+                    ((BatchWatcher) w).processBatch(serviceName, operates);
+                } catch(Exception e){
+                    LOGGER.warn("Watcher process failed, name=" + serviceName, e);
+                }
+            } else {
+                for(ServiceInstanceOperate o : operates){
+                    try{
+                        w.process(serviceName, o);
+                    } catch(Exception e){
+                        LOGGER.warn("Watcher process failed, name=" + serviceName, e);
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * On the DirectoryConnection session timeout.
      */
@@ -1450,67 +2184,56 @@ public class DirectoryConnection {
     private AtomicBoolean connectRun = new AtomicBoolean(true);
 
     /**
-     * The deamon connection thread task.
+     * The connection task run on the timer, it connects the Directory Server when not connected,
+     * or checks the session when connected, then schedules itself again.
      *
+     * The connect blocks in the connect timeout, it runs on the connectExecutor to keep the
+     * timer worker free for the request deadlines.
      *
      */
     class ConnectTask implements Runnable {
 
         @Override
         public void run() {
-            while(connectRun.get()){
+            if(! connectRun.get()){
+                return;
+            }
+            if (!getStatus().isConnected() && !closing) {
                 try{
-                    if (!getStatus().isConnected() && !closing) {
-
-                        doConnect();
-                    } else if(getStatus().isConnected()) {
-                        try {
-                            updateNow();
-                            long idle = getRecvIdle();
-
-                            if(idle > session.timeOut){
-                                LOGGER.info("Doesn't heared response from Directory Server in timeout " + session.timeOut + ", close the session.");
-                                onSessionTimeOut();
-                            } else {
-                                int sleepTO = (int) (session.timeOut / 2 - idle);
-                                if(sleepTO > 0){
-                                    try{
-                                        Thread.sleep(sleepTO);
-                                    }catch(Exception e){
-                                        // do noting
-                                    }
-                                }
-                                ErrorCode error = sendPing();
-                                if(! ErrorCode.OK.equals(error)){
-                                    onPingFailed(error);
+                    connectExecutor.execute(new Runnable(){
+
+                        @Override
+                        public void run() {
+                            try{
+                                doConnect();
+                            } catch(Throwable e){
+                                if(LOGGER.isTraceEnabled()){
+                                    LOGGER.trace("connect get error.", e);
                                 }
                             }
-
-                        } catch (IOException ioe) {
-                            if(LOGGER.isTraceEnabled()){
-                                LOGGER.trace("Ping get exception.", ioe);
-                            }
-                            onPingFailed(null);
-                        } catch (Exception e){
-                            if(LOGGER.isTraceEnabled()){
-                                LOGGER.trace("Ping get exception.", e);
-                            }
-                            onPingFailed(null);
+                            scheduleConnectTask(CONNECT_RETRY_DELAY);
                         }
-                    }
-                    try {
-                        Thread.sleep(50);
-                    } catch (Exception e) {
-                        // do nothing.
-                    }
 
-                } catch(Throwable e){
+                    });
+                } catch(RejectedExecutionException e){
+                    // the connection is closed.
                     if(LOGGER.isTraceEnabled()){
-                        LOGGER.trace("connect get error.", e);
+                        LOGGER.trace("connect task rejected.", e);
                     }
                 }
+                return;
             }
-
+            long delay = CONNECT_RETRY_DELAY;
+            try{
+                if(getStatus().isConnected()) {
+                    delay = checkSession();
+                }
+            } catch(Throwable e){
+                if(LOGGER.isTraceEnabled()){
+                    LOGGER.trace("check session get error.", e);
+                }
+            }
+            scheduleConnectTask(delay);
         }
 
     }
@@ -15,9 +15,22 @@
  */
 package com.cisco.oss.foundation.directory.connect;
 
+import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cisco.oss.foundation.directory.Configurations;
+import com.cisco.oss.foundation.directory.ServiceDirectoryThread;
 
 /**
  * The remote Directory Servers.
@@ -25,20 +38,75 @@ import java.util.List;
  * It used to save all Directory Server address in the remote cluster.
  * It supply getNextDirectoryServer() method to get next Directory Server.
  *
+ * It also resolves every address record of the Directory Server hosts, scores each
+ * endpoint by its recent connect latency and failures, and supply selectDirectoryServer()
+ * to race the connects to the best endpoints in parallel.
  *
  */
 public class DirectoryServers {
 
+    private final static Logger LOGGER = LoggerFactory.getLogger(DirectoryServers.class);
+
+    /**
+     * The number of endpoints raced in parallel connect property name.
+     */
+    public static final String SD_API_PARALLEL_CONNECT_COUNT_PROPERTY = "parallel.connect.count";
+
+    /**
+     * The default number of endpoints raced in parallel connect.
+     */
+    public static final int SD_API_PARALLEL_CONNECT_COUNT_DEFAULT = 3;
+
+    /**
+     * The delay in milliseconds before starting the connect to the next endpoint property name.
+     */
+    public static final String SD_API_PARALLEL_CONNECT_DELAY_PROPERTY = "parallel.connect.delay";
+
+    /**
+     * The default delay in milliseconds before starting the connect to the next endpoint.
+     */
+    public static final int SD_API_PARALLEL_CONNECT_DELAY_DEFAULT = 250;
+
+    /**
+     * The parallel connect timeout in milliseconds property name.
+     */
+    public static final String SD_API_PARALLEL_CONNECT_TIMEOUT_PROPERTY = "parallel.connect.timeout";
+
+    /**
+     * The default parallel connect timeout in milliseconds.
+     */
+    public static final int SD_API_PARALLEL_CONNECT_TIMEOUT_DEFAULT = 2000;
+
+    /**
+     * The score penalty in milliseconds of each recent connect failure.
+     */
+    private static final long FAILURE_PENALTY = 10000;
+
+    /**
+     * The max failure count counted in the score.
+     */
+    private static final int MAX_FAILURES = 10;
+
+    /**
+     * The time in milliseconds a connect failure is remembered.
+     */
+    private static final long FAILURE_EXPIRE = 60000;
+
     /**
      * The server list.
      */
-    private List<InetSocketAddress> servers ;
+    private volatile List<InetSocketAddress> servers ;
 
     /**
      * The server index.
      */
     private int index = -1;
 
+    /**
+     * The health of the resolved Directory Server endpoints.
+     */
+    private final ConcurrentHashMap<InetSocketAddress, ServerHealth> healths = new ConcurrentHashMap<InetSocketAddress, ServerHealth>();
+
     /**
      * Constructor.
      */
@@ -80,33 +148,160 @@ public class DirectoryServers {
      * @return
      *         the Directory Server InetSocketAddress.
      */
-    public InetSocketAddress getNextDirectoryServer(){
-
+    public synchronized InetSocketAddress getNextDirectoryServer(){
+        List<InetSocketAddress> servers = this.servers;
         index = index + 1;
-        if(index == servers.size()){
+        if(index >= servers.size()){
             index = 0;
         }
         InetSocketAddress unresolved = servers.get(index);
-
-//        List<InetSocketAddress> resolved = null;
-//        try {
-//            InetAddress[] addresses = InetAddress.getAllByName(unresolved.getHostName());
-//            for(InetAddress address : addresses){
-//                if(resolved == null){
-//                    resolved = new ArrayList<InetSocketAddress>();
-//                }
-//                resolved.add(new InetSocketAddress(address.getHostAddress(), unresolved.getPort()));
-//            }
-//        } catch (UnknownHostException e) {
-//            LOGGER.error("Resolve the Directory Server failed, host=" + unresolved.getAddress().toString() + " - " + e.getMessage());
-//        }
-//
-//        if(resolved == null){
-//            return Collections.emptyList();
-//        }
         return new InetSocketAddress(unresolved.getHostName(), unresolved.getPort());
     }
 
+    /**
+     * Resolve all the Directory Server endpoints.
+     *
+     * Every address record of the Directory Server host is an endpoint, the resolved
+     * InetSocketAddress keeps the host name. The host failed to resolve is kept
+     * unresolved, so the DirectorySocket can retry the resolution.
+     *
+     * @return
+     *         the Directory Server endpoint list.
+     */
+    public List<InetSocketAddress> resolveDirectoryServers(){
+        List<InetSocketAddress> resolved = new ArrayList<InetSocketAddress>();
+        for(InetSocketAddress unresolved : servers){
+            String host = unresolved.getHostName();
+            try {
+                for(InetAddress address : InetAddress.getAllByName(host)){
+                    resolved.add(new InetSocketAddress(InetAddress.getByAddress(host, address.getAddress()), unresolved.getPort()));
+                }
+            } catch (UnknownHostException e) {
+                LOGGER.error("Resolve the Directory Server failed, host=" + host + " - " + e.getMessage());
+                resolved.add(InetSocketAddress.createUnresolved(host, unresolved.getPort()));
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Get the Directory Server endpoints ordered by the health score, the healthiest first.
+     *
+     * @param count
+     *         the max number of the endpoints.
+     * @return
+     *         the Directory Server endpoint list.
+     */
+    public List<InetSocketAddress> getCandidateServers(int count){
+        List<InetSocketAddress> candidates = resolveDirectoryServers();
+        final long now = System.currentTimeMillis();
+        // The sort is stable, the endpoints with the same score keep the resolved order.
+        Collections.sort(candidates, new Comparator<InetSocketAddress>(){
+
+            @Override
+            public int compare(InetSocketAddress o1, InetSocketAddress o2) {
+                long s1 = getScore(o1, now);
+                long s2 = getScore(o2, now);
+                return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+            }
+
+        });
+        if(count > 0 && candidates.size() > count){
+            return new ArrayList<InetSocketAddress>(candidates.subList(0, count));
+        }
+        return candidates;
+    }
+
+    /**
+     * Select the Directory Server to connect in the parallel connect timeout.
+     *
+     * @return
+     *         the selected Directory Server, null if all the connects failed.
+     */
+    public InetSocketAddress selectDirectoryServer(){
+        return selectDirectoryServer(Configurations.getInt(SD_API_PARALLEL_CONNECT_TIMEOUT_PROPERTY, SD_API_PARALLEL_CONNECT_TIMEOUT_DEFAULT));
+    }
+
+    /**
+     * Select the Directory Server to connect.
+     *
+     * It races the connects to the healthiest endpoints, the connect to the next endpoint
+     * starts after the parallel connect delay or immediately when the previous one failed.
+     * The first endpoint that completes the connect wins.
+     *
+     * @param timeOut
+     *         the connect timeout in milliseconds.
+     * @return
+     *         the selected Directory Server, null if all the connects failed.
+     */
+    public InetSocketAddress selectDirectoryServer(int timeOut){
+        List<InetSocketAddress> candidates = getCandidateServers(
+                Configurations.getInt(SD_API_PARALLEL_CONNECT_COUNT_PROPERTY, SD_API_PARALLEL_CONNECT_COUNT_DEFAULT));
+        if(candidates.isEmpty()){
+            return null;
+        }
+        ConnectRace race = new ConnectRace(candidates.size());
+        long delay = Configurations.getInt(SD_API_PARALLEL_CONNECT_DELAY_PROPERTY, SD_API_PARALLEL_CONNECT_DELAY_DEFAULT);
+        return race.run(candidates, delay, timeOut);
+    }
+
+    /**
+     * Record the successful connect to the Directory Server endpoint.
+     *
+     * @param server
+     *         the Directory Server endpoint.
+     * @param latency
+     *         the connect latency in milliseconds.
+     */
+    public void onConnectSuccess(InetSocketAddress server, long latency){
+        getHealth(server).onSuccess(latency);
+    }
+
+    /**
+     * Record the failed connect to the Directory Server endpoint.
+     *
+     * @param server
+     *         the Directory Server endpoint.
+     */
+    public void onConnectFailure(InetSocketAddress server){
+        getHealth(server).onFailure(System.currentTimeMillis());
+    }
+
+    /**
+     * Get the health score of the Directory Server endpoint, the lower the better.
+     *
+     * @param server
+     *         the Directory Server endpoint.
+     * @param now
+     *         the current time in milliseconds.
+     * @return
+     *         the score.
+     */
+    long getScore(InetSocketAddress server, long now){
+        ServerHealth health = healths.get(server);
+        return health == null ? 0 : health.getScore(now);
+    }
+
+    /**
+     * Get the ServerHealth of the Directory Server endpoint, create it if not exists.
+     *
+     * @param server
+     *         the Directory Server endpoint.
+     * @return
+     *         the ServerHealth.
+     */
+    private ServerHealth getHealth(InetSocketAddress server){
+        ServerHealth health = healths.get(server);
+        if(health == null){
+            health = new ServerHealth();
+            ServerHealth old = healths.putIfAbsent(server, health);
+            if(old != null){
+                health = old;
+            }
+        }
+        return health;
+    }
+
     /**
      * Parser the server list.
      *
@@ -154,4 +349,234 @@ public class DirectoryServers {
         return true;
     }
 
+    /**
+     * The connect health of a Directory Server endpoint.
+     */
+    static class ServerHealth {
+
+        /**
+         * The smoothed connect latency in milliseconds, 0 before the first success.
+         */
+        private long latency = 0;
+
+        /**
+         * The consecutive connect failures.
+         */
+        private int failures = 0;
+
+        /**
+         * The time of the last connect failure.
+         */
+        private long lastFailure = 0;
+
+        /**
+         * On the connect success.
+         *
+         * @param l
+         *         the connect latency in milliseconds.
+         */
+        synchronized void onSuccess(long l){
+            latency = latency == 0 ? l : (latency * 3 + l) / 4;
+            failures = 0;
+        }
+
+        /**
+         * On the connect failure.
+         *
+         * @param now
+         *         the current time in milliseconds.
+         */
+        synchronized void onFailure(long now){
+            if(failures < MAX_FAILURES){
+                failures ++;
+            }
+            lastFailure = now;
+        }
+
+        /**
+         * Get the score, the failures are forgotten after FAILURE_EXPIRE.
+         *
+         * @param now
+         *         the current time in milliseconds.
+         * @return
+         *         the score.
+         */
+        synchronized long getScore(long now){
+            if(failures > 0 && now - lastFailure < FAILURE_EXPIRE){
+                return latency + failures * FAILURE_PENALTY;
+            }
+            return latency;
+        }
+    }
+
+    /**
+     * The parallel connect race to the Directory Server endpoints.
+     */
+    class ConnectRace {
+
+        /**
+         * The winner endpoint.
+         */
+        private InetSocketAddress winner = null;
+
+        /**
+         * The number of the finished connects.
+         */
+        private int finished = 0;
+
+        /**
+         * The number of the connects.
+         */
+        private final int count;
+
+        /**
+         * Constructor.
+         *
+         * @param count
+         *         the number of the connects.
+         */
+        ConnectRace(int count){
+            this.count = count;
+        }
+
+        /**
+         * Run the race.
+         *
+         * @param candidates
+         *         the endpoints in the start order.
+         * @param delay
+         *         the delay in milliseconds before starting the next connect.
+         * @param timeOut
+         *         the connect timeout in milliseconds.
+         * @return
+         *         the winner endpoint, null if all failed.
+         */
+        synchronized InetSocketAddress run(List<InetSocketAddress> candidates, long delay, int timeOut){
+            long start = System.currentTimeMillis();
+            long deadline = start + timeOut;
+            for(int i = 0; i < candidates.size(); i ++){
+                InetSocketAddress candidate = candidates.get(i);
+                Thread t = new Thread(new ConnectTask(candidate, timeOut));
+                t.setDaemon(true);
+                t.setName(ServiceDirectoryThread.getThreadName("Parallel_Connect_" + i));
+                t.start();
+
+                // wait the delay, or until the started connects all failed.
+                long next = System.currentTimeMillis() + delay;
+                long to = Math.min(next, deadline) - System.currentTimeMillis();
+                while(winner == null && finished <= i && to > 0){
+                    waitQuietly(to);
+                    to = Math.min(next, deadline) - System.currentTimeMillis();
+                }
+                if(winner != null || System.currentTimeMillis() >= deadline){
+                    break;
+                }
+            }
+            long to = deadline - System.currentTimeMillis();
+            while(winner == null && finished < count && to > 0){
+                waitQuietly(to);
+                to = deadline - System.currentTimeMillis();
+            }
+            if(LOGGER.isDebugEnabled()){
+                LOGGER.debug("Parallel connect selected " + winner + " in " + (System.currentTimeMillis() - start) + "ms");
+            }
+            return winner;
+        }
+
+        /**
+         * On the connect finished.
+         *
+         * @param server
+         *         the endpoint.
+         * @param success
+         *         true if connected.
+         */
+        synchronized void onFinished(InetSocketAddress server, boolean success){
+            finished ++;
+            if(success && winner == null){
+                winner = server;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Get the winner.
+         *
+         * @return
+         *         the winner endpoint, null if no winner yet.
+         */
+        synchronized InetSocketAddress getWinner(){
+            return winner;
+        }
+
+        /**
+         * Wait the race monitor without the interruption.
+         *
+         * @param to
+         *         the timeout in milliseconds.
+         */
+        private void waitQuietly(long to){
+            try {
+                wait(to);
+            } catch (InterruptedException e) {
+                // do nothing.
+            }
+        }
+
+        /**
+         * The connect task of an endpoint.
+         */
+        class ConnectTask implements Runnable {
+
+            /**
+             * The endpoint.
+             */
+            private final InetSocketAddress server;
+
+            /**
+             * The connect timeout in milliseconds.
+             */
+            private final int timeOut;
+
+            /**
+             * Constructor.
+             *
+             * @param server
+             *         the endpoint.
+             * @param timeOut
+             *         the connect timeout in milliseconds.
+             */
+            ConnectTask(InetSocketAddress server, int timeOut){
+                this.server = server;
+                this.timeOut = timeOut;
+            }
+
+            @Override
+            public void run() {
+                boolean success = false;
+                Socket socket = new Socket();
+                long start = System.currentTimeMillis();
+                try {
+                    socket.connect(server, timeOut);
+                    success = true;
+                    onConnectSuccess(server, System.currentTimeMillis() - start);
+                } catch (IOException e) {
+                    if(getWinner() == null){
+                        onConnectFailure(server);
+                    }
+                    if(LOGGER.isTraceEnabled()){
+                        LOGGER.trace("Parallel connect to " + server + " failed - " + e.getMessage());
+                    }
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // do nothing.
+                    }
+                }
+                onFinished(server, success);
+            }
+        }
+    }
+
 }
@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.cisco.oss.foundation.directory.proto.Protocol;
 import com.cisco.oss.foundation.directory.proto.ProtocolHeader;
@@ -64,6 +65,16 @@ public abstract class DirectorySocket {
      */
     protected long recvCount = 0;
 
+    /**
+     * All sent bytes.
+     */
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * All received bytes.
+     */
+    private final AtomicLong bytesReceived = new AtomicLong();
+
     /**
      * The last receive response time in ms.
      */
@@ -156,6 +167,46 @@ public abstract class DirectorySocket {
         return recvCount;
     }
 
+    /**
+     * Get the sent bytes.
+     *
+     * @return
+     *         the sent bytes.
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Get the received bytes.
+     *
+     * @return
+     *         the received bytes.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Add the sent bytes.
+     *
+     * @param bytes
+     *         the bytes sent.
+     */
+    protected void addBytesSent(long bytes) {
+        bytesSent.addAndGet(bytes);
+    }
+
+    /**
+     * Add the received bytes.
+     *
+     * @param bytes
+     *         the bytes received.
+     */
+    protected void addBytesReceived(long bytes) {
+        bytesReceived.addAndGet(bytes);
+    }
+
     /**
      * Update last receive response time.
      */
@@ -0,0 +1,539 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.connect;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cisco.oss.foundation.directory.Configurations;
+import com.cisco.oss.foundation.directory.ServiceDirectoryThread;
+
+/**
+ * The hashed wheel timer.
+ *
+ * A single thread ticks the wheel, the expired tasks run on a bounded pool of worker
+ * threads which are only alive when there are tasks to run. The tasks must not block,
+ * a task with blocking work hands it off to its own executor. When the worker queue is
+ * full, the task runs on the wheel thread rather than being dropped, a dropped request
+ * deadline would leave the request pending forever. The shared timer drives the ping,
+ * session idle check, connect retry and request deadline of all the DirectoryConnections
+ * in the JVM.
+ *
+ * The timer is approximate, a task runs in the tick after its deadline. A cancelled
+ * task is unlinked from its bucket in the next tick and its task reference is dropped
+ * at once, so a cancelled request deadline doesn't keep the request reachable.
+ *
+ */
+public class HashedWheelTimer {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    /**
+     * The tick duration in milliseconds property name.
+     */
+    public final static String TIMER_TICK_DURATION_PROPERTY = "timer.tick.duration";
+
+    /**
+     * The default tick duration in milliseconds.
+     */
+    public final static int TIMER_TICK_DURATION_DEFAULT = 50;
+
+    /**
+     * The wheel size property name, it is normalized to the power of 2.
+     */
+    public final static String TIMER_WHEEL_SIZE_PROPERTY = "timer.wheel.size";
+
+    /**
+     * The default wheel size.
+     */
+    public final static int TIMER_WHEEL_SIZE_DEFAULT = 512;
+
+    /**
+     * The worker thread number property name.
+     */
+    public final static String TIMER_WORKER_THREADS_PROPERTY = "timer.worker.threads";
+
+    /**
+     * The default worker thread number.
+     */
+    public final static int TIMER_WORKER_THREADS_DEFAULT = 4;
+
+    /**
+     * The worker queue size property name.
+     */
+    public final static String TIMER_WORKER_QUEUE_SIZE_PROPERTY = "timer.worker.queue.size";
+
+    /**
+     * The default worker queue size.
+     */
+    public final static int TIMER_WORKER_QUEUE_SIZE_DEFAULT = 4096;
+
+    /**
+     * The shared timer.
+     */
+    private static HashedWheelTimer sharedTimer = null;
+
+    /**
+     * The tick duration in nanoseconds.
+     */
+    private final long tickDuration;
+
+    /**
+     * The wheel buckets, only accessed by the wheel thread.
+     */
+    private final Bucket[] wheel;
+
+    /**
+     * The mask of the wheel index.
+     */
+    private final int mask;
+
+    /**
+     * The new Timeouts to add to the wheel.
+     */
+    private final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+    /**
+     * The cancelled Timeouts to remove from the wheel.
+     */
+    private final ConcurrentLinkedQueue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+    /**
+     * The count of the Timeouts not expired or removed yet.
+     */
+    private final AtomicInteger pendingTimeouts = new AtomicInteger();
+
+    /**
+     * The worker executor to run the expired tasks.
+     */
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * The wheel thread.
+     */
+    private final Thread wheelThread;
+
+    /**
+     * The start time of the wheel in nanoseconds.
+     */
+    private volatile long startTime = 0;
+
+    /**
+     * Indicate whether to stop.
+     */
+    private volatile boolean toStop = false;
+
+    /**
+     * Constructor.
+     *
+     * @param tickDuration
+     *         the tick duration in milliseconds.
+     * @param wheelSize
+     *         the wheel size.
+     */
+    public HashedWheelTimer(long tickDuration, int wheelSize){
+        this(tickDuration, wheelSize, TIMER_WORKER_THREADS_DEFAULT, TIMER_WORKER_QUEUE_SIZE_DEFAULT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param tickDuration
+     *         the tick duration in milliseconds.
+     * @param wheelSize
+     *         the wheel size.
+     * @param workerThreads
+     *         the max worker thread number.
+     * @param workerQueueSize
+     *         the worker queue size.
+     */
+    public HashedWheelTimer(long tickDuration, int wheelSize, int workerThreads, int workerQueueSize){
+        if(tickDuration <= 0){
+            throw new IllegalArgumentException("tickDuration must be greater than 0: " + tickDuration);
+        }
+        if(wheelSize <= 0){
+            throw new IllegalArgumentException("wheelSize must be greater than 0: " + wheelSize);
+        }
+        if(workerThreads <= 0){
+            throw new IllegalArgumentException("workerThreads must be greater than 0: " + workerThreads);
+        }
+        if(workerQueueSize <= 0){
+            throw new IllegalArgumentException("workerQueueSize must be greater than 0: " + workerQueueSize);
+        }
+        int size = 1;
+        while(size < wheelSize){
+            size <<= 1;
+        }
+        this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        this.wheel = new Bucket[size];
+        for(int i = 0; i < size; i ++){
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(workerQueueSize), new ThreadFactory(){
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return ServiceDirectoryThread.getThread(r, "Timer_Worker", true);
+                    }
+
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.workers.allowCoreThreadTimeOut(true);
+        this.wheelThread = ServiceDirectoryThread.getThread(new WheelTask(), "Timer_Wheel", true);
+    }
+
+    /**
+     * Get the shared timer of the JVM, it starts in the first get.
+     *
+     * @return
+     *         the shared HashedWheelTimer.
+     */
+    public static synchronized HashedWheelTimer getSharedTimer(){
+        if(sharedTimer == null){
+            sharedTimer = new HashedWheelTimer(
+                    Configurations.getInt(TIMER_TICK_DURATION_PROPERTY, TIMER_TICK_DURATION_DEFAULT),
+                    Configurations.getInt(TIMER_WHEEL_SIZE_PROPERTY, TIMER_WHEEL_SIZE_DEFAULT),
+                    Configurations.getInt(TIMER_WORKER_THREADS_PROPERTY, TIMER_WORKER_THREADS_DEFAULT),
+                    Configurations.getInt(TIMER_WORKER_QUEUE_SIZE_PROPERTY, TIMER_WORKER_QUEUE_SIZE_DEFAULT));
+            sharedTimer.start();
+        }
+        return sharedTimer;
+    }
+
+    /**
+     * Start the timer.
+     */
+    public synchronized void start(){
+        if(startTime == 0){
+            startTime = System.nanoTime();
+            wheelThread.start();
+        }
+    }
+
+    /**
+     * Stop the timer, the pending tasks are dropped.
+     */
+    public void stop(){
+        toStop = true;
+        wheelThread.interrupt();
+        workers.shutdown();
+    }
+
+    /**
+     * Schedule the task to run after the delay.
+     *
+     * The task must not block, it holds the worker shared by all the timer tasks.
+     *
+     * @param task
+     *         the task.
+     * @param delay
+     *         the delay.
+     * @param unit
+     *         the TimeUnit of the delay.
+     * @return
+     *         the Timeout to cancel the task.
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit){
+        if(task == null){
+            throw new IllegalArgumentException("task is null");
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(delay, 0)));
+        pendingTimeouts.incrementAndGet();
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Get the count of the Timeouts not expired or removed from the wheel yet.
+     *
+     * @return
+     *         the pending Timeout count.
+     */
+    int pendingTimeouts(){
+        return pendingTimeouts.get();
+    }
+
+    /**
+     * Move the new Timeouts to the wheel buckets.
+     *
+     * @param tick
+     *         the current tick.
+     */
+    private void transferTimeouts(long tick){
+        Timeout timeout;
+        while((timeout = newTimeouts.poll()) != null){
+            if(timeout.isCancelled()){
+                pendingTimeouts.decrementAndGet();
+                continue;
+            }
+            long calculated = (timeout.deadline - startTime) / tickDuration;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Remove the cancelled Timeouts from their buckets.
+     *
+     * The Timeouts cancelled before the transfer are not in any bucket, the transfer drops them.
+     */
+    private void removeCancelledTimeouts(){
+        Timeout timeout;
+        while((timeout = cancelledTimeouts.poll()) != null){
+            if(timeout.bucket != null){
+                removeTimeout(timeout);
+            }
+        }
+    }
+
+    /**
+     * Expire the Timeouts of the bucket.
+     *
+     * @param bucket
+     *         the bucket.
+     */
+    private void expireTimeouts(Bucket bucket){
+        Timeout timeout = bucket.head;
+        while(timeout != null){
+            Timeout next = timeout.next;
+            if(timeout.isCancelled()){
+                removeTimeout(timeout);
+            } else if(timeout.remainingRounds <= 0){
+                removeTimeout(timeout);
+                timeout.expire();
+            } else {
+                timeout.remainingRounds --;
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * Unlink the Timeout from its bucket.
+     *
+     * @param timeout
+     *         the Timeout.
+     */
+    private void removeTimeout(Timeout timeout){
+        timeout.bucket.remove(timeout);
+        pendingTimeouts.decrementAndGet();
+    }
+
+    /**
+     * The wheel bucket, a doubly linked list of the Timeouts, so a cancelled Timeout is
+     * removed in constant time. Only accessed by the wheel thread.
+     */
+    class Bucket {
+
+        /**
+         * The first Timeout.
+         */
+        private Timeout head;
+
+        /**
+         * The last Timeout.
+         */
+        private Timeout tail;
+
+        /**
+         * Append the Timeout.
+         *
+         * @param timeout
+         *         the Timeout.
+         */
+        void add(Timeout timeout){
+            timeout.bucket = this;
+            if(head == null){
+                head = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+            }
+            tail = timeout;
+        }
+
+        /**
+         * Remove the Timeout.
+         *
+         * @param timeout
+         *         the Timeout.
+         */
+        void remove(Timeout timeout){
+            Timeout prev = timeout.prev;
+            Timeout next = timeout.next;
+            if(prev == null){
+                head = next;
+            } else {
+                prev.next = next;
+            }
+            if(next == null){
+                tail = prev;
+            } else {
+                next.prev = prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    /**
+     * The wheel task.
+     */
+    class WheelTask implements Runnable {
+
+        @Override
+        public void run() {
+            long tick = 0;
+            while(! toStop){
+                long deadline = startTime + (tick + 1) * tickDuration;
+                long sleep = deadline - System.nanoTime();
+                if(sleep > 0){
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleep);
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                }
+                try {
+                    removeCancelledTimeouts();
+                    transferTimeouts(tick);
+                    expireTimeouts(wheel[(int) (tick & mask)]);
+                } catch (Throwable t) {
+                    LOGGER.error("Caught unexpected throwable in the timer wheel", t);
+                }
+                tick ++;
+            }
+            LOGGER.info(Thread.currentThread().getName() + " shut down");
+        }
+    }
+
+    /**
+     * The handle of the scheduled task.
+     */
+    public class Timeout {
+
+        /**
+         * The task, null after cancelled.
+         */
+        private volatile Runnable task;
+
+        /**
+         * The deadline in nanoseconds.
+         */
+        private final long deadline;
+
+        /**
+         * The remaining wheel rounds, only accessed by the wheel thread.
+         */
+        private long remainingRounds;
+
+        /**
+         * The bucket of the Timeout, null if not in the wheel, only accessed by the wheel thread.
+         */
+        private Bucket bucket;
+
+        /**
+         * The previous Timeout in the bucket.
+         */
+        private Timeout prev;
+
+        /**
+         * The next Timeout in the bucket.
+         */
+        private Timeout next;
+
+        /**
+         * Indicate whether cancelled.
+         */
+        private volatile boolean cancelled = false;
+
+        /**
+         * Constructor.
+         *
+         * @param task
+         *         the task.
+         * @param deadline
+         *         the deadline in nanoseconds.
+         */
+        Timeout(Runnable task, long deadline){
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task, it doesn't interrupt the running task.
+         *
+         * The task reference is dropped, and the Timeout is removed from the wheel in the next tick.
+         */
+        public void cancel(){
+            if(cancelled){
+                return;
+            }
+            cancelled = true;
+            task = null;
+            cancelledTimeouts.add(this);
+        }
+
+        /**
+         * Indicate whether cancelled.
+         *
+         * @return
+         *         true if cancelled.
+         */
+        public boolean isCancelled(){
+            return cancelled;
+        }
+
+        /**
+         * Run the task on the worker.
+         */
+        private void expire(){
+            final Runnable task = this.task;
+            if(task == null){
+                return;
+            }
+            try {
+                workers.execute(new Runnable(){
+
+                    @Override
+                    public void run() {
+                        if(cancelled){
+                            return;
+                        }
+                        try {
+                            task.run();
+                        } catch (Throwable t) {
+                            LOGGER.error("Caught unexpected throwable in the timer task", t);
+                        }
+                    }
+
+                });
+            } catch (Exception e) {
+                LOGGER.warn("Run the timer task failed - " + e.getMessage());
+            }
+        }
+    }
+}
@@ -15,25 +15,30 @@
  */
 package com.cisco.oss.foundation.directory.connect;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.cisco.oss.foundation.directory.Configurations;
 import com.cisco.oss.foundation.directory.ServiceDirectoryThread;
 import com.cisco.oss.foundation.directory.exception.ConnectTimeOutException;
+import com.cisco.oss.foundation.directory.proto.BinaryProtocolCodec;
+import com.cisco.oss.foundation.directory.proto.ConnectResponse;
+import com.cisco.oss.foundation.directory.proto.JavaSerializationCodec;
 import com.cisco.oss.foundation.directory.proto.Protocol;
+import com.cisco.oss.foundation.directory.proto.ProtocolCodec;
+import com.cisco.oss.foundation.directory.proto.ProtocolCodec.ResponseFrame;
 import com.cisco.oss.foundation.directory.proto.ProtocolHeader;
 import com.cisco.oss.foundation.directory.proto.Response;
 import com.cisco.oss.foundation.directory.proto.ResponseHeader;
@@ -48,6 +53,31 @@ public class NIODirectorySocket extends DirectorySocket {
     private final static Logger LOGGER = LoggerFactory
             .getLogger(NIODirectorySocket.class);
 
+    /**
+     * The max frame count gathered in one socket write property name.
+     */
+    public final static String NIO_GATHERING_WRITE_SIZE_PROPERTY = "nio.gathering.write.size";
+
+    /**
+     * The default max frame count gathered in one socket write.
+     */
+    public final static int NIO_GATHERING_WRITE_SIZE_DEFAULT = 64;
+
+    /**
+     * The ProtocolCodec implementation class name property name.
+     */
+    public final static String NIO_CODEC_PROVIDER_PROPERTY = "nio.codec.provider";
+
+    /**
+     * Whether to switch to the BinaryProtocolCodec when the server advertises it, property name.
+     */
+    public final static String NIO_BINARY_CODEC_ENABLED_PROPERTY = "nio.binary.codec.enabled";
+
+    /**
+     * The default value of whether to switch to the BinaryProtocolCodec.
+     */
+    public final static boolean NIO_BINARY_CODEC_ENABLED_DEFAULT = true;
+
     /**
      * The nio Selector.
      */
@@ -78,6 +108,55 @@ public class NIODirectorySocket extends DirectorySocket {
      */
     private volatile boolean isConnecting = false;
 
+    /**
+     * The outgoing frame queue.
+     *
+     * The caller threads only enqueue the frames, the NIOThread drains the queue
+     * when the SocketChannel is writable.
+     */
+    private final ConcurrentLinkedQueue<OutgoingFrame> outgoingQueue = new ConcurrentLinkedQueue<OutgoingFrame>();
+
+    /**
+     * The max frame count gathered in one socket write, at least 1.
+     */
+    private final int gatheringWriteSize = Math.max(1,
+            Configurations.getInt(NIO_GATHERING_WRITE_SIZE_PROPERTY, NIO_GATHERING_WRITE_SIZE_DEFAULT));
+
+    /**
+     * The frames of one gathering write, only used in the NIOThread.
+     */
+    private final ByteBuffer[] gatheringFrames = new ByteBuffer[gatheringWriteSize];
+
+    /**
+     * The configured ProtocolCodec, null if not configured.
+     */
+    private final ProtocolCodec configuredCodec;
+
+    /**
+     * The JavaSerializationCodec, the default encoder.
+     */
+    private final ProtocolCodec javaCodec = new JavaSerializationCodec();
+
+    /**
+     * The BinaryProtocolCodec, it decodes both the binary and the java serialization payload.
+     */
+    private final ProtocolCodec binaryCodec = new BinaryProtocolCodec();
+
+    /**
+     * The ProtocolCodec to decode the Response.
+     */
+    private final ProtocolCodec decoder;
+
+    /**
+     * The ProtocolCodec to encode the Protocol, switched when the ConnectResponse is received.
+     */
+    private volatile ProtocolCodec encoder;
+
+    /**
+     * Whether to switch to the BinaryProtocolCodec when the server advertises it.
+     */
+    private final boolean binaryEnabled = Configurations.getBoolean(NIO_BINARY_CODEC_ENABLED_PROPERTY, NIO_BINARY_CODEC_ENABLED_DEFAULT);
+
     /**
      * Constructor.
      */
@@ -87,6 +166,65 @@ public class NIODirectorySocket extends DirectorySocket {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        configuredCodec = createCodec();
+        decoder = configuredCodec == null ? binaryCodec : configuredCodec;
+        encoder = initialEncoder();
+    }
+
+    /**
+     * Create the configured ProtocolCodec.
+     *
+     * It looks up the configuration "nio.codec.provider", the configured ProtocolCodec
+     * is used from the first frame and never switched.
+     *
+     * @return
+     *         the ProtocolCodec, null when it is not set or fails to instantiate.
+     */
+    private static ProtocolCodec createCodec() {
+        String provider = Configurations.getString(NIO_CODEC_PROVIDER_PROPERTY, null);
+        if (provider != null && ! provider.isEmpty()) {
+            try {
+                Class<?> providerClass = Class.forName(provider);
+                if (ProtocolCodec.class.isAssignableFrom(providerClass)) {
+                    return (ProtocolCodec) providerClass.newInstance();
+                }
+                LOGGER.warn("The codec provider is not a ProtocolCodec - " + provider);
+            } catch (Exception e) {
+                LOGGER.warn("fail to initialize the ProtocolCodec provider - " + provider, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the encoder of the new connection.
+     *
+     * The java serialization is the default, every server decodes it. The encoder
+     * switches to the BinaryProtocolCodec only after the server advertises it in the
+     * ConnectResponse, so the rolling upgrade of the servers is safe.
+     *
+     * @return
+     *         the ProtocolCodec.
+     */
+    private ProtocolCodec initialEncoder() {
+        return configuredCodec == null ? javaCodec : configuredCodec;
+    }
+
+    /**
+     * Negotiate the encoder by the codecs advertised in the ConnectResponse.
+     *
+     * @param response
+     *         the ConnectResponse.
+     */
+    void onConnectResponse(ConnectResponse response) {
+        if (configuredCodec != null || ! binaryEnabled) {
+            return;
+        }
+        List<String> codecs = response.getCodecs();
+        encoder = codecs != null && codecs.contains(BinaryProtocolCodec.NAME) ? binaryCodec : javaCodec;
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Negotiated the encoder, server codecs=" + codecs);
+        }
     }
 
     /**
@@ -102,6 +240,8 @@ public class NIODirectorySocket extends DirectorySocket {
      */
     @Override
     public boolean connect(InetSocketAddress address) {
+        // the server of the new connection may not accept the binary codec.
+        encoder = initialEncoder();
         nioThread = new NIOThread(address);
         nioThread.start();
 
@@ -250,6 +390,7 @@ public class NIODirectorySocket extends DirectorySocket {
                 }
             }
         }
+        failOutgoingFrames();
         try {
             Thread.sleep(100);
         } catch (InterruptedException e) {
@@ -260,6 +401,19 @@ public class NIODirectorySocket extends DirectorySocket {
         selectionKey = null;
     }
 
+    /**
+     * Fail the Packets of the frames not written yet.
+     *
+     * The frames are dropped with the socket, their Packets get the connection loss
+     * error at once instead of waiting for the request timeout.
+     */
+    private void failOutgoingFrames() {
+        OutgoingFrame frame;
+        while ((frame = outgoingQueue.poll()) != null) {
+            clientConnection.onPacketLost(frame.xid);
+        }
+    }
+
     /**
      * Close the socket.
      */
@@ -288,10 +442,28 @@ public class NIODirectorySocket extends DirectorySocket {
 //        }
     }
 
+    /**
+     * Enable the read, and enable the write when has frames to send.
+     *
+     * It is only invoked in the NIOThread.
+     */
+    private void updateInterestOps() {
+        SelectionKey key = selectionKey;
+        if (key == null || ! key.isValid() || ! isConnected) {
+            return;
+        }
+        int ops = SelectionKey.OP_READ;
+        if (! outgoingQueue.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
     /**
      * Wake up the Selector.
      */
-    @SuppressWarnings("unused")
     private void wakeupCnxn() {
         selector.wakeup();
     }
@@ -315,21 +487,36 @@ public class NIODirectorySocket extends DirectorySocket {
 
     /**
      * {@inheritDoc}
+     *
+     * It only serializes the Packet and queues the frame, the NIOThread writes it to
+     * the SocketChannel.
      */
     @Override
     public void sendPacket(ProtocolHeader header, Protocol protocol) throws IOException {
-        SocketChannel sock = (SocketChannel) selectionKey.channel();
-        if (sock == null) {
-            throw new IOException("Socket is null!");
+        if (selectionKey == null || ! isConnected) {
+            throw new IOException("Socket is not connected!");
         }
 
-        ByteArrayOutputStream baos = null;
-        try {
-            baos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(baos);
-            oos.writeObject(header);
-            oos.writeObject(protocol);
+        outgoingQueue.add(new OutgoingFrame(header.getXid(), createFrame(header, protocol)));
+        wakeupCnxn();
+    }
+
+    /**
+     * Encode the ProtocolHeader and Protocol to a length-prefixed frame.
+     *
+     * @param header
+     *         the ProtocolHeader.
+     * @param protocol
+     *         the Protocol.
+     * @return
+     *         the frame ByteBuffer ready to write.
+     * @throws IOException
+     *         the IOException.
+     */
+    private ByteBuffer createFrame(ProtocolHeader header, Protocol protocol) throws IOException {
+        byte[] bytes = encoder.encodeProtocol(header, protocol);
 
+        if(LOGGER.isTraceEnabled()){
             StringBuilder sb = new StringBuilder("Create ByteBuffer, RequestHeader[");
             if(header != null){
                 sb.append("xid=").append(header.getXid());
@@ -343,33 +530,15 @@ public class NIODirectorySocket extends DirectorySocket {
             } else {
                 sb.append("NULL");
             }
-            sb.append("]");
-            if(LOGGER.isTraceEnabled()){
-                LOGGER.trace(sb.toString());
-            }
-
-            byte[] bytes = baos.toByteArray();
-            int l = bytes.length + 4;
-            ByteBuffer bb = ByteBuffer.allocate(l);
-            bb.putInt(bytes.length);
-            bb.put(bytes);
-            if(LOGGER.isTraceEnabled()){
-                LOGGER.trace(".................Send packet, xid=" + header.getXid() + ", type=" + header.getType());
-            }
-            bb.flip();
-            sock.write(bb);
-        } catch (IOException e) {
-            LOGGER.warn("Ignoring unexpected exception", e);
-        } finally {
-            try {
-                if(baos != null){
-                    baos.close();
-                }
-            } catch (IOException e) {
-                // do nothing.
-            }
+            sb.append("], length=").append(bytes.length);
+            LOGGER.trace(sb.toString());
         }
 
+        ByteBuffer bb = ByteBuffer.allocate(bytes.length + 4);
+        bb.putInt(bytes.length);
+        bb.put(bytes);
+        bb.flip();
+        return bb;
     }
 
     /**
@@ -422,6 +591,51 @@ public class NIODirectorySocket extends DirectorySocket {
         }
     }
 
+    /**
+     * On the connected SocketChannel failed in read or write.
+     *
+     * It closes the SocketChannel, fails the Packets of the queued frames, and reports
+     * the error to the DirectoryConnection, which reconnects.
+     *
+     * @param e
+     *         the Exception.
+     */
+    private void onSocketFailed(Exception e){
+        LOGGER.warn("The socket failed, close it - " + e.getMessage());
+        isConnected = false;
+        cleanup();
+        clientConnection.onSocketError();
+    }
+
+    /**
+     * The queued frame and the xid of its Packet.
+     */
+    private static class OutgoingFrame {
+
+        /**
+         * The xid of the Packet.
+         */
+        private final int xid;
+
+        /**
+         * The length-prefixed frame.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * Constructor.
+         *
+         * @param xid
+         *         the xid of the Packet.
+         * @param buffer
+         *         the frame.
+         */
+        OutgoingFrame(int xid, ByteBuffer buffer){
+            this.xid = xid;
+            this.buffer = buffer;
+        }
+    }
+
     /**
      * The deamon NIO thread.
      *
@@ -488,6 +702,7 @@ public class NIODirectorySocket extends DirectorySocket {
                         }
                     }
 
+                    updateInterestOps();
                     selector.select(timeOut);
                     Set<SelectionKey> selected;
                     synchronized (this) {
@@ -509,8 +724,13 @@ public class NIODirectorySocket extends DirectorySocket {
                                 updateLastHeard();
                                 onConnectSucceeded();
                             }
-                        } else if ((k.readyOps() & (SelectionKey.OP_READ )) != 0) {
-                             doIO();
+                        } else {
+                            if ((k.readyOps() & SelectionKey.OP_READ) != 0) {
+                                doIO();
+                            }
+                            if (k.isValid() && (k.readyOps() & SelectionKey.OP_WRITE) != 0) {
+                                doWrite();
+                            }
                         }
                     }
 
@@ -532,7 +752,7 @@ public class NIODirectorySocket extends DirectorySocket {
                         }
                         onConnectFailed();
                     }else{
-
+                        onSocketFailed(e);
                     }
 
 
@@ -552,7 +772,10 @@ public class NIODirectorySocket extends DirectorySocket {
             }
             SocketChannel sc = (SocketChannel) selectionKey.channel();
             if (selectionKey.isReadable()) {
-                sc.read(incomingBuffer);
+                int read = sc.read(incomingBuffer);
+                if (read > 0) {
+                    addBytesReceived(read);
+                }
                 if (!incomingBuffer.hasRemaining()) {
                     incomingBuffer.flip();
                     if (incomingBuffer == lenBuffer) {
@@ -569,6 +792,53 @@ public class NIODirectorySocket extends DirectorySocket {
 
         }
 
+        /**
+         * Write the queued frames to the SocketChannel.
+         *
+         * It gathers up to gatheringWriteSize frames in one write. The partially written
+         * frame stays at the head of the queue and continues in the next OP_WRITE.
+         *
+         * @throws IOException
+         */
+        private void doWrite() throws IOException {
+            SocketChannel sc = (SocketChannel) selectionKey.channel();
+            ByteBuffer[] frames = gatheringFrames;
+            while (! outgoingQueue.isEmpty()) {
+                int size = 0;
+                for (OutgoingFrame frame : outgoingQueue) {
+                    if (size == frames.length) {
+                        break;
+                    }
+                    frames[size ++] = frame.buffer;
+                }
+
+                long written;
+                try {
+                    written = sc.write(frames, 0, size);
+                } finally {
+                    // don't keep the written frames reachable.
+                    Arrays.fill(frames, 0, size, null);
+                }
+                addBytesSent(written);
+                if(LOGGER.isTraceEnabled()){
+                    LOGGER.trace("Gathering write, frames=" + size + ", bytes=" + written);
+                }
+
+                for (int i = 0; i < size; i ++) {
+                    OutgoingFrame head = outgoingQueue.peek();
+                    if (head == null || head.buffer.hasRemaining()) {
+                        // the socket send buffer is full, wait for the next OP_WRITE.
+                        return;
+                    }
+                    outgoingQueue.poll();
+                    sentCount ++;
+                    // stamp the SEND of the Packet, the Response is read by this thread after it.
+                    clientConnection.onPacketSent(head.xid);
+                }
+                updateLastSend();
+            }
+        }
+
         /**
          * Read the response.
          *
@@ -577,25 +847,17 @@ public class NIODirectorySocket extends DirectorySocket {
          */
         private void readResponse() throws IOException{
 
-            ByteArrayInputStream bbis = new ByteArrayInputStream(
-                    incomingBuffer.array());
-            ObjectInputStream ois = new ObjectInputStream(bbis);
-            ResponseHeader header = null;
-            Response resp = null;
-
-            try {
-                header = (ResponseHeader) ois.readObject();
-                resp = (Response) ois.readObject();
-            } catch (ClassNotFoundException e1) {
-                LOGGER.error("Deserialize response failed - " + e1.getMessage());
-                throw new IOException("Desierialize Response failed - " + e1.getMessage(), e1);
-
-            }
+            ResponseFrame frame = decoder.decodeResponse(incomingBuffer.array(), 0, incomingBuffer.limit());
+            ResponseHeader header = frame.getHeader();
+            Response resp = frame.getResponse();
             if(LOGGER.isTraceEnabled()){
                 LOGGER.trace("......................Received response, xid=" + header.getXid() +", dxid=" + header.getDxid() + ", time=" + System.currentTimeMillis());
             }
 
 
+            if (resp instanceof ConnectResponse) {
+                onConnectResponse((ConnectResponse) resp);
+            }
             clientConnection.onReceivedPesponse(header, resp);
         }
 
@@ -19,15 +19,22 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.concurrent.Future;
 
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.UpgradeResponse;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
 import org.eclipse.jetty.websocket.client.WebSocketClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.cisco.oss.foundation.directory.Configurations;
+import com.cisco.oss.foundation.directory.proto.BinaryProtocolCodec;
 import com.cisco.oss.foundation.directory.proto.Protocol;
+import com.cisco.oss.foundation.directory.proto.ProtocolCodec;
+import com.cisco.oss.foundation.directory.proto.ProtocolCodec.ResponseFrame;
 import com.cisco.oss.foundation.directory.proto.ProtocolHeader;
 import com.cisco.oss.foundation.directory.utils.WebSocketSerializer;
 import com.cisco.oss.foundation.directory.utils.WebSocketSerializer.ResponseDeserializer;
@@ -35,12 +42,57 @@ import com.cisco.oss.foundation.directory.utils.WebSocketSerializer.ResponseDese
 /**
  * The WebSocket implementation of the DirectorySocket.
  *
+ * It offers the binary and the streaming JSON sub-protocols in the WebSocket upgrade
+ * request. When the server accepts the binary one, the packets are sent and received
+ * as binary frames encoded by the BinaryProtocolCodec. When it accepts the streaming
+ * JSON one, the packets are sent in the single pass JSON envelope. Otherwise it falls
+ * back to the legacy JSON text message.
  *
  */
 public class WSDirectorySocket extends DirectorySocket implements WebSocketListener {
 
     private final static Logger LOGGER = LoggerFactory.getLogger(WSDirectorySocket.class);
 
+    /**
+     * The WebSocket sub-protocol name of the binary frame mode.
+     */
+    public final static String WEBSOCKET_BINARY_SUBPROTOCOL = "sd-binary";
+
+    /**
+     * The WebSocket sub-protocol name of the streaming JSON envelope mode.
+     */
+    public final static String WEBSOCKET_JSON_SUBPROTOCOL = "sd-json";
+
+    /**
+     * Whether to offer the binary sub-protocol property name.
+     */
+    public final static String WEBSOCKET_BINARY_ENABLED_PROPERTY = "websocket.binary.enabled";
+
+    /**
+     * Whether to offer the binary sub-protocol default value.
+     */
+    public final static boolean WEBSOCKET_BINARY_ENABLED_DEFAULT = true;
+
+    /**
+     * The ProtocolCodec of the binary frame mode.
+     */
+    private final ProtocolCodec codec = new BinaryProtocolCodec();
+
+    /**
+     * Whether to offer the binary sub-protocol to the server.
+     */
+    private final boolean binaryEnabled = Configurations.getBoolean(WEBSOCKET_BINARY_ENABLED_PROPERTY, WEBSOCKET_BINARY_ENABLED_DEFAULT);
+
+    /**
+     * Indicate whether the server accepted the binary sub-protocol.
+     */
+    private volatile boolean binaryMode = false;
+
+    /**
+     * Indicate whether the server accepted the streaming JSON sub-protocol.
+     */
+    private volatile boolean streamingJsonMode = false;
+
     /**
      * The Websocket Session.
      */
@@ -112,7 +164,11 @@ public class WSDirectorySocket extends DirectorySocket implements WebSocketListe
         }
         isStarted = true;
 
-        String host = addr.getHostName();
+        // connect to the resolved address, it is the endpoint selected by DirectoryServers.
+        String host = addr.isUnresolved() ? addr.getHostName() : addr.getAddress().getHostAddress();
+        if(host.indexOf(':') >= 0){
+            host = "[" + host + "]";
+        }
         int port = addr.getPort();
 
         serverURI = URI.create("ws://" + host + ":" + port + "/ws/service/");
@@ -204,6 +260,8 @@ public class WSDirectorySocket extends DirectorySocket implements WebSocketListe
         sessionFuture = null;
         websocketStarted = false;
         connected = false;
+        binaryMode = false;
+        streamingJsonMode = false;
         isStarted = false;
     }
 
@@ -215,11 +273,25 @@ public class WSDirectorySocket extends DirectorySocket implements WebSocketListe
         if(! connected){
             throw new IOException("Websocket not connected.");
         }
-        String s = WebSocketSerializer.getProtocolSerializer(header, p).serializerAsString();
+        if(binaryMode){
+            byte[] bytes = codec.encodeProtocol(header, p);
+            if(LOGGER.isTraceEnabled()){
+                LOGGER.trace("Web socket send binary - xid=" + header.getXid() + ", type=" + header.getType() + ", length=" + bytes.length);
+            }
+            session.getRemote().sendBytes(ByteBuffer.wrap(bytes));
+            addBytesSent(bytes.length);
+            clientConnection.onPacketSent(header.getXid());
+            return;
+        }
+        String s = streamingJsonMode ? WebSocketSerializer.getStreamingProtocolSerializer(header, p).serializerAsString()
+                : WebSocketSerializer.getProtocolSerializer(header, p).serializerAsString();
         if(LOGGER.isTraceEnabled()){
             LOGGER.trace("Web socket send - " + s);
         }
         session.getRemote().sendString(s);
+        addBytesSent(utf8Length(s));
+        // the blocking send returns after the frame is written.
+        clientConnection.onPacketSent(header.getXid());
 
 
     }
@@ -229,8 +301,16 @@ public class WSDirectorySocket extends DirectorySocket implements WebSocketListe
      */
     @Override
     public void onWebSocketBinary(byte[] payload, int offset, int len) {
-        // We only use the text message.
-        LOGGER.warn("No binary message...");
+        if(LOGGER.isTraceEnabled()){
+            LOGGER.trace("WebSocket client received binary - length=" + len);
+        }
+        addBytesReceived(len);
+        try {
+            ResponseFrame frame = codec.decodeResponse(payload, offset, len);
+            clientConnection.onReceivedPesponse(frame.getHeader(), frame.getResponse());
+        } catch (IOException e) {
+            LOGGER.error("Parse binary response get exception", e);
+        }
     }
 
     /**
@@ -267,8 +347,11 @@ public class WSDirectorySocket extends DirectorySocket implements WebSocketListe
     @Override
     public void onWebSocketConnect(Session session){
         this.session = session;
+        String accepted = getAcceptedSubProtocol(session);
+        binaryMode = binaryEnabled && WEBSOCKET_BINARY_SUBPROTOCOL.equals(accepted);
+        streamingJsonMode = WEBSOCKET_JSON_SUBPROTOCOL.equals(accepted);
         if(LOGGER.isTraceEnabled()){
-            LOGGER.trace("WebSocket client receive connection " + session.getRemoteAddress() + " - " +session.getLocalAddress());
+            LOGGER.trace("WebSocket client receive connection " + session.getRemoteAddress() + " - " +session.getLocalAddress() + ", subProtocol=" + accepted);
         }
 
         synchronized(sessionLock){
@@ -305,6 +388,7 @@ public class WSDirectorySocket extends DirectorySocket implements WebSocketListe
         if(LOGGER.isTraceEnabled()){
             LOGGER.trace("WebSocket client received - " + text);
         }
+        addBytesReceived(utf8Length(text));
         ResponseDeserializer ds = null;
         try {
             ds = WebSocketSerializer.getResponseDeserializer(text);
@@ -315,6 +399,36 @@ public class WSDirectorySocket extends DirectorySocket implements WebSocketListe
 
     }
 
+    /**
+     * Get the sub-protocol accepted by the server.
+     *
+     * @param session
+     *         the WebSocket Session.
+     * @return
+     *         the accepted sub-protocol, null if the server accepted none.
+     */
+    private static String getAcceptedSubProtocol(Session session){
+        UpgradeResponse resp = session.getUpgradeResponse();
+        return resp == null ? null : resp.getAcceptedSubProtocol();
+    }
+
+    /**
+     * Create the ClientUpgradeRequest, it offers the binary sub-protocol when enabled
+     * and the streaming JSON sub-protocol, in the order of preference.
+     *
+     * @return
+     *         the ClientUpgradeRequest.
+     */
+    private ClientUpgradeRequest createUpgradeRequest(){
+        ClientUpgradeRequest request = new ClientUpgradeRequest();
+        if(binaryEnabled){
+            request.setSubProtocols(WEBSOCKET_BINARY_SUBPROTOCOL, WEBSOCKET_JSON_SUBPROTOCOL);
+        } else {
+            request.setSubProtocols(WEBSOCKET_JSON_SUBPROTOCOL);
+        }
+        return request;
+    }
+
     /**
      * Do the WebSocket connect.
      */
@@ -361,7 +475,7 @@ public class WSDirectorySocket extends DirectorySocket implements WebSocketListe
                         }
                     } else {
                         synchronized(sessionLock){
-                            client.connect(WSDirectorySocket.this, serverURI);
+                            client.connect(WSDirectorySocket.this, serverURI, createUpgradeRequest());
                             sessionLock.wait();
                         }
 
@@ -379,4 +493,30 @@ public class WSDirectorySocket extends DirectorySocket implements WebSocketListe
 
     }
 
+    /**
+     * Get the UTF-8 encoded length of the text frame, without encoding it again.
+     *
+     * @param s
+     *         the text.
+     * @return
+     *         the number of the UTF-8 bytes.
+     */
+    static int utf8Length(String s){
+        int len = 0;
+        for(int i = 0; i < s.length(); i ++){
+            char c = s.charAt(i);
+            if(c < 0x80){
+                len ++;
+            } else if(c < 0x800){
+                len += 2;
+            } else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))){
+                len += 4;
+                i ++;
+            } else {
+                // the unpaired surrogate is encoded as '?' by the UTF-8 encoder.
+                len += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return len;
+    }
 }
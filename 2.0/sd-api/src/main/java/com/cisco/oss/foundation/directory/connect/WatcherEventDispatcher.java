@@ -0,0 +1,215 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.connect;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cisco.oss.foundation.directory.Configurations;
+import com.cisco.oss.foundation.directory.ServiceDirectoryThread;
+
+/**
+ * The ordered parallel dispatcher of the watcher tasks.
+ *
+ * The tasks are striped to a fixed number of threads by the service name hash. The tasks
+ * of the same service always run on the same thread in the dispatched order, the tasks
+ * of different services run in parallel, so a slow Watcher only delays the services
+ * sharing its stripe.
+ *
+ * The DirectoryConnections share one dispatcher of the JVM, so the stripe threads don't
+ * grow with the connections.
+ *
+ */
+public class WatcherEventDispatcher {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(WatcherEventDispatcher.class);
+
+    /**
+     * The watcher dispatcher thread number property name.
+     */
+    public final static String WATCHER_DISPATCHER_THREADS_PROPERTY = "watcher.dispatcher.threads";
+
+    /**
+     * The default watcher dispatcher thread number.
+     */
+    public final static int WATCHER_DISPATCHER_THREADS_DEFAULT = 4;
+
+    /**
+     * The shared dispatcher.
+     */
+    private static WatcherEventDispatcher sharedDispatcher = null;
+
+    /**
+     * The stripes.
+     */
+    private final Stripe[] stripes;
+
+    /**
+     * Indicate whether shutdown.
+     */
+    private volatile boolean shutdown = false;
+
+    /**
+     * Constructor.
+     *
+     * @param threads
+     *         the number of the stripe threads, at least 1.
+     */
+    public WatcherEventDispatcher(int threads){
+        if(threads < 1){
+            threads = 1;
+        }
+        stripes = new Stripe[threads];
+        for(int i = 0; i < threads; i ++){
+            stripes[i] = new Stripe(ServiceDirectoryThread.getThreadName("Watcher_Dispatcher_" + i));
+        }
+    }
+
+    /**
+     * Get the shared dispatcher of the JVM, it starts in the first get and is never shutdown.
+     *
+     * @return
+     *         the shared WatcherEventDispatcher.
+     */
+    public static synchronized WatcherEventDispatcher getSharedDispatcher(){
+        if(sharedDispatcher == null){
+            sharedDispatcher = new WatcherEventDispatcher(
+                    Configurations.getInt(WATCHER_DISPATCHER_THREADS_PROPERTY, WATCHER_DISPATCHER_THREADS_DEFAULT));
+            sharedDispatcher.start();
+        }
+        return sharedDispatcher;
+    }
+
+    /**
+     * Start the stripe threads.
+     */
+    public void start(){
+        for(Stripe stripe : stripes){
+            stripe.start();
+        }
+    }
+
+    /**
+     * Dispatch the task of the service.
+     *
+     * After shutdown, the task is dropped.
+     *
+     * @param serviceName
+     *         the service name, the task is ordered with the other tasks of the same service.
+     * @param task
+     *         the task.
+     */
+    public void dispatch(String serviceName, Runnable task){
+        if(shutdown){
+            LOGGER.warn("The WatcherEventDispatcher is shutdown, drop the task of service - " + serviceName);
+            return;
+        }
+        stripes[indexOf(serviceName)].queue.add(task);
+    }
+
+    /**
+     * Shutdown the dispatcher.
+     *
+     * The stripe threads exit after the queued tasks are done.
+     */
+    public void shutdown(){
+        shutdown = true;
+        for(Stripe stripe : stripes){
+            stripe.queue.add(stripe.taskOfDeath);
+        }
+    }
+
+    /**
+     * Get the stripe number.
+     *
+     * @return
+     *         the stripe number.
+     */
+    public int getStripeCount(){
+        return stripes.length;
+    }
+
+    /**
+     * Get the stripe index of the service.
+     *
+     * @param serviceName
+     *         the service name.
+     * @return
+     *         the stripe index.
+     */
+    int indexOf(String serviceName){
+        int hash = serviceName == null ? 0 : serviceName.hashCode();
+        hash ^= (hash >>> 16);
+        return (hash & 0x7fffffff) % stripes.length;
+    }
+
+    /**
+     * The stripe thread which runs its tasks in order.
+     */
+    static class Stripe extends Thread {
+        /**
+         * The task queue.
+         */
+        private final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+
+        /**
+         * The death task, when the Stripe see it, stop itself.
+         */
+        private final Runnable taskOfDeath = new Runnable(){
+
+            @Override
+            public void run() {
+            }
+
+        };
+
+        /**
+         * Constructor.
+         *
+         * @param name
+         *         the thread name.
+         */
+        Stripe(String name){
+            super(name);
+            setDaemon(true);
+        }
+
+        /**
+         * The main run method.
+         */
+        @Override
+        public void run() {
+            try {
+                while(true){
+                    Runnable task = queue.take();
+                    if(task == taskOfDeath){
+                        break;
+                    }
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        LOGGER.error("Caught unexpected throwable in the watcher task", t);
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOGGER.error("Watcher dispatcher thread exiting due to interruption", e);
+            }
+            LOGGER.info(getName() + " shut down");
+        }
+    }
+}
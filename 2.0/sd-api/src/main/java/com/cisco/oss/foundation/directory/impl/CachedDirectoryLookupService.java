@@ -15,18 +15,54 @@
  */
 package com.cisco.oss.foundation.directory.impl;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.cisco.oss.foundation.directory.DirectoryServiceClientManager;
-import com.cisco.oss.foundation.directory.async.Watcher;
+import com.cisco.oss.foundation.directory.ServiceDirectoryThread;
+import com.cisco.oss.foundation.directory.async.BatchWatcher;
 import com.cisco.oss.foundation.directory.entity.ModelService;
 import com.cisco.oss.foundation.directory.entity.ModelServiceInstance;
+import com.cisco.oss.foundation.directory.entity.OperationalStatus;
+import com.cisco.oss.foundation.directory.entity.ServiceInstance;
+import com.cisco.oss.foundation.directory.event.ServiceDirectoryEvent;
+import com.cisco.oss.foundation.directory.event.ServiceDirectoryEvent.ClientSessionEvent;
+import com.cisco.oss.foundation.directory.event.ServiceDirectoryEvent.ClientSessionEvent.SessionEvent;
+import com.cisco.oss.foundation.directory.event.ServiceDirectoryListener;
+import com.cisco.oss.foundation.directory.exception.ErrorCode;
+import com.cisco.oss.foundation.directory.exception.ServiceDirectoryError;
+import com.cisco.oss.foundation.directory.exception.ServiceException;
 import com.cisco.oss.foundation.directory.lifecycle.Closable;
 import com.cisco.oss.foundation.directory.proto.ServiceInstanceOperate;
+import com.cisco.oss.foundation.directory.proto.ServiceInstanceOperate.OperateType;
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery;
+import com.cisco.oss.foundation.directory.stats.LookupCacheMXBean;
+import com.cisco.oss.foundation.directory.stats.MBeanRegistry;
 import com.cisco.oss.foundation.directory.utils.JsonSerializer;
 import com.cisco.oss.foundation.directory.utils.ServiceInstanceUtils;
 
@@ -34,7 +70,8 @@ import com.cisco.oss.foundation.directory.utils.ServiceInstanceUtils;
  * It is the DirectoryLookupService with Cache.
  *
  * It caches ServiceInstance for quick lookup and provides the cache sync function to
- * sync the latest change of the cached ServiceInstances.
+ * sync the latest change of the cached ServiceInstances. The cached ModelServices are
+ * immutable snapshots, every change replaces the snapshot of the Service.
  *
  *
  */
@@ -81,14 +118,42 @@ public class CachedDirectoryLookupService extends DirectoryLookupService impleme
     /**
      * Internal map cache for Service.
      */
-    private ServiceDirectoryCache<String, ModelService> cache;
+    private ServiceDirectoryCache<String, ServiceSnapshot> cache;
 
     /**
      * Mark whether component is started.
      */
     private boolean isStarted = false;
 
-    private Watcher watcher;
+    private CacheSyncWatcher watcher;
+
+    /**
+     * The last synced dxid of the cached Services, the Service carries all the changes up to it.
+     */
+    private final Map<String, Long> serviceVersions = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * The ServiceDirectoryListener to resync the cache when the session is created or reopened.
+     */
+    private ServiceDirectoryListener sessionListener;
+
+    /**
+     * The executor to run the resync off the EventThread, the resync blocks on the request.
+     */
+    private ThreadPoolExecutor resyncExecutor;
+
+    /**
+     * Indicate whether a resync is queued and not started yet, the triggers before it
+     * starts share it.
+     */
+    private final AtomicBoolean resyncQueued = new AtomicBoolean(false);
+
+    /**
+     * The in-flight fetches of the missed Services, the concurrent misses of a Service
+     * share one fetch.
+     */
+    private final ConcurrentMap<String, FutureTask<ServiceSnapshot>> pendingFetches =
+            new ConcurrentHashMap<String, FutureTask<ServiceSnapshot>>();
 
     /**
      * The JsonSerializer used in dump cache to serialize the ModelService.
@@ -100,6 +165,26 @@ public class CachedDirectoryLookupService extends DirectoryLookupService impleme
      */
     private boolean lastCacheDump = false;
 
+    /**
+     * The cache hit count.
+     */
+    private final AtomicLong cacheHits = new AtomicLong();
+
+    /**
+     * The cache miss count.
+     */
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * The registered ObjectName of the LookupCacheMXBean.
+     */
+    private ObjectName mbeanName;
+
+    /**
+     * The index of the CachedDirectoryLookupServices in the JVM, used to name the MBean.
+     */
+    private final static AtomicInteger cacheIndex = new AtomicInteger();
+
     /**
      * Constructor.
      *
@@ -123,6 +208,18 @@ public class CachedDirectoryLookupService extends DirectoryLookupService impleme
 
         this.isStarted = true;
         watcher = new CacheSyncWatcher();
+        resyncExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory(){
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return ServiceDirectoryThread.getThread(r, "Cache_Resync", true);
+                    }
+
+                });
+        sessionListener = new CacheResyncListener();
+        getDirectoryServiceClient().registerClientChangeListener(sessionListener);
+        mbeanName = MBeanRegistry.register(new LookupCacheStats(), "LookupCache", "cache-" + cacheIndex.incrementAndGet());
     }
 
     /**
@@ -137,7 +234,12 @@ public class CachedDirectoryLookupService extends DirectoryLookupService impleme
             return;
         synchronized (this) {
             if (this.isStarted == true) {
+                getDirectoryServiceClient().unregisterClientChangeListener(sessionListener);
+                resyncExecutor.shutdown();
                 getCache().refresh();
+                serviceVersions.clear();
+                MBeanRegistry.unregister(mbeanName);
+                mbeanName = null;
                 this.isStarted = false;
             }
         }
@@ -146,7 +248,8 @@ public class CachedDirectoryLookupService extends DirectoryLookupService impleme
     /**
      * Get the ModelService.
      *
-     * It will query the cache first, if the cache enabled.
+     * It will query the cache first, if the cache enabled. The concurrent misses of the
+     * same Service wait for one fetch, which registers the Watcher only once.
      *
      * @param serviceName
      *         the Service name.
@@ -155,16 +258,400 @@ public class CachedDirectoryLookupService extends DirectoryLookupService impleme
      */
     @Override
     public ModelService getModelService(String serviceName){
-        ModelService service = null;
-        if (getCache().isCached(serviceName)) {
-            service = getCache().getService(serviceName);
+        ServiceSnapshot snapshot = getServiceSnapshot(serviceName);
+        return snapshot == null ? null : snapshot.service;
+    }
+
+    /**
+     * Get the UP ModelServiceInstance list of the Service.
+     *
+     * The UP ModelServiceInstances are precomputed in the cached snapshot of the Service,
+     * the list is read-only and shared, it is neither filtered nor copied in the lookup.
+     *
+     * @param serviceName
+     *         the service name.
+     * @return
+     *         the UP ModelServiceInstance list of the Service.
+     */
+    @Override
+    public List<ModelServiceInstance> getUPModelInstances(String serviceName){
+        ServiceSnapshot snapshot = getServiceSnapshot(serviceName);
+        if(snapshot == null){
+            return Collections.emptyList();
+        }
+        return snapshot.upInstances;
+    }
+
+    /**
+     * Get the ServiceInstance of the ModelServiceInstance.
+     *
+     * The ModelServiceInstance in the cache shares the ServiceInstance converted once in
+     * the snapshot, the others are converted.
+     *
+     * @param instance
+     *         the ModelServiceInstance.
+     * @return
+     *         the ServiceInstance.
+     */
+    @Override
+    public ServiceInstance getServiceInstance(ModelServiceInstance instance){
+        ServiceSnapshot snapshot = getCache().getService(instance.getServiceName());
+        ServiceInstance view = snapshot == null ? null : snapshot.views.get(instance);
+        if(view == null){
+            view = super.getServiceInstance(instance);
+        }
+        return view;
+    }
+
+    /**
+     * Get the ServiceInstance list of the Service.
+     *
+     * The list is read-only and shared.
+     *
+     * @param serviceName
+     *         the service name.
+     * @return
+     *         the ServiceInstance list of the Service.
+     */
+    @Override
+    public List<ServiceInstance> getServiceInstances(String serviceName){
+        ServiceSnapshot snapshot = getServiceSnapshot(serviceName);
+        if(snapshot == null){
+            return Collections.emptyList();
+        }
+        return snapshot.instanceViews;
+    }
+
+    /**
+     * Get the UP ServiceInstance list of the Service.
+     *
+     * The list is read-only and shared.
+     *
+     * @param serviceName
+     *         the service name.
+     * @return
+     *         the UP ServiceInstance list of the Service.
+     */
+    @Override
+    public List<ServiceInstance> getUPServiceInstances(String serviceName){
+        ServiceSnapshot snapshot = getServiceSnapshot(serviceName);
+        if(snapshot == null){
+            return Collections.emptyList();
+        }
+        return snapshot.upInstanceViews;
+    }
+
+    /**
+     * Get the version of the cached Service snapshot.
+     *
+     * It changes whenever the cached Service is replaced, fetch the Service when missed.
+     *
+     * @param serviceName
+     *         the service name.
+     * @return
+     *         the version, -1 if the Service doesn't exist.
+     */
+    @Override
+    public long getServiceVersion(String serviceName){
+        ServiceSnapshot snapshot = getServiceSnapshot(serviceName);
+        if(snapshot == null){
+            return -1;
+        }
+        return snapshot.version;
+    }
+
+    /**
+     * Query the ModelServiceInstances of the Service.
+     *
+     * It is answered by the metadata index of the cached Service snapshot.
+     *
+     * @param serviceName
+     *         the service name.
+     * @param query
+     *         the ServiceInstanceQuery.
+     * @return
+     *         the matched ModelServiceInstance list.
+     */
+    @Override
+    public List<ModelServiceInstance> queryModelInstances(String serviceName, ServiceInstanceQuery query){
+        ServiceSnapshot snapshot = getServiceSnapshot(serviceName);
+        if(snapshot == null){
+            return Collections.emptyList();
+        }
+        return snapshot.queryInstances(query, false);
+    }
+
+    /**
+     * Query the UP ModelServiceInstances of the Service.
+     *
+     * It is answered by the metadata index of the cached Service snapshot.
+     *
+     * @param serviceName
+     *         the service name.
+     * @param query
+     *         the ServiceInstanceQuery.
+     * @return
+     *         the matched UP ModelServiceInstance list.
+     */
+    @Override
+    public List<ModelServiceInstance> queryUPModelInstances(String serviceName, ServiceInstanceQuery query){
+        ServiceSnapshot snapshot = getServiceSnapshot(serviceName);
+        if(snapshot == null){
+            return Collections.emptyList();
+        }
+        return snapshot.queryInstances(query, true);
+    }
+
+    /**
+     * Query the ServiceInstances of the Service.
+     *
+     * It is answered by the metadata index of the cached Service snapshot.
+     *
+     * @param serviceName
+     *         the service name.
+     * @param query
+     *         the ServiceInstanceQuery.
+     * @return
+     *         the matched ServiceInstance list.
+     */
+    @Override
+    public List<ServiceInstance> queryServiceInstances(String serviceName, ServiceInstanceQuery query){
+        ServiceSnapshot snapshot = getServiceSnapshot(serviceName);
+        if(snapshot == null){
+            return Collections.emptyList();
+        }
+        return snapshot.queryInstanceViews(query, false);
+    }
+
+    /**
+     * Query the UP ServiceInstances of the Service.
+     *
+     * It is answered by the metadata index of the cached Service snapshot.
+     *
+     * @param serviceName
+     *         the service name.
+     * @param query
+     *         the ServiceInstanceQuery.
+     * @return
+     *         the matched UP ServiceInstance list.
+     */
+    @Override
+    public List<ServiceInstance> queryUPServiceInstances(String serviceName, ServiceInstanceQuery query){
+        ServiceSnapshot snapshot = getServiceSnapshot(serviceName);
+        if(snapshot == null){
+            return Collections.emptyList();
+        }
+        return snapshot.queryInstanceViews(query, true);
+    }
+
+    /**
+     * Get the ServiceSnapshot from the cache, fetch it when missed.
+     *
+     * @param serviceName
+     *         the Service name.
+     * @return
+     *         the ServiceSnapshot, null if the Service doesn't exist.
+     */
+    private ServiceSnapshot getServiceSnapshot(String serviceName){
+        ServiceSnapshot snapshot = getCache().getService(serviceName);
+        if (snapshot != null) {
+            cacheHits.incrementAndGet();
         } else {
-            service= this.getDirectoryServiceClient().getService(serviceName, watcher);
-            if(service != null){
-                getCache().putService(serviceName, service);
+            cacheMisses.incrementAndGet();
+            snapshot = fetchServiceSnapshot(serviceName);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Fetch the missed ModelService and cache it.
+     *
+     * The first caller runs the fetch in its own thread, the others wait for its result.
+     *
+     * @param serviceName
+     *         the Service name.
+     * @return
+     *         the ServiceSnapshot, null if the Service doesn't exist.
+     */
+    private ServiceSnapshot fetchServiceSnapshot(final String serviceName){
+        FutureTask<ServiceSnapshot> fetch = new FutureTask<ServiceSnapshot>(new Callable<ServiceSnapshot>(){
+
+            @Override
+            public ServiceSnapshot call() {
+                long version = getDirectoryServiceClient().getLastDxid();
+                ModelService service = getDirectoryServiceClient().getService(serviceName, watcher);
+                if(service == null){
+                    return null;
+                }
+                ServiceSnapshot snapshot = new ServiceSnapshot(service, service.getServiceInstances(), null);
+                getCache().putService(serviceName, snapshot);
+                serviceVersions.put(serviceName, version);
+                return snapshot;
+            }
+
+        });
+
+        FutureTask<ServiceSnapshot> pending = pendingFetches.putIfAbsent(serviceName, fetch);
+        if(pending == null){
+            pending = fetch;
+            try{
+                fetch.run();
+            } finally {
+                pendingFetches.remove(serviceName, fetch);
+            }
+        } else if(LOGGER.isTraceEnabled()){
+            LOGGER.trace("Wait for the in-flight fetch of the Service, serviceName=" + serviceName);
+        }
+
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            ServiceDirectoryError sde = new ServiceDirectoryError(ErrorCode.REQUEST_INTERUPTED);
+            throw new ServiceException(sde, e);
+        } catch (ExecutionException e) {
+            // the fetch throws no checked Exception.
+            if(e.getCause() instanceof Error){
+                throw (Error) e.getCause();
             }
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    /**
+     * Queue a resync of the cached Services on the resyncExecutor.
+     *
+     * A trigger coalesces with the resync queued and not started yet. A trigger during a
+     * running resync queues one more, the session may have changed under the running one.
+     */
+    void scheduleResync(){
+        if(! resyncQueued.compareAndSet(false, true)){
+            return;
+        }
+        try{
+            resyncExecutor.execute(new Runnable(){
+
+                @Override
+                public void run() {
+                    resyncQueued.set(false);
+                    try{
+                        resyncCache();
+                    } catch(Exception e){
+                        LOGGER.warn("Resync the Service cache failed - " + e.getMessage());
+                    }
+                }
+
+            });
+        } catch(RejectedExecutionException e){
+            // stopped.
+            resyncQueued.set(false);
         }
-        return service;
+    }
+
+    /**
+     * Resync the cached Services after the session is created or reopened.
+     *
+     * The watchers of the cached Services are lost with the old session. They are
+     * re-registered in one GetServiceChangingByVersion request which returns only the
+     * Services changed since their last synced dxid, the changed ServiceInstances are
+     * applied through the CacheSyncWatcher. When the request fails, the Services are
+     * evicted from the cache and fetched again in the next lookup.
+     */
+    void resyncCache(){
+        if(serviceVersions.isEmpty()){
+            return;
+        }
+        Map<String, Long> versions = new HashMap<String, Long>(serviceVersions);
+        long version = getDirectoryServiceClient().getLastDxid();
+        Map<String, ModelService> changed;
+        try{
+            changed = getDirectoryServiceClient().getChangedServices(versions, watcher);
+        } catch(ServiceException e){
+            LOGGER.warn("Resync the Service cache failed, evict the cached Services, services=" + versions.size()
+                    + " - " + e.getMessage());
+            for(String serviceName : versions.keySet()){
+                serviceVersions.remove(serviceName);
+                getCache().removeService(serviceName);
+            }
+            return;
+        }
+
+        for(String serviceName : versions.keySet()){
+            ModelService service = changed.get(serviceName);
+            ServiceSnapshot cached = getCache().getService(serviceName);
+            if(service != null && cached != null){
+                List<ServiceInstanceOperate> operates = diffServiceInstances(serviceName,
+                        cached.service.getServiceInstances(), service.getServiceInstances());
+                if(operates.size() > 0){
+                    watcher.processBatch(serviceName, operates);
+                }
+            }
+            serviceVersions.put(serviceName, version);
+        }
+        LOGGER.info("Resync the Service cache, services=" + versions.size() + ", changed=" + changed.size());
+    }
+
+    /**
+     * Get the ServiceInstanceOperates which turn the cached ServiceInstances to the latest ones.
+     *
+     * @param serviceName
+     *         the service name.
+     * @param cached
+     *         the cached ServiceInstances.
+     * @param latest
+     *         the latest ServiceInstances.
+     * @return
+     *         the ServiceInstanceOperates.
+     */
+    private List<ServiceInstanceOperate> diffServiceInstances(String serviceName,
+            List<ModelServiceInstance> cached, List<ModelServiceInstance> latest){
+        Map<String, ModelServiceInstance> index = new LinkedHashMap<String, ModelServiceInstance>();
+        if(cached != null){
+            for(ModelServiceInstance instance : cached){
+                if(instance != null){
+                    index.put(instance.getInstanceId(), instance);
+                }
+            }
+        }
+
+        List<ServiceInstanceOperate> operates = new ArrayList<ServiceInstanceOperate>();
+        if(latest != null){
+            for(ModelServiceInstance instance : latest){
+                if(instance == null){
+                    continue;
+                }
+                ModelServiceInstance old = index.remove(instance.getInstanceId());
+                if(old == null){
+                    operates.add(new ServiceInstanceOperate(serviceName, instance.getInstanceId(), instance, OperateType.Add));
+                } else if(old.getModifiedTime() == null || ! old.getModifiedTime().equals(instance.getModifiedTime())
+                        || old.getStatus() != instance.getStatus()){
+                    operates.add(new ServiceInstanceOperate(serviceName, instance.getInstanceId(), instance, OperateType.Update));
+                }
+            }
+        }
+        for(String instanceId : index.keySet()){
+            operates.add(new ServiceInstanceOperate(serviceName, instanceId, null, OperateType.Delete));
+        }
+        return operates;
+    }
+
+    /**
+     * Create the updated copy of the cached ModelServiceInstance.
+     *
+     * @param instance
+     *         the cached ModelServiceInstance.
+     * @param updated
+     *         the updated ModelServiceInstance in the ServiceInstanceOperate.
+     * @return
+     *         the new ModelServiceInstance.
+     */
+    private static ModelServiceInstance updateServiceInstance(ModelServiceInstance instance, ModelServiceInstance updated){
+        ModelServiceInstance copy = new ModelServiceInstance(instance.getServiceName(), instance.getInstanceId(),
+                updated.getId(), updated.getUri(), updated.getStatus(), updated.getAddress(), updated.getPort(),
+                instance.isMonitorEnabled(), updated.getMetadata());
+        copy.setCreateTime(instance.getCreateTime());
+        copy.setModifiedTime(updated.getModifiedTime());
+        copy.setInfo(updated.getInfo());
+        return copy;
     }
 
     /**
@@ -175,11 +662,11 @@ public class CachedDirectoryLookupService extends DirectoryLookupService impleme
      * @return
      *         the ServiceDirectoryCache.
      */
-    private ServiceDirectoryCache<String, ModelService> getCache(){
+    private ServiceDirectoryCache<String, ServiceSnapshot> getCache(){
         if(cache == null){
             synchronized (this) {
                 if (this.cache == null) {
-                    this.cache = new ServiceDirectoryCache<String, ModelService>();
+                    this.cache = new ServiceDirectoryCache<String, ServiceSnapshot>();
                 }
             }
         }
@@ -197,15 +684,15 @@ public class CachedDirectoryLookupService extends DirectoryLookupService impleme
 
         if(CacheDumpLogger.isDebugEnabled()){
 
-            List<ModelService> services = getCache().getAllServicesWithInstance();
+            List<ServiceSnapshot> snapshots = getCache().getAllServicesWithInstance();
              if(dumper == null){
                  dumper = new JsonSerializer();
              }
 
             StringBuilder sb = new StringBuilder();
             sb.append("LookupManager dump Service Cache at: ").append(System.currentTimeMillis()).append("\n");
-            for(ModelService service : services){
-                sb.append(new String(dumper.serialize(service))).append("\n");
+            for(ServiceSnapshot snapshot : snapshots){
+                sb.append(new String(dumper.serialize(snapshot.service))).append("\n");
             }
             CacheDumpLogger.debug(sb.toString());
             return true;
@@ -214,6 +701,253 @@ public class CachedDirectoryLookupService extends DirectoryLookupService impleme
         }
     }
 
+    /**
+     * The immutable snapshot of a cached Service.
+     *
+     * The ModelService has an unmodifiable copy of the instances list, the readers iterate
+     * it without copy or lock. The UP ModelServiceInstances and the ServiceInstances are
+     * computed once when the snapshot is built, a new snapshot replaces it for every change
+     * batch and shares the ServiceInstances of the unchanged ModelServiceInstances.
+     */
+    static class ServiceSnapshot {
+
+        /**
+         * The version sequence of the ServiceSnapshots.
+         */
+        private static final AtomicLong VERSIONS = new AtomicLong();
+
+        /**
+         * The version of the snapshot, unique and increasing among all the snapshots.
+         */
+        final long version = VERSIONS.incrementAndGet();
+
+        /**
+         * The ModelService.
+         */
+        final ModelService service;
+
+        /**
+         * The read-only UP ModelServiceInstances.
+         */
+        final List<ModelServiceInstance> upInstances;
+
+        /**
+         * The read-only ServiceInstances.
+         */
+        final List<ServiceInstance> instanceViews;
+
+        /**
+         * The read-only UP ServiceInstances.
+         */
+        final List<ServiceInstance> upInstanceViews;
+
+        /**
+         * The ServiceInstance of each ModelServiceInstance in the snapshot.
+         */
+        final Map<ModelServiceInstance, ServiceInstance> views;
+
+        /**
+         * The non-null ModelServiceInstances.
+         */
+        private final ModelServiceInstance[] members;
+
+        /**
+         * The ServiceInstances of the members at the same positions.
+         */
+        private final ServiceInstance[] memberViews;
+
+        /**
+         * The metadata index of the members, it is built in the first query.
+         */
+        private volatile ServiceInstanceIndex index;
+
+        /**
+         * Constructor.
+         *
+         * @param source
+         *         the ModelService.
+         * @param instances
+         *         the ModelServiceInstances of the snapshot.
+         * @param previous
+         *         the previous snapshot of the Service, can be null.
+         */
+        @SuppressWarnings("deprecation")
+        ServiceSnapshot(ModelService source, List<ModelServiceInstance> instances, ServiceSnapshot previous){
+            service = new ModelService(source.getName(), source.getId());
+            service.setCreateTime(source.getCreateTime());
+            service.setModifiedTime(source.getModifiedTime());
+            service.setInfo(source.getInfo());
+            views = new IdentityHashMap<ModelServiceInstance, ServiceInstance>();
+            if(instances == null || instances.isEmpty()){
+                service.setServiceInstances(Collections.<ModelServiceInstance>emptyList());
+                upInstances = Collections.emptyList();
+                instanceViews = Collections.emptyList();
+                upInstanceViews = Collections.emptyList();
+                members = new ModelServiceInstance[0];
+                memberViews = new ServiceInstance[0];
+                return;
+            }
+
+            ModelServiceInstance[] all = instances.toArray(new ModelServiceInstance[instances.size()]);
+            ModelServiceInstance[] nonNull = new ModelServiceInstance[all.length];
+            ModelServiceInstance[] ups = new ModelServiceInstance[all.length];
+            ServiceInstance[] allViews = new ServiceInstance[all.length];
+            ServiceInstance[] upViews = new ServiceInstance[all.length];
+            int count = 0;
+            int up = 0;
+            for(ModelServiceInstance instance : all){
+                if(instance == null){
+                    continue;
+                }
+                ServiceInstance view = previous == null ? null : previous.views.get(instance);
+                if(view == null){
+                    view = ServiceInstanceUtils.transferFromModelServiceInstance(instance);
+                }
+                views.put(instance, view);
+                nonNull[count] = instance;
+                allViews[count ++] = view;
+                if(OperationalStatus.UP.equals(instance.getStatus())){
+                    ups[up] = instance;
+                    upViews[up ++] = view;
+                }
+            }
+            service.setServiceInstances(Collections.unmodifiableList(Arrays.asList(all)));
+            members = Arrays.copyOf(nonNull, count);
+            memberViews = Arrays.copyOf(allViews, count);
+            instanceViews = readOnlyList(memberViews, count);
+            upInstances = readOnlyList(ups, up);
+            upInstanceViews = readOnlyList(upViews, up);
+        }
+
+        /**
+         * Query the ModelServiceInstances by the metadata index.
+         *
+         * @param query
+         *         the ServiceInstanceQuery.
+         * @param upOnly
+         *         whether to query the UP ModelServiceInstances only.
+         * @return
+         *         the matched ModelServiceInstances.
+         */
+        List<ModelServiceInstance> queryInstances(ServiceInstanceQuery query, boolean upOnly){
+            return select(members, getIndex().match(query, upOnly));
+        }
+
+        /**
+         * Query the ServiceInstances by the metadata index.
+         *
+         * @param query
+         *         the ServiceInstanceQuery.
+         * @param upOnly
+         *         whether to query the UP ServiceInstances only.
+         * @return
+         *         the matched ServiceInstances.
+         */
+        List<ServiceInstance> queryInstanceViews(ServiceInstanceQuery query, boolean upOnly){
+            return select(memberViews, getIndex().match(query, upOnly));
+        }
+
+        /**
+         * Get the metadata index, build it when first used.
+         *
+         * @return
+         *         the ServiceInstanceIndex.
+         */
+        private ServiceInstanceIndex getIndex(){
+            ServiceInstanceIndex i = index;
+            if(i == null){
+                // building it twice in a race is harmless.
+                i = new ServiceInstanceIndex(members);
+                index = i;
+            }
+            return i;
+        }
+
+        /**
+         * Select the elements at the positions.
+         *
+         * @param array
+         *         the array.
+         * @param positions
+         *         the positions.
+         * @return
+         *         the selected elements.
+         */
+        private static <T> List<T> select(T[] array, BitSet positions){
+            if(positions.isEmpty()){
+                return Collections.emptyList();
+            }
+            List<T> list = new ArrayList<T>(positions.cardinality());
+            for(int i = positions.nextSetBit(0); i >= 0; i = positions.nextSetBit(i + 1)){
+                list.add(array[i]);
+            }
+            return list;
+        }
+
+        /**
+         * Get the read-only list of the first elements of the array.
+         *
+         * @param array
+         *         the array.
+         * @param length
+         *         the element number.
+         * @return
+         *         the read-only list.
+         */
+        private static <T> List<T> readOnlyList(T[] array, int length){
+            if(length == 0){
+                return Collections.emptyList();
+            }
+            return Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(array, length)));
+        }
+    }
+
+    /**
+     * The LookupCacheMXBean implementation.
+     */
+    class LookupCacheStats implements LookupCacheMXBean {
+
+        @Override
+        public int getCacheSize() {
+            return getCache().size();
+        }
+
+        @Override
+        public long getHits() {
+            return cacheHits.get();
+        }
+
+        @Override
+        public long getMisses() {
+            return cacheMisses.get();
+        }
+
+        @Override
+        public double getHitRatio() {
+            long hits = cacheHits.get();
+            long total = hits + cacheMisses.get();
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    /**
+     * The ServiceDirectoryListener to resync the cache on session CREATED and REOPEN.
+     *
+     * It runs on the EventThread, so it only queues the resync.
+     */
+    class CacheResyncListener implements ServiceDirectoryListener {
+
+        @Override
+        public void notify(ServiceDirectoryEvent event) {
+            if(event instanceof ClientSessionEvent){
+                SessionEvent e = ((ClientSessionEvent) event).getSessionEvent();
+                if(SessionEvent.CREATED.equals(e) || SessionEvent.REOPEN.equals(e)){
+                    scheduleResync();
+                }
+            }
+        }
+    }
+
     /**
      * The CacheSync wather.
      *
@@ -221,7 +955,7 @@ public class CachedDirectoryLookupService extends DirectoryLookupService impleme
      *
      *
      */
-    class CacheSyncWatcher implements Watcher{
+    class CacheSyncWatcher implements BatchWatcher{
 
         /**
          * listen the ServiceInstanceOperate and update the cache.
@@ -230,14 +964,40 @@ public class CachedDirectoryLookupService extends DirectoryLookupService impleme
          */
         @Override
         public void process(String name, ServiceInstanceOperate operate) {
+            processBatch(name, Collections.singletonList(operate));
+        }
+
+        /**
+         * listen the ServiceInstanceOperates and update the cache in one pass.
+         *
+         * The cached ModelService is never modified, a new snapshot with the operates
+         * applied replaces it atomically. The snapshot is rebuilt if the ModelService is
+         * replaced concurrently, the NotificationHandlers are invoked once it is cached.
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void processBatch(String name, List<ServiceInstanceOperate> operates) {
             boolean cacheUpdated = false;
 
-            if(getCache().isCached(name)){
-                processServiceInstanceOperate(getCache().getService(name).getServiceInstances(), operate);
-                cacheUpdated = true;
-                LOGGER.warn("Update the ModelService in the cache, serviceName=" + name + ", instanceId=" + operate.getInstanceId());
+            List<ServiceInstanceOperate> applied = new ArrayList<ServiceInstanceOperate>(operates.size());
+            ServiceSnapshot cached = getCache().getService(name);
+            while(cached != null){
+                applied.clear();
+                ServiceSnapshot snapshot = new ServiceSnapshot(cached.service,
+                        processServiceInstanceOperates(cached.service.getServiceInstances(), operates, applied), cached);
+                if(getCache().replaceService(name, cached, snapshot)){
+                    cacheUpdated = true;
+                    break;
+                }
+                cached = getCache().getService(name);
+            }
+
+            if(cacheUpdated){
+                LOGGER.warn("Update the ModelService in the cache, serviceName=" + name + ", operates=" + operates.size());
+                notifyServiceInstanceOperates(applied);
             } else {
-                LOGGER.warn("Drop the ServiceInstanceEvent, the service doesn't in the cache, serviceName=" + operate.getServiceName() + ", instanceId=" + operate.getInstanceId());
+                LOGGER.warn("Drop the ServiceInstanceEvents, the service doesn't in the cache, serviceName=" + name + ", operates=" + operates.size());
             }
 
             try{
@@ -255,55 +1015,82 @@ public class CachedDirectoryLookupService extends DirectoryLookupService impleme
         /**
          * Process the cache update.
          *
+         * The instances are indexed by instanceId once, every ServiceInstanceOperate is applied
+         * in constant time. The cached instances are not modified, the updated instance is a
+         * new ModelServiceInstance.
+         *
          * @param instances
-         *         the instances list.
-         * @param operate
-         *         the ServiceInstanceOperate.
+         *         the cached instances list.
+         * @param operates
+         *         the ServiceInstanceOperates.
+         * @param applied
+         *         the applied ServiceInstanceOperates with the resulting ModelServiceInstance.
+         * @return
+         *         the new instances list.
          */
-        private void processServiceInstanceOperate(List<ModelServiceInstance> instances, ServiceInstanceOperate operate){
-            switch(operate.getType()){
-            case Add:
-                ModelServiceInstance model = operate.getServiceInstance();
-                instances.add(model);
-                CachedDirectoryLookupService.this.onServiceInstanceAvailable(ServiceInstanceUtils.transferFromModelServiceInstance(model));
-                break;
-            case Update:
-
+        private List<ModelServiceInstance> processServiceInstanceOperates(List<ModelServiceInstance> instances,
+                List<ServiceInstanceOperate> operates, List<ServiceInstanceOperate> applied){
+            Map<String, ModelServiceInstance> index = new LinkedHashMap<String, ModelServiceInstance>();
+            if(instances != null){
                 for(ModelServiceInstance instance : instances){
-
-                    if(operate.getServiceName().equals(instance.getServiceName())
-                            && operate.getInstanceId().equals(instance.getInstanceId())){
-                        ModelServiceInstance updated = operate.getServiceInstance();
-                        instance.setStatus(updated.getStatus());
-                        instance.setUri(updated.getUri());
-                        instance.setMetadata(updated.getMetadata());
-                        instance.setAddress(updated.getAddress());
-                        instance.setId(updated.getId());
-                        instance.setInfo(updated.getInfo());
-                        instance.setModifiedTime(updated.getModifiedTime());
-                        instance.setPort(updated.getPort());
-                        CachedDirectoryLookupService.this.onServiceInstanceChanged(ServiceInstanceUtils.transferFromModelServiceInstance(updated));
-                        break;
+                    if(instance != null){
+                        index.put(instance.getInstanceId(), instance);
                     }
                 }
-                break;
-            case Delete:
-                Iterator<ModelServiceInstance> it = instances.iterator();
-                while(it.hasNext()){
-                    ModelServiceInstance instance = it.next();
+            }
 
+            for(ServiceInstanceOperate operate : operates){
+                switch(operate.getType()){
+                case Add:
+                    ModelServiceInstance model = operate.getServiceInstance();
+                    index.put(model.getInstanceId(), model);
+                    applied.add(operate);
+                    break;
+                case Update:
+                    ModelServiceInstance instance = index.get(operate.getInstanceId());
                     if(instance != null){
-                        if(operate.getServiceName().equals(instance.getServiceName())
-                                && operate.getInstanceId().equals(instance.getInstanceId())){
-                            CachedDirectoryLookupService.this.onServiceInstanceUnavailable(ServiceInstanceUtils.transferFromModelServiceInstance(instance));
-                            it.remove();
-                            break;
-                        }
+                        ModelServiceInstance updated = updateServiceInstance(instance, operate.getServiceInstance());
+                        index.put(updated.getInstanceId(), updated);
+                        applied.add(new ServiceInstanceOperate(operate.getServiceName(), operate.getInstanceId(),
+                                updated, OperateType.Update));
+                    }
+                    break;
+                case Delete:
+                    ModelServiceInstance removed = index.remove(operate.getInstanceId());
+                    if(removed != null){
+                        applied.add(new ServiceInstanceOperate(operate.getServiceName(), operate.getInstanceId(),
+                                removed, OperateType.Delete));
                     }
+                    break;
+                default:
+                    break;
+                }
+            }
+            return new ArrayList<ModelServiceInstance>(index.values());
+        }
+
+        /**
+         * Invoke the NotificationHandlers for the applied ServiceInstanceOperates.
+         *
+         * @param applied
+         *         the applied ServiceInstanceOperates.
+         */
+        private void notifyServiceInstanceOperates(List<ServiceInstanceOperate> applied){
+            for(ServiceInstanceOperate operate : applied){
+                ServiceInstance instance = CachedDirectoryLookupService.this.getServiceInstance(operate.getServiceInstance());
+                switch(operate.getType()){
+                case Add:
+                    CachedDirectoryLookupService.this.onServiceInstanceAvailable(instance);
+                    break;
+                case Update:
+                    CachedDirectoryLookupService.this.onServiceInstanceChanged(instance);
+                    break;
+                case Delete:
+                    CachedDirectoryLookupService.this.onServiceInstanceUnavailable(instance);
+                    break;
+                default:
+                    break;
                 }
-                break;
-            default:
-                break;
             }
         }
 
@@ -18,9 +18,15 @@ package com.cisco.oss.foundation.directory.impl;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.cisco.oss.foundation.directory.Configurations;
 import com.cisco.oss.foundation.directory.DirectoryServiceClientManager;
 import com.cisco.oss.foundation.directory.NotificationHandler;
 import com.cisco.oss.foundation.directory.entity.ModelService;
@@ -30,6 +36,8 @@ import com.cisco.oss.foundation.directory.entity.ServiceInstance;
 import com.cisco.oss.foundation.directory.query.QueryCriterion;
 import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery;
 import com.cisco.oss.foundation.directory.query.StringCommand;
+import com.cisco.oss.foundation.directory.stats.ServiceInstanceStats;
+import com.cisco.oss.foundation.directory.utils.ServiceInstanceUtils;
 
 /**
  * It is the Directory LookupService to perform the lookup functionality.
@@ -40,6 +48,16 @@ import com.cisco.oss.foundation.directory.query.StringCommand;
  */
 public class DirectoryLookupService {
 
+    /**
+     * The decay time property name in seconds of the reported ServiceInstance latency and error rate.
+     */
+    public static final String SD_API_LB_EWMA_DECAY_TIME_PROPERTY = "lb.ewma.decay.time";
+
+    /**
+     * The default decay time in seconds of the reported ServiceInstance latency and error rate.
+     */
+    public static final int SD_API_LB_EWMA_DECAY_TIME_DEFAULT = 10;
+
     /**
      * The DirectoryServiceClientManager to get the DirectoryServiceClient.
      */
@@ -50,6 +68,22 @@ public class DirectoryLookupService {
      */
     private Map<String, List<NotificationHandler>> notificationHandlers  = new HashMap<String, List<NotificationHandler>>();
 
+    /**
+     * The reported ServiceInstanceStats, keyed by the service name and the instanceId.
+     */
+    private final ConcurrentMap<String, ServiceInstanceStats> instanceStats = new ConcurrentHashMap<String, ServiceInstanceStats>();
+
+    /**
+     * The decay time in nanoseconds of the ServiceInstanceStats.
+     */
+    private final long statsDecayTime = TimeUnit.SECONDS.toNanos(
+            Configurations.getInt(SD_API_LB_EWMA_DECAY_TIME_PROPERTY, SD_API_LB_EWMA_DECAY_TIME_DEFAULT));
+
+    /**
+     * The next time in nanoseconds to drop the idle ServiceInstanceStats.
+     */
+    private final AtomicLong nextStatsSweepTime = new AtomicLong(System.nanoTime() + statsDecayTime);
+
     /**
      * Constructor.
      *
@@ -86,7 +120,7 @@ public class DirectoryLookupService {
     public ModelServiceInstance getModelServiceInstance(String serviceName, String instanceId){
         ModelService service = getModelService(serviceName);
         if(service != null && service.getServiceInstances() != null ){
-            for(ModelServiceInstance instance : new ArrayList<ModelServiceInstance>(service.getServiceInstances())){
+            for(ModelServiceInstance instance : service.getServiceInstances()){
                 if(instance.getInstanceId().equals(instanceId)){
                     return instance;
                 }
@@ -146,6 +180,8 @@ public class DirectoryLookupService {
     /**
      * Get the ModelServiceInstance list of the Service.
      *
+     * The returned list is a read-only view, it is not copied.
+     *
      * @param serviceName
      *         the service name.
      * @return
@@ -156,7 +192,7 @@ public class DirectoryLookupService {
         if(service == null || service.getServiceInstances().size() == 0){
             return Collections.emptyList();
         }else{
-            return new ArrayList<ModelServiceInstance>(service.getServiceInstances());
+            return Collections.unmodifiableList(service.getServiceInstances());
         }
     }
 
@@ -186,7 +222,7 @@ public class DirectoryLookupService {
         List<ModelServiceInstance> list = null;
         if(service != null && service.getServiceInstances().size() > 0){
 
-            for(ModelServiceInstance instance : new ArrayList<ModelServiceInstance>(service.getServiceInstances())){
+            for(ModelServiceInstance instance : service.getServiceInstances()){
                 if(instance.getStatus().equals(OperationalStatus.UP)){
                     if(list == null){
                         list = new ArrayList<ModelServiceInstance>();
@@ -204,6 +240,206 @@ public class DirectoryLookupService {
         }
     }
 
+    /**
+     * Report the outcome of a request to the ServiceInstance.
+     *
+     * @param instance
+     *         the ServiceInstance.
+     * @param latencyNanos
+     *         the request latency in nanoseconds.
+     * @param success
+     *         whether the request succeeded.
+     */
+    public void reportServiceInstance(ServiceInstance instance, long latencyNanos, boolean success){
+        String key = statsKeyOf(instance.getServiceName(), instance.getInstanceId());
+        ServiceInstanceStats stats = instanceStats.get(key);
+        if(stats == null){
+            ServiceInstanceStats created = new ServiceInstanceStats(statsDecayTime);
+            stats = instanceStats.putIfAbsent(key, created);
+            if(stats == null){
+                stats = created;
+            }
+        }
+        stats.report(latencyNanos, success);
+        sweepIdleStats();
+    }
+
+    /**
+     * Drop the idle ServiceInstanceStats, at most once in a decay time.
+     *
+     * The stats of the ServiceInstances removed from the Service are not always removed
+     * by onServiceInstanceUnavailable, for example when the Service is not cached, so they
+     * are dropped after they decay to 0.
+     */
+    private void sweepIdleStats(){
+        long now = System.nanoTime();
+        long next = nextStatsSweepTime.get();
+        if(now - next < 0 || ! nextStatsSweepTime.compareAndSet(next, now + statsDecayTime)){
+            return;
+        }
+        Iterator<Map.Entry<String, ServiceInstanceStats>> it = instanceStats.entrySet().iterator();
+        while(it.hasNext()){
+            if(it.next().getValue().isIdle(now)){
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the reported ServiceInstanceStats.
+     *
+     * @param serviceName
+     *         the service name.
+     * @param instanceId
+     *         the instanceId.
+     * @return
+     *         the ServiceInstanceStats, null if never reported.
+     */
+    public ServiceInstanceStats getServiceInstanceStats(String serviceName, String instanceId){
+        return instanceStats.get(statsKeyOf(serviceName, instanceId));
+    }
+
+    /**
+     * Get the ServiceInstanceStats key, the "/" is not allowed in the service name and the instanceId.
+     *
+     * @param serviceName
+     *         the service name.
+     * @param instanceId
+     *         the instanceId.
+     * @return
+     *         the key.
+     */
+    private static String statsKeyOf(String serviceName, String instanceId){
+        return serviceName + "/" + instanceId;
+    }
+
+    /**
+     * Get the version of the Service.
+     *
+     * The version changes whenever the ModelServiceInstances of the Service change, so the
+     * result computed from the same version can be reused. It is not tracked without the
+     * cache.
+     *
+     * @param serviceName
+     *         the service name.
+     * @return
+     *         the version, -1 if the version is not tracked.
+     */
+    public long getServiceVersion(String serviceName){
+        return -1;
+    }
+
+    /**
+     * Query the ModelServiceInstances of the Service.
+     *
+     * @param serviceName
+     *         the service name.
+     * @param query
+     *         the ServiceInstanceQuery.
+     * @return
+     *         the matched ModelServiceInstance list.
+     */
+    public List<ModelServiceInstance> queryModelInstances(String serviceName, ServiceInstanceQuery query){
+        return ServiceInstanceQueryHelper.filter(query, getModelInstances(serviceName));
+    }
+
+    /**
+     * Query the UP ModelServiceInstances of the Service.
+     *
+     * @param serviceName
+     *         the service name.
+     * @param query
+     *         the ServiceInstanceQuery.
+     * @return
+     *         the matched UP ModelServiceInstance list.
+     */
+    public List<ModelServiceInstance> queryUPModelInstances(String serviceName, ServiceInstanceQuery query){
+        return ServiceInstanceQueryHelper.filter(query, getUPModelInstances(serviceName));
+    }
+
+    /**
+     * Query the ServiceInstances of the Service.
+     *
+     * @param serviceName
+     *         the service name.
+     * @param query
+     *         the ServiceInstanceQuery.
+     * @return
+     *         the matched ServiceInstance list.
+     */
+    public List<ServiceInstance> queryServiceInstances(String serviceName, ServiceInstanceQuery query){
+        return toServiceInstances(queryModelInstances(serviceName, query));
+    }
+
+    /**
+     * Query the UP ServiceInstances of the Service.
+     *
+     * @param serviceName
+     *         the service name.
+     * @param query
+     *         the ServiceInstanceQuery.
+     * @return
+     *         the matched UP ServiceInstance list.
+     */
+    public List<ServiceInstance> queryUPServiceInstances(String serviceName, ServiceInstanceQuery query){
+        return toServiceInstances(queryUPModelInstances(serviceName, query));
+    }
+
+    /**
+     * Get the ServiceInstance of the ModelServiceInstance.
+     *
+     * @param instance
+     *         the ModelServiceInstance.
+     * @return
+     *         the ServiceInstance.
+     */
+    public ServiceInstance getServiceInstance(ModelServiceInstance instance){
+        return ServiceInstanceUtils.transferFromModelServiceInstance(instance);
+    }
+
+    /**
+     * Get the ServiceInstance list of the Service.
+     *
+     * @param serviceName
+     *         the service name.
+     * @return
+     *         the ServiceInstance list of the Service.
+     */
+    public List<ServiceInstance> getServiceInstances(String serviceName){
+        return toServiceInstances(getModelInstances(serviceName));
+    }
+
+    /**
+     * Get the UP ServiceInstance list of the Service.
+     *
+     * @param serviceName
+     *         the service name.
+     * @return
+     *         the UP ServiceInstance list of the Service.
+     */
+    public List<ServiceInstance> getUPServiceInstances(String serviceName){
+        return toServiceInstances(getUPModelInstances(serviceName));
+    }
+
+    /**
+     * Get the ServiceInstances of the ModelServiceInstances.
+     *
+     * @param instances
+     *         the ModelServiceInstance list.
+     * @return
+     *         the ServiceInstance list.
+     */
+    public List<ServiceInstance> toServiceInstances(List<ModelServiceInstance> instances){
+        if(instances == null || instances.isEmpty()){
+            return Collections.emptyList();
+        }
+        List<ServiceInstance> list = new ArrayList<ServiceInstance>(instances.size());
+        for(ModelServiceInstance instance : instances){
+            list.add(getServiceInstance(instance));
+        }
+        return list;
+    }
+
     /**
      * Add a NotificationHandler to the Service.
      *
@@ -281,6 +517,7 @@ public class DirectoryLookupService {
             return ;
         }
         String serviceName = instance.getServiceName();
+        instanceStats.remove(statsKeyOf(serviceName, instance.getInstanceId()));
         synchronized(notificationHandlers){
             if(notificationHandlers.containsKey(serviceName)){
                 for(NotificationHandler h : notificationHandlers.get(serviceName)){
@@ -16,13 +16,21 @@
 package com.cisco.oss.foundation.directory.impl;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import com.cisco.oss.foundation.directory.Configurations;
 import com.cisco.oss.foundation.directory.ServiceDirectory;
 import com.cisco.oss.foundation.directory.async.Callback.AttachSessionCallback;
 import com.cisco.oss.foundation.directory.async.Callback.GetServiceCallback;
@@ -56,6 +64,8 @@ import com.cisco.oss.foundation.directory.proto.GetACLProtocol;
 import com.cisco.oss.foundation.directory.proto.GetACLResponse;
 import com.cisco.oss.foundation.directory.proto.GetAllServicesResponse;
 import com.cisco.oss.foundation.directory.proto.GetAllUserResponse;
+import com.cisco.oss.foundation.directory.proto.GetServiceChangingByVersionProtocol;
+import com.cisco.oss.foundation.directory.proto.GetServiceChangingByVersionResponse;
 import com.cisco.oss.foundation.directory.proto.GetServiceProtocol;
 import com.cisco.oss.foundation.directory.proto.GetServiceResponse;
 import com.cisco.oss.foundation.directory.proto.GetUserProtocol;
@@ -107,6 +117,20 @@ public class DirectoryServiceClient {
      */
     public static final int SD_API_SD_SERVER_PORT_DEFAULT = 2013;
 
+    /**
+     * The DirectoryConnection pool size property name.
+     *
+     * Each pooled DirectoryConnection opens its own session, and owns its socket thread,
+     * EventThread and connection MBean, the timer and the WatcherEventDispatcher are shared.
+     * The pool only pays off when the read requests queue up on one connection.
+     */
+    public static final String SD_API_CONNECTION_POOL_SIZE_PROPERTY = "connection.pool.size";
+
+    /**
+     * The default DirectoryConnection pool size, only the pinned DirectoryConnection.
+     */
+    public static final int SD_API_CONNECTION_POOL_SIZE_DEFAULT = 1;
+
     /**
      * The DirectoryServers.
      */
@@ -117,11 +141,55 @@ public class DirectoryServiceClient {
      */
     private DirectoryConnection connection = null;
 
+    /**
+     * The additional DirectoryConnections of the pool, they only serve the read requests
+     * without session binding. Each has its own empty WatcherManager, the Watchers are only
+     * registered in the session of the pinned DirectoryConnection, so a pooled session
+     * closing doesn't clean them.
+     */
+    private volatile List<DirectoryConnection> readConnections = Collections.emptyList();
+
     /**
      * The WatcherManager in the DirectoryConnection.
      */
     WatcherManager watcherManager = new WatcherManager();
 
+    /**
+     * Transfer the Response to Void.
+     */
+    private static final Function<Response, Void> TO_VOID = new Function<Response, Void>(){
+
+        @Override
+        public Void apply(Response response) {
+            return null;
+        }
+
+    };
+
+    /**
+     * Transfer the GetServiceResponse to ModelService.
+     */
+    private static final Function<Response, ModelService> TO_SERVICE = new Function<Response, ModelService>(){
+
+        @Override
+        public ModelService apply(Response response) {
+            return response == null ? null : ((GetServiceResponse) response).getService();
+        }
+
+    };
+
+    /**
+     * Transfer the QueryServiceResponse to ModelServiceInstance list.
+     */
+    private static final Function<Response, List<ModelServiceInstance>> TO_INSTANCES = new Function<Response, List<ModelServiceInstance>>(){
+
+        @Override
+        public List<ModelServiceInstance> apply(Response response) {
+            return response == null ? null : ((QueryServiceResponse) response).getInstances();
+        }
+
+    };
+
     /**
      * Constructor.
      *
@@ -150,15 +218,53 @@ public class DirectoryServiceClient {
      *         the DirectorySocket.
      */
     DirectoryServiceClient(List<String> servers, String userName, String password, DirectorySocket socket) {
+        this(servers, userName, password, socket, null);
+    }
+
+    /**
+     * Keep it default for unit test.
+     *
+     * @param servers
+     *         the DirectoryServers.
+     * @param userName
+     *         the user name.
+     * @param password
+     *         the password.
+     * @param socket
+     *         the DirectorySocket.
+     * @param poolSockets
+     *         the DirectorySockets of the pooled DirectoryConnections, null to create them in the
+     *         configured pool size.
+     */
+    DirectoryServiceClient(List<String> servers, String userName, String password, DirectorySocket socket,
+            List<DirectorySocket> poolSockets) {
         if(socket == null){
             socket  = getDirectorySocket();
         }
         directoryServers = new DirectoryServers(servers);
 
-        connection = new DirectoryConnection(this.directoryServers.getNextDirectoryServer(), watcherManager, socket, userName, password);
+        InetSocketAddress server = directoryServers.selectDirectoryServer();
+        if(server == null){
+            server = directoryServers.getNextDirectoryServer();
+        }
+        connection = new DirectoryConnection(directoryServers, server, watcherManager, socket, userName, password);
         connection.start();
         connection.blockUtilConnected();
 
+        int poolSize = poolSockets == null ?
+                Configurations.getInt(SD_API_CONNECTION_POOL_SIZE_PROPERTY, SD_API_CONNECTION_POOL_SIZE_DEFAULT)
+                : poolSockets.size() + 1;
+        if(poolSize > 1){
+            List<DirectoryConnection> pool = new ArrayList<DirectoryConnection>(poolSize - 1);
+            for(int i = 1; i < poolSize; i ++){
+                DirectorySocket poolSocket = poolSockets == null ? getDirectorySocket() : poolSockets.get(i - 1);
+                DirectoryConnection conn = new DirectoryConnection(directoryServers, directoryServers.getNextDirectoryServer(),
+                        new WatcherManager(), poolSocket, userName, password);
+                conn.start();
+                pool.add(conn);
+            }
+            readConnections = Collections.unmodifiableList(pool);
+        }
     }
 
     /**
@@ -171,8 +277,11 @@ public class DirectoryServiceClient {
         if(servers == null || servers.size() == 0){
             return;
         }
-        directoryServers = new DirectoryServers(servers);
+        directoryServers.setServers(servers);
         connection.setDirectoryServers(directoryServers.getNextDirectoryServer());
+        for(DirectoryConnection conn : readConnections){
+            conn.setDirectoryServers(directoryServers.getNextDirectoryServer());
+        }
     }
 
     /**
@@ -198,6 +307,9 @@ public class DirectoryServiceClient {
     public void setUser(String userName, String password){
         if(userName != null && ! userName.isEmpty()){
             connection.setDirectoryUser(userName, password);
+            for(DirectoryConnection conn : readConnections){
+                conn.setDirectoryUser(userName, password);
+            }
         }
     }
 
@@ -388,6 +500,27 @@ public class DirectoryServiceClient {
 
     }
 
+    /**
+     * Register a ServiceInstance asynchronously.
+     *
+     * The returned ListenableFuture completes in the response path, the continuation runs
+     * on the Executor given to addListener or Futures.addCallback.
+     *
+     * @param instance
+     *         the ProvidedServiceInstance.
+     * @return
+     *         the ListenableFuture, it fails with the ServiceException when the request fails.
+     */
+    public ListenableFuture<Void> registerServiceInstanceAsync(ProvidedServiceInstance instance){
+
+        ProtocolHeader header = new ProtocolHeader();
+        header.setType(ProtocolType.RegisterServiceInstance);
+
+        RegisterServiceInstanceProtocol p = new RegisterServiceInstanceProtocol(instance);
+
+        return Futures.transform(connection.submitAsyncRequest(header, p, null), TO_VOID);
+    }
+
     /**
      * Update ServiceInstance status.
      *
@@ -695,7 +828,7 @@ public class DirectoryServiceClient {
         GetServiceProtocol p = new GetServiceProtocol(serviceName);
         p.setWatcher(watcher != null);
         GetServiceResponse resp ;
-        resp = (GetServiceResponse) connection.submitRequest(header, p,  wcb);
+        resp = (GetServiceResponse) connectionFor(wcb).submitRequest(header, p,  wcb);
         return resp.getService();
     }
 
@@ -730,7 +863,7 @@ public class DirectoryServiceClient {
 
         };
 
-        connection.submitCallbackRequest(header, p,  pcb, context);
+        getReadConnection().submitCallbackRequest(header, p,  pcb, context);
     }
 
     /**
@@ -754,7 +887,78 @@ public class DirectoryServiceClient {
 
         GetServiceProtocol p = new GetServiceProtocol(serviceName);
         p.setWatcher(false);
-        return connection.submitAsyncRequest(header, p,  wcb);
+        return connectionFor(wcb).submitAsyncRequest(header, p,  wcb);
+    }
+
+    /**
+     * Get the Service asynchronously.
+     *
+     * The returned ListenableFuture completes in the response path, the continuation runs
+     * on the Executor given to addListener or Futures.addCallback.
+     *
+     * @param serviceName
+     *         the service name.
+     * @param watcher
+     *         the Watcher, it is registered when the request succeeds, can be null.
+     * @return
+     *         the ListenableFuture of the ModelService, it fails with the ServiceException
+     *         when the request fails.
+     */
+    public ListenableFuture<ModelService> getServiceAsync(String serviceName, Watcher watcher){
+        WatcherRegistration wcb = null;
+        if (watcher != null) {
+            wcb = new WatcherRegistration(serviceName, watcher);
+        }
+
+        ProtocolHeader header = new ProtocolHeader();
+        header.setType(ProtocolType.GetService);
+
+        GetServiceProtocol p = new GetServiceProtocol(serviceName);
+        p.setWatcher(watcher != null);
+        return Futures.transform(connectionFor(wcb).submitAsyncRequest(header, p, wcb), TO_SERVICE);
+    }
+
+    /**
+     * Get the Services changed since the versions in one request, and watch all of them.
+     *
+     * It is sent in the session of the pinned DirectoryConnection, the Watcher is registered
+     * to all the Services with the Response, before the WatcherEvents behind it are delivered.
+     *
+     * @param versions
+     *         the service name to the last synced dxid map.
+     * @param watcher
+     *         the Watcher, can be null.
+     * @return
+     *         the changed ModelServices keyed by service name, the unchanged Services are absent.
+     */
+    public Map<String, ModelService> getChangedServices(Map<String, Long> versions, Watcher watcher){
+        ProtocolHeader header = new ProtocolHeader();
+        header.setType(ProtocolType.GetServiceChangingByVersion);
+
+        WatcherRegistration wcb = null;
+        if (watcher != null) {
+            wcb = new WatcherRegistration(new ArrayList<String>(versions.keySet()), watcher);
+        }
+
+        GetServiceChangingByVersionProtocol p = new GetServiceChangingByVersionProtocol(versions);
+        GetServiceChangingByVersionResponse resp ;
+        resp = (GetServiceChangingByVersionResponse) connection.submitRequest(header, p, wcb);
+        if(resp.getServices() == null){
+            return Collections.emptyMap();
+        }
+        return resp.getServices();
+    }
+
+    /**
+     * Get the last directory transaction id seen in the session.
+     *
+     * The Services fetched after it carry all the changes up to it.
+     *
+     * @return
+     *         the last dxid, -1 if not seen.
+     */
+    public long getLastDxid(){
+        return connection.getLastDxid();
     }
 
     /**
@@ -767,7 +971,7 @@ public class DirectoryServiceClient {
 
         ProtocolHeader header = new ProtocolHeader();
         header.setType(ProtocolType.GetAllServices);
-        GetAllServicesResponse resp = (GetAllServicesResponse) connection.submitRequest(header, null,  null);
+        GetAllServicesResponse resp = (GetAllServicesResponse) getReadConnection().submitRequest(header, null,  null);
         return resp.getInstances();
     }
 
@@ -829,7 +1033,7 @@ public class DirectoryServiceClient {
 
         QueryServiceProtocol p = new QueryServiceProtocol(cs);
         QueryServiceResponse resp ;
-        resp = (QueryServiceResponse) connection.submitRequest(header, p,  null);
+        resp = (QueryServiceResponse) getReadConnection().submitRequest(header, p,  null);
         return resp.getInstances();
     }
 
@@ -868,7 +1072,7 @@ public class DirectoryServiceClient {
 
         };
 
-        connection.submitCallbackRequest(header, p, pcb, context);
+        getReadConnection().submitCallbackRequest(header, p, pcb, context);
     }
 
     /**
@@ -889,7 +1093,23 @@ public class DirectoryServiceClient {
         }
 
         QueryServiceProtocol p = new QueryServiceProtocol(cs);
-        return connection.submitAsyncRequest(header, p, null);
+        return getReadConnection().submitAsyncRequest(header, p, null);
+    }
+
+    /**
+     * Query service asynchronously.
+     *
+     * The returned ListenableFuture completes in the response path, the continuation runs
+     * on the Executor given to addListener or Futures.addCallback.
+     *
+     * @param commands
+     *         the StringCommand list.
+     * @return
+     *         the ListenableFuture of the ModelServiceInstance list, it fails with the
+     *         ServiceException when the request fails.
+     */
+    public ListenableFuture<List<ModelServiceInstance>> queryServiceAsync(List<StringCommand> commands){
+        return Futures.transform(asyncQueryService(commands), TO_INSTANCES);
     }
 
     /**
@@ -916,6 +1136,14 @@ public class DirectoryServiceClient {
      * Close the DirectoryServiceClient.
      */
     public void close(){
+        for(DirectoryConnection conn : readConnections){
+            try {
+                conn.close();
+            } catch (IOException e) {
+                LOGGER.warn("Close the pooled DirectoryConnection get exception - " + e.getMessage());
+            }
+        }
+        readConnections = Collections.emptyList();
         if(connection != null){
             try {
                 connection.close();
@@ -930,6 +1158,61 @@ public class DirectoryServiceClient {
         }
     }
 
+    /**
+     * Get the pooled DirectoryConnections.
+     *
+     * Keep it default for unit test.
+     *
+     * @return
+     *         the pooled DirectoryConnections, not including the pinned one.
+     */
+    List<DirectoryConnection> getReadConnections(){
+        return readConnections;
+    }
+
+    /**
+     * Get the DirectoryConnection for the read request without session binding.
+     *
+     * It selects the connected DirectoryConnection with the fewest pending Packets
+     * in the pool, the pinned DirectoryConnection is preferred on a tie.
+     *
+     * @return
+     *         the DirectoryConnection.
+     */
+    private DirectoryConnection getReadConnection(){
+        DirectoryConnection selected = connection;
+        List<DirectoryConnection> pool = readConnections;
+        if(pool.isEmpty()){
+            return selected;
+        }
+        int min = selected.getPendingPacketCount();
+        for(DirectoryConnection conn : pool){
+            if(conn.getStatus().isConnected()){
+                int pending = conn.getPendingPacketCount();
+                if(pending < min){
+                    min = pending;
+                    selected = conn;
+                }
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Get the DirectoryConnection for the get Service request.
+     *
+     * The request registering a Watcher is pinned to the session of the pinned
+     * DirectoryConnection, the others are read requests.
+     *
+     * @param wr
+     *         the WatcherRegistration, can be null.
+     * @return
+     *         the DirectoryConnection.
+     */
+    private DirectoryConnection connectionFor(WatcherRegistration wr){
+        return wr == null ? getReadConnection() : connection;
+    }
+
     /**
      * Get the DirectorySoeckt.
      *
@@ -961,6 +1244,7 @@ public class DirectoryServiceClient {
     /**
      * The WatcherRegistration for the Service.
      *
+     * It registers the Watcher to one Service, or to the Services of a batch request.
      *
      */
     public static class WatcherRegistration {
@@ -969,6 +1253,11 @@ public class DirectoryServiceClient {
          */
         private String name;
 
+        /**
+         * The service names of the batch request, null for one Service.
+         */
+        private Collection<String> names;
+
         /**
          * The service Watcher.
          */
@@ -988,6 +1277,20 @@ public class DirectoryServiceClient {
             this.watcher = watcher;
         }
 
+        /**
+         * The Constructor for the Services of a batch request.
+         *
+         * @param names
+         *         the service names.
+         * @param watcher
+         *         the service Watcher.
+         */
+        public WatcherRegistration(Collection<String> names, Watcher watcher)
+        {
+            this.names = names;
+            this.watcher = watcher;
+        }
+
         /**
          * Get the Watcher.
          *
@@ -1007,6 +1310,19 @@ public class DirectoryServiceClient {
             return name;
         }
 
+        /**
+         * Get all the service names to register.
+         *
+         * @return
+         *         the service names.
+         */
+        public Collection<String> getNames() {
+            if(names == null){
+                return Collections.singletonList(name);
+            }
+            return names;
+        }
+
         /**
          * Set the Service name.
          * @param name
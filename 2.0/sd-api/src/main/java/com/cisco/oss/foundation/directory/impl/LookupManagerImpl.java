@@ -18,6 +18,7 @@ package com.cisco.oss.foundation.directory.impl;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,13 +33,15 @@ import com.cisco.oss.foundation.directory.entity.ServiceInstance;
 import com.cisco.oss.foundation.directory.exception.ErrorCode;
 import com.cisco.oss.foundation.directory.exception.ServiceDirectoryError;
 import com.cisco.oss.foundation.directory.exception.ServiceException;
+import com.cisco.oss.foundation.directory.lb.LatencyAwareLoadBalancer;
 import com.cisco.oss.foundation.directory.lb.LoadBalancerManager;
+import com.cisco.oss.foundation.directory.lb.LoadBalancerStrategy;
 import com.cisco.oss.foundation.directory.lb.MetadataQueryRRLoadBalancer;
 import com.cisco.oss.foundation.directory.lb.ServiceQueryRRLoadBalancer;
 import com.cisco.oss.foundation.directory.lb.ServiceRRLoadBalancer;
+import com.cisco.oss.foundation.directory.lb.StrategyLoadBalancer;
 import com.cisco.oss.foundation.directory.lifecycle.Closable;
 import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery;
-import com.cisco.oss.foundation.directory.utils.ServiceInstanceUtils;
 
 /**
  * The default LookupManager implementation to access the remote ServiceDirectory
@@ -60,6 +63,26 @@ public class LookupManagerImpl implements LookupManager, Closable {
      */
     public static final boolean SD_API_CACHE_ENABLED_DEFAULT = true;
 
+    /**
+     * The property to look up the ServiceInstance by the reported latency and error rate.
+     */
+    public static final String SD_API_LB_LATENCY_AWARE_ENABLED_PROPERTY = "lb.latency.aware.enabled";
+
+    /**
+     * The default latency aware lookup enabled property value.
+     */
+    public static final boolean SD_API_LB_LATENCY_AWARE_ENABLED_DEFAULT = false;
+
+    /**
+     * The latency in milliseconds added to the score of the ServiceInstance for the error rate 1.
+     */
+    public static final String SD_API_LB_FAILURE_PENALTY_PROPERTY = "lb.failure.penalty";
+
+    /**
+     * The default failure penalty in milliseconds.
+     */
+    public static final int SD_API_LB_FAILURE_PENALTY_DEFAULT = 1000;
+
     /**
      * The remote ServiceDirectory node client.
      */
@@ -70,6 +93,16 @@ public class LookupManagerImpl implements LookupManager, Closable {
      */
     private final LoadBalancerManager lbManager;
 
+    /**
+     * Indicate whether to look up the ServiceInstance by the reported latency and error rate.
+     */
+    private final boolean latencyAware;
+
+    /**
+     * The failure penalty in nanoseconds.
+     */
+    private final long failurePenalty;
+
     /**
      * The LookupService.
      */
@@ -86,6 +119,10 @@ public class LookupManagerImpl implements LookupManager, Closable {
     public LookupManagerImpl(DirectoryServiceClientManager directoryServiceClientManager){
         this.directoryServiceClientManager = directoryServiceClientManager;
         this.lbManager = new LoadBalancerManager(getLookupService());
+        this.latencyAware = Configurations.getBoolean(SD_API_LB_LATENCY_AWARE_ENABLED_PROPERTY,
+                SD_API_LB_LATENCY_AWARE_ENABLED_DEFAULT);
+        this.failurePenalty = TimeUnit.MILLISECONDS.toNanos(
+                Configurations.getInt(SD_API_LB_FAILURE_PENALTY_PROPERTY, SD_API_LB_FAILURE_PENALTY_DEFAULT));
     }
 
     /**
@@ -134,6 +171,9 @@ public class LookupManagerImpl implements LookupManager, Closable {
             throw new ServiceException(error);
         }
 
+        if(latencyAware){
+            return new LatencyAwareLoadBalancer(getLookupService(), serviceName, failurePenalty).vote();
+        }
         ServiceRRLoadBalancer lb = lbManager.getServiceRRLoadBalancer(serviceName);
         return lb.vote();
     }
@@ -142,23 +182,47 @@ public class LookupManagerImpl implements LookupManager, Closable {
      * {@inheritDoc}
      */
     @Override
-    public List<ServiceInstance> lookupInstances(String serviceName)
+    public void report(ServiceInstance instance, long latencyNanos, boolean success) {
+        if(! isStarted){
+            ServiceDirectoryError error = new ServiceDirectoryError(ErrorCode.SERVICE_DIRECTORY_MANAGER_FACTORY_CLOSED);
+            throw new ServiceException(error);
+        }
+        if(instance == null){
+            throw new IllegalArgumentException("ServiceInstance cannot be null.");
+        }
+        getLookupService().reportServiceInstance(instance, latencyNanos, success);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ServiceInstance lookupInstance(String serviceName, LoadBalancerStrategy strategy)
             throws ServiceException {
         if(! isStarted){
             ServiceDirectoryError error = new ServiceDirectoryError(ErrorCode.SERVICE_DIRECTORY_MANAGER_FACTORY_CLOSED);
             throw new ServiceException(error);
         }
+        if(strategy == null){
+            throw new IllegalArgumentException("LoadBalancerStrategy cannot be null.");
+        }
 
-        List<ModelServiceInstance> modelSvc = getLookupService().getUPModelInstances(serviceName);
-        if(modelSvc == null || modelSvc.isEmpty()){
-            return Collections.emptyList();
-        }else{
-            List<ServiceInstance> instances = new ArrayList<ServiceInstance>();
-            for(ModelServiceInstance modelInstance : modelSvc){
-                instances.add(ServiceInstanceUtils.transferFromModelServiceInstance(modelInstance));
-            }
-            return instances;
+        StrategyLoadBalancer lb = new StrategyLoadBalancer(getLookupService(), serviceName, strategy);
+        return lb.vote();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<ServiceInstance> lookupInstances(String serviceName)
+            throws ServiceException {
+        if(! isStarted){
+            ServiceDirectoryError error = new ServiceDirectoryError(ErrorCode.SERVICE_DIRECTORY_MANAGER_FACTORY_CLOSED);
+            throw new ServiceException(error);
         }
+
+        return getLookupService().getUPServiceInstances(serviceName);
     }
 
     /**
@@ -188,18 +252,7 @@ public class LookupManagerImpl implements LookupManager, Closable {
             throw new ServiceException(error);
         }
 
-        List<ModelServiceInstance> modelSvc = getLookupService().getUPModelInstances(serviceName);
-        if(modelSvc != null && ! modelSvc.isEmpty()){
-            List<ModelServiceInstance> filteredInstances = ServiceInstanceQueryHelper.filter(query, modelSvc);
-            if(filteredInstances.size() > 0){
-                List<ServiceInstance> instances = new ArrayList<ServiceInstance>();
-                for(ModelServiceInstance model : filteredInstances){
-                    instances.add(ServiceInstanceUtils.transferFromModelServiceInstance(model));
-                }
-                return instances;
-            }
-        }
-        return Collections.emptyList();
+        return getLookupService().queryUPServiceInstances(serviceName, query);
     }
 
     /**
@@ -251,8 +304,7 @@ public class LookupManagerImpl implements LookupManager, Closable {
         if(modelInstances != null && modelInstances.size()> 0){
             instances = new ArrayList<ServiceInstance>();
             for(ModelServiceInstance model : modelInstances){
-                instances.add(ServiceInstanceUtils
-                        .transferFromModelServiceInstance(model));
+                instances.add(getLookupService().getServiceInstance(model));
             }
         }
 
@@ -282,7 +334,7 @@ public class LookupManagerImpl implements LookupManager, Closable {
                 && service.getServiceInstances().size() > 0){
             for(ModelServiceInstance instance : service.getServiceInstances()){
                 if(instance.getInstanceId().equals(instanceId)){
-                    return ServiceInstanceUtils.transferFromModelServiceInstance(instance);
+                    return getLookupService().getServiceInstance(instance);
                 }
             }
 
@@ -300,18 +352,7 @@ public class LookupManagerImpl implements LookupManager, Closable {
             ServiceDirectoryError error = new ServiceDirectoryError(ErrorCode.SERVICE_DIRECTORY_MANAGER_FACTORY_CLOSED);
             throw new ServiceException(error);
         }
-        List<ModelServiceInstance> modelSvc = getLookupService()
-                .getModelInstances(serviceName);
-        if (modelSvc == null || modelSvc.isEmpty()) {
-            return Collections.emptyList();
-        } else {
-            List<ServiceInstance> instances = new ArrayList<ServiceInstance>();
-            for (ModelServiceInstance modelInstance : modelSvc) {
-                instances.add(ServiceInstanceUtils
-                        .transferFromModelServiceInstance(modelInstance));
-            }
-            return instances;
-        }
+        return getLookupService().getServiceInstances(serviceName);
     }
 
     /**
@@ -325,18 +366,7 @@ public class LookupManagerImpl implements LookupManager, Closable {
             throw new ServiceException(error);
         }
 
-        List<ModelServiceInstance> modelSvc = getLookupService().getModelInstances(serviceName);
-        if(modelSvc != null && ! modelSvc.isEmpty()){
-            List<ModelServiceInstance> filteredInstances = ServiceInstanceQueryHelper.filter(query, modelSvc);
-            if(filteredInstances.size() > 0){
-                List<ServiceInstance> instances = new ArrayList<ServiceInstance>();
-                for(ModelServiceInstance model : filteredInstances){
-                    instances.add(ServiceInstanceUtils.transferFromModelServiceInstance(model));
-                }
-                return instances;
-            }
-        }
-        return Collections.emptyList();
+        return getLookupService().queryServiceInstances(serviceName, query);
     }
 
     /**
@@ -364,8 +394,7 @@ public class LookupManagerImpl implements LookupManager, Closable {
         if(modelInstances != null && modelInstances.size()> 0){
             instances = new ArrayList<ServiceInstance>();
             for(ModelServiceInstance model : modelInstances){
-                instances.add(ServiceInstanceUtils
-                        .transferFromModelServiceInstance(model));
+                instances.add(getLookupService().getServiceInstance(model));
             }
         }
 
@@ -393,7 +422,7 @@ public class LookupManagerImpl implements LookupManager, Closable {
             if(instances == null){
                 instances = new ArrayList<ServiceInstance>();
             }
-            instances.add(ServiceInstanceUtils.transferFromModelServiceInstance(serviceInstance));
+            instances.add(getLookupService().getServiceInstance(serviceInstance));
         }
 
         if(instances == null){
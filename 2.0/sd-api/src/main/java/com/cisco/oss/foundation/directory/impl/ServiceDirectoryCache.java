@@ -18,8 +18,8 @@ package com.cisco.oss.foundation.directory.impl;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.google.common.collect.Lists;
 
@@ -27,6 +27,8 @@ import com.google.common.collect.Lists;
  * The ServiceDirectory internal Cache.
  *
  * It caches the Service as key and Object pair.
+ * The cached Objects can be immutable snapshots, which are replaced as a whole by
+ * putService or replaceService and never modified in place.
  * It is also used to cache ModelServiceInstance in LookupManagerImpl and
  * ProvidedServiceInstance in the test framework.
  *
@@ -37,7 +39,7 @@ public class ServiceDirectoryCache<K, V> {
     /**
      * Internal map cache for Service.
      */
-    private Map<K, V> cache;
+    private ConcurrentMap<K, V> cache;
 
     /**
      * Constructor.
@@ -53,6 +55,16 @@ public class ServiceDirectoryCache<K, V> {
         this.cache.clear();
     }
 
+    /**
+     * Get the number of the cached Services.
+     *
+     * @return
+     *         the cache size.
+     */
+    public int size(){
+        return cache.size();
+    }
+
     /**
      * Check whether the Service is cached.
      *
@@ -74,12 +86,37 @@ public class ServiceDirectoryCache<K, V> {
      *         the service.
      */
     public void putService(K serviceName, V service){
-        if(cache.containsKey(serviceName)){
-            cache.remove(serviceName);
-        }
         cache.put(serviceName, service);
     }
 
+    /**
+     * Replace the cached service atomically, only when it is still the expected one.
+     *
+     * @param serviceName
+     *         the service name.
+     * @param expected
+     *         the expected cached service.
+     * @param service
+     *         the new service.
+     * @return
+     *         true if replaced.
+     */
+    public boolean replaceService(K serviceName, V expected, V service){
+        return cache.replace(serviceName, expected, service);
+    }
+
+    /**
+     * Remove the service from cache.
+     *
+     * @param serviceName
+     *         the service name.
+     * @return
+     *         the removed service, null if not cached.
+     */
+    public V removeService(K serviceName){
+        return cache.remove(serviceName);
+    }
+
     /**
      * Get the Service by name.
      *
@@ -0,0 +1,230 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.impl;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cisco.oss.foundation.directory.entity.ModelServiceInstance;
+import com.cisco.oss.foundation.directory.entity.OperationalStatus;
+import com.cisco.oss.foundation.directory.query.QueryCriterion;
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery;
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery.ContainQueryCriterion;
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery.EqualQueryCriterion;
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery.InQueryCriterion;
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery.NotContainQueryCriterion;
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery.NotEqualQueryCriterion;
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery.NotInQueryCriterion;
+
+/**
+ * The inverted metadata index of the ModelServiceInstances of a Service.
+ *
+ * It maps the metadata key and value to the positions of the ModelServiceInstances, the
+ * equal, not equal, in, not in, contain and not contain QueryCriteria are evaluated by the
+ * BitSet intersection. The other QueryCriteria are evaluated by isMatch on the remaining
+ * ModelServiceInstances only.
+ *
+ * The index is immutable, it is built for the ModelServiceInstance array of a cached
+ * Service snapshot and rebuilt with the snapshot.
+ *
+ */
+public class ServiceInstanceIndex {
+
+    /**
+     * The empty BitSet, never modified.
+     */
+    private static final BitSet EMPTY = new BitSet();
+
+    /**
+     * The indexed ModelServiceInstances.
+     */
+    private final ModelServiceInstance[] instances;
+
+    /**
+     * The positions of all the ModelServiceInstances.
+     */
+    private final BitSet all;
+
+    /**
+     * The positions of the UP ModelServiceInstances.
+     */
+    private final BitSet up;
+
+    /**
+     * The metadata key to the positions of the ModelServiceInstances having the key.
+     */
+    private final Map<String, BitSet> keys = new HashMap<String, BitSet>();
+
+    /**
+     * The metadata key to the positions of the ModelServiceInstances having a non-null value of the key.
+     */
+    private final Map<String, BitSet> valuedKeys = new HashMap<String, BitSet>();
+
+    /**
+     * The metadata key to the value to the positions of the ModelServiceInstances.
+     */
+    private final Map<String, Map<String, BitSet>> values = new HashMap<String, Map<String, BitSet>>();
+
+    /**
+     * Constructor.
+     *
+     * @param instances
+     *         the ModelServiceInstances without null, the array is not copied and must
+     *         not be modified.
+     */
+    public ServiceInstanceIndex(ModelServiceInstance[] instances){
+        this.instances = instances;
+        this.all = new BitSet(instances.length);
+        this.up = new BitSet(instances.length);
+        all.set(0, instances.length);
+        for(int i = 0; i < instances.length; i ++){
+            ModelServiceInstance instance = instances[i];
+            if(OperationalStatus.UP.equals(instance.getStatus())){
+                up.set(i);
+            }
+            if(instance.getMetadata() == null){
+                continue;
+            }
+            for(Map.Entry<String, String> entry : instance.getMetadata().entrySet()){
+                bitsOf(keys, entry.getKey()).set(i);
+                // the QueryCriteria never match a null value, except Contain and NotContain.
+                if(entry.getValue() == null){
+                    continue;
+                }
+                bitsOf(valuedKeys, entry.getKey()).set(i);
+                Map<String, BitSet> valueMap = values.get(entry.getKey());
+                if(valueMap == null){
+                    valueMap = new HashMap<String, BitSet>();
+                    values.put(entry.getKey(), valueMap);
+                }
+                bitsOf(valueMap, entry.getValue()).set(i);
+            }
+        }
+    }
+
+    /**
+     * Get the positions of the ModelServiceInstances matching the ServiceInstanceQuery.
+     *
+     * @param query
+     *         the ServiceInstanceQuery.
+     * @param upOnly
+     *         whether to match the UP ModelServiceInstances only.
+     * @return
+     *         the positions of the matched ModelServiceInstances, it is owned by the caller.
+     */
+    public BitSet match(ServiceInstanceQuery query, boolean upOnly){
+        BitSet result = (BitSet) (upOnly ? up : all).clone();
+        // the compiled order runs the pattern QueryCriteria on the narrowed positions.
+        List<QueryCriterion> criteria = query.compile().getCriteria();
+        for(QueryCriterion criterion : criteria){
+            if(result.isEmpty()){
+                break;
+            }
+            String key = criterion.getMetadataKey();
+            if(criterion instanceof EqualQueryCriterion){
+                result.and(valueBits(key, ((EqualQueryCriterion) criterion).getCriterion()));
+            } else if(criterion instanceof NotEqualQueryCriterion){
+                result.and(valuedKeyBits(key));
+                result.andNot(valueBits(key, ((NotEqualQueryCriterion) criterion).getCriterion()));
+            } else if(criterion instanceof InQueryCriterion){
+                BitSet in = new BitSet(instances.length);
+                for(String value : ((InQueryCriterion) criterion).getCriterion()){
+                    in.or(valueBits(key, value));
+                }
+                result.and(in);
+            } else if(criterion instanceof NotInQueryCriterion){
+                result.and(valuedKeyBits(key));
+                for(String value : ((NotInQueryCriterion) criterion).getCriterion()){
+                    result.andNot(valueBits(key, value));
+                }
+            } else if(criterion instanceof ContainQueryCriterion){
+                result.and(keyBits(key));
+            } else if(criterion instanceof NotContainQueryCriterion){
+                result.andNot(keyBits(key));
+            } else {
+                for(int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)){
+                    if(! criterion.isMatch(instances[i].getMetadata())){
+                        result.clear(i);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the positions of the ModelServiceInstances having the metadata key.
+     *
+     * @param key
+     *         the metadata key.
+     * @return
+     *         the positions, must not be modified.
+     */
+    private BitSet keyBits(String key){
+        BitSet bits = keys.get(key);
+        return bits == null ? EMPTY : bits;
+    }
+
+    /**
+     * Get the positions of the ModelServiceInstances having a non-null value of the metadata key.
+     *
+     * @param key
+     *         the metadata key.
+     * @return
+     *         the positions, must not be modified.
+     */
+    private BitSet valuedKeyBits(String key){
+        BitSet bits = valuedKeys.get(key);
+        return bits == null ? EMPTY : bits;
+    }
+
+    /**
+     * Get the positions of the ModelServiceInstances having the metadata key and value.
+     *
+     * @param key
+     *         the metadata key.
+     * @param value
+     *         the metadata value.
+     * @return
+     *         the positions, must not be modified.
+     */
+    private BitSet valueBits(String key, String value){
+        Map<String, BitSet> valueMap = values.get(key);
+        BitSet bits = valueMap == null ? null : valueMap.get(value);
+        return bits == null ? EMPTY : bits;
+    }
+
+    /**
+     * Get the BitSet of the name in the map, create it if not exists.
+     *
+     * @param map
+     *         the map.
+     * @param name
+     *         the name.
+     * @return
+     *         the BitSet.
+     */
+    private static BitSet bitsOf(Map<String, BitSet> map, String name){
+        BitSet bits = map.get(name);
+        if(bits == null){
+            bits = new BitSet();
+            map.put(name, bits);
+        }
+        return bits;
+    }
+}
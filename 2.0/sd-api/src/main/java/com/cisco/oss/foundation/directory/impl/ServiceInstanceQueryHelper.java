@@ -21,7 +21,7 @@ import java.util.List;
 
 import com.cisco.oss.foundation.directory.entity.ModelServiceInstance;
 import com.cisco.oss.foundation.directory.entity.ServiceInstance;
-import com.cisco.oss.foundation.directory.query.QueryCriterion;
+import com.cisco.oss.foundation.directory.query.CompiledServiceInstanceQuery;
 import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery;
 
 /**
@@ -47,22 +47,15 @@ public class ServiceInstanceQueryHelper {
             return Collections.emptyList();
         }
 
-        List<QueryCriterion> criteria = query.getCriteria();
+        CompiledServiceInstanceQuery compiled = query.compile();
 
-        if (criteria == null || criteria.size() == 0) {
+        if (compiled.isEmpty()) {
             return list;
         }
 
         List<ModelServiceInstance> instances = new ArrayList<ModelServiceInstance>();
         for (ModelServiceInstance instance : list) {
-            boolean passed = true;
-            for (QueryCriterion criterion : criteria) {
-                if (criterion.isMatch(instance.getMetadata()) == false) {
-                    passed = false;
-                    break;
-                }
-            }
-            if (passed) {
+            if (compiled.isMatch(instance.getMetadata())) {
                 instances.add(instance);
             }
         }
@@ -87,22 +80,15 @@ public class ServiceInstanceQueryHelper {
             return Collections.emptyList();
         }
 
-        List<QueryCriterion> criteria = query.getCriteria();
+        CompiledServiceInstanceQuery compiled = query.compile();
 
-        if (criteria == null || criteria.size() == 0) {
+        if (compiled.isEmpty()) {
             return list;
         }
 
         List<ServiceInstance> instances = new ArrayList<ServiceInstance>();
         for (ServiceInstance instance : list) {
-            boolean passed = true;
-            for (QueryCriterion criterion : criteria) {
-                if (criterion.isMatch(instance.getMetadata()) == false) {
-                    passed = false;
-                    break;
-                }
-            }
-            if (passed) {
+            if (compiled.isMatch(instance.getMetadata())) {
                 instances.add(instance);
             }
         }
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.lb;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.cisco.oss.foundation.directory.entity.ServiceInstance;
+import com.cisco.oss.foundation.directory.impl.DirectoryLookupService;
+import com.cisco.oss.foundation.directory.stats.ServiceInstanceStats;
+
+/**
+ * The latency aware LoadBalancer of the Service.
+ *
+ * It scores the UP ServiceInstances by the reported EWMA latency, plus the EWMA error rate
+ * multiplied by the failure penalty, and selects the lower score of two random
+ * ServiceInstances. The ServiceInstance never reported scores 0, so the new and the idle
+ * ServiceInstances are tried, and the random choice keeps the callers from herding on the
+ * fastest one.
+ *
+ *
+ */
+public class LatencyAwareLoadBalancer implements ServiceInstanceLoadBalancer {
+
+    /**
+     * The DirectoryLookupService to get the ServiceInstance List and the ServiceInstanceStats.
+     */
+    private final DirectoryLookupService lookupService;
+
+    /**
+     * The service name.
+     */
+    private final String serviceName;
+
+    /**
+     * The failure penalty in nanoseconds.
+     */
+    private final double failurePenalty;
+
+    /**
+     * Constructor.
+     *
+     * @param lookupService
+     *         the DirectoryLookupService.
+     * @param serviceName
+     *         the service name.
+     * @param failurePenalty
+     *         the latency in nanoseconds added for the error rate 1.
+     */
+    public LatencyAwareLoadBalancer(DirectoryLookupService lookupService, String serviceName, long failurePenalty){
+        this.lookupService = lookupService;
+        this.serviceName = serviceName;
+        this.failurePenalty = failurePenalty;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ServiceInstance vote() {
+        List<ServiceInstance> instances = lookupService.getUPServiceInstances(serviceName);
+        if(instances == null || instances.isEmpty()){
+            return null;
+        }
+        int size = instances.size();
+        Random random = ThreadLocalRandom.current();
+        int i = random.nextInt(size);
+        ServiceInstance first = instances.get(i);
+        if(size == 1){
+            return first;
+        }
+        // pick the second from the others.
+        int j = random.nextInt(size - 1);
+        ServiceInstance second = instances.get(j >= i ? j + 1 : j);
+        return scoreOf(second) < scoreOf(first) ? second : first;
+    }
+
+    /**
+     * Get the service name.
+     *
+     * @return
+     *         the service name.
+     */
+    public String getServiceName(){
+        return serviceName;
+    }
+
+    /**
+     * Get the score of the ServiceInstance, the lower is preferred.
+     *
+     * @param instance
+     *         the ServiceInstance.
+     * @return
+     *         the score.
+     */
+    double scoreOf(ServiceInstance instance){
+        ServiceInstanceStats stats = lookupService.getServiceInstanceStats(serviceName, instance.getInstanceId());
+        if(stats == null){
+            return 0;
+        }
+        return stats.getLatency() + stats.getErrorRate() * failurePenalty;
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.lb;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cisco.oss.foundation.directory.entity.ServiceInstance;
+
+/**
+ * The LoadBalancerStrategy selects the ServiceInstance with the least outstanding requests.
+ *
+ * The ServiceInstances are scanned from a rotating start, so the ties are selected in turn.
+ *
+ *
+ */
+public class LeastOutstandingRequestsStrategy extends OutstandingRequestsStrategy {
+
+    /**
+     * The rotating scan start of the Services.
+     */
+    private final ConcurrentMap<String, AtomicInteger> starts = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ServiceInstance select(String serviceName, List<ServiceInstance> instances) {
+        pruneOutstandings(serviceName, instances);
+        AtomicInteger start = starts.get(serviceName);
+        if(start == null){
+            AtomicInteger created = new AtomicInteger(0);
+            start = starts.putIfAbsent(serviceName, created);
+            if(start == null){
+                start = created;
+            }
+        }
+        int size = instances.size();
+        int first = (start.getAndIncrement() & Integer.MAX_VALUE) % size;
+        ServiceInstance selected = null;
+        int least = Integer.MAX_VALUE;
+        for(int i = 0; i < size; i ++){
+            ServiceInstance instance = instances.get((first + i) % size);
+            int outstanding = getOutstandingRequests(instance);
+            if(outstanding < least){
+                selected = instance;
+                least = outstanding;
+                if(least == 0){
+                    break;
+                }
+            }
+        }
+        return selected;
+    }
+}
@@ -16,38 +16,86 @@
 package com.cisco.oss.foundation.directory.lb;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cisco.oss.foundation.directory.Configurations;
 import com.cisco.oss.foundation.directory.impl.DirectoryLookupService;
+import com.cisco.oss.foundation.directory.proto.QueryServiceProtocol.QueryCommand;
+import com.cisco.oss.foundation.directory.query.QueryCriterion;
 import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery;
+import com.cisco.oss.foundation.directory.query.StringCommand;
 
 /**
  * The LoadBalance Manager for lookup Service.
  *
+ * The LoadBalancers are kept in a concurrent map, keyed by the service name and the
+ * normalized ServiceInstanceQuery, so the equivalent queries share the same LoadBalancer.
+ * The LoadBalancers idle for the idle timeout are evicted when a new LoadBalancer is added,
+ * and the least recently used ones are evicted when the LoadBalancer number exceeds the max.
+ *
  *
  */
 public class LoadBalancerManager {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadBalancerManager.class);
+
+    /**
+     * The idle timeout property name in seconds to evict the LoadBalancer.
+     */
+    public static final String LB_IDLE_TIMEOUT_PROPERTY = "lb.idle.timeout";
+
     /**
-     * The loadbalancer map for Services.
+     * The default idle timeout in seconds.
      */
-    private final List<ServiceRRLoadBalancer> svcLBList;
+    public static final int LB_IDLE_TIMEOUT_DEFAULT = 300;
 
     /**
-     * The Loadbalancer for the meta query.
+     * The max LoadBalancer number property name.
      */
-    private final List<MetadataQueryRRLoadBalancer> metaQueryLBList;
+    public static final String LB_MAX_COUNT_PROPERTY = "lb.max.count";
 
     /**
-     * The loadbalancer for the service query.
+     * The default max LoadBalancer number.
      */
-    private final List<ServiceQueryRRLoadBalancer> svcQueryLBList;
+    public static final int LB_MAX_COUNT_DEFAULT = 1024;
+
+    /**
+     * The LoadBalancers, keyed by the service name or the BalancerKey.
+     */
+    private final ConcurrentMap<Object, BalancerHolder> balancers;
 
     /**
      * The Directory LookupService.
      */
     private final DirectoryLookupService lookupService;
 
+    /**
+     * The idle timeout in milliseconds.
+     */
+    private final long idleTimeout;
+
+    /**
+     * The max LoadBalancer number.
+     */
+    private final int maxCount;
+
+    /**
+     * The last time in milliseconds to evict the idle LoadBalancers.
+     */
+    private final AtomicLong lastEviction;
+
     /**
      * Constructor.
      *
@@ -55,10 +103,26 @@ public class LoadBalancerManager {
      *         the DirectoryLookupService.
      */
     public LoadBalancerManager(DirectoryLookupService lookupService) {
-        svcLBList = new ArrayList<ServiceRRLoadBalancer>();
-        metaQueryLBList = new ArrayList<MetadataQueryRRLoadBalancer>();
-        svcQueryLBList = new ArrayList<ServiceQueryRRLoadBalancer>();
+        this(lookupService, TimeUnit.SECONDS.toMillis(Configurations.getInt(LB_IDLE_TIMEOUT_PROPERTY, LB_IDLE_TIMEOUT_DEFAULT)),
+                Configurations.getInt(LB_MAX_COUNT_PROPERTY, LB_MAX_COUNT_DEFAULT));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param lookupService
+     *         the DirectoryLookupService.
+     * @param idleTimeout
+     *         the idle timeout in milliseconds.
+     * @param maxCount
+     *         the max LoadBalancer number.
+     */
+    LoadBalancerManager(DirectoryLookupService lookupService, long idleTimeout, int maxCount) {
+        this.balancers = new ConcurrentHashMap<Object, BalancerHolder>();
         this.lookupService = lookupService;
+        this.idleTimeout = idleTimeout;
+        this.maxCount = maxCount;
+        this.lastEviction = new AtomicLong(System.currentTimeMillis());
     }
 
     /**
@@ -70,15 +134,12 @@ public class LoadBalancerManager {
      *         the ServiceRRLoadBalancer.
      */
     public ServiceRRLoadBalancer getServiceRRLoadBalancer(String serviceName) {
-        for (ServiceRRLoadBalancer lb : svcLBList) {
-            if (lb.getServiceName().equals(serviceName)) {
-                return lb;
-            }
+        RoundRobinLoadBalancer lb = getLoadBalancer(serviceName);
+        if (lb == null) {
+            lb = putLoadBalancer(serviceName, new ServiceRRLoadBalancer(lookupService,
+                    serviceName));
         }
-        ServiceRRLoadBalancer lb = new ServiceRRLoadBalancer(lookupService,
-                serviceName);
-        svcLBList.add(lb);
-        return lb;
+        return (ServiceRRLoadBalancer) lb;
     }
 
     /**
@@ -91,15 +152,13 @@ public class LoadBalancerManager {
      */
     public MetadataQueryRRLoadBalancer getMetadataQueryRRLoadBalancer(
             ServiceInstanceQuery query) {
-        for (MetadataQueryRRLoadBalancer lb : metaQueryLBList) {
-            if (lb.getServiceInstanceQuery().equals(query)) {
-                return lb;
-            }
+        BalancerKey key = new BalancerKey(null, query);
+        RoundRobinLoadBalancer lb = getLoadBalancer(key);
+        if (lb == null) {
+            lb = putLoadBalancer(key, new MetadataQueryRRLoadBalancer(
+                    lookupService, new ServiceInstanceQuery(query)));
         }
-        MetadataQueryRRLoadBalancer lb = new MetadataQueryRRLoadBalancer(
-                lookupService, query);
-        metaQueryLBList.add(lb);
-        return lb;
+        return (MetadataQueryRRLoadBalancer) lb;
     }
 
     /**
@@ -114,15 +173,216 @@ public class LoadBalancerManager {
      */
     public ServiceQueryRRLoadBalancer getServiceQueryRRLoadBalancer(
             String serviceName, ServiceInstanceQuery query) {
-        for (ServiceQueryRRLoadBalancer lb : svcQueryLBList) {
-            if (lb.getServiceName().equals(serviceName)
-                    && lb.getServiceInstanceQuery().equals(query)) {
-                return lb;
-            }
+        BalancerKey key = new BalancerKey(serviceName, query);
+        RoundRobinLoadBalancer lb = getLoadBalancer(key);
+        if (lb == null) {
+            lb = putLoadBalancer(key, new ServiceQueryRRLoadBalancer(
+                    lookupService, serviceName, new ServiceInstanceQuery(query)));
         }
-        ServiceQueryRRLoadBalancer lb = new ServiceQueryRRLoadBalancer(
-                lookupService, serviceName, query);
-        svcQueryLBList.add(lb);
+        return (ServiceQueryRRLoadBalancer) lb;
+    }
+
+    /**
+     * Get the LoadBalancer number.
+     *
+     * @return
+     *         the LoadBalancer number.
+     */
+    public int size() {
+        return balancers.size();
+    }
+
+    /**
+     * Get the LoadBalancer and mark it accessed.
+     *
+     * @param key
+     *         the LoadBalancer key.
+     * @return
+     *         the LoadBalancer, null if not exists.
+     */
+    private RoundRobinLoadBalancer getLoadBalancer(Object key) {
+        BalancerHolder holder = balancers.get(key);
+        if (holder == null) {
+            return null;
+        }
+        holder.lastAccess = System.currentTimeMillis();
+        return holder.loadBalancer;
+    }
+
+    /**
+     * Add the LoadBalancer if absent, and evict the idle LoadBalancers.
+     *
+     * @param key
+     *         the LoadBalancer key.
+     * @param lb
+     *         the new LoadBalancer.
+     * @return
+     *         the LoadBalancer of the key, it is the one added concurrently if any.
+     */
+    private RoundRobinLoadBalancer putLoadBalancer(Object key, RoundRobinLoadBalancer lb) {
+        BalancerHolder holder = new BalancerHolder(lb, System.currentTimeMillis());
+        BalancerHolder existing = balancers.putIfAbsent(key, holder);
+        if (existing != null) {
+            existing.lastAccess = holder.lastAccess;
+            return existing.loadBalancer;
+        }
+        evict(key, holder.lastAccess);
         return lb;
     }
+
+    /**
+     * Evict the idle LoadBalancers, and the least recently used ones over the max number.
+     *
+     * @param added
+     *         the key of the added LoadBalancer, it is not evicted.
+     * @param now
+     *         the current time in milliseconds.
+     */
+    private void evict(Object added, long now) {
+        long last = lastEviction.get();
+        if (now - last >= idleTimeout && lastEviction.compareAndSet(last, now)) {
+            Iterator<BalancerHolder> it = balancers.values().iterator();
+            while (it.hasNext()) {
+                if (now - it.next().lastAccess >= idleTimeout) {
+                    it.remove();
+                }
+            }
+        }
+
+        while (balancers.size() > maxCount) {
+            Object eldest = null;
+            long eldestAccess = Long.MAX_VALUE;
+            for (Map.Entry<Object, BalancerHolder> entry : balancers.entrySet()) {
+                if (! entry.getKey().equals(added) && entry.getValue().lastAccess < eldestAccess) {
+                    eldest = entry.getKey();
+                    eldestAccess = entry.getValue().lastAccess;
+                }
+            }
+            if (eldest == null) {
+                break;
+            }
+            balancers.remove(eldest);
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("Evict the LoadBalancer over the max number, key=" + eldest);
+            }
+        }
+    }
+
+    /**
+     * The LoadBalancer with its last access time.
+     */
+    private static class BalancerHolder {
+
+        /**
+         * The LoadBalancer.
+         */
+        private final RoundRobinLoadBalancer loadBalancer;
+
+        /**
+         * The last access time in milliseconds.
+         */
+        private volatile long lastAccess;
+
+        /**
+         * Constructor.
+         *
+         * @param loadBalancer
+         *         the LoadBalancer.
+         * @param lastAccess
+         *         the last access time in milliseconds.
+         */
+        BalancerHolder(RoundRobinLoadBalancer loadBalancer, long lastAccess) {
+            this.loadBalancer = loadBalancer;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * The key of the query LoadBalancer.
+     *
+     * The QueryCriteria are normalized to their operation, metadata key and values, and
+     * compared as a set, since the "and" of the QueryCriteria doesn't depend on the order.
+     * The QueryCriterion without the QueryCommand is compared by its own equals.
+     */
+    static final class BalancerKey {
+
+        /**
+         * The service name, null for the metadata query.
+         */
+        private final String serviceName;
+
+        /**
+         * The normalized QueryCriteria.
+         */
+        private final Set<Object> criteria;
+
+        /**
+         * Constructor.
+         *
+         * @param serviceName
+         *         the service name, null for the metadata query.
+         * @param query
+         *         the ServiceInstanceQuery.
+         */
+        BalancerKey(String serviceName, ServiceInstanceQuery query) {
+            this.serviceName = serviceName;
+            this.criteria = new HashSet<Object>();
+            if (query.getCriteria() != null) {
+                for (QueryCriterion criterion : query.getCriteria()) {
+                    criteria.add(normalize(criterion));
+                }
+            }
+        }
+
+        /**
+         * Normalize the QueryCriterion.
+         *
+         * @param criterion
+         *         the QueryCriterion.
+         * @return
+         *         the normalized QueryCriterion.
+         */
+        private static Object normalize(QueryCriterion criterion) {
+            if (! (criterion instanceof StringCommand)) {
+                return criterion;
+            }
+            QueryCommand command = ((StringCommand) criterion).getStringCommand();
+            List<String> values = Collections.emptyList();
+            if (command.getValues() != null) {
+                // the in and not in values are a set, the null value never matches.
+                Set<String> set = new HashSet<String>(command.getValues());
+                set.remove(null);
+                values = new ArrayList<String>(set);
+                Collections.sort(values);
+            }
+            List<Object> normalized = new ArrayList<Object>(3);
+            normalized.add(command.getOperate());
+            normalized.add(command.getName());
+            normalized.add(values);
+            return normalized;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (! (obj instanceof BalancerKey)) {
+                return false;
+            }
+            BalancerKey other = (BalancerKey) obj;
+            return (serviceName == null ? other.serviceName == null : serviceName.equals(other.serviceName))
+                    && criteria.equals(other.criteria);
+        }
+
+        @Override
+        public int hashCode() {
+            return (serviceName == null ? 0 : serviceName.hashCode()) * 31 + criteria.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "serviceName=" + serviceName + ", criteria=" + criteria;
+        }
+    }
 }
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.lb;
+
+import java.util.List;
+
+import com.cisco.oss.foundation.directory.entity.ServiceInstance;
+
+/**
+ * The strategy to select a ServiceInstance for the LookupManager lookupInstance.
+ *
+ * The implementation must be thread safe, the same strategy can be used for different
+ * Services, and is called concurrently.
+ *
+ *
+ */
+public interface LoadBalancerStrategy {
+
+    /**
+     * Select a ServiceInstance.
+     *
+     * @param serviceName
+     *         the service name.
+     * @param instances
+     *         the non-empty read-only UP ServiceInstance list of the Service.
+     * @return
+     *         the selected ServiceInstance in the list.
+     */
+    public ServiceInstance select(String serviceName, List<ServiceInstance> instances);
+}
@@ -15,26 +15,59 @@
  */
 package com.cisco.oss.foundation.directory.lb;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import com.cisco.oss.foundation.directory.Configurations;
 import com.cisco.oss.foundation.directory.entity.ModelServiceInstance;
+import com.cisco.oss.foundation.directory.entity.OperationalStatus;
 import com.cisco.oss.foundation.directory.impl.DirectoryLookupService;
 import com.cisco.oss.foundation.directory.impl.ServiceInstanceQueryHelper;
+import com.cisco.oss.foundation.directory.query.CompiledServiceInstanceQuery;
 import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery;
 
 /**
  * The metadata Query RondRonbin Loadbalancer when lookupInstance.
  *
+ * It queries the server to find the Services having the matched ModelServiceInstances, then
+ * filters the ModelServiceInstances of those Services from the LookupService. With the cache,
+ * the Services are watched and the result is reused until a Service version changes or a
+ * QueryCriterion is added, and the server is queried again only in the refresh interval to
+ * find the newly matched Services.
+ *
  *
  */
 public class MetadataQueryRRLoadBalancer extends RoundRobinLoadBalancer {
 
+    /**
+     * The interval property name in seconds to query the matched Services from the server again.
+     */
+    public static final String LB_METADATA_QUERY_REFRESH_INTERVAL_PROPERTY = "lb.metadata.query.refresh.interval";
+
+    /**
+     * The default interval in seconds to query the matched Services from the server again.
+     */
+    public static final int LB_METADATA_QUERY_REFRESH_INTERVAL_DEFAULT = 60;
+
     /**
      * The ServiceInstanceQuery.
      */
     private final ServiceInstanceQuery query;
 
+    /**
+     * The refresh interval in milliseconds.
+     */
+    private final long refreshInterval;
+
+    /**
+     * The cached matched ModelServiceInstances.
+     */
+    private volatile MatchedInstances matched;
+
     /**
      * Constructor.
      *
@@ -47,6 +80,8 @@ public class MetadataQueryRRLoadBalancer extends RoundRobinLoadBalancer {
             ServiceInstanceQuery query) {
         super(lookupService);
         this.query = query;
+        this.refreshInterval = TimeUnit.SECONDS.toMillis(Configurations.getInt(
+                LB_METADATA_QUERY_REFRESH_INTERVAL_PROPERTY, LB_METADATA_QUERY_REFRESH_INTERVAL_DEFAULT));
     }
 
     /**
@@ -64,22 +99,156 @@ public class MetadataQueryRRLoadBalancer extends RoundRobinLoadBalancer {
      */
     @Override
     public List<ModelServiceInstance> getServiceInstanceList() {
-        List<ModelServiceInstance> instances = null;
         String keyName = null;
-        if (query.getCriteria().size() > 0) {
+        if (query.getCriteria() != null && query.getCriteria().size() > 0) {
             keyName = query.getCriteria().get(0).getMetadataKey();
         }
-        if (keyName != null && !keyName.isEmpty()) {
-            List<ModelServiceInstance> modelInstances = getLookupService()
-                    .queryUPModelInstances(query);
-            instances = ServiceInstanceQueryHelper
-                    .filter(query, modelInstances);
+        if (keyName == null || keyName.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        DirectoryLookupService lookupService = getLookupService();
+        long now = System.currentTimeMillis();
+        // the compiled query is replaced when a QueryCriterion added.
+        CompiledServiceInstanceQuery compiled = query.compile();
+        MatchedInstances cached = matched;
+        if (cached != null && now < cached.expireTime && cached.compiled == compiled) {
+            if (cached.isCurrent(lookupService)) {
+                return cached.instances;
+            }
+            // a matched Service changed, filter its cached ModelServiceInstances again.
+            MatchedInstances refreshed = match(lookupService, compiled, cached.services, cached.expireTime);
+            if (refreshed != null) {
+                matched = refreshed;
+                return refreshed.instances;
+            }
         }
 
-        if (instances != null) {
-            return instances;
-        } else {
+        List<ModelServiceInstance> modelInstances = lookupService.queryModelInstances(query);
+        Set<String> services = new LinkedHashSet<String>();
+        if (modelInstances != null) {
+            for (ModelServiceInstance instance : modelInstances) {
+                services.add(instance.getServiceName());
+            }
+        }
+        if (services.isEmpty()) {
+            matched = null;
             return Collections.emptyList();
         }
+        MatchedInstances refreshed = match(lookupService, compiled,
+                services.toArray(new String[services.size()]), now + refreshInterval);
+        matched = refreshed;
+        if (refreshed != null) {
+            return refreshed.instances;
+        }
+
+        // the versions are not tracked, use the server result.
+        List<ModelServiceInstance> upInstances = new ArrayList<ModelServiceInstance>();
+        for (ModelServiceInstance instance : modelInstances) {
+            if (OperationalStatus.UP.equals(instance.getStatus())) {
+                upInstances.add(instance);
+            }
+        }
+        return ServiceInstanceQueryHelper.filter(query, upInstances);
+    }
+
+    /**
+     * Filter the UP ModelServiceInstances of the Services in the LookupService.
+     *
+     * @param lookupService
+     *         the DirectoryLookupService.
+     * @param compiled
+     *         the compiled query.
+     * @param services
+     *         the matched Service names.
+     * @param expireTime
+     *         the time in milliseconds to query the server again.
+     * @return
+     *         the MatchedInstances, null if the Service versions are not tracked.
+     */
+    private MatchedInstances match(DirectoryLookupService lookupService, CompiledServiceInstanceQuery compiled,
+            String[] services, long expireTime) {
+        long[] versions = new long[services.length];
+        List<ModelServiceInstance> instances = new ArrayList<ModelServiceInstance>();
+        for (int i = 0; i < services.length; i++) {
+            // get the version before the query, a concurrent change makes the next call filter again.
+            versions[i] = lookupService.getServiceVersion(services[i]);
+            if (versions[i] < 0) {
+                return null;
+            }
+            instances.addAll(lookupService.queryUPModelInstances(services[i], query));
+        }
+        return new MatchedInstances(compiled, services, versions, Collections.unmodifiableList(instances), expireTime);
+    }
+
+    /**
+     * The matched ModelServiceInstances of the Service versions and a compiled query.
+     */
+    private static class MatchedInstances {
+
+        /**
+         * The compiled query.
+         */
+        private final CompiledServiceInstanceQuery compiled;
+
+        /**
+         * The matched Service names.
+         */
+        private final String[] services;
+
+        /**
+         * The versions of the matched Services.
+         */
+        private final long[] versions;
+
+        /**
+         * The read-only matched UP ModelServiceInstances.
+         */
+        private final List<ModelServiceInstance> instances;
+
+        /**
+         * The time in milliseconds to query the server again.
+         */
+        private final long expireTime;
+
+        /**
+         * Constructor.
+         *
+         * @param compiled
+         *         the compiled query.
+         * @param services
+         *         the matched Service names.
+         * @param versions
+         *         the versions of the matched Services.
+         * @param instances
+         *         the read-only matched UP ModelServiceInstances.
+         * @param expireTime
+         *         the time in milliseconds to query the server again.
+         */
+        MatchedInstances(CompiledServiceInstanceQuery compiled, String[] services, long[] versions,
+                List<ModelServiceInstance> instances, long expireTime) {
+            this.compiled = compiled;
+            this.services = services;
+            this.versions = versions;
+            this.instances = instances;
+            this.expireTime = expireTime;
+        }
+
+        /**
+         * Check whether all the matched Services are still in the same versions.
+         *
+         * @param lookupService
+         *         the DirectoryLookupService.
+         * @return
+         *         true if no matched Service changed.
+         */
+        boolean isCurrent(DirectoryLookupService lookupService) {
+            for (int i = 0; i < services.length; i++) {
+                if (lookupService.getServiceVersion(services[i]) != versions[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 }
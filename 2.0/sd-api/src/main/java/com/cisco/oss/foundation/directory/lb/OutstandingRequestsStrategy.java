@@ -0,0 +1,137 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.lb;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cisco.oss.foundation.directory.entity.ServiceInstance;
+
+/**
+ * The LoadBalancerStrategy base on the outstanding requests of the ServiceInstances.
+ *
+ * The caller reports the request to the selected ServiceInstance by requestStarted and
+ * requestFinished of the same strategy, the outstanding request count is the in-flight
+ * requests of the caller only.
+ *
+ *
+ */
+public abstract class OutstandingRequestsStrategy implements LoadBalancerStrategy {
+
+    /**
+     * The outstanding request counts, keyed by the service name and then the instanceId.
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, AtomicInteger>> outstandings =
+            new ConcurrentHashMap<String, ConcurrentMap<String, AtomicInteger>>();
+
+    /**
+     * Report a request to the ServiceInstance is started.
+     *
+     * @param instance
+     *         the ServiceInstance.
+     */
+    public void requestStarted(ServiceInstance instance){
+        ConcurrentMap<String, AtomicInteger> counts = outstandings.get(instance.getServiceName());
+        if(counts == null){
+            ConcurrentMap<String, AtomicInteger> created = new ConcurrentHashMap<String, AtomicInteger>();
+            counts = outstandings.putIfAbsent(instance.getServiceName(), created);
+            if(counts == null){
+                counts = created;
+            }
+        }
+        AtomicInteger count = counts.get(instance.getInstanceId());
+        if(count == null){
+            AtomicInteger created = new AtomicInteger(0);
+            count = counts.putIfAbsent(instance.getInstanceId(), created);
+            if(count == null){
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Report a request to the ServiceInstance is finished, whether it succeeded or not.
+     *
+     * @param instance
+     *         the ServiceInstance.
+     */
+    public void requestFinished(ServiceInstance instance){
+        AtomicInteger count = countOf(instance);
+        if(count == null){
+            return;
+        }
+        int c = count.get();
+        // never goes negative on the unmatched report.
+        while(c > 0 && ! count.compareAndSet(c, c - 1)){
+            c = count.get();
+        }
+    }
+
+    /**
+     * Get the outstanding request count of the ServiceInstance.
+     *
+     * @param instance
+     *         the ServiceInstance.
+     * @return
+     *         the outstanding request count.
+     */
+    public int getOutstandingRequests(ServiceInstance instance){
+        AtomicInteger count = countOf(instance);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Remove the outstanding request counts of the ServiceInstances no longer in the Service.
+     *
+     * It is called by select with the current ServiceInstances, the counts of the removed
+     * ServiceInstances only exist when there are more counts than the ServiceInstances, so
+     * the check is cheap for the stable Service.
+     *
+     * @param serviceName
+     *         the service name.
+     * @param instances
+     *         the current ServiceInstances of the Service.
+     */
+    protected void pruneOutstandings(String serviceName, List<ServiceInstance> instances){
+        ConcurrentMap<String, AtomicInteger> counts = outstandings.get(serviceName);
+        if(counts == null || counts.size() <= instances.size()){
+            return;
+        }
+        Set<String> ids = new HashSet<String>();
+        for(ServiceInstance instance : instances){
+            ids.add(instance.getInstanceId());
+        }
+        counts.keySet().retainAll(ids);
+    }
+
+    /**
+     * Get the outstanding request count of the ServiceInstance.
+     *
+     * @param instance
+     *         the ServiceInstance.
+     * @return
+     *         the count, null if no request reported.
+     */
+    private AtomicInteger countOf(ServiceInstance instance){
+        ConcurrentMap<String, AtomicInteger> counts = outstandings.get(instance.getServiceName());
+        return counts == null ? null : counts.get(instance.getInstanceId());
+    }
+}
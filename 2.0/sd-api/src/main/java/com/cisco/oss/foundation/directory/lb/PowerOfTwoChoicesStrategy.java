@@ -0,0 +1,53 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.lb;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.cisco.oss.foundation.directory.entity.ServiceInstance;
+
+/**
+ * The power of two choices LoadBalancerStrategy.
+ *
+ * It picks two different ServiceInstances at random and selects the one with the less
+ * outstanding requests. It costs O(1) for each selection and avoids the herd of the callers
+ * sharing the stale counts on the least loaded ServiceInstance.
+ *
+ *
+ */
+public class PowerOfTwoChoicesStrategy extends OutstandingRequestsStrategy {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ServiceInstance select(String serviceName, List<ServiceInstance> instances) {
+        pruneOutstandings(serviceName, instances);
+        int size = instances.size();
+        Random random = ThreadLocalRandom.current();
+        int i = random.nextInt(size);
+        ServiceInstance first = instances.get(i);
+        if(size == 1){
+            return first;
+        }
+        // pick the second from the others.
+        int j = random.nextInt(size - 1);
+        ServiceInstance second = instances.get(j >= i ? j + 1 : j);
+        return getOutstandingRequests(second) < getOutstandingRequests(first) ? second : first;
+    }
+}
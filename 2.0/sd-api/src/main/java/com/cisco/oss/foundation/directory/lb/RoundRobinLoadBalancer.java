@@ -21,7 +21,6 @@ import java.util.concurrent.atomic.AtomicInteger;
 import com.cisco.oss.foundation.directory.entity.ModelServiceInstance;
 import com.cisco.oss.foundation.directory.entity.ServiceInstance;
 import com.cisco.oss.foundation.directory.impl.DirectoryLookupService;
-import com.cisco.oss.foundation.directory.utils.ServiceInstanceUtils;
 
 /**
  * A RoundRobin LoadBalancer abstract template based on DirectoryLookupService.
@@ -38,7 +37,7 @@ public abstract class RoundRobinLoadBalancer implements ServiceInstanceLoadBalan
     private final DirectoryLookupService lookupService ;
 
     /**
-     * The Round Robin position index.
+     * The Round Robin position index, it is kept in the ServiceInstance list size.
      */
     private AtomicInteger index;
 
@@ -46,8 +45,20 @@ public abstract class RoundRobinLoadBalancer implements ServiceInstanceLoadBalan
      * Constructor.
      */
     public RoundRobinLoadBalancer(DirectoryLookupService lookupService){
+        this(lookupService, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param lookupService
+     *         the DirectoryLookupService.
+     * @param index
+     *         the initial Round Robin position index, non-negative.
+     */
+    RoundRobinLoadBalancer(DirectoryLookupService lookupService, int index){
         this.lookupService = lookupService;
-        this.index = new AtomicInteger(0);
+        this.index = new AtomicInteger(index);
     }
 
     /**
@@ -62,10 +73,18 @@ public abstract class RoundRobinLoadBalancer implements ServiceInstanceLoadBalan
         if(instances == null || instances.isEmpty()){
             return null;
         }
-        int i = index.getAndIncrement();
-        int pos = i % instances.size();
+        // move the index in the list size, the order is kept instead of overflowing.
+        int size = instances.size();
+        int pos;
+        for(;;){
+            int current = index.get();
+            pos = current % size;
+            if(index.compareAndSet(current, pos + 1 == size ? 0 : pos + 1)){
+                break;
+            }
+        }
         ModelServiceInstance instance = instances.get(pos);
-        return ServiceInstanceUtils.transferFromModelServiceInstance(instance);
+        return lookupService.getServiceInstance(instance);
     }
 
     /**
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.lb;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cisco.oss.foundation.directory.entity.ServiceInstance;
+
+/**
+ * The round robin LoadBalancerStrategy.
+ *
+ *
+ */
+public class RoundRobinStrategy implements LoadBalancerStrategy {
+
+    /**
+     * The round robin position index of the Services.
+     */
+    private final ConcurrentMap<String, AtomicInteger> indexes = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ServiceInstance select(String serviceName, List<ServiceInstance> instances) {
+        AtomicInteger index = indexes.get(serviceName);
+        if(index == null){
+            AtomicInteger created = new AtomicInteger(0);
+            index = indexes.putIfAbsent(serviceName, created);
+            if(index == null){
+                index = created;
+            }
+        }
+        // keep the position non-negative after the index overflows.
+        int pos = (index.getAndIncrement() & Integer.MAX_VALUE) % instances.size();
+        return instances.get(pos);
+    }
+}
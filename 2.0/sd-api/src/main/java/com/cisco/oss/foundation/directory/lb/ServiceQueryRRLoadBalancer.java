@@ -15,18 +15,20 @@
  */
 package com.cisco.oss.foundation.directory.lb;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 import com.cisco.oss.foundation.directory.entity.ModelServiceInstance;
 import com.cisco.oss.foundation.directory.impl.DirectoryLookupService;
-import com.cisco.oss.foundation.directory.impl.ServiceInstanceQueryHelper;
+import com.cisco.oss.foundation.directory.query.CompiledServiceInstanceQuery;
 import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery;
 
 /**
  * The Service Query RondRonbin Loadbalancer when lookupInstance.
  *
+ * It caches the filtered ModelServiceInstances with the Service version and the compiled
+ * query, and filters again only when the version changes or a QueryCriterion is added.
+ *
  *
  */
 public class ServiceQueryRRLoadBalancer extends RoundRobinLoadBalancer {
@@ -41,6 +43,11 @@ public class ServiceQueryRRLoadBalancer extends RoundRobinLoadBalancer {
      */
     private final ServiceInstanceQuery query;
 
+    /**
+     * The cached filtered ModelServiceInstances.
+     */
+    private volatile FilteredInstances filtered;
+
     /**
      * The Constructor.
      *
@@ -82,18 +89,58 @@ public class ServiceQueryRRLoadBalancer extends RoundRobinLoadBalancer {
      */
     @Override
     public List<ModelServiceInstance> getServiceInstanceList() {
-        List<ModelServiceInstance> modelSvc = getLookupService().getUPModelInstances(serviceName);
-        if(modelSvc != null && ! modelSvc.isEmpty()){
-            List<ModelServiceInstance> filteredInstances = ServiceInstanceQueryHelper.filter(query, modelSvc);
-            if(filteredInstances.size() > 0){
-                List<ModelServiceInstance> instances = new ArrayList<ModelServiceInstance>();
-                for(ModelServiceInstance model : filteredInstances){
-                    instances.add(model);
-                }
-                return instances;
-            }
+        DirectoryLookupService lookupService = getLookupService();
+        // get the version before the query, a concurrent change makes the next call filter again.
+        long version = lookupService.getServiceVersion(serviceName);
+        // the compiled query is replaced when a QueryCriterion added.
+        CompiledServiceInstanceQuery compiled = query.compile();
+        FilteredInstances cached = filtered;
+        if(version >= 0 && cached != null && cached.version == version && cached.compiled == compiled){
+            return cached.instances;
+        }
+        List<ModelServiceInstance> instances = Collections.unmodifiableList(
+                lookupService.queryUPModelInstances(serviceName, query));
+        if(version >= 0){
+            filtered = new FilteredInstances(version, compiled, instances);
+        }
+        return instances;
+    }
+
+    /**
+     * The filtered ModelServiceInstances of a Service version and a compiled query.
+     */
+    private static class FilteredInstances {
+
+        /**
+         * The Service version.
+         */
+        private final long version;
+
+        /**
+         * The compiled query.
+         */
+        private final CompiledServiceInstanceQuery compiled;
+
+        /**
+         * The read-only filtered ModelServiceInstances.
+         */
+        private final List<ModelServiceInstance> instances;
+
+        /**
+         * Constructor.
+         *
+         * @param version
+         *         the Service version.
+         * @param compiled
+         *         the compiled query.
+         * @param instances
+         *         the read-only filtered ModelServiceInstances.
+         */
+        FilteredInstances(long version, CompiledServiceInstanceQuery compiled, List<ModelServiceInstance> instances){
+            this.version = version;
+            this.compiled = compiled;
+            this.instances = instances;
         }
-        return Collections.emptyList();
     }
 
 }
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.lb;
+
+import java.util.List;
+
+import com.cisco.oss.foundation.directory.entity.ServiceInstance;
+import com.cisco.oss.foundation.directory.impl.DirectoryLookupService;
+
+/**
+ * The LoadBalancer selects the UP ServiceInstance of the Service by the LoadBalancerStrategy.
+ *
+ *
+ */
+public class StrategyLoadBalancer implements ServiceInstanceLoadBalancer {
+
+    /**
+     * The DirectoryLookupService to get the ServiceInstance List.
+     */
+    private final DirectoryLookupService lookupService;
+
+    /**
+     * The service name.
+     */
+    private final String serviceName;
+
+    /**
+     * The LoadBalancerStrategy.
+     */
+    private final LoadBalancerStrategy strategy;
+
+    /**
+     * Constructor.
+     *
+     * @param lookupService
+     *         the DirectoryLookupService.
+     * @param serviceName
+     *         the service name.
+     * @param strategy
+     *         the LoadBalancerStrategy.
+     */
+    public StrategyLoadBalancer(DirectoryLookupService lookupService, String serviceName, LoadBalancerStrategy strategy){
+        this.lookupService = lookupService;
+        this.serviceName = serviceName;
+        this.strategy = strategy;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ServiceInstance vote() {
+        List<ServiceInstance> instances = lookupService.getUPServiceInstances(serviceName);
+        if(instances == null || instances.isEmpty()){
+            return null;
+        }
+        return strategy.select(serviceName, instances);
+    }
+
+    /**
+     * Get the service name.
+     *
+     * @return
+     *         the service name.
+     */
+    public String getServiceName(){
+        return serviceName;
+    }
+
+    /**
+     * Get the LoadBalancerStrategy.
+     *
+     * @return
+     *         the LoadBalancerStrategy.
+     */
+    public LoadBalancerStrategy getStrategy(){
+        return strategy;
+    }
+}
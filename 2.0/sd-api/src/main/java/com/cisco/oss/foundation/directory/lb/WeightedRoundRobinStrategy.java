@@ -0,0 +1,192 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.lb;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.cisco.oss.foundation.directory.entity.ServiceInstance;
+
+/**
+ * The smooth weighted round robin LoadBalancerStrategy.
+ *
+ * The weight of the ServiceInstance is the integer value of its weight metadata, it is 1 if
+ * the metadata is missing or invalid, and the ServiceInstance of weight 0 is not selected
+ * unless all weights are 0. The ServiceInstances are interleaved in a round, a ServiceInstance
+ * of weight 3 is selected 3 times in a round but not in a row when others have weights.
+ * The weight is capped by MAX_WEIGHT.
+ *
+ * The weights are parsed again only when the ServiceInstance list of the Service changes,
+ * the round continues if the list has the same ServiceInstances in the same order.
+ *
+ *
+ */
+public class WeightedRoundRobinStrategy implements LoadBalancerStrategy {
+
+    /**
+     * The default weight metadata key.
+     */
+    public static final String WEIGHT_METADATA_KEY = "weight";
+
+    /**
+     * The max weight, the greater weight is capped.
+     */
+    public static final int MAX_WEIGHT = 10000;
+
+    /**
+     * The weight metadata key.
+     */
+    private final String weightKey;
+
+    /**
+     * The weight states of the Services.
+     */
+    private final ConcurrentMap<String, WeightState> states = new ConcurrentHashMap<String, WeightState>();
+
+    /**
+     * Constructor, it uses the default weight metadata key.
+     */
+    public WeightedRoundRobinStrategy(){
+        this(WEIGHT_METADATA_KEY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param weightKey
+     *         the weight metadata key.
+     */
+    public WeightedRoundRobinStrategy(String weightKey){
+        if(weightKey == null){
+            throw new IllegalArgumentException("The weight metadata key can not be null.");
+        }
+        this.weightKey = weightKey;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ServiceInstance select(String serviceName, List<ServiceInstance> instances) {
+        WeightState state = states.get(serviceName);
+        if(state == null){
+            WeightState created = new WeightState();
+            state = states.putIfAbsent(serviceName, created);
+            if(state == null){
+                state = created;
+            }
+        }
+        return instances.get(state.next(instances));
+    }
+
+    /**
+     * Get the weight of the ServiceInstance.
+     *
+     * @param instance
+     *         the ServiceInstance.
+     * @return
+     *         the non-negative weight.
+     */
+    int weightOf(ServiceInstance instance){
+        Map<String, String> metadata = instance.getMetadata();
+        String value = metadata == null ? null : metadata.get(weightKey);
+        if(value == null){
+            return 1;
+        }
+        try {
+            return Math.min(Math.max(Integer.parseInt(value.trim()), 0), MAX_WEIGHT);
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * The smooth weighted round robin state of a Service.
+     */
+    private class WeightState {
+
+        /**
+         * The ServiceInstance list of the weights.
+         */
+        private List<ServiceInstance> instances;
+
+        /**
+         * The weights.
+         */
+        private int[] weights;
+
+        /**
+         * The current weights.
+         */
+        private int[] current;
+
+        /**
+         * The total weight.
+         */
+        private int total;
+
+        /**
+         * Get the position of the next ServiceInstance.
+         *
+         * @param list
+         *         the ServiceInstance list.
+         * @return
+         *         the position in the list.
+         */
+        synchronized int next(List<ServiceInstance> list){
+            if(list != instances){
+                reset(list);
+            }
+            int selected = 0;
+            for(int i = 0; i < weights.length; i ++){
+                current[i] += weights[i];
+                if(current[i] > current[selected]){
+                    selected = i;
+                }
+            }
+            current[selected] -= total;
+            return selected;
+        }
+
+        /**
+         * Reset the weights for the ServiceInstance list.
+         *
+         * @param list
+         *         the ServiceInstance list.
+         */
+        private void reset(List<ServiceInstance> list){
+            if(! list.equals(instances)){
+                current = new int[list.size()];
+            }
+            instances = list;
+            weights = new int[list.size()];
+            total = 0;
+            for(int i = 0; i < weights.length; i ++){
+                weights[i] = weightOf(list.get(i));
+                total += weights[i];
+            }
+            if(total == 0){
+                // all weights are 0, select them equally.
+                for(int i = 0; i < weights.length; i ++){
+                    weights[i] = 1;
+                }
+                total = weights.length;
+            }
+        }
+    }
+}
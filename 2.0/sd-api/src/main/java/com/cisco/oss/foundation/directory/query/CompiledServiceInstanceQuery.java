@@ -0,0 +1,144 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery.ContainQueryCriterion;
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery.EqualQueryCriterion;
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery.InQueryCriterion;
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery.NotContainQueryCriterion;
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery.NotEqualQueryCriterion;
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery.NotInQueryCriterion;
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery.PatternQueryCriterion;
+
+/**
+ * The compiled ServiceInstanceQuery.
+ *
+ * It is the immutable "and" of the QueryCriteria, ordered by the selectivity and the cost,
+ * so the cheap and selective equal and in QueryCriteria reject the metadata before the
+ * regex of the pattern QueryCriteria runs. The order doesn't change the match result.
+ *
+ */
+public final class CompiledServiceInstanceQuery {
+
+    /**
+     * Order the QueryCriteria by the rank, the sort is stable.
+     */
+    private static final Comparator<QueryCriterion> SELECTIVITY = new Comparator<QueryCriterion>(){
+
+        @Override
+        public int compare(QueryCriterion o1, QueryCriterion o2) {
+            return rankOf(o1) - rankOf(o2);
+        }
+
+    };
+
+    /**
+     * The ordered QueryCriteria.
+     */
+    private final QueryCriterion[] criteria;
+
+    /**
+     * The read-only ordered QueryCriteria.
+     */
+    private final List<QueryCriterion> criteriaList;
+
+    /**
+     * Constructor.
+     *
+     * @param criteria
+     *         the QueryCriteria, can be null.
+     */
+    CompiledServiceInstanceQuery(List<QueryCriterion> criteria){
+        if(criteria == null || criteria.isEmpty()){
+            this.criteria = new QueryCriterion[0];
+            this.criteriaList = Collections.emptyList();
+            return;
+        }
+        QueryCriterion[] array = criteria.toArray(new QueryCriterion[criteria.size()]);
+        Arrays.sort(array, SELECTIVITY);
+        this.criteria = array;
+        this.criteriaList = Collections.unmodifiableList(new ArrayList<QueryCriterion>(Arrays.asList(array)));
+    }
+
+    /**
+     * Check whether the metadata matches all the QueryCriteria.
+     *
+     * @param metadataMap
+     *         the metadata Map of ServiceInstance.
+     * @return
+     *         true if matched.
+     */
+    public boolean isMatch(Map<String, String> metadataMap){
+        for(QueryCriterion criterion : criteria){
+            if(! criterion.isMatch(metadataMap)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether there is no QueryCriterion, it matches everything.
+     *
+     * @return
+     *         true if no QueryCriterion.
+     */
+    public boolean isEmpty(){
+        return criteria.length == 0;
+    }
+
+    /**
+     * Get the ordered QueryCriteria.
+     *
+     * @return
+     *         the read-only QueryCriterion list.
+     */
+    public List<QueryCriterion> getCriteria(){
+        return criteriaList;
+    }
+
+    /**
+     * Get the rank of the QueryCriterion, the lower rank is evaluated first.
+     *
+     * @param criterion
+     *         the QueryCriterion.
+     * @return
+     *         the rank.
+     */
+    private static int rankOf(QueryCriterion criterion){
+        if(criterion instanceof EqualQueryCriterion){
+            return 0;
+        } else if(criterion instanceof InQueryCriterion){
+            return 1;
+        } else if(criterion instanceof ContainQueryCriterion){
+            return 2;
+        } else if(criterion instanceof NotEqualQueryCriterion || criterion instanceof NotInQueryCriterion){
+            return 3;
+        } else if(criterion instanceof NotContainQueryCriterion){
+            return 4;
+        } else if(criterion instanceof PatternQueryCriterion){
+            return 5;
+        }
+        return 6;
+    }
+}
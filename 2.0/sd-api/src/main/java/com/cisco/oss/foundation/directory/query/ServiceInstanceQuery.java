@@ -17,8 +17,12 @@ package com.cisco.oss.foundation.directory.query;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import com.cisco.oss.foundation.directory.proto.QueryServiceProtocol.QueryCommand;
 
@@ -38,6 +42,11 @@ public class ServiceInstanceQuery {
      */
     List<QueryCriterion> criteria ;
 
+    /**
+     * The compiled query, it is reset when a QueryCriterion added.
+     */
+    private volatile CompiledServiceInstanceQuery compiled;
+
     /**
      * Constructor.
      */
@@ -45,6 +54,21 @@ public class ServiceInstanceQuery {
 
     }
 
+    /**
+     * Copy Constructor.
+     *
+     * It copies the QueryCriterion list, the QueryCriterion added to the source query later
+     * doesn't change the copy.
+     *
+     * @param query
+     *         the source ServiceInstanceQuery.
+     */
+    public ServiceInstanceQuery(ServiceInstanceQuery query){
+        if(query.criteria != null){
+            this.criteria = new ArrayList<QueryCriterion>(query.criteria);
+        }
+    }
+
     /**
      * Get a metadata value equal QueryCriterion.
      *
@@ -185,6 +209,24 @@ public class ServiceInstanceQuery {
             criteria = new ArrayList<QueryCriterion>();
         }
         criteria.add(criterion);
+        compiled = null;
+    }
+
+    /**
+     * Get the compiled query to match the metadata.
+     *
+     * It is compiled in the first call and reused until a QueryCriterion added.
+     *
+     * @return
+     *         the CompiledServiceInstanceQuery.
+     */
+    public CompiledServiceInstanceQuery compile(){
+        CompiledServiceInstanceQuery c = compiled;
+        if(c == null){
+            c = new CompiledServiceInstanceQuery(criteria);
+            compiled = c;
+        }
+        return c;
     }
 
     /**
@@ -364,6 +406,11 @@ public class ServiceInstanceQuery {
          */
         private String criterion ;
 
+        /**
+         * The compiled pattern, it is compiled in the first match.
+         */
+        private volatile Pattern pattern;
+
         /**
          * PatternQueryCriterion Constructor.
          *
@@ -385,11 +432,26 @@ public class ServiceInstanceQuery {
             }
             String metavalue = metadataMap.get(key);
             if(metavalue != null){
-                return metavalue.matches(criterion);
+                return getPattern().matcher(metavalue).matches();
             }
             return false;
         }
 
+        /**
+         * Get the compiled pattern.
+         *
+         * @return
+         *         the Pattern of the criterion.
+         */
+        private Pattern getPattern(){
+            Pattern p = pattern;
+            if(p == null){
+                p = Pattern.compile(criterion);
+                pattern = p;
+            }
+            return p;
+        }
+
         @Override
         public String getMetadataKey() {
             return key;
@@ -443,7 +505,7 @@ public class ServiceInstanceQuery {
          */
         @Override
         public boolean isMatch(Map<String, String> metadataMap) {
-            return metadataMap.containsKey(key);
+            return metadataMap != null && metadataMap.containsKey(key);
         }
 
         @Override
@@ -493,7 +555,7 @@ public class ServiceInstanceQuery {
          */
         @Override
         public boolean isMatch(Map<String, String> metadataMap) {
-            return ! metadataMap.containsKey(key);
+            return metadataMap == null || ! metadataMap.containsKey(key);
         }
 
         @Override
@@ -533,6 +595,11 @@ public class ServiceInstanceQuery {
          */
         private List<String> list;
 
+        /**
+         * The target String set.
+         */
+        private Set<String> set;
+
         /**
          * ContainQueryCriterion Constructor.
          *
@@ -542,6 +609,7 @@ public class ServiceInstanceQuery {
         public InQueryCriterion(String key, List<String> list){
             this.key = key;
             this.list = list;
+            this.set = list == null ? Collections.<String>emptySet() : new HashSet<String>(list);
         }
 
         /**
@@ -553,12 +621,10 @@ public class ServiceInstanceQuery {
                 return false;
             }
             String value = metadataMap.get(key);
-            for(String target : list){
-                if(value.equals(target)){
-                    return true;
-                }
+            if(value == null ){
+                return false;
             }
-            return false;
+            return set.contains(value);
         }
 
         @Override
@@ -603,6 +669,11 @@ public class ServiceInstanceQuery {
          */
         private List<String> list;
 
+        /**
+         * The target String set.
+         */
+        private Set<String> set;
+
         /**
          * ContainQueryCriterion Constructor.
          *
@@ -612,6 +683,7 @@ public class ServiceInstanceQuery {
         public NotInQueryCriterion(String key, List<String> list){
             this.key = key;
             this.list = list;
+            this.set = list == null ? Collections.<String>emptySet() : new HashSet<String>(list);
         }
 
         /**
@@ -626,13 +698,7 @@ public class ServiceInstanceQuery {
             if(value == null ){
                 return false;
             }
-
-            for(String target : list){
-                if(value.equals(target)){
-                    return false;
-                }
-            }
-            return true;
+            return ! set.contains(value);
         }
 
         @Override
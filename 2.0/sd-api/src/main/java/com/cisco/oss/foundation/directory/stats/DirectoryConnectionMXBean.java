@@ -0,0 +1,111 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.stats;
+
+/**
+ * The JMX interface of the DirectoryConnection runtime state.
+ *
+ */
+public interface DirectoryConnectionMXBean {
+
+    /**
+     * Get the current ConnectionStatus.
+     *
+     * @return
+     *         the ConnectionStatus name.
+     */
+    public String getStatus();
+
+    /**
+     * Get the ConnectionStatus transition count.
+     *
+     * @return
+     *         the transition count.
+     */
+    public long getStatusTransitions();
+
+    /**
+     * Get the count of the sessions established after the first one.
+     *
+     * @return
+     *         the reconnect count.
+     */
+    public long getReconnects();
+
+    /**
+     * Get the Directory Server connected to.
+     *
+     * @return
+     *         the Directory Server address.
+     */
+    public String getDirectoryServer();
+
+    /**
+     * Get the session id.
+     *
+     * @return
+     *         the session id.
+     */
+    public String getSessionId();
+
+    /**
+     * Get the number of the in-flight Packets waiting for the Response.
+     *
+     * @return
+     *         the in-flight Packet number.
+     */
+    public int getInflightPackets();
+
+    /**
+     * Get the queue depth of the EventThread.
+     *
+     * @return
+     *         the number of the events waiting for the EventThread.
+     */
+    public int getEventQueueDepth();
+
+    /**
+     * Get the number of the watched Services.
+     *
+     * @return
+     *         the watched Service number.
+     */
+    public int getWatchedServices();
+
+    /**
+     * Get the number of the Watchers.
+     *
+     * @return
+     *         the Watcher number.
+     */
+    public int getWatchers();
+
+    /**
+     * Get the bytes sent by the DirectorySocket.
+     *
+     * @return
+     *         the sent bytes.
+     */
+    public long getBytesSent();
+
+    /**
+     * Get the bytes received by the DirectorySocket.
+     *
+     * @return
+     *         the received bytes.
+     */
+    public long getBytesReceived();
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The lock-free latency histogram.
+ *
+ * The values are recorded in the fixed log-linear buckets, every power of 2 range is
+ * split to 8 linear sub-buckets, so the recorded value has at most 12.5% relative error.
+ * The record doesn't lock or allocate.
+ *
+ */
+public class LatencyHistogram {
+
+    /**
+     * The sub-bucket bits of each power of 2.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * The sub-bucket number of each power of 2.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The max power of 2 recorded, the greater value is recorded in the last bucket.
+     * 2^40 nanoseconds is about 18 minutes.
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    /**
+     * The bucket number.
+     */
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    /**
+     * The bucket counts.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * The total count.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * The sum of the recorded values.
+     */
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * The max recorded value.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record the value.
+     *
+     * @param value
+     *         the value, the negative value is recorded as 0.
+     */
+    public void record(long value){
+        if(value < 0){
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m = max.get();
+        while(value > m && ! max.compareAndSet(m, value)){
+            m = max.get();
+        }
+    }
+
+    /**
+     * Get the recorded value count.
+     *
+     * @return
+     *         the count.
+     */
+    public long getCount(){
+        return count.get();
+    }
+
+    /**
+     * Get the mean of the recorded values.
+     *
+     * @return
+     *         the mean, 0 if no value recorded.
+     */
+    public long getMean(){
+        long c = count.get();
+        return c == 0 ? 0 : sum.get() / c;
+    }
+
+    /**
+     * Get the max recorded value.
+     *
+     * @return
+     *         the max value.
+     */
+    public long getMax(){
+        return max.get();
+    }
+
+    /**
+     * Get the value at the percentile.
+     *
+     * It returns the upper bound of the bucket, capped by the max recorded value.
+     * The concurrent records may be partially counted.
+     *
+     * @param percentile
+     *         the percentile, in (0, 100].
+     * @return
+     *         the value, 0 if no value recorded.
+     */
+    public long getPercentile(double percentile){
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i ++){
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if(total == 0){
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0);
+        if(rank < 1){
+            rank = 1;
+        }
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i ++){
+            seen += snapshot[i];
+            if(seen >= rank){
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Reset the histogram.
+     *
+     * The concurrent records may be partially reset.
+     */
+    public void reset(){
+        for(int i = 0; i < BUCKETS; i ++){
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Get the bucket index of the value.
+     *
+     * @param value
+     *         the non-negative value.
+     * @return
+     *         the bucket index.
+     */
+    static int indexOf(long value){
+        if(value < SUB_BUCKETS){
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if(exponent > MAX_EXPONENT){
+            return BUCKETS - 1;
+        }
+        int sub = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Get the max value of the bucket.
+     *
+     * @param index
+     *         the bucket index.
+     * @return
+     *         the max value in the bucket.
+     */
+    static long upperBoundOf(int index){
+        if(index < SUB_BUCKETS){
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.stats;
+
+/**
+ * The JMX interface of the lookup Service cache.
+ *
+ */
+public interface LookupCacheMXBean {
+
+    /**
+     * Get the number of the cached Services.
+     *
+     * @return
+     *         the cache size.
+     */
+    public int getCacheSize();
+
+    /**
+     * Get the cache hit count.
+     *
+     * @return
+     *         the hit count.
+     */
+    public long getHits();
+
+    /**
+     * Get the cache miss count.
+     *
+     * @return
+     *         the miss count.
+     */
+    public long getMisses();
+
+    /**
+     * Get the cache hit ratio.
+     *
+     * @return
+     *         the hit ratio in [0, 1], 0 if no lookup.
+     */
+    public double getHitRatio();
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.stats;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cisco.oss.foundation.directory.Configurations;
+
+/**
+ * The util to register the SD API MBeans to the platform MBeanServer.
+ *
+ */
+public class MBeanRegistry {
+    private final static Logger LOGGER = LoggerFactory.getLogger(MBeanRegistry.class);
+
+    /**
+     * The JMX domain of the SD API MBeans.
+     */
+    public final static String JMX_DOMAIN = "com.cisco.oss.foundation.directory";
+
+    /**
+     * The JMX enabled property name.
+     */
+    public final static String SD_API_JMX_ENABLED_PROPERTY = "jmx.enabled";
+
+    /**
+     * The default JMX enabled value.
+     */
+    public final static boolean SD_API_JMX_ENABLED_DEFAULT = true;
+
+    /**
+     * Register the MBean.
+     *
+     * It never throws exception, the failure is logged.
+     *
+     * @param mbean
+     *         the MBean.
+     * @param type
+     *         the type key of the ObjectName.
+     * @param name
+     *         the name key of the ObjectName, null for the singleton MBean.
+     * @return
+     *         the registered ObjectName, null if not registered.
+     */
+    public static ObjectName register(Object mbean, String type, String name){
+        if(! Configurations.getBoolean(SD_API_JMX_ENABLED_PROPERTY, SD_API_JMX_ENABLED_DEFAULT)){
+            return null;
+        }
+        String s = JMX_DOMAIN + ":type=" + type;
+        if(name != null){
+            s += ",name=" + ObjectName.quote(name);
+        }
+        try {
+            ObjectName objectName = new ObjectName(s);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+            return objectName;
+        } catch (InstanceAlreadyExistsException e) {
+            if(LOGGER.isDebugEnabled()){
+                LOGGER.debug("The MBean already registered - " + s);
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Register the MBean " + s + " failed - " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Unregister the MBean.
+     *
+     * @param objectName
+     *         the ObjectName, it can be null.
+     */
+    public static void unregister(ObjectName objectName){
+        if(objectName == null){
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception e) {
+            LOGGER.warn("Unregister the MBean " + objectName + " failed - " + e.getMessage());
+        }
+    }
+}
@@ -15,24 +15,88 @@
  */
 package com.cisco.oss.foundation.directory.stats;
 
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.cisco.oss.foundation.directory.connect.DirectoryConnection.Packet;
+import com.cisco.oss.foundation.directory.exception.ErrorCode;
+import com.cisco.oss.foundation.directory.proto.ProtocolType;
 
 /**
  * Use to collect the Packet latency statistics.
  *
+ * The latency of each stage is recorded in the LatencyHistogram of the ProtocolType and
+ * the Stage in nanoseconds, the histograms are exposed in the API and the JMX
+ * PacketLatencyMXBean.
+ *
+ * The stage times are kept in the Packet, each written by one thread: QUEUE by the caller
+ * before the Packet is published, SEND by the DirectorySocket write path, SERVER by the
+ * response thread and FINISH by the thread finishing the Packet.
  *
  */
 public class PacketLatency {
     private final static Logger LOGGER = LoggerFactory.getLogger(PacketLatency.class);
 
+    /**
+     * The JMX type of the PacketLatencyMXBean.
+     */
+    public final static String MBEAN_TYPE = "PacketLatency";
+
+    /**
+     * The latency stage of the Packet.
+     */
+    public enum Stage {
+        /**
+         * From the Packet created to queued, it includes the in-flight window wait.
+         */
+        QUEUE,
+        /**
+         * From the Packet queued to its frame written to the network by the DirectorySocket,
+         * it is the outgoing queue time.
+         */
+        SEND,
+        /**
+         * From the Packet sent to the Response received, it is the network and the Directory Server time.
+         * It is from the queued time when the Response comes before the SEND is stamped.
+         */
+        SERVER,
+        /**
+         * From the Response received to the Packet finished.
+         */
+        FINISH,
+        /**
+         * From the Packet finished to the Callback or Future completed.
+         */
+        CALLBACK,
+        /**
+         * From the Packet created to finished.
+         */
+        TOTAL
+    }
+
     /**
      * Indicate whether enabled packet latency collect.
      */
     private static boolean isEnabled = true;
 
+    /**
+     * The histograms, indexed by the ProtocolType ordinal and the Stage ordinal.
+     */
+    private static final LatencyHistogram[][] histograms = new LatencyHistogram[ProtocolType.values().length][Stage.values().length];
+
+    static {
+        for(int i = 0; i < histograms.length; i ++){
+            for(int j = 0; j < histograms[i].length; j ++){
+                histograms[i][j] = new LatencyHistogram();
+            }
+        }
+        registerMBean();
+    }
+
     /**
      * check is enabled.
      *
@@ -43,6 +107,31 @@ public class PacketLatency {
         return isEnabled;
     }
 
+    /**
+     * Get the LatencyHistogram of the ProtocolType and Stage.
+     *
+     * @param type
+     *         the ProtocolType.
+     * @param stage
+     *         the Stage.
+     * @return
+     *         the LatencyHistogram in nanoseconds.
+     */
+    public static LatencyHistogram getHistogram(ProtocolType type, Stage stage){
+        return histograms[type.ordinal()][stage.ordinal()];
+    }
+
+    /**
+     * Reset all the histograms.
+     */
+    public static void reset(){
+        for(LatencyHistogram[] hs : histograms){
+            for(LatencyHistogram h : hs){
+                h.reset();
+            }
+        }
+    }
+
     /**
      * Init the packet for latency collect.
      *
@@ -52,6 +141,7 @@ public class PacketLatency {
     public static void initPacket(Packet packet){
         if(isEnabled){
             packet.setCreateTime(System.currentTimeMillis());
+            packet.setCreateNanos(System.nanoTime());
         }
     }
 
@@ -63,8 +153,9 @@ public class PacketLatency {
      */
     public static void queuePacket(Packet packet){
         if(isEnabled){
+            long latency = recordStage(packet, Stage.QUEUE, packet.getCreateNanos());
             if(LOGGER.isDebugEnabled()){
-                LOGGER.debug("queue packet latency = " + (System.currentTimeMillis() - packet.getCreateTime()));
+                LOGGER.debug("queue packet latency = " + TimeUnit.NANOSECONDS.toMillis(latency));
             }
         }
     }
@@ -77,8 +168,9 @@ public class PacketLatency {
      */
     public static void sendPacket(Packet packet){
         if(isEnabled){
+            long latency = recordStage(packet, Stage.SEND, packet.getStageNanos(Stage.QUEUE));
             if(LOGGER.isDebugEnabled()){
-                LOGGER.debug("send packet latency = " + (System.currentTimeMillis() - packet.getCreateTime()));
+                LOGGER.debug("send packet latency = " + TimeUnit.NANOSECONDS.toMillis(latency));
             }
         }
     }
@@ -91,8 +183,10 @@ public class PacketLatency {
      */
     public static void receivePacket(Packet packet){
         if(isEnabled){
+            long sent = packet.getStageNanos(Stage.SEND);
+            long latency = recordStage(packet, Stage.SERVER, sent != 0 ? sent : packet.getStageNanos(Stage.QUEUE));
             if(LOGGER.isDebugEnabled()){
-                LOGGER.debug("receive packet latency = " + (System.currentTimeMillis() - packet.getCreateTime()));
+                LOGGER.debug("receive packet latency = " + TimeUnit.NANOSECONDS.toMillis(latency));
             }
         }
     }
@@ -100,13 +194,24 @@ public class PacketLatency {
     /**
      * Collect the finish Packet latency.
      *
+     * The failed Packet, such as lost or timeout, is not recorded.
+     *
      * @param packet
      *         the Packet.
      */
     public static void finishPacket(Packet packet){
         if(isEnabled){
+            long now = System.nanoTime();
+            long latency = now - packet.getStageNanos(Stage.SERVER);
+            packet.setStageNanos(Stage.FINISH, now);
+            ProtocolType type = packet.getProtocolType();
+            // the OK Packet always has the Response received.
+            if(type != null && ErrorCode.OK.equals(packet.getErrorCode())){
+                getHistogram(type, Stage.FINISH).record(latency);
+                getHistogram(type, Stage.TOTAL).record(now - packet.getCreateNanos());
+            }
             if(LOGGER.isDebugEnabled()){
-                LOGGER.debug("finish packet latency = " + (System.currentTimeMillis() - packet.getCreateTime()));
+                LOGGER.debug("finish packet latency = " + TimeUnit.NANOSECONDS.toMillis(now - packet.getCreateNanos()));
             }
         }
     }
@@ -119,9 +224,134 @@ public class PacketLatency {
      */
     public static void callbackPacket(Packet packet){
         if(isEnabled){
+            long latency = System.nanoTime() - packet.getStageNanos(Stage.FINISH);
+            ProtocolType type = packet.getProtocolType();
+            if(type != null){
+                getHistogram(type, Stage.CALLBACK).record(latency);
+            }
             if(LOGGER.isDebugEnabled()){
-                LOGGER.debug("callback packet latency = " + (System.currentTimeMillis() - packet.getCreateTime()));
+                LOGGER.debug("callback packet latency = " + TimeUnit.NANOSECONDS.toMillis(latency));
+            }
+        }
+    }
+
+    /**
+     * Stamp the Stage in the Packet, and record its latency since the previous Stage.
+     *
+     * @param packet
+     *         the Packet.
+     * @param stage
+     *         the Stage.
+     * @param previous
+     *         the time in nanoseconds of the previous Stage.
+     * @return
+     *         the latency in nanoseconds.
+     */
+    private static long recordStage(Packet packet, Stage stage, long previous){
+        long now = System.nanoTime();
+        long latency = now - previous;
+        packet.setStageNanos(stage, now);
+        ProtocolType type = packet.getProtocolType();
+        if(type != null){
+            getHistogram(type, stage).record(latency);
+        }
+        return latency;
+    }
+
+    /**
+     * Register the PacketLatencyMXBean to the platform MBeanServer.
+     */
+    private static void registerMBean(){
+        MBeanRegistry.register(new PacketLatencyStats(), MBEAN_TYPE, null);
+    }
+
+    /**
+     * The PacketLatencyMXBean implementation.
+     */
+    static class PacketLatencyStats implements PacketLatencyMXBean {
+
+        /**
+         * The value of the histogram.
+         */
+        enum Value {
+            COUNT, MEAN, P50, P99, P999, MAX
+        }
+
+        @Override
+        public Map<String, Long> getCounts() {
+            return collect(Value.COUNT);
+        }
+
+        @Override
+        public Map<String, Long> getMean() {
+            return collect(Value.MEAN);
+        }
+
+        @Override
+        public Map<String, Long> getP50() {
+            return collect(Value.P50);
+        }
+
+        @Override
+        public Map<String, Long> getP99() {
+            return collect(Value.P99);
+        }
+
+        @Override
+        public Map<String, Long> getP999() {
+            return collect(Value.P999);
+        }
+
+        @Override
+        public Map<String, Long> getMax() {
+            return collect(Value.MAX);
+        }
+
+        @Override
+        public void reset() {
+            PacketLatency.reset();
+        }
+
+        /**
+         * Collect the value of the recorded histograms.
+         *
+         * @param value
+         *         the Value.
+         * @return
+         *         the map keyed by "ProtocolType.Stage".
+         */
+        private Map<String, Long> collect(Value value){
+            Map<String, Long> result = new TreeMap<String, Long>();
+            for(ProtocolType type : ProtocolType.values()){
+                for(Stage stage : Stage.values()){
+                    LatencyHistogram h = getHistogram(type, stage);
+                    if(h.getCount() == 0){
+                        continue;
+                    }
+                    long v;
+                    switch(value){
+                    case COUNT:
+                        v = h.getCount();
+                        break;
+                    case MEAN:
+                        v = TimeUnit.NANOSECONDS.toMicros(h.getMean());
+                        break;
+                    case P50:
+                        v = TimeUnit.NANOSECONDS.toMicros(h.getPercentile(50));
+                        break;
+                    case P99:
+                        v = TimeUnit.NANOSECONDS.toMicros(h.getPercentile(99));
+                        break;
+                    case P999:
+                        v = TimeUnit.NANOSECONDS.toMicros(h.getPercentile(99.9));
+                        break;
+                    default:
+                        v = TimeUnit.NANOSECONDS.toMicros(h.getMax());
+                    }
+                    result.put(type.name() + "." + stage.name(), v);
+                }
             }
+            return result;
         }
     }
 }
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.stats;
+
+import java.util.Map;
+
+/**
+ * The JMX interface of the Packet latency statistics.
+ *
+ * The keys of the maps are "ProtocolType.Stage", such as "GetService.SERVER", only the
+ * recorded ones are included. The latencies are in microseconds.
+ *
+ */
+public interface PacketLatencyMXBean {
+
+    /**
+     * Get the recorded Packet counts.
+     *
+     * @return
+     *         the counts.
+     */
+    public Map<String, Long> getCounts();
+
+    /**
+     * Get the mean latencies.
+     *
+     * @return
+     *         the mean latencies in microseconds.
+     */
+    public Map<String, Long> getMean();
+
+    /**
+     * Get the 50th percentile latencies.
+     *
+     * @return
+     *         the latencies in microseconds.
+     */
+    public Map<String, Long> getP50();
+
+    /**
+     * Get the 99th percentile latencies.
+     *
+     * @return
+     *         the latencies in microseconds.
+     */
+    public Map<String, Long> getP99();
+
+    /**
+     * Get the 99.9th percentile latencies.
+     *
+     * @return
+     *         the latencies in microseconds.
+     */
+    public Map<String, Long> getP999();
+
+    /**
+     * Get the max latencies.
+     *
+     * @return
+     *         the latencies in microseconds.
+     */
+    public Map<String, Long> getMax();
+
+    /**
+     * Reset all the histograms.
+     */
+    public void reset();
+}
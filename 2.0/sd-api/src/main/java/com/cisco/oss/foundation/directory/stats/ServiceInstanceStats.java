@@ -0,0 +1,221 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.stats;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The lock-free EWMA latency and error rate of a ServiceInstance, reported by the caller.
+ *
+ * The averages are weighted by the time, a sample decays by e after the decay time, and
+ * a new sample takes at least the MIN_SAMPLE_WEIGHT, so the burst reports in a short time
+ * still move the averages. The
+ * latency is the peak EWMA, the greater latency sample is taken at once, so a degraded
+ * ServiceInstance is avoided at once and is tried again after its latency decays. Both
+ * averages decay toward 0 when there is no report, the idle ServiceInstance is tried again.
+ *
+ */
+public class ServiceInstanceStats {
+
+    /**
+     * The min weight of a new sample.
+     */
+    public static final double MIN_SAMPLE_WEIGHT = 0.05;
+
+    /**
+     * The number of the decay times without report after which the averages are taken as 0.
+     */
+    public static final int IDLE_DECAY_TIMES = 10;
+
+    /**
+     * The decay time in nanoseconds.
+     */
+    private final long decayTime;
+
+    /**
+     * The current averages, replaced by CAS in the report.
+     */
+    private final AtomicReference<Sample> sample = new AtomicReference<Sample>();
+
+    /**
+     * Constructor.
+     *
+     * @param decayTime
+     *         the decay time in nanoseconds.
+     */
+    public ServiceInstanceStats(long decayTime){
+        if(decayTime <= 0){
+            throw new IllegalArgumentException("decayTime must be greater than 0: " + decayTime);
+        }
+        this.decayTime = decayTime;
+    }
+
+    /**
+     * Report the outcome of a request.
+     *
+     * @param latencyNanos
+     *         the request latency in nanoseconds, the negative value is taken as 0.
+     * @param success
+     *         whether the request succeeded.
+     */
+    public void report(long latencyNanos, boolean success){
+        report(latencyNanos, success, System.nanoTime());
+    }
+
+    /**
+     * Report the outcome of a request at the time.
+     *
+     * @param latencyNanos
+     *         the request latency in nanoseconds.
+     * @param success
+     *         whether the request succeeded.
+     * @param now
+     *         the report time in nanoseconds.
+     */
+    void report(long latencyNanos, boolean success, long now){
+        double latency = Math.max(latencyNanos, 0);
+        double error = success ? 0 : 1;
+        Sample prev = sample.get();
+        while(true){
+            Sample next;
+            if(prev == null){
+                next = new Sample(latency, error, now);
+            } else {
+                double d = weightOf(now - prev.time);
+                double w = Math.min(d, 1 - MIN_SAMPLE_WEIGHT);
+                // the peak is checked against the decayed latency the readers see.
+                double l = latency > prev.latency * d ? latency : prev.latency * w + latency * (1 - w);
+                next = new Sample(l, prev.errorRate * w + error * (1 - w), Math.max(now, prev.time));
+            }
+            if(sample.compareAndSet(prev, next)){
+                return;
+            }
+            prev = sample.get();
+        }
+    }
+
+    /**
+     * Get the EWMA latency, decayed to now.
+     *
+     * @return
+     *         the latency in nanoseconds, 0 if never reported.
+     */
+    public double getLatency(){
+        return getLatency(System.nanoTime());
+    }
+
+    /**
+     * Get the EWMA latency, decayed to the time.
+     *
+     * @param now
+     *         the time in nanoseconds.
+     * @return
+     *         the latency in nanoseconds, 0 if never reported.
+     */
+    double getLatency(long now){
+        Sample s = sample.get();
+        return s == null ? 0 : s.latency * weightOf(now - s.time);
+    }
+
+    /**
+     * Get the EWMA error rate, decayed to now.
+     *
+     * @return
+     *         the error rate in [0, 1], 0 if never reported.
+     */
+    public double getErrorRate(){
+        return getErrorRate(System.nanoTime());
+    }
+
+    /**
+     * Get the EWMA error rate, decayed to the time.
+     *
+     * @param now
+     *         the time in nanoseconds.
+     * @return
+     *         the error rate in [0, 1], 0 if never reported.
+     */
+    double getErrorRate(long now){
+        Sample s = sample.get();
+        return s == null ? 0 : s.errorRate * weightOf(now - s.time);
+    }
+
+    /**
+     * Check whether there is no report in IDLE_DECAY_TIMES decay times, the averages have
+     * decayed below e^-10 of the last report and the stats can be dropped.
+     *
+     * @param now
+     *         the time in nanoseconds.
+     * @return
+     *         true if idle.
+     */
+    public boolean isIdle(long now){
+        Sample s = sample.get();
+        return s == null || now - s.time > IDLE_DECAY_TIMES * decayTime;
+    }
+
+    /**
+     * Get the weight of the previous average after the elapsed time.
+     *
+     * @param elapsed
+     *         the elapsed time in nanoseconds.
+     * @return
+     *         the weight in (0, 1].
+     */
+    private double weightOf(long elapsed){
+        if(elapsed <= 0){
+            return 1;
+        }
+        return Math.exp(- (double) elapsed / decayTime);
+    }
+
+    /**
+     * The immutable averages at a time.
+     */
+    private static class Sample {
+
+        /**
+         * The EWMA latency in nanoseconds.
+         */
+        private final double latency;
+
+        /**
+         * The EWMA error rate.
+         */
+        private final double errorRate;
+
+        /**
+         * The time in nanoseconds.
+         */
+        private final long time;
+
+        /**
+         * Constructor.
+         *
+         * @param latency
+         *         the EWMA latency in nanoseconds.
+         * @param errorRate
+         *         the EWMA error rate.
+         * @param time
+         *         the time in nanoseconds.
+         */
+        Sample(double latency, double errorRate, long time){
+            this.latency = latency;
+            this.errorRate = errorRate;
+            this.time = time;
+        }
+    }
+}
@@ -40,6 +40,7 @@ import com.cisco.oss.foundation.directory.exception.ServiceDirectoryError;
 import com.cisco.oss.foundation.directory.exception.ServiceException;
 import com.cisco.oss.foundation.directory.impl.ServiceDirectoryCache;
 import com.cisco.oss.foundation.directory.impl.ServiceInstanceQueryHelper;
+import com.cisco.oss.foundation.directory.lb.LoadBalancerStrategy;
 import com.cisco.oss.foundation.directory.lifecycle.Closable;
 import com.cisco.oss.foundation.directory.query.QueryCriterion;
 import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery;
@@ -135,6 +136,49 @@ public class DefaultTestServiceDirectoryManager implements
         return list.get(index);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * @param serviceName
+     *         the service name.
+     * @param strategy
+     *         the LoadBalancerStrategy.
+     * @return
+     *         the ServiceInstance.
+     * @throws ServiceException
+     */
+    @Override
+    public ServiceInstance lookupInstance(String serviceName, LoadBalancerStrategy strategy)
+            throws ServiceException {
+        if(strategy == null){
+            throw new IllegalArgumentException("LoadBalancerStrategy cannot be null.");
+        }
+        List<ServiceInstance> list = this.lookupInstances(serviceName);
+        if(list == null || list.size() == 0){
+            return null;
+        }
+        return strategy.select(serviceName, list);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The test manager doesn't keep the reported outcome.
+     *
+     * @param instance
+     *         the ServiceInstance.
+     * @param latencyNanos
+     *         the request latency in nanoseconds.
+     * @param success
+     *         whether the request succeeded.
+     */
+    @Override
+    public void report(ServiceInstance instance, long latencyNanos, boolean success) {
+        if(instance == null){
+            throw new IllegalArgumentException("ServiceInstance cannot be null.");
+        }
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -925,7 +969,7 @@ public class DefaultTestServiceDirectoryManager implements
 
         if(this.queryInstanceIdx.containsKey(serviceName)){
             AtomicInteger pre = this.queryInstanceIdx.get(serviceName);
-            int theIndex = pre.incrementAndGet();
+            int theIndex = pre.incrementAndGet() & Integer.MAX_VALUE;
             return theIndex % max;
         }else{
             this.queryInstanceIdx.put(serviceName, new AtomicInteger(0));
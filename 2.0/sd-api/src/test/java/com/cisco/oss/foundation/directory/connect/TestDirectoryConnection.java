@@ -16,6 +16,7 @@
 package com.cisco.oss.foundation.directory.connect;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
@@ -25,8 +26,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import junit.framework.Assert;
 
@@ -34,6 +40,7 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.cisco.oss.foundation.directory.ServiceDirectory;
 import com.cisco.oss.foundation.directory.async.Callback.ProtocolCallback;
 import com.cisco.oss.foundation.directory.async.ServiceDirectoryFuture;
 import com.cisco.oss.foundation.directory.async.Watcher;
@@ -66,6 +73,10 @@ import com.cisco.oss.foundation.directory.proto.ServiceInstanceOperate;
 import com.cisco.oss.foundation.directory.proto.ServiceInstanceOperate.OperateType;
 import com.cisco.oss.foundation.directory.proto.UnregisterServiceInstanceProtocol;
 import com.cisco.oss.foundation.directory.proto.WatcherEvent;
+import com.cisco.oss.foundation.directory.stats.LatencyHistogram;
+import com.cisco.oss.foundation.directory.stats.MBeanRegistry;
+import com.cisco.oss.foundation.directory.stats.PacketLatency;
+import com.cisco.oss.foundation.directory.stats.PacketLatency.Stage;
 
 public class TestDirectoryConnection {
     private final static Logger LOGGER = LoggerFactory.getLogger(TestDirectoryConnection.class);
@@ -1021,20 +1032,7 @@ public class TestDirectoryConnection {
         ServiceDirectoryFuture f3 = connection.submitAsyncRequest(new ProtocolHeader(3, ProtocolType.GetService), new GetServiceProtocol("mocksvc"), null) ;
         ServiceDirectoryFuture f4 = connection.submitAsyncRequest(new ProtocolHeader(3, ProtocolType.GetService), new GetServiceProtocol("mocksvc"), null) ;
 
-        try {
-            f1.get();
-            Assert.assertTrue(false);
-        } catch (Exception e2) {
-            LOGGER.error("future1 error.", e2);
-            Assert.assertEquals(ErrorCode.CONNECTION_LOSS, ((ServiceException) e2.getCause()).getServiceDirectoryError().getExceptionCode());
-        }
-        try {
-            f2.get();
-            Assert.assertTrue(false);
-        } catch (Exception e1) {
-            LOGGER.error("future2 error.", e1);
-            Assert.assertEquals(ErrorCode.CONNECTION_LOSS, ((ServiceException) e1.getCause()).getServiceDirectoryError().getExceptionCode());
-        }
+        // the responses of the later requests are not blocked by the unanswered earlier requests.
         try {
             f3.get();
         } catch (Exception e1) {
@@ -1047,13 +1045,138 @@ public class TestDirectoryConnection {
             LOGGER.error("future4 error.", e1);
             Assert.assertTrue(false);
         }
+        Assert.assertFalse(f1.isDone());
+        Assert.assertFalse(f2.isDone());
 
         try {
-            Thread.sleep(1000);
+            connection.close();
+        } catch (IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+
+        // the unanswered requests fail when the connection closed.
+        try {
+            f1.get();
+            Assert.assertTrue(false);
+        } catch (Exception e2) {
+            LOGGER.error("future1 error.", e2);
+            Assert.assertEquals(ErrorCode.CLIENT_CLOSED, ((ServiceException) e2.getCause()).getServiceDirectoryError().getExceptionCode());
+        }
+        try {
+            f2.get();
+            Assert.assertTrue(false);
+        } catch (Exception e1) {
+            LOGGER.error("future2 error.", e1);
+            Assert.assertEquals(ErrorCode.CLIENT_CLOSED, ((ServiceException) e1.getCause()).getServiceDirectoryError().getExceptionCode());
+        }
+    }
+
+//    @Ignore
+    @Test
+    public void testOutOfOrderResponse(){
+        LOGGER.info("============testOutOfOrderResponse=====================");
+        List<String> servers = new ArrayList<String>();
+        servers.add("localhost:8901");
+        DirectoryServers directoryServers = new DirectoryServers(servers);
+
+        final List<ResponseHeader> held = new ArrayList<ResponseHeader>();
+        DirectorySocket socket = new DirectorySocket(){
+
+            private InetSocketAddress server = null;
+            private SocketThread t ;
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public boolean connect(InetSocketAddress address) {
+                closeSocketThread();
+                t = new SocketThread(this.clientConnection);
+                t.start();
+                this.server = address;
+                return true;
+            }
+
+            private void closeSocketThread(){
+                if(t != null){
+                    t.toStop();
+                    t.interrupt();
+                    t = null;
+                }
+            }
+
+            @Override
+            public SocketAddress getRemoteSocketAddress() {
+                return server;
+            }
+
+            @Override
+            public SocketAddress getLocalSocketAddress() {
+                return InetSocketAddress.createUnresolved("localhost", 23456);
+            }
+
+            @Override
+            public void cleanup() {
+                closeSocketThread();
+            }
+
+            @Override
+            public void sendPacket(ProtocolHeader header, Protocol p)
+                    throws IOException {
+                if(ProtocolType.CreateSession.equals((header.getType()))){
+                    ConnectResponse response = new ConnectResponse(0, 4000, "1", null, 1);
+                    t.queueResonse(new ResponseHeader(header.getXid(), 1, ErrorCode.OK), response);
+                } else if(ProtocolType.Ping.equals(header.getType())){
+                    t.queueResonse(new ResponseHeader(-2, 2, ErrorCode.OK), new Response());
+                } else if(ProtocolType.GetService.equals(header.getType())){
+                    synchronized(held){
+                        held.add(new ResponseHeader(header.getXid(), 1, ErrorCode.OK));
+                        // answer the 3 requests in the reverse order, each Response carries its xid.
+                        if(held.size() == 3){
+                            for(int i = held.size() - 1; i >= 0; i--){
+                                t.queueResonse(held.get(i), new ConnectResponse(0, 4000, "xid-" + held.get(i).getXid(), null, 1));
+                            }
+                        }
+                    }
+                }
+            }
+
+        };
+
+        final DirectoryConnection connection = new DirectoryConnection(directoryServers.getNextDirectoryServer(), new WatcherManager(), socket, "user", "password");
+        socket.setConnection(connection);
+        connection.start();
+
+        try {
+            Thread.sleep(400);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
 
+        Assert.assertEquals(ConnectionStatus.CONNECTED, connection.getStatus());
+
+        ServiceDirectoryFuture f1 = connection.submitAsyncRequest(new ProtocolHeader(3, ProtocolType.GetService), new GetServiceProtocol("mocksvc"), null) ;
+        ServiceDirectoryFuture f2 = connection.submitAsyncRequest(new ProtocolHeader(3, ProtocolType.GetService), new GetServiceProtocol("mocksvc"), null) ;
+        ServiceDirectoryFuture f3 = connection.submitAsyncRequest(new ProtocolHeader(3, ProtocolType.GetService), new GetServiceProtocol("mocksvc"), null) ;
+
+        try {
+            // the requests are sent in order, each Future gets the Response of its own xid.
+            ServiceDirectoryFuture[] futures = new ServiceDirectoryFuture[]{f1, f2, f3};
+            for(int i = 0; i < futures.length; i ++){
+                Response response = futures[i].get();
+                Assert.assertEquals(ConnectResponse.class, response.getClass());
+                synchronized(held){
+                    Assert.assertEquals("xid-" + held.get(i).getXid(), ((ConnectResponse) response).getSessionId());
+                }
+            }
+            Assert.assertFalse(((ConnectResponse) f1.get()).getSessionId().equals(((ConnectResponse) f3.get()).getSessionId()));
+        } catch (Exception e) {
+            LOGGER.error("future error.", e);
+            Assert.assertTrue(false);
+        }
+
         try {
             connection.close();
         } catch (IOException e) {
@@ -1114,6 +1237,443 @@ public class TestDirectoryConnection {
         }
     }
 
+    @Test
+    public void testRequestTimeoutAndWindow() throws InterruptedException{
+        LOGGER.info("============testRequestTimeoutAndWindow=====================");
+        List<String> servers = new ArrayList<String>();
+        servers.add("localhost:8901");
+        DirectoryServers directoryServers = new DirectoryServers(servers);
+
+        DirectorySocket socket = new DirectorySocket(){
+
+            private InetSocketAddress server = null;
+            private SocketThread t ;
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public boolean connect(InetSocketAddress address) {
+                closeSocketThread();
+                t = new SocketThread(this.clientConnection);
+                t.start();
+                this.server = address;
+                return true;
+            }
+
+            private void closeSocketThread(){
+                if(t != null){
+                    t.toStop();
+                    t.interrupt();
+                    t = null;
+                }
+            }
+
+            @Override
+            public SocketAddress getRemoteSocketAddress() {
+                return server;
+            }
+
+            @Override
+            public SocketAddress getLocalSocketAddress() {
+                return InetSocketAddress.createUnresolved("localhost", 23456);
+            }
+
+            @Override
+            public void cleanup() {
+                closeSocketThread();
+            }
+
+            @Override
+            public void sendPacket(ProtocolHeader header, Protocol p)
+                    throws IOException {
+                if(ProtocolType.CreateSession.equals((header.getType()))){
+                    ConnectResponse response = new ConnectResponse(0, 4000, "1", null, 1);
+                    t.queueResonse(new ResponseHeader(header.getXid(), 1, ErrorCode.OK), response);
+                } else if(ProtocolType.Ping.equals(header.getType())){
+                    t.queueResonse(new ResponseHeader(-2, 2, ErrorCode.OK), new Response());
+                }
+                // the stalled server never answers the GetService.
+            }
+
+        };
+
+        ServiceDirectory.getServiceDirectoryConfig().setProperty(DirectoryConnection.MAX_INFLIGHT_PROPERTY_NAME, 2);
+        ServiceDirectory.getServiceDirectoryConfig().setProperty(DirectoryConnection.INFLIGHT_BLOCK_PROPERTY_NAME, false);
+        final DirectoryConnection connection = new DirectoryConnection(directoryServers.getNextDirectoryServer(), new WatcherManager(), socket, "user", "password");
+        ServiceDirectory.getServiceDirectoryConfig().setProperty(DirectoryConnection.MAX_INFLIGHT_PROPERTY_NAME, 1024);
+        ServiceDirectory.getServiceDirectoryConfig().setProperty(DirectoryConnection.INFLIGHT_BLOCK_PROPERTY_NAME, true);
+        socket.setConnection(connection);
+        connection.start();
+        connection.blockUtilConnected();
+        Assert.assertEquals(ConnectionStatus.CONNECTED, connection.getStatus());
+
+        long start = System.currentTimeMillis();
+        try {
+            connection.submitRequest(new ProtocolHeader(3, ProtocolType.GetService), new GetServiceProtocol("mocksvc"), null, 300);
+            Assert.fail("The request should timeout.");
+        } catch (ServiceException e) {
+            Assert.assertEquals(ErrorCode.REQUEST_TIMEOUT, e.getServiceDirectoryError().getExceptionCode());
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+        Assert.assertEquals(0, connection.getPendingPacketCount());
+
+        ServiceDirectoryFuture f1 = connection.submitAsyncRequest(new ProtocolHeader(3, ProtocolType.GetService), new GetServiceProtocol("mocksvc"), null, 0);
+        ServiceDirectoryFuture f2 = connection.submitAsyncRequest(new ProtocolHeader(3, ProtocolType.GetService), new GetServiceProtocol("mocksvc"), null, 0);
+        ServiceDirectoryFuture f3 = connection.submitAsyncRequest(new ProtocolHeader(3, ProtocolType.GetService), new GetServiceProtocol("mocksvc"), null, 0);
+        Assert.assertFalse(f1.isDone());
+        Assert.assertFalse(f2.isDone());
+        Assert.assertTrue(f3.isDone());
+        try {
+            f3.get();
+            Assert.fail("The window should be full.");
+        } catch (ExecutionException e) {
+            Assert.assertEquals(ErrorCode.REQUEST_WINDOW_FULL, ((ServiceException) e.getCause()).getServiceDirectoryError().getExceptionCode());
+        }
+        Assert.assertEquals(2, connection.getPendingPacketCount());
+
+        try {
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Assert.assertTrue(f1.isDone());
+        Assert.assertTrue(f2.isDone());
+    }
+
+    @Test
+    public void testPacketLost() throws Exception{
+        LOGGER.info("============testPacketLost=====================");
+        List<String> servers = new ArrayList<String>();
+        servers.add("localhost:8901");
+        DirectoryServers directoryServers = new DirectoryServers(servers);
+
+        final List<Integer> dropped = new ArrayList<Integer>();
+        DirectorySocket socket = new DirectorySocket(){
+
+            private InetSocketAddress server = null;
+            private SocketThread t ;
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public boolean connect(InetSocketAddress address) {
+                cleanup();
+                t = new SocketThread(this.clientConnection);
+                t.start();
+                this.server = address;
+                return true;
+            }
+
+            @Override
+            public SocketAddress getRemoteSocketAddress() {
+                return server;
+            }
+
+            @Override
+            public SocketAddress getLocalSocketAddress() {
+                return InetSocketAddress.createUnresolved("localhost", 23456);
+            }
+
+            @Override
+            public void cleanup() {
+                if(t != null){
+                    t.toStop();
+                    t.interrupt();
+                    t = null;
+                }
+            }
+
+            @Override
+            public void sendPacket(ProtocolHeader header, Protocol p)
+                    throws IOException {
+                if(ProtocolType.CreateSession.equals((header.getType()))){
+                    ConnectResponse response = new ConnectResponse(0, 4000, "1", null, 1);
+                    t.queueResonse(new ResponseHeader(header.getXid(), 1, ErrorCode.OK), response);
+                } else if(ProtocolType.Ping.equals(header.getType())){
+                    t.queueResonse(new ResponseHeader(-2, 2, ErrorCode.OK), new Response());
+                } else if(ProtocolType.GetService.equals(header.getType())){
+                    // the frame stays queued in the socket.
+                    synchronized(dropped){
+                        dropped.add(header.getXid());
+                    }
+                }
+            }
+
+        };
+
+        DirectoryConnection connection = new DirectoryConnection(directoryServers.getNextDirectoryServer(), new WatcherManager(), socket, "user", "password");
+        socket.setConnection(connection);
+        connection.start();
+        connection.blockUtilConnected();
+
+        ServiceDirectoryFuture f = connection.submitAsyncRequest(new ProtocolHeader(3, ProtocolType.GetService), new GetServiceProtocol("mocksvc"), null, 0);
+        Assert.assertFalse(f.isDone());
+        Assert.assertEquals(1, connection.getPendingPacketCount());
+
+        // the socket drops the queued frame, the Packet fails at once.
+        synchronized(dropped){
+            Assert.assertEquals(1, dropped.size());
+            connection.onPacketLost(dropped.get(0));
+        }
+        Assert.assertTrue(f.isDone());
+        try {
+            f.get();
+            Assert.fail("The Packet should be lost.");
+        } catch (ExecutionException e) {
+            Assert.assertEquals(ErrorCode.CONNECTION_LOSS, ((ServiceException) e.getCause()).getServiceDirectoryError().getExceptionCode());
+        }
+        Assert.assertEquals(0, connection.getPendingPacketCount());
+
+        // the admin Packets are not pending.
+        connection.onPacketLost(-2);
+        connection.close();
+    }
+
+    @Test
+    public void testCloseWithBrokenSocket() throws Exception{
+        LOGGER.info("============testCloseWithBrokenSocket=====================");
+        List<String> servers = new ArrayList<String>();
+        servers.add("localhost:8901");
+        DirectoryServers directoryServers = new DirectoryServers(servers);
+
+        final AtomicBoolean closeSessionSent = new AtomicBoolean(false);
+        DirectorySocket socket = new DirectorySocket(){
+
+            private InetSocketAddress server = null;
+            private SocketThread t ;
+            private volatile boolean cleaned = false;
+            @Override
+            public boolean isConnected() {
+                return ! cleaned;
+            }
+
+            @Override
+            public boolean connect(InetSocketAddress address) {
+                closeSocketThread();
+                t = new SocketThread(this.clientConnection);
+                t.start();
+                this.server = address;
+                return true;
+            }
+
+            private void closeSocketThread(){
+                if(t != null){
+                    t.toStop();
+                    t.interrupt();
+                    t = null;
+                }
+            }
+
+            @Override
+            public SocketAddress getRemoteSocketAddress() {
+                return server;
+            }
+
+            @Override
+            public SocketAddress getLocalSocketAddress() {
+                return InetSocketAddress.createUnresolved("localhost", 23456);
+            }
+
+            @Override
+            public void cleanup() {
+                cleaned = true;
+                closeSocketThread();
+            }
+
+            @Override
+            public void sendPacket(ProtocolHeader header, Protocol p)
+                    throws IOException {
+                // the real DirectorySockets don't send after the cleanup.
+                if(cleaned){
+                    throw new IOException("The DirectorySocket is not connected");
+                }
+                if(ProtocolType.CreateSession.equals((header.getType()))){
+                    ConnectResponse response = new ConnectResponse(0, 4000, "1", null, 1);
+                    t.queueResonse(new ResponseHeader(header.getXid(), 1, ErrorCode.OK), response);
+                } else if(ProtocolType.Ping.equals(header.getType())){
+                    t.queueResonse(new ResponseHeader(-2, 2, ErrorCode.OK), new Response());
+                } else if(ProtocolType.CloseSession.equals(header.getType())){
+                    closeSessionSent.set(true);
+                }
+                // the GetService never gets the Response.
+            }
+
+        };
+
+        final DirectoryConnection connection = new DirectoryConnection(directoryServers.getNextDirectoryServer(), new WatcherManager(), socket, "user", "password");
+        socket.setConnection(connection);
+        connection.start();
+        connection.blockUtilConnected();
+
+        ServiceDirectoryFuture future = connection.submitAsyncRequest(new ProtocolHeader(3, ProtocolType.GetService), new GetServiceProtocol("mocksvc"), null, 0);
+        final AtomicReference<ErrorCode> callbackError = new AtomicReference<ErrorCode>();
+        final AtomicReference<Thread> eventThread = new AtomicReference<Thread>();
+        connection.submitCallbackRequest(new ProtocolHeader(3, ProtocolType.GetService), new GetServiceProtocol("mocksvc"), new ProtocolCallback(){
+
+            @Override
+            public void call(boolean result, Response response, ErrorCode error, Object ctx) {
+                callbackError.set(error);
+                eventThread.set(Thread.currentThread());
+            }
+
+        }, null);
+        Assert.assertEquals(2, connection.getPendingPacketCount());
+
+        connection.close();
+
+        Assert.assertTrue(closeSessionSent.get());
+        Assert.assertEquals(0, connection.getPendingPacketCount());
+        Assert.assertTrue(future.isDone());
+        try {
+            future.get();
+            Assert.fail("The pending request should fail in close.");
+        } catch (ExecutionException e) {
+            Assert.assertEquals(ErrorCode.CLIENT_CLOSED, ((ServiceException) e.getCause()).getServiceDirectoryError().getExceptionCode());
+        }
+
+        // the EventThread runs the callback, then exits on the event of death.
+        long end = System.currentTimeMillis() + 5000;
+        while(eventThread.get() == null && System.currentTimeMillis() < end){
+            Thread.sleep(10);
+        }
+        Assert.assertNotNull(eventThread.get());
+        Assert.assertNotNull(callbackError.get());
+        eventThread.get().join(5000);
+        Assert.assertFalse(eventThread.get().isAlive());
+    }
+
+    @Test
+    public void testPacketLatencyStages() throws Exception{
+        LOGGER.info("============testPacketLatencyStages=====================");
+        List<String> servers = new ArrayList<String>();
+        servers.add("localhost:8901");
+        DirectoryServers directoryServers = new DirectoryServers(servers);
+
+        // the socket only queues the frame, it is written 100ms later like the NIO socket.
+        DirectorySocket socket = new DirectorySocket(){
+
+            private InetSocketAddress server = null;
+            private SocketThread t ;
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public boolean connect(InetSocketAddress address) {
+                closeSocketThread();
+                t = new SocketThread(this.clientConnection);
+                t.start();
+                this.server = address;
+                return true;
+            }
+
+            private void closeSocketThread(){
+                if(t != null){
+                    t.toStop();
+                    t.interrupt();
+                    t = null;
+                }
+            }
+
+            @Override
+            public SocketAddress getRemoteSocketAddress() {
+                return server;
+            }
+
+            @Override
+            public SocketAddress getLocalSocketAddress() {
+                return InetSocketAddress.createUnresolved("localhost", 23456);
+            }
+
+            @Override
+            public void cleanup() {
+                closeSocketThread();
+            }
+
+            @Override
+            public void sendPacket(final ProtocolHeader header, Protocol p)
+                    throws IOException {
+                if(ProtocolType.CreateSession.equals((header.getType()))){
+                    ConnectResponse response = new ConnectResponse(0, 4000, "1", null, 1);
+                    t.queueResonse(new ResponseHeader(header.getXid(), 1, ErrorCode.OK), response);
+                } else if(ProtocolType.Ping.equals(header.getType())){
+                    t.queueResonse(new ResponseHeader(-2, 2, ErrorCode.OK), new Response());
+                } else if(ProtocolType.GetAllServices.equals(header.getType())){
+                    final SocketThread st = t;
+                    new Thread(){
+
+                        @Override
+                        public void run() {
+                            try {
+                                Thread.sleep(100);
+                            } catch (InterruptedException e) {
+                                // do nothing.
+                            }
+                            clientConnection.onPacketSent(header.getXid());
+                            st.queueResonse(new ResponseHeader(header.getXid(), 1, ErrorCode.OK), new Response());
+                        }
+
+                    }.start();
+                }
+            }
+
+        };
+
+        DirectoryConnection connection = new DirectoryConnection(directoryServers.getNextDirectoryServer(), new WatcherManager(), socket, "user", "password");
+        socket.setConnection(connection);
+        connection.start();
+        connection.blockUtilConnected();
+
+        PacketLatency.reset();
+        connection.submitRequest(new ProtocolHeader(3, ProtocolType.GetAllServices), null, null);
+
+        LatencyHistogram send = PacketLatency.getHistogram(ProtocolType.GetAllServices, Stage.SEND);
+        LatencyHistogram server = PacketLatency.getHistogram(ProtocolType.GetAllServices, Stage.SERVER);
+        Assert.assertEquals(1, PacketLatency.getHistogram(ProtocolType.GetAllServices, Stage.QUEUE).getCount());
+        Assert.assertEquals(1, send.getCount());
+        Assert.assertEquals(1, server.getCount());
+        Assert.assertEquals(1, PacketLatency.getHistogram(ProtocolType.GetAllServices, Stage.TOTAL).getCount());
+        // the write delay is in the SEND, the SERVER is from the frame written.
+        Assert.assertTrue(send.getMax() >= TimeUnit.MILLISECONDS.toNanos(90));
+        Assert.assertTrue(server.getMax() < TimeUnit.MILLISECONDS.toNanos(90));
+
+        connection.close();
+    }
+
+    @Test
+    public void testConnectionMBean() throws Exception{
+        LOGGER.info("============testConnectionMBean=====================");
+        List<String> servers = new ArrayList<String>();
+        servers.add("localhost:8901");
+        DirectoryServers directoryServers = new DirectoryServers(servers);
+
+        CustomerDirectorySocket socket = new CustomerDirectorySocket();
+        DirectoryConnection connection = new DirectoryConnection(directoryServers.getNextDirectoryServer(), new WatcherManager(), socket, "user", "password");
+        socket.setConnection(connection);
+        connection.start();
+        connection.blockUtilConnected();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName found = null;
+        for(ObjectName name : server.queryNames(new ObjectName(MBeanRegistry.JMX_DOMAIN + ":type=DirectoryConnection,*"), null)){
+            if(connection.getSessionId().equals(server.getAttribute(name, "SessionId"))
+                    && ConnectionStatus.CONNECTED.name().equals(server.getAttribute(name, "Status"))){
+                found = name;
+            }
+        }
+        Assert.assertNotNull(found);
+        Assert.assertEquals(0, server.getAttribute(found, "InflightPackets"));
+        Assert.assertTrue((Long) server.getAttribute(found, "StatusTransitions") >= 2);
+
+        connection.close();
+        Assert.assertFalse(server.isRegistered(found));
+    }
+
     public static class CustomerDirectorySocket extends DirectorySocket{
 
         private InetSocketAddress server = null;
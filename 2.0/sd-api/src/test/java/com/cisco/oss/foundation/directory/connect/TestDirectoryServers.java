@@ -15,7 +15,9 @@
  */
 package com.cisco.oss.foundation.directory.connect;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -58,4 +60,33 @@ public class TestDirectoryServers {
         System.out.println(servers.getNextDirectoryServer());
         System.out.println(servers.getNextDirectoryServer());
     }
+
+    @Test
+    public void testSelectServer() throws IOException{
+        ServerSocket live = new ServerSocket(0);
+        ServerSocket dead = new ServerSocket(0);
+        int deadPort = dead.getLocalPort();
+        dead.close();
+
+        List<String> list = new ArrayList<String>();
+        list.add("127.0.0.1:" + deadPort);
+        list.add("127.0.0.1:" + live.getLocalPort());
+        DirectoryServers servers = new DirectoryServers(list);
+
+        try{
+            InetSocketAddress selected = servers.selectDirectoryServer(2000);
+            Assert.assertNotNull(selected);
+            Assert.assertEquals(live.getLocalPort(), selected.getPort());
+
+            long now = System.currentTimeMillis();
+            InetSocketAddress deadAddr = new InetSocketAddress("127.0.0.1", deadPort);
+            Assert.assertTrue(servers.getScore(deadAddr, now) > servers.getScore(selected, now));
+
+            List<InetSocketAddress> candidates = servers.getCandidateServers(2);
+            Assert.assertEquals(live.getLocalPort(), candidates.get(0).getPort());
+            Assert.assertEquals(deadPort, candidates.get(1).getPort());
+        } finally {
+            live.close();
+        }
+    }
 }
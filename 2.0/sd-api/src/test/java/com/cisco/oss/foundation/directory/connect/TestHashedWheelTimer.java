@@ -0,0 +1,163 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.connect;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TestHashedWheelTimer {
+
+    @Test
+    public void testTimeout() throws InterruptedException{
+        HashedWheelTimer timer = new HashedWheelTimer(10, 8);
+        timer.start();
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicLong fired = new AtomicLong();
+        long start = System.currentTimeMillis();
+        // 300ms is more than one round of the 8 * 10ms wheel.
+        timer.newTimeout(new Runnable(){
+
+            @Override
+            public void run() {
+                fired.set(System.currentTimeMillis());
+                latch.countDown();
+            }
+
+        }, 300, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(fired.get() - start >= 300);
+        timer.stop();
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException{
+        HashedWheelTimer timer = new HashedWheelTimer(10, 8);
+        timer.start();
+
+        final AtomicBoolean cancelledRun = new AtomicBoolean(false);
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(new Runnable(){
+
+            @Override
+            public void run() {
+                cancelledRun.set(true);
+            }
+
+        }, 100, TimeUnit.MILLISECONDS);
+        timeout.cancel();
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        timer.newTimeout(new Runnable(){
+
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+
+        }, 200, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(timeout.isCancelled());
+        Assert.assertFalse(cancelledRun.get());
+        timer.stop();
+    }
+
+    @Test
+    public void testCancelRemovesTimeout() throws InterruptedException{
+        HashedWheelTimer timer = new HashedWheelTimer(10, 8);
+        timer.start();
+
+        HashedWheelTimer.Timeout[] timeouts = new HashedWheelTimer.Timeout[100];
+        for(int i = 0; i < timeouts.length; i ++){
+            timeouts[i] = timer.newTimeout(new Runnable(){
+
+                @Override
+                public void run() {
+                }
+
+            }, 60, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(timeouts.length, timer.pendingTimeouts());
+
+        // let the wheel take some of them in, then cancel all.
+        Thread.sleep(50);
+        for(HashedWheelTimer.Timeout timeout : timeouts){
+            timeout.cancel();
+        }
+        long end = System.currentTimeMillis() + 5000;
+        while(timer.pendingTimeouts() > 0 && System.currentTimeMillis() < end){
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, timer.pendingTimeouts());
+        timer.stop();
+    }
+
+    @Test
+    public void testBoundedWorkers() throws InterruptedException{
+        HashedWheelTimer timer = new HashedWheelTimer(10, 8, 2, 64);
+        timer.start();
+
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch latch = new CountDownLatch(20);
+        for(int i = 0; i < 20; i ++){
+            timer.newTimeout(new Runnable(){
+
+                @Override
+                public void run() {
+                    threads.add(Thread.currentThread().getName());
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    latch.countDown();
+                }
+
+            }, 10, TimeUnit.MILLISECONDS);
+        }
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(threads.size() <= 2);
+
+        // the full queue runs the task on the wheel thread, it is not dropped.
+        HashedWheelTimer saturated = new HashedWheelTimer(10, 8, 1, 1);
+        saturated.start();
+        final CountDownLatch all = new CountDownLatch(10);
+        for(int i = 0; i < 10; i ++){
+            saturated.newTimeout(new Runnable(){
+
+                @Override
+                public void run() {
+                    all.countDown();
+                }
+
+            }, 10, TimeUnit.MILLISECONDS);
+        }
+        Assert.assertTrue(all.await(5, TimeUnit.SECONDS));
+        saturated.stop();
+        timer.stop();
+    }
+}
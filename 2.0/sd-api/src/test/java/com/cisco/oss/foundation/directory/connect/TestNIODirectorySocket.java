@@ -0,0 +1,142 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.connect;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.cisco.oss.foundation.directory.ServiceDirectory;
+import com.cisco.oss.foundation.directory.proto.GetServiceProtocol;
+import com.cisco.oss.foundation.directory.proto.ProtocolHeader;
+import com.cisco.oss.foundation.directory.proto.ProtocolType;
+
+public class TestNIODirectorySocket {
+
+    @Test
+    public void testGatheringWriteSize() throws Exception{
+        ServiceDirectory.getServiceDirectoryConfig().setProperty(NIODirectorySocket.NIO_GATHERING_WRITE_SIZE_PROPERTY, -1);
+        // the negative size doesn't fail the construction.
+        new NIODirectorySocket();
+        ServiceDirectory.getServiceDirectoryConfig().setProperty(NIODirectorySocket.NIO_GATHERING_WRITE_SIZE_PROPERTY, 0);
+        final NIODirectorySocket sk = new NIODirectorySocket();
+        ServiceDirectory.getServiceDirectoryConfig().setProperty(NIODirectorySocket.NIO_GATHERING_WRITE_SIZE_PROPERTY,
+                NIODirectorySocket.NIO_GATHERING_WRITE_SIZE_DEFAULT);
+
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final AtomicLong received = new AtomicLong();
+        Thread reader = new Thread(){
+
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    InputStream in = socket.getInputStream();
+                    byte[] buf = new byte[1024];
+                    int read;
+                    while((read = in.read(buf)) > 0){
+                        received.addAndGet(read);
+                    }
+                } catch (IOException e) {
+                    // closed.
+                }
+            }
+
+        };
+        reader.setDaemon(true);
+        reader.start();
+
+        sk.setConnection(new DirectoryConnection(){
+            @Override
+            public void onSocketError(){
+            }
+        });
+        sk.setConnectTimeOut(2000);
+        Assert.assertTrue(sk.connect(new InetSocketAddress(server.getInetAddress(), server.getLocalPort())));
+
+        // the size 0 is taken as 1, the frames are written one by one.
+        for(int i = 0; i < 3; i ++){
+            sk.sendPacket(new ProtocolHeader(i + 1, ProtocolType.GetService), new GetServiceProtocol("odrm"));
+        }
+        long end = System.currentTimeMillis() + 5000;
+        while((sk.getBytesSent() == 0 || received.get() < sk.getBytesSent()) && System.currentTimeMillis() < end){
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(sk.getBytesSent() > 0);
+        Assert.assertEquals(sk.getBytesSent(), received.get());
+
+        sk.cleanup();
+        server.close();
+    }
+
+    @Test
+    public void testSocketFailure() throws Exception{
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Thread resetter = new Thread(){
+
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    Thread.sleep(200);
+                    // close with RST.
+                    socket.setSoLinger(true, 0);
+                    socket.close();
+                } catch (Exception e) {
+                    // closed.
+                }
+            }
+
+        };
+        resetter.setDaemon(true);
+        resetter.start();
+
+        final AtomicBoolean socketError = new AtomicBoolean(false);
+        NIODirectorySocket sk = new NIODirectorySocket();
+        sk.setConnection(new DirectoryConnection(){
+            @Override
+            public void onSocketError(){
+                socketError.set(true);
+            }
+        });
+        sk.setConnectTimeOut(2000);
+        Assert.assertTrue(sk.connect(new InetSocketAddress(server.getInetAddress(), server.getLocalPort())));
+
+        // the failed socket is closed and reported, the NIO thread doesn't spin on it.
+        long end = System.currentTimeMillis() + 5000;
+        while(! socketError.get() && System.currentTimeMillis() < end){
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(socketError.get());
+        Assert.assertFalse(sk.isConnected());
+        try {
+            sk.sendPacket(new ProtocolHeader(1, ProtocolType.GetService), new GetServiceProtocol("odrm"));
+            Assert.fail("The closed socket should not send.");
+        } catch (IOException e) {
+            // expected.
+        }
+        server.close();
+    }
+}
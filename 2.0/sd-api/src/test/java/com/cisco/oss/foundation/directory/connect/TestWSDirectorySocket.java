@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -51,9 +52,12 @@ import com.cisco.oss.foundation.directory.entity.ModelService;
 import com.cisco.oss.foundation.directory.entity.ModelServiceInstance;
 import com.cisco.oss.foundation.directory.entity.OperationalStatus;
 import com.cisco.oss.foundation.directory.exception.ErrorCode;
+import com.cisco.oss.foundation.directory.proto.BinaryProtocolCodec;
 import com.cisco.oss.foundation.directory.proto.GetServiceProtocol;
 import com.cisco.oss.foundation.directory.proto.GetServiceResponse;
 import com.cisco.oss.foundation.directory.proto.Protocol;
+import com.cisco.oss.foundation.directory.proto.ProtocolCodec;
+import com.cisco.oss.foundation.directory.proto.ProtocolCodec.ProtocolFrame;
 import com.cisco.oss.foundation.directory.proto.ProtocolHeader;
 import com.cisco.oss.foundation.directory.proto.ProtocolType;
 import com.cisco.oss.foundation.directory.proto.Response;
@@ -242,6 +246,77 @@ public class TestWSDirectorySocket {
         }
     }
 
+    @Test
+    public void testUtf8Length() throws Exception{
+        String[] texts = {"", "{\"xid\":1}", "caf\u00e9", "\u4e2d\u6587", "\ud83d\ude00", "a\ud83d", "\ude00b"};
+        for(String text : texts){
+            Assert.assertEquals(text, text.getBytes("UTF-8").length, WSDirectorySocket.utf8Length(text));
+        }
+    }
+
+    @Test
+    public void testSendPacketBinary() throws Exception{
+        InetSocketAddress address = new InetSocketAddress(
+                InetAddress.getLocalHost(), 8091);
+
+        DefaultWebSocketListener wsSocket = new DefaultWebSocketListener();
+        wsSocket.binary = true;
+        Server server = startWSServer(address, wsSocket);
+
+        WSDirectorySocket sk = new WSDirectorySocket();
+        CustomerDirectoryConnect conn = new CustomerDirectoryConnect();
+        sk.setConnection(conn);
+        sk.setConnectTimeOut(4000);
+        sk.connect(address);
+        Assert.assertTrue(sk.isConnected());
+
+        ProtocolHeader header = new ProtocolHeader(3, ProtocolType.GetService);
+        GetServiceProtocol p = new GetServiceProtocol("mocksvc");
+
+        ModelService service = new ModelService("mocksvc", "34");
+        List<ModelServiceInstance> serviceInstances = new ArrayList<ModelServiceInstance>();
+        Map<String, String> metadata = new HashMap<String, String>();
+        metadata.put("dc", "usa");
+        serviceInstances.add(new ModelServiceInstance("mocksvc", "127.0.0.1-9080", "0", "http://new.test.com/t",
+                OperationalStatus.UP, "127.0.0.1", 9080, metadata));
+        service.setServiceInstances(serviceInstances);
+        wsSocket.setResponse(new ResponseHeader(3, 4, ErrorCode.OK), new GetServiceResponse(service));
+
+        sk.sendPacket(header, p);
+        Thread.sleep(1000);
+
+        wsSocket.doProtocolCompare(new ProtocolCompare(){
+
+            @Override
+            public boolean comare(ProtocolHeader header, Protocol protocol) {
+                Assert.assertEquals(ProtocolType.GetService, header.getType());
+                Assert.assertEquals(3, header.getXid());
+                Assert.assertEquals("mocksvc", ((GetServiceProtocol) protocol).getServiceName());
+                return true;
+            }
+
+        });
+        Assert.assertEquals(1, wsSocket.binaryCount);
+
+        conn.doResponseCompare(new ResponseCompare(){
+
+            @Override
+            public boolean compare(ResponseHeader header, Response response) {
+                Assert.assertEquals(3, header.getXid());
+                Assert.assertEquals(4, header.getDxid());
+                Assert.assertEquals(ErrorCode.OK, header.getErr());
+                ModelService svc = ((GetServiceResponse) response).getService();
+                Assert.assertEquals("mocksvc", svc.getName());
+                Assert.assertEquals("usa", svc.getServiceInstances().get(0).getMetadata().get("dc"));
+                return true;
+            }
+
+        });
+
+        sk.cleanup();
+        server.stop();
+    }
+
     @WebServlet(name = "API websocket", urlPatterns = { "/ws/service" })
     public static class SocketServlet extends WebSocketServlet {
         DefaultWebSocketListener listener;
@@ -273,6 +348,9 @@ public class TestWSDirectorySocket {
 
         @Override
         public Object createWebSocket(UpgradeRequest req, UpgradeResponse resp) {
+            if(listener.binary && req.getSubProtocols().contains(WSDirectorySocket.WEBSOCKET_BINARY_SUBPROTOCOL)){
+                resp.setAcceptedSubProtocol(WSDirectorySocket.WEBSOCKET_BINARY_SUBPROTOCOL);
+            }
             return listener;
         }
 
@@ -342,6 +420,10 @@ public class TestWSDirectorySocket {
         ResponseHeader responseHeader;
         Response response;
 
+        boolean binary = false;
+        int binaryCount = 0;
+        ProtocolCodec codec = new BinaryProtocolCodec();
+
         public synchronized void doProtocolCompare(ProtocolCompare protocolCompare){
             Assert.assertTrue(protocolCompare.comare(protocolHeader, protocol));
         }
@@ -353,6 +435,17 @@ public class TestWSDirectorySocket {
         @Override
         public void onWebSocketBinary(byte[] payload, int offset, int len) {
             LOGGER.info("WS Server socket receive binary message.");
+            try {
+                synchronized(this){
+                    ProtocolFrame frame = codec.decodeProtocol(payload, offset, len);
+                    protocolHeader = frame.getHeader();
+                    protocol = frame.getProtocol();
+                    binaryCount ++;
+                }
+                session.getRemote().sendBytes(ByteBuffer.wrap(codec.encodeResponse(responseHeader, response)));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
 
         @Override
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.connect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TestWatcherEventDispatcher {
+
+    @Test
+    public void testServiceOrder() throws InterruptedException{
+        WatcherEventDispatcher dispatcher = new WatcherEventDispatcher(4);
+        dispatcher.start();
+
+        final List<Integer> result = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch = new CountDownLatch(100);
+        for(int i = 0; i < 100; i ++){
+            final int index = i;
+            dispatcher.dispatch("svc1", new Runnable(){
+
+                @Override
+                public void run() {
+                    result.add(index);
+                    latch.countDown();
+                }
+
+            });
+        }
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for(int i = 0; i < 100; i ++){
+            Assert.assertEquals(i, result.get(i).intValue());
+        }
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testSlowService() throws InterruptedException{
+        WatcherEventDispatcher dispatcher = new WatcherEventDispatcher(4);
+        dispatcher.start();
+
+        String slowService = "svc1";
+        String fastService = "svc2";
+        for(int i = 0; dispatcher.indexOf(slowService) == dispatcher.indexOf(fastService); i ++){
+            fastService = "svc2-" + i;
+        }
+
+        final CountDownLatch block = new CountDownLatch(1);
+        dispatcher.dispatch(slowService, new Runnable(){
+
+            @Override
+            public void run() {
+                try {
+                    block.await();
+                } catch (InterruptedException e) {
+                    // do nothing.
+                }
+            }
+
+        });
+
+        final CountDownLatch fast = new CountDownLatch(1);
+        dispatcher.dispatch(fastService, new Runnable(){
+
+            @Override
+            public void run() {
+                fast.countDown();
+            }
+
+        });
+
+        Assert.assertTrue(fast.await(5, TimeUnit.SECONDS));
+        block.countDown();
+        dispatcher.shutdown();
+    }
+}
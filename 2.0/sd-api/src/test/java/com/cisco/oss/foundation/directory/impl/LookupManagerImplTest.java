@@ -23,6 +23,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -37,12 +42,16 @@ import com.cisco.oss.foundation.directory.entity.ModelMetadataKey;
 import com.cisco.oss.foundation.directory.entity.ModelService;
 import com.cisco.oss.foundation.directory.entity.ModelServiceInstance;
 import com.cisco.oss.foundation.directory.entity.OperationalStatus;
+import com.cisco.oss.foundation.directory.entity.ServiceInstance;
 import com.cisco.oss.foundation.directory.entity.ServiceInstanceEvent;
 import com.cisco.oss.foundation.directory.entity.WatchedService;
 import com.cisco.oss.foundation.directory.exception.ErrorCode;
 import com.cisco.oss.foundation.directory.exception.ServiceException;
+import com.cisco.oss.foundation.directory.lb.MetadataQueryRRLoadBalancer;
+import com.cisco.oss.foundation.directory.lb.ServiceQueryRRLoadBalancer;
 import com.cisco.oss.foundation.directory.proto.ConnectProtocol;
 import com.cisco.oss.foundation.directory.proto.ConnectResponse;
+import com.cisco.oss.foundation.directory.proto.GetServiceChangingByVersionResponse;
 import com.cisco.oss.foundation.directory.proto.GetServiceResponse;
 import com.cisco.oss.foundation.directory.proto.Protocol;
 import com.cisco.oss.foundation.directory.proto.ProtocolHeader;
@@ -200,6 +209,292 @@ public class LookupManagerImplTest {
         impl.stop();
     }
 
+    @Test
+    public void testResyncCache() {
+        final CustomerDirectorySocket socket = new CustomerDirectorySocket();
+        CachedDirectoryLookupService lookup = startLookupService(socket);
+        DirectoryServiceClient client = lookup.getDirectoryServiceClient();
+
+        ModelService snapshot = lookup.getModelService("odrm");
+        Assert.assertEquals(1, snapshot.getServiceInstances().size());
+        Assert.assertEquals(1, client.watcherManager.getWatchers("odrm").size());
+        try {
+            snapshot.getServiceInstances().clear();
+            Assert.fail("The cached ModelService is modifiable");
+        } catch (UnsupportedOperationException e) {
+            // the cached ModelService is immutable.
+        }
+
+        // the watchers are cleaned with the expired session.
+        client.watcherManager.cleanup();
+
+        List<ModelServiceInstance> instances = new ArrayList<ModelServiceInstance>();
+        instances.add(new ModelServiceInstance("odrm", "192.168.2.3-8901", "192.168.2.3-8901",
+                "http://cisco.com/vbo/odrm/setupsession", OperationalStatus.DOWN, "192.168.2.3", 8901, null));
+        instances.add(new ModelServiceInstance("odrm", "192.168.2.4-8901", "192.168.2.4-8901",
+                "http://cisco.com/vbo/odrm/setupsession", OperationalStatus.UP, "192.168.2.4", 8901, null));
+        ModelService changed = new ModelService("odrm", "odrm");
+        changed.setServiceInstances(instances);
+        Map<String, ModelService> services = new HashMap<String, ModelService>();
+        services.put("odrm", changed);
+        socket.setResponse(new ResponseHeader(0, 5, ErrorCode.OK), new GetServiceChangingByVersionResponse(services));
+
+        lookup.resyncCache();
+
+        Assert.assertEquals(1, client.watcherManager.getWatchers("odrm").size());
+        List<ModelServiceInstance> cached = lookup.getModelService("odrm").getServiceInstances();
+        Assert.assertEquals(2, cached.size());
+        Assert.assertEquals(OperationalStatus.DOWN, lookup.getModelServiceInstance("odrm", "192.168.2.3-8901").getStatus());
+        Assert.assertEquals(OperationalStatus.UP, lookup.getModelServiceInstance("odrm", "192.168.2.4-8901").getStatus());
+
+        List<ModelServiceInstance> up = lookup.getUPModelInstances("odrm");
+        Assert.assertEquals(1, up.size());
+        Assert.assertEquals("192.168.2.4-8901", up.get(0).getInstanceId());
+        Assert.assertSame(up, lookup.getUPModelInstances("odrm"));
+        List<ServiceInstance> upViews = lookup.getUPServiceInstances("odrm");
+        Assert.assertSame(upViews, lookup.getUPServiceInstances("odrm"));
+        Assert.assertSame(upViews.get(0), lookup.getServiceInstance(up.get(0)));
+        Assert.assertEquals(2, lookup.getServiceInstances("odrm").size());
+
+        // the earlier snapshot is not changed.
+        Assert.assertEquals(1, snapshot.getServiceInstances().size());
+        Assert.assertEquals(OperationalStatus.UP, snapshot.getServiceInstances().get(0).getStatus());
+
+        lookup.stop();
+        client.close();
+    }
+
+    @Test
+    public void testScheduleResync() throws InterruptedException {
+        final AtomicInteger resyncCount = new AtomicInteger();
+        final AtomicReference<Thread> resyncThread = new AtomicReference<Thread>();
+        // every resync request is held until the test releases it.
+        final Semaphore sent = new Semaphore(0);
+        final Semaphore released = new Semaphore(0);
+        final CustomerDirectorySocket socket = new CustomerDirectorySocket(){
+
+            @Override
+            public void sendPacket(ProtocolHeader header, Protocol p)
+                    throws IOException {
+                if (ProtocolType.GetServiceChangingByVersion.equals(header.getType())) {
+                    resyncCount.incrementAndGet();
+                    resyncThread.set(Thread.currentThread());
+                    sent.release();
+                    try {
+                        released.tryAcquire(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        // do nothing.
+                    }
+                }
+                super.sendPacket(header, p);
+            }
+        };
+        CachedDirectoryLookupService lookup = startLookupService(socket);
+        DirectoryServiceClient client = lookup.getDirectoryServiceClient();
+        Assert.assertEquals(1, lookup.getModelService("odrm").getServiceInstances().size());
+        client.watcherManager.cleanup();
+
+        List<ModelServiceInstance> instances = new ArrayList<ModelServiceInstance>();
+        instances.add(new ModelServiceInstance("odrm", "192.168.2.3-8901", "192.168.2.3-8901",
+                "http://cisco.com/vbo/odrm/setupsession", OperationalStatus.UP, "192.168.2.3", 8901, null));
+        instances.add(new ModelServiceInstance("odrm", "192.168.2.4-8901", "192.168.2.4-8901",
+                "http://cisco.com/vbo/odrm/setupsession", OperationalStatus.UP, "192.168.2.4", 8901, null));
+        ModelService changed = new ModelService("odrm", "odrm");
+        changed.setServiceInstances(instances);
+        Map<String, ModelService> services = new HashMap<String, ModelService>();
+        services.put("odrm", changed);
+        socket.setResponse(new ResponseHeader(0, 5, ErrorCode.OK), new GetServiceChangingByVersionResponse(services));
+
+        // the trigger doesn't block on the request, it runs in the resync thread.
+        lookup.scheduleResync();
+        Assert.assertTrue(sent.tryAcquire(5, TimeUnit.SECONDS));
+        Assert.assertNotSame(Thread.currentThread(), resyncThread.get());
+        Assert.assertEquals(1, resyncCount.get());
+
+        // the triggers in the running resync share one queued resync.
+        for(int i = 0; i < 10; i ++){
+            lookup.scheduleResync();
+        }
+        released.release();
+        Assert.assertTrue(sent.tryAcquire(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, resyncCount.get());
+        released.release();
+        Assert.assertFalse(sent.tryAcquire(500, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(2, resyncCount.get());
+
+        long end = System.currentTimeMillis() + 5000;
+        while(lookup.getModelService("odrm").getServiceInstances().size() != 2 && System.currentTimeMillis() < end){
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2, lookup.getModelService("odrm").getServiceInstances().size());
+        Assert.assertEquals(1, client.watcherManager.getWatchers("odrm").size());
+
+        lookup.stop();
+        client.close();
+    }
+
+    @Test
+    public void testConcurrentCacheMiss() throws InterruptedException {
+        final AtomicInteger getServiceCount = new AtomicInteger();
+        final CustomerDirectorySocket socket = new CustomerDirectorySocket(){
+
+            @Override
+            public void sendPacket(ProtocolHeader header, Protocol p)
+                    throws IOException {
+                if (ProtocolType.GetService.equals(header.getType())) {
+                    getServiceCount.incrementAndGet();
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        // do nothing.
+                    }
+                }
+                super.sendPacket(header, p);
+            }
+        };
+        final CachedDirectoryLookupService lookup = startLookupService(socket);
+        DirectoryServiceClient client = lookup.getDirectoryServiceClient();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(20);
+        final AtomicInteger found = new AtomicInteger();
+        for(int i = 0; i < 20; i ++){
+            new Thread(){
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        if(lookup.getModelService("odrm") != null){
+                            found.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        // do nothing.
+                    } finally {
+                        done.countDown();
+                    }
+                }
+
+            }.start();
+        }
+        start.countDown();
+
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(20, found.get());
+        Assert.assertEquals(1, getServiceCount.get());
+        Assert.assertEquals(1, client.watcherManager.getWatchers("odrm").size());
+
+        lookup.stop();
+        client.close();
+    }
+
+    @Test
+    public void testQueryLoadBalancerCache() {
+        final AtomicInteger queryServiceCount = new AtomicInteger();
+        final CustomerDirectorySocket socket = new CustomerDirectorySocket(){
+
+            @Override
+            public void sendPacket(ProtocolHeader header, Protocol p)
+                    throws IOException {
+                if (ProtocolType.QueryService.equals(header.getType())) {
+                    queryServiceCount.incrementAndGet();
+                }
+                super.sendPacket(header, p);
+            }
+        };
+        CachedDirectoryLookupService lookup = startLookupService(socket);
+        DirectoryServiceClient client = lookup.getDirectoryServiceClient();
+
+        ServiceQueryRRLoadBalancer serviceLB = new ServiceQueryRRLoadBalancer(lookup, "odrm",
+                new ServiceInstanceQuery().getEqualQueryCriterion("solution", "core"));
+        MetadataQueryRRLoadBalancer metadataLB = new MetadataQueryRRLoadBalancer(lookup,
+                new ServiceInstanceQuery().getEqualQueryCriterion("solution", "core"));
+
+        List<ModelServiceInstance> serviceList = serviceLB.getServiceInstanceList();
+        Assert.assertEquals(1, serviceList.size());
+        Assert.assertSame(serviceList, serviceLB.getServiceInstanceList());
+        List<ModelServiceInstance> metadataList = metadataLB.getServiceInstanceList();
+        Assert.assertEquals(1, metadataList.size());
+        Assert.assertSame(metadataList, metadataLB.getServiceInstanceList());
+        Assert.assertEquals(1, queryServiceCount.get());
+
+        Map<String, String> metadata = new HashMap<String, String>();
+        metadata.put("solution", "core");
+        List<ModelServiceInstance> instances = new ArrayList<ModelServiceInstance>();
+        instances.add(new ModelServiceInstance("odrm", "192.168.2.3-8901", "192.168.2.3-8901",
+                "http://cisco.com/vbo/odrm/setupsession", OperationalStatus.UP, "192.168.2.3", 8901, metadata));
+        instances.add(new ModelServiceInstance("odrm", "192.168.2.4-8901", "192.168.2.4-8901",
+                "http://cisco.com/vbo/odrm/setupsession", OperationalStatus.UP, "192.168.2.4", 8901, metadata));
+        ModelService changed = new ModelService("odrm", "odrm");
+        changed.setServiceInstances(instances);
+        Map<String, ModelService> services = new HashMap<String, ModelService>();
+        services.put("odrm", changed);
+        socket.setResponse(new ResponseHeader(0, 5, ErrorCode.OK), new GetServiceChangingByVersionResponse(services));
+        lookup.resyncCache();
+
+        // the changed Service version makes both filter again, without querying the server.
+        Assert.assertEquals(2, serviceLB.getServiceInstanceList().size());
+        Assert.assertEquals(2, metadataLB.getServiceInstanceList().size());
+        Assert.assertEquals(1, queryServiceCount.get());
+
+        // the added QueryCriterion makes both filter again in the same Service version.
+        serviceLB.getServiceInstanceQuery().getContainQueryCriterion("datacenter");
+        metadataLB.getServiceInstanceQuery().getContainQueryCriterion("datacenter");
+        Assert.assertEquals(0, serviceLB.getServiceInstanceList().size());
+        Assert.assertEquals(0, metadataLB.getServiceInstanceList().size());
+
+        lookup.stop();
+        client.close();
+    }
+
+    @Test
+    public void testReportClosed(){
+        final DirectoryServiceClient client = newDirectoryServiceClient(new CustomerDirectorySocket());
+        LookupManagerImpl impl = new LookupManagerImpl(new DirectoryServiceClientManager() {
+
+            @Override
+            public DirectoryServiceClient getDirectoryServiceClient() {
+                return client;
+            }
+        });
+        ServiceInstance instance = new ServiceInstance("odrm", "192.168.2.3-8901", "http://cisco.com/vbo/odrm/setupsession",
+                false, OperationalStatus.UP, "192.168.2.3", 8901, null);
+        try {
+            impl.report(instance, 1000, true);
+            Assert.fail("report should fail when the LookupManager is not started.");
+        } catch (ServiceException e) {
+            Assert.assertEquals(ErrorCode.SERVICE_DIRECTORY_MANAGER_FACTORY_CLOSED,
+                    e.getServiceDirectoryError().getExceptionCode());
+        }
+        client.close();
+    }
+
+    /**
+     * Create a DirectoryServiceClient on the socket.
+     */
+    private static DirectoryServiceClient newDirectoryServiceClient(DirectorySocket socket){
+        List<String> servers = new ArrayList<String>();
+        servers.add("localhost:8901");
+        return new DirectoryServiceClient(servers, "admin", "admin", socket);
+    }
+
+    /**
+     * Start a CachedDirectoryLookupService on a DirectoryServiceClient of the socket.
+     */
+    private static CachedDirectoryLookupService startLookupService(DirectorySocket socket){
+        final DirectoryServiceClient client = newDirectoryServiceClient(socket);
+        CachedDirectoryLookupService lookup = new CachedDirectoryLookupService(
+                new DirectoryServiceClientManager() {
+
+                    @Override
+                    public DirectoryServiceClient getDirectoryServiceClient() {
+                        return client;
+                    }
+                });
+        lookup.start();
+        return lookup;
+    }
+
     private ModelServiceInstance duplicateInstance(ModelServiceInstance instance){
         Map<String, String> m = null;
         if(instance.getMetadata() != null){
@@ -38,6 +38,7 @@ import com.cisco.oss.foundation.directory.entity.ServiceInstance;
 import com.cisco.oss.foundation.directory.entity.User;
 import com.cisco.oss.foundation.directory.exception.ErrorCode;
 import com.cisco.oss.foundation.directory.exception.ServiceException;
+import com.cisco.oss.foundation.directory.lb.LoadBalancerStrategy;
 import com.cisco.oss.foundation.directory.lifecycle.Closable;
 import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery;
 
@@ -269,6 +270,17 @@ public class ServiceDirectoryImplTest implements ServiceDirectoryManagerFactory,
             return null;
         }
 
+        @Override
+        public ServiceInstance lookupInstance(String serviceName,
+                LoadBalancerStrategy strategy) throws ServiceException {
+            return null;
+        }
+
+        @Override
+        public void report(ServiceInstance instance, long latencyNanos,
+                boolean success) {
+        }
+
         @Override
         public List<ServiceInstance> lookupInstances(String serviceName)
                 throws ServiceException {
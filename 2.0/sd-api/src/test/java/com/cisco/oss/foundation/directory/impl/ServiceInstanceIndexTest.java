@@ -0,0 +1,106 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.cisco.oss.foundation.directory.entity.ModelServiceInstance;
+import com.cisco.oss.foundation.directory.entity.OperationalStatus;
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery;
+
+public class ServiceInstanceIndexTest {
+
+    @Test
+    public void testMatch(){
+        List<ModelServiceInstance> instances = new ArrayList<ModelServiceInstance>();
+        for(int i = 0; i < 20; i ++){
+            Map<String, String> metadata = new HashMap<String, String>();
+            metadata.put("version", "v" + (i % 3));
+            if(i % 2 == 0){
+                metadata.put("datacenter", "dc" + (i % 4));
+            }
+            if(i % 5 == 0){
+                metadata.put("solution", "core");
+            }
+            if(i % 7 == 1){
+                // the null valued keys are contained, but never match the value criteria.
+                metadata.put("datacenter", null);
+                metadata.put("solution", null);
+            }
+            OperationalStatus status = i % 4 == 3 ? OperationalStatus.DOWN : OperationalStatus.UP;
+            instances.add(new ModelServiceInstance("odrm", "192.168.2." + i + "-8901", "192.168.2." + i + "-8901",
+                    "http://cisco.com/vbo/odrm/setupsession", status, "192.168.2." + i, 8901, metadata));
+        }
+        instances.add(new ModelServiceInstance("odrm", "192.168.2.30-8901", "192.168.2.30-8901",
+                "http://cisco.com/vbo/odrm/setupsession", OperationalStatus.UP, "192.168.2.30", 8901, new HashMap<String, String>()));
+
+        List<ServiceInstanceQuery> queries = new ArrayList<ServiceInstanceQuery>();
+        queries.add(new ServiceInstanceQuery());
+        queries.add(new ServiceInstanceQuery().getEqualQueryCriterion("version", "v1"));
+        queries.add(new ServiceInstanceQuery().getEqualQueryCriterion("version", "v9"));
+        queries.add(new ServiceInstanceQuery().getNotEqualQueryCriterion("datacenter", "dc0"));
+        queries.add(new ServiceInstanceQuery().getContainQueryCriterion("solution"));
+        queries.add(new ServiceInstanceQuery().getNotContainQueryCriterion("datacenter"));
+        queries.add(new ServiceInstanceQuery().getInQueryCriterion("version", Arrays.asList("v0", "v2", "v7")));
+        queries.add(new ServiceInstanceQuery().getNotInQueryCriterion("datacenter", Arrays.asList("dc2", "dc9")));
+        queries.add(new ServiceInstanceQuery().getPatternQueryCriterion("version", "v[01]"));
+        queries.add(new ServiceInstanceQuery().getEqualQueryCriterion("version", "v0")
+                .getContainQueryCriterion("datacenter").getNotEqualQueryCriterion("solution", "edge"));
+        queries.add(new ServiceInstanceQuery().getContainQueryCriterion("missing"));
+        queries.add(new ServiceInstanceQuery().getNotContainQueryCriterion("missing"));
+        queries.add(new ServiceInstanceQuery().getNotEqualQueryCriterion("solution", "edge"));
+        queries.add(new ServiceInstanceQuery().getNotInQueryCriterion("solution", Arrays.asList("edge")));
+        queries.add(new ServiceInstanceQuery().getEqualQueryCriterion("solution", null));
+        queries.add(new ServiceInstanceQuery().getContainQueryCriterion("solution"));
+
+        ModelServiceInstance[] array = instances.toArray(new ModelServiceInstance[instances.size()]);
+        ServiceInstanceIndex index = new ServiceInstanceIndex(array);
+        List<ModelServiceInstance> ups = new ArrayList<ModelServiceInstance>();
+        for(ModelServiceInstance instance : instances){
+            if(OperationalStatus.UP.equals(instance.getStatus())){
+                ups.add(instance);
+            }
+        }
+        for(ServiceInstanceQuery query : queries){
+            Assert.assertEquals(query.toString(), ServiceInstanceQueryHelper.filter(query, instances),
+                    select(array, index.match(query, false)));
+            Assert.assertEquals(query.toString(), ServiceInstanceQueryHelper.filter(query, ups),
+                    select(array, index.match(query, true)));
+        }
+
+        // the match result is a copy.
+        BitSet bits = index.match(queries.get(0), false);
+        bits.clear();
+        Assert.assertEquals(instances.size(), index.match(queries.get(0), false).cardinality());
+    }
+
+    private static List<ModelServiceInstance> select(ModelServiceInstance[] array, BitSet bits){
+        List<ModelServiceInstance> list = new ArrayList<ModelServiceInstance>();
+        for(int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)){
+            list.add(array[i]);
+        }
+        return list;
+    }
+}
@@ -20,7 +20,12 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
@@ -29,10 +34,12 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.cisco.oss.foundation.directory.async.BatchWatcher;
 import com.cisco.oss.foundation.directory.async.Callback.GetServiceCallback;
 import com.cisco.oss.foundation.directory.async.Callback.RegistrationCallback;
 import com.cisco.oss.foundation.directory.async.ServiceDirectoryFuture;
 import com.cisco.oss.foundation.directory.async.Watcher;
+import com.cisco.oss.foundation.directory.connect.DirectoryConnection;
 import com.cisco.oss.foundation.directory.connect.DirectorySocket;
 import com.cisco.oss.foundation.directory.connect.TestDirectoryConnection.SocketThread;
 import com.cisco.oss.foundation.directory.entity.ACL;
@@ -44,7 +51,11 @@ import com.cisco.oss.foundation.directory.entity.ProvidedServiceInstance;
 import com.cisco.oss.foundation.directory.entity.ServiceInstanceEvent;
 import com.cisco.oss.foundation.directory.entity.User;
 import com.cisco.oss.foundation.directory.entity.WatchedService;
+import com.cisco.oss.foundation.directory.event.ServiceDirectoryEvent;
+import com.cisco.oss.foundation.directory.event.ServiceDirectoryEvent.ClientSessionEvent;
+import com.cisco.oss.foundation.directory.event.ServiceDirectoryListener;
 import com.cisco.oss.foundation.directory.exception.ErrorCode;
+import com.cisco.oss.foundation.directory.exception.ServiceException;
 import com.cisco.oss.foundation.directory.proto.ConnectProtocol;
 import com.cisco.oss.foundation.directory.proto.ConnectResponse;
 import com.cisco.oss.foundation.directory.proto.GetACLResponse;
@@ -58,8 +69,12 @@ import com.cisco.oss.foundation.directory.proto.ProtocolType;
 import com.cisco.oss.foundation.directory.proto.Response;
 import com.cisco.oss.foundation.directory.proto.ResponseHeader;
 import com.cisco.oss.foundation.directory.proto.ServiceInstanceOperate;
+import com.cisco.oss.foundation.directory.proto.ServerEvent.CloseSessionEvent;
 import com.cisco.oss.foundation.directory.proto.ServiceInstanceOperate.OperateType;
+import com.cisco.oss.foundation.directory.proto.QueryServiceResponse;
 import com.cisco.oss.foundation.directory.proto.WatcherEvent;
+import com.cisco.oss.foundation.directory.query.StringCommand;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public class TestDirectoryServiceClient {
     private final static Logger LOGGER = LoggerFactory.getLogger(TestDirectoryServiceClient.class);
@@ -319,6 +334,64 @@ public class TestDirectoryServiceClient {
         client.close();
     }
 
+    @Test
+    public void testAsyncMethod() throws Exception{
+        List<String> servers = new ArrayList<String>();
+        servers.add("localhost:8901");
+        ResponseHeader respHeader = new ResponseHeader(0, 1, ErrorCode.OK);
+
+        CustomerDirectorySocket socket = new CustomerDirectorySocket();
+
+        DirectoryServiceClient client = new DirectoryServiceClient(servers, "admin", "admin", socket);
+        Assert.assertTrue(client.getStatus().isConnected());
+
+        final AtomicInteger executed = new AtomicInteger(0);
+        Executor executor = new Executor(){
+
+            @Override
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                command.run();
+            }
+
+        };
+
+        socket.setPacketCompare(new ProtocolTypePacketCompare(ProtocolType.GetService));
+        ModelService service = new ModelService("service1", "1");
+        socket.setResponse(respHeader, new GetServiceResponse(service));
+        final ListenableFuture<ModelService> serviceFuture = client.getServiceAsync("service1", null);
+        final CountDownLatch latch = new CountDownLatch(1);
+        serviceFuture.addListener(new Runnable(){
+
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+
+        }, executor);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, executed.get());
+        Assert.assertSame(service, serviceFuture.get());
+
+        socket.setPacketCompare(new ProtocolTypePacketCompare(ProtocolType.QueryService));
+        List<ModelServiceInstance> instances = new ArrayList<ModelServiceInstance>();
+        socket.setResponse(respHeader, new QueryServiceResponse(instances));
+        Assert.assertSame(instances, client.queryServiceAsync(new ArrayList<StringCommand>()).get());
+
+        socket.setPacketCompare(new ProtocolTypePacketCompare(ProtocolType.RegisterServiceInstance));
+        socket.setResponse(new ResponseHeader(0, 1, ErrorCode.SERVICE_INSTANCE_ALREADY_EXIST), new Response());
+        ListenableFuture<Void> registerFuture = client.registerServiceInstanceAsync(new ProvidedServiceInstance("service1", "127.0.0.1", 8080));
+        try {
+            registerFuture.get();
+            Assert.fail("Expect the ServiceException.");
+        } catch (ExecutionException e) {
+            Assert.assertEquals(ErrorCode.SERVICE_INSTANCE_ALREADY_EXIST,
+                    ((ServiceException) e.getCause()).getServiceDirectoryError().getExceptionCode());
+        }
+
+        client.close();
+    }
+
     @Test
     public void testWatcher() throws Exception{
         List<String> servers = new ArrayList<String>();
@@ -373,6 +446,37 @@ public class TestDirectoryServiceClient {
 
         client.deleteServiceWatcher("service1", watcher1);
         Assert.assertFalse(client.validateServiceWatcher("service1", watcher1));
+
+        final AtomicInteger batchInvoked = new AtomicInteger(0);
+        final AtomicInteger batchOperates = new AtomicInteger(0);
+        BatchWatcher watcher2 = new BatchWatcher(){
+
+            @Override
+            public void process(String name,
+                    ServiceInstanceOperate operate) {
+                Assert.fail("BatchWatcher should get the operates in batch.");
+            }
+
+            @Override
+            public void processBatch(String name,
+                    List<ServiceInstanceOperate> operates) {
+                Assert.assertEquals("service1", name);
+                Assert.assertEquals(OperateType.Add, operates.get(0).getType());
+                Assert.assertEquals(OperateType.Update, operates.get(1).getType());
+                Assert.assertTrue(operates.get(1).getServiceInstance()== instance);
+                batchInvoked.incrementAndGet();
+                batchOperates.addAndGet(operates.size());
+            }
+        };
+        client.getService("service1", watcher2);
+        wService.getServiceInstanceEvents().add(new ServiceInstanceEvent("service1", instance.getInstanceId(), OperateType.Update));
+        socket.sendResponse(watcherHeader, watcherEvent);
+
+        Thread.sleep(1000);
+
+        Assert.assertEquals(1, batchInvoked.get());
+        Assert.assertEquals(2, batchOperates.get());
+        Assert.assertEquals(3, serviceInvoked.get());
 //        final AtomicInteger metaInvoked = new AtomicInteger(0);
 
 //        Watcher watcher2 = new Watcher(){
@@ -419,6 +523,107 @@ public class TestDirectoryServiceClient {
         client.close();
     }
 
+    @Test
+    public void testConnectionPool() throws InterruptedException, ExecutionException, IOException{
+        List<String> servers = new ArrayList<String>();
+        servers.add("localhost:8901");
+
+        StallingDirectorySocket socket = new StallingDirectorySocket();
+        List<StallingDirectorySocket> poolSockets = new ArrayList<StallingDirectorySocket>();
+        poolSockets.add(new StallingDirectorySocket());
+        poolSockets.add(new StallingDirectorySocket());
+        DirectoryServiceClient client = new DirectoryServiceClient(servers, "admin", "admin", socket,
+                new ArrayList<DirectorySocket>(poolSockets));
+        Assert.assertEquals(2, client.getReadConnections().size());
+        for(DirectoryConnection conn : client.getReadConnections()){
+            conn.blockUtilConnected();
+        }
+
+        final List<ServiceDirectoryEvent> sessionEvents = Collections.synchronizedList(new ArrayList<ServiceDirectoryEvent>());
+        client.registerClientChangeListener(new ServiceDirectoryListener(){
+
+            @Override
+            public void notify(ServiceDirectoryEvent event) {
+                if(event instanceof ClientSessionEvent){
+                    sessionEvents.add(event);
+                }
+            }
+
+        });
+
+        // the Watcher registration is pinned to the session of the pinned connection.
+        Watcher watcher = new Watcher(){
+
+            @Override
+            public void process(String name, ServiceInstanceOperate operate) {
+            }
+
+        };
+        socket.setResponse(new ResponseHeader(0, 1, ErrorCode.OK), new GetServiceResponse(new ModelService("odrm", "odrm")));
+        client.getService("odrm", watcher);
+        Assert.assertEquals(1, socket.getServiceCount.get());
+        Assert.assertTrue(client.validateServiceWatcher("odrm", watcher));
+
+        // the read requests spread over the connections with the fewest pending packets.
+        List<StallingDirectorySocket> all = new ArrayList<StallingDirectorySocket>(poolSockets);
+        all.add(socket);
+        for(StallingDirectorySocket s : all){
+            s.setResponse(new ResponseHeader(0, 1, ErrorCode.OK), new QueryServiceResponse(new ArrayList<ModelServiceInstance>()));
+        }
+        List<StringCommand> commands = new ArrayList<StringCommand>();
+        List<ServiceDirectoryFuture> futures = new ArrayList<ServiceDirectoryFuture>();
+        for(int i = 0; i < 3; i ++){
+            futures.add(client.asyncQueryService(commands));
+        }
+        for(StallingDirectorySocket s : all){
+            Assert.assertEquals(1, s.stalled.size());
+            s.release();
+        }
+        for(ServiceDirectoryFuture future : futures){
+            Assert.assertNotNull(future.get());
+        }
+
+        // a pooled session closing doesn't clean the Watchers of the pinned session.
+        poolSockets.get(0).sendResponse(new ResponseHeader(-8, 2, ErrorCode.OK), new CloseSessionEvent("closed"));
+        client.getReadConnections().get(1).close();
+        Thread.sleep(200);
+        Assert.assertTrue(client.validateServiceWatcher("odrm", watcher));
+        Assert.assertTrue(sessionEvents.isEmpty());
+        Assert.assertEquals(1, socket.getServiceCount.get());
+
+        client.close();
+    }
+
+    /**
+     * The DirectorySocket holding the QueryService packets until released.
+     */
+    public static class StallingDirectorySocket extends CustomerDirectorySocket{
+
+        private final List<Object[]> stalled = new ArrayList<Object[]>();
+
+        private final AtomicInteger getServiceCount = new AtomicInteger();
+
+        @Override
+        synchronized public void sendPacket(ProtocolHeader header, Protocol p)
+                throws IOException {
+            if(ProtocolType.QueryService.equals(header.getType())){
+                stalled.add(new Object[]{header, p});
+                return;
+            }
+            if(ProtocolType.GetService.equals(header.getType())){
+                getServiceCount.incrementAndGet();
+            }
+            super.sendPacket(header, p);
+        }
+
+        synchronized public void release() throws IOException{
+            for(Object[] packet : stalled){
+                super.sendPacket((ProtocolHeader) packet[0], (Protocol) packet[1]);
+            }
+            stalled.clear();
+        }
+    }
+
     public static class CustomerDirectorySocket extends DirectorySocket{
 
         private InetSocketAddress server = null;
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.lb;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cisco.oss.foundation.directory.query.ServiceInstanceQuery;
+
+public class LoadBalancerManagerTest {
+
+    @Test
+    public void testQueryKey(){
+        LoadBalancerManager manager = new LoadBalancerManager(null, 60000, 100);
+
+        ServiceQueryRRLoadBalancer lb = manager.getServiceQueryRRLoadBalancer("odrm",
+                new ServiceInstanceQuery().getEqualQueryCriterion("solution", "core")
+                .getInQueryCriterion("datacenter", Arrays.asList("dc01", "dc02")));
+        // the equivalent query in another order shares the LoadBalancer.
+        Assert.assertSame(lb, manager.getServiceQueryRRLoadBalancer("odrm",
+                new ServiceInstanceQuery().getInQueryCriterion("datacenter", Arrays.asList("dc02", "dc01"))
+                .getEqualQueryCriterion("solution", "core")));
+        Assert.assertNotSame(lb, manager.getServiceQueryRRLoadBalancer("cdrm",
+                new ServiceInstanceQuery().getEqualQueryCriterion("solution", "core")
+                .getInQueryCriterion("datacenter", Arrays.asList("dc01", "dc02"))));
+        Assert.assertNotSame(lb, manager.getServiceQueryRRLoadBalancer("odrm",
+                new ServiceInstanceQuery().getNotEqualQueryCriterion("solution", "core")
+                .getInQueryCriterion("datacenter", Arrays.asList("dc01", "dc02"))));
+
+        MetadataQueryRRLoadBalancer metadataLB = manager.getMetadataQueryRRLoadBalancer(
+                new ServiceInstanceQuery().getContainQueryCriterion("solution"));
+        Assert.assertSame(metadataLB, manager.getMetadataQueryRRLoadBalancer(
+                new ServiceInstanceQuery().getContainQueryCriterion("solution")));
+
+        ServiceRRLoadBalancer serviceLB = manager.getServiceRRLoadBalancer("odrm");
+        Assert.assertSame(serviceLB, manager.getServiceRRLoadBalancer("odrm"));
+        Assert.assertEquals(5, manager.size());
+    }
+
+    @Test
+    public void testQueryCopy(){
+        LoadBalancerManager manager = new LoadBalancerManager(null, 60000, 100);
+
+        ServiceInstanceQuery query = new ServiceInstanceQuery().getEqualQueryCriterion("solution", "core");
+        ServiceQueryRRLoadBalancer lb = manager.getServiceQueryRRLoadBalancer("odrm", query);
+        MetadataQueryRRLoadBalancer metadataLB = manager.getMetadataQueryRRLoadBalancer(query);
+        Assert.assertNotSame(query, lb.getServiceInstanceQuery());
+        Assert.assertNotSame(query, metadataLB.getServiceInstanceQuery());
+
+        // the caller changes its own query after the LoadBalancer is cached.
+        query.getContainQueryCriterion("datacenter");
+        Assert.assertEquals(1, lb.getServiceInstanceQuery().getCriteria().size());
+        Assert.assertEquals(1, metadataLB.getServiceInstanceQuery().getCriteria().size());
+
+        // another caller of the original criteria still gets the LoadBalancer of them.
+        Assert.assertSame(lb, manager.getServiceQueryRRLoadBalancer("odrm",
+                new ServiceInstanceQuery().getEqualQueryCriterion("solution", "core")));
+        Assert.assertSame(metadataLB, manager.getMetadataQueryRRLoadBalancer(
+                new ServiceInstanceQuery().getEqualQueryCriterion("solution", "core")));
+        Assert.assertNotSame(lb, manager.getServiceQueryRRLoadBalancer("odrm", query));
+    }
+
+    @Test
+    public void testEviction() throws InterruptedException{
+        LoadBalancerManager manager = new LoadBalancerManager(null, 60000, 3);
+        ServiceRRLoadBalancer lb1 = manager.getServiceRRLoadBalancer("svc1");
+        Thread.sleep(5);
+        manager.getServiceRRLoadBalancer("svc2");
+        Thread.sleep(5);
+        manager.getServiceRRLoadBalancer("svc3");
+        Thread.sleep(5);
+        Assert.assertSame(lb1, manager.getServiceRRLoadBalancer("svc1"));
+        Thread.sleep(5);
+        // svc2 is the least recently used one.
+        manager.getServiceRRLoadBalancer("svc4");
+        Assert.assertEquals(3, manager.size());
+        Assert.assertSame(lb1, manager.getServiceRRLoadBalancer("svc1"));
+
+        manager = new LoadBalancerManager(null, 50, 100);
+        for(int i = 0; i < 10; i ++){
+            manager.getServiceRRLoadBalancer("svc" + i);
+        }
+        Thread.sleep(100);
+        manager.getServiceRRLoadBalancer("svc");
+        Assert.assertEquals(1, manager.size());
+    }
+
+    @Test
+    public void testConcurrentGet() throws InterruptedException{
+        final LoadBalancerManager manager = new LoadBalancerManager(null, 60000, 1000);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(10);
+        for(int i = 0; i < 10; i ++){
+            new Thread(){
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for(int j = 0; j < 1000; j ++){
+                            manager.getServiceQueryRRLoadBalancer("svc" + (j % 100),
+                                    new ServiceInstanceQuery().getEqualQueryCriterion("solution", "core"));
+                        }
+                    } catch (InterruptedException e) {
+                        // do nothing.
+                    } finally {
+                        done.countDown();
+                    }
+                }
+
+            }.start();
+        }
+        start.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(100, manager.size());
+    }
+}
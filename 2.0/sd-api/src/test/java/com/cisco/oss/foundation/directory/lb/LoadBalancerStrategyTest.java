@@ -0,0 +1,202 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.lb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cisco.oss.foundation.directory.entity.ModelServiceInstance;
+import com.cisco.oss.foundation.directory.entity.OperationalStatus;
+import com.cisco.oss.foundation.directory.entity.ServiceInstance;
+import com.cisco.oss.foundation.directory.impl.DirectoryLookupService;
+
+public class LoadBalancerStrategyTest {
+
+    private static List<ServiceInstance> instances(String... weights){
+        List<ServiceInstance> list = new ArrayList<ServiceInstance>();
+        for(int i = 0; i < weights.length; i ++){
+            Map<String, String> metadata = new HashMap<String, String>();
+            if(weights[i] != null){
+                metadata.put(WeightedRoundRobinStrategy.WEIGHT_METADATA_KEY, weights[i]);
+            }
+            list.add(new ServiceInstance("odrm", "192.168.2." + i + "-8901", "http://cisco.com/vbo/odrm/setupsession",
+                    false, OperationalStatus.UP, "192.168.2." + i, 8901, metadata));
+        }
+        return list;
+    }
+
+    @Test
+    public void testRoundRobin(){
+        List<ServiceInstance> list = instances(null, null, null);
+        RoundRobinStrategy strategy = new RoundRobinStrategy();
+        for(int i = 0; i < 9; i ++){
+            Assert.assertSame(list.get(i % 3), strategy.select("odrm", list));
+        }
+        Assert.assertSame(list.get(0), strategy.select("cdrm", list));
+    }
+
+    @Test
+    public void testRoundRobinLoadBalancerWrap(){
+        final List<ModelServiceInstance> list = new ArrayList<ModelServiceInstance>();
+        for(int i = 0; i < 3; i ++){
+            list.add(new ModelServiceInstance("odrm", "192.168.2." + i + "-8901", "192.168.2." + i + "-8901",
+                    "http://cisco.com/vbo/odrm/setupsession", OperationalStatus.UP, "192.168.2." + i, 8901, null));
+        }
+        // start near the max index, the votes go on in the same order across it.
+        RoundRobinLoadBalancer lb = new RoundRobinLoadBalancer(new DirectoryLookupService(null), Integer.MAX_VALUE - 2){
+
+            @Override
+            public List<ModelServiceInstance> getServiceInstanceList() {
+                return list;
+            }
+        };
+        int first = (Integer.MAX_VALUE - 2) % 3;
+        for(int i = 0; i < 9; i ++){
+            Assert.assertEquals(list.get((first + i) % 3).getInstanceId(), lb.vote().getInstanceId());
+        }
+    }
+
+    @Test
+    public void testWeightedRoundRobin(){
+        List<ServiceInstance> list = instances("5", "1", "1", "0", "invalid");
+        WeightedRoundRobinStrategy strategy = new WeightedRoundRobinStrategy();
+        Map<ServiceInstance, Integer> counts = new HashMap<ServiceInstance, Integer>();
+        ServiceInstance previous = null;
+        int repeats = 0;
+        for(int i = 0; i < 800; i ++){
+            ServiceInstance instance = strategy.select("odrm", list);
+            Integer c = counts.get(instance);
+            counts.put(instance, c == null ? 1 : c + 1);
+            if(instance == previous){
+                repeats ++;
+            }
+            previous = instance;
+        }
+        Assert.assertEquals(500, counts.get(list.get(0)).intValue());
+        Assert.assertEquals(100, counts.get(list.get(1)).intValue());
+        Assert.assertEquals(100, counts.get(list.get(2)).intValue());
+        Assert.assertNull(counts.get(list.get(3)));
+        Assert.assertEquals(100, counts.get(list.get(4)).intValue());
+        // the smooth round never selects the heavy one 5 times in a row.
+        Assert.assertTrue(repeats <= 200);
+
+        // all weights are 0.
+        List<ServiceInstance> zeros = instances("0", "0");
+        Assert.assertNotSame(strategy.select("cdrm", zeros), strategy.select("cdrm", zeros));
+    }
+
+    @Test
+    public void testLeastOutstandingRequests(){
+        List<ServiceInstance> list = instances(null, null, null);
+        LeastOutstandingRequestsStrategy strategy = new LeastOutstandingRequestsStrategy();
+        strategy.requestStarted(list.get(0));
+        strategy.requestStarted(list.get(0));
+        strategy.requestStarted(list.get(1));
+        for(int i = 0; i < 5; i ++){
+            Assert.assertSame(list.get(2), strategy.select("odrm", list));
+        }
+        strategy.requestStarted(list.get(2));
+        strategy.requestStarted(list.get(2));
+        Assert.assertSame(list.get(1), strategy.select("odrm", list));
+
+        strategy.requestFinished(list.get(0));
+        strategy.requestFinished(list.get(0));
+        strategy.requestFinished(list.get(0));
+        Assert.assertEquals(0, strategy.getOutstandingRequests(list.get(0)));
+        Assert.assertSame(list.get(0), strategy.select("odrm", list));
+
+        // the counts of the removed ServiceInstances are pruned on select.
+        List<ServiceInstance> remains = list.subList(1, 3);
+        strategy.requestStarted(list.get(0));
+        strategy.select("odrm", remains);
+        Assert.assertEquals(0, strategy.getOutstandingRequests(list.get(0)));
+        Assert.assertEquals(1, strategy.getOutstandingRequests(list.get(1)));
+        Assert.assertEquals(2, strategy.getOutstandingRequests(list.get(2)));
+    }
+
+    @Test
+    public void testLeastOutstandingRequestsTieRotation(){
+        List<ServiceInstance> list = instances(null, null, null);
+        LeastOutstandingRequestsStrategy strategy = new LeastOutstandingRequestsStrategy();
+        for(int i = 0; i < 6; i ++){
+            // the selections of the other Service don't move the rotation of odrm.
+            strategy.select("cdrm", list);
+            Assert.assertSame(list.get(i % 3), strategy.select("odrm", list));
+        }
+    }
+
+    @Test
+    public void testPowerOfTwoChoices(){
+        List<ServiceInstance> list = instances(null, null);
+        PowerOfTwoChoicesStrategy strategy = new PowerOfTwoChoicesStrategy();
+        strategy.requestStarted(list.get(1));
+        for(int i = 0; i < 20; i ++){
+            Assert.assertSame(list.get(0), strategy.select("odrm", list));
+        }
+
+        List<ServiceInstance> one = instances((String) null);
+        Assert.assertSame(one.get(0), strategy.select("odrm", one));
+
+        // the most loaded one is never selected.
+        list = instances(null, null, null, null);
+        for(int i = 0; i < 10; i ++){
+            strategy.requestStarted(list.get(3));
+        }
+        for(int i = 0; i < 100; i ++){
+            Assert.assertNotSame(list.get(3), strategy.select("odrm", list));
+        }
+    }
+
+    @Test
+    public void testLatencyAware(){
+        final List<ServiceInstance> list = instances(null, null, null);
+        DirectoryLookupService lookupService = new DirectoryLookupService(null){
+
+            @Override
+            public List<ServiceInstance> getUPServiceInstances(String serviceName) {
+                return list;
+            }
+        };
+        LatencyAwareLoadBalancer lb = new LatencyAwareLoadBalancer(lookupService, "odrm",
+                TimeUnit.SECONDS.toNanos(1));
+
+        lookupService.reportServiceInstance(list.get(0), TimeUnit.MILLISECONDS.toNanos(5), true);
+        lookupService.reportServiceInstance(list.get(1), TimeUnit.MILLISECONDS.toNanos(500), true);
+        // the fast but failing instance.
+        lookupService.reportServiceInstance(list.get(2), TimeUnit.MILLISECONDS.toNanos(1), false);
+
+        Assert.assertTrue(lb.scoreOf(list.get(0)) < lb.scoreOf(list.get(1)));
+        Assert.assertTrue(lb.scoreOf(list.get(0)) < lb.scoreOf(list.get(2)));
+        Map<ServiceInstance, Integer> counts = new HashMap<ServiceInstance, Integer>();
+        for(int i = 0; i < 300; i ++){
+            ServiceInstance instance = lb.vote();
+            Integer c = counts.get(instance);
+            counts.put(instance, c == null ? 1 : c + 1);
+        }
+        // the best one wins whenever picked, about 2/3 of the votes.
+        Assert.assertTrue(counts.get(list.get(0)) > 150);
+
+        // the instance never reported is preferred to be tried.
+        List<ServiceInstance> more = instances(null, null, null, null);
+        Assert.assertEquals(0, lb.scoreOf(more.get(3)), 0);
+    }
+}
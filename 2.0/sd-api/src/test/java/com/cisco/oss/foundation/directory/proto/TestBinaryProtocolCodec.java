@@ -0,0 +1,331 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.proto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cisco.oss.foundation.directory.entity.ACL;
+import com.cisco.oss.foundation.directory.entity.AuthScheme;
+import com.cisco.oss.foundation.directory.entity.BaseInfo;
+import com.cisco.oss.foundation.directory.entity.ModelMetadataKey;
+import com.cisco.oss.foundation.directory.entity.ModelService;
+import com.cisco.oss.foundation.directory.entity.ModelServiceInstance;
+import com.cisco.oss.foundation.directory.entity.OperationalStatus;
+import com.cisco.oss.foundation.directory.entity.Permission;
+import com.cisco.oss.foundation.directory.entity.ProvidedServiceInstance;
+import com.cisco.oss.foundation.directory.entity.ServerStatus;
+import com.cisco.oss.foundation.directory.entity.ServiceInstanceEvent;
+import com.cisco.oss.foundation.directory.entity.ServiceInstanceToken;
+import com.cisco.oss.foundation.directory.entity.User;
+import com.cisco.oss.foundation.directory.entity.WatchedService;
+import com.cisco.oss.foundation.directory.exception.ErrorCode;
+import com.cisco.oss.foundation.directory.proto.AttachSessionResponse.ItemResult;
+import com.cisco.oss.foundation.directory.proto.QueryServiceProtocol.QueryCommand;
+import com.cisco.oss.foundation.directory.proto.ServerEvent.CloseSessionEvent;
+import com.cisco.oss.foundation.directory.proto.ServerEvent.ServerStatusEvent;
+import com.cisco.oss.foundation.directory.proto.ServiceInstanceOperate.OperateType;
+
+public class TestBinaryProtocolCodec {
+
+    private final BinaryProtocolCodec codec = new BinaryProtocolCodec();
+
+    private static Map<String, String> metadata(){
+        // the single entry map keeps the same order after decode.
+        return Collections.singletonMap("datacenter", "dc01");
+    }
+
+    private static ModelServiceInstance instance(){
+        ModelServiceInstance instance = new ModelServiceInstance("odrm", "192.168.2.3-8901", "192.168.2.3-8901",
+                "http://cisco.com/vbo/odrm/setupsession", OperationalStatus.UP, "192.168.2.3", 8901, new HashMap<String, String>(metadata()));
+        instance.setCreateTime(new Date(1000));
+        instance.setModifiedTime(new Date(2000));
+        instance.setInfo(new BaseInfo(1, 2, 3, 4, 5));
+        return instance;
+    }
+
+    private static ModelService service(){
+        ModelService service = new ModelService("odrm", "odrm");
+        service.setCreateTime(new Date(1000));
+        service.setInfo(new BaseInfo(1, 2, 3, 4, 5));
+        List<ModelServiceInstance> instances = new ArrayList<ModelServiceInstance>();
+        instances.add(instance());
+        instances.add(null);
+        service.setServiceInstances(instances);
+        return service;
+    }
+
+    private static ModelMetadataKey metadataKey(){
+        ModelMetadataKey key = new ModelMetadataKey("datacenter", "datacenter");
+        key.setModifiedTime(new Date(3000));
+        key.setServiceInstances(Arrays.asList(instance()));
+        return key;
+    }
+
+    private static ProvidedServiceInstance providedInstance(){
+        return new ProvidedServiceInstance("odrm", "192.168.2.3", 8901, "http://cisco.com/vbo/odrm/setupsession",
+                OperationalStatus.UP, new HashMap<String, String>(metadata()));
+    }
+
+    private static User user(){
+        return new User("admin", Arrays.asList(Permission.READ, Permission.ADMIN));
+    }
+
+    private static List<Protocol> protocols(){
+        List<Protocol> list = new ArrayList<Protocol>();
+        list.add(new Protocol());
+        list.add(new ConnectProtocol(1, 100, 4000, "session", new byte[]{1, 2}, "user", new byte[]{3}, true));
+        list.add(new RegisterServiceInstanceProtocol(providedInstance()));
+        UpdateServiceInstanceProtocol update = new UpdateServiceInstanceProtocol(providedInstance());
+        update.setOwned(true);
+        list.add(update);
+        list.add(new UpdateServiceInstanceStatusProtocol("odrm", "192.168.2.3-8901", OperationalStatus.DOWN));
+        list.add(new UpdateServiceInstanceUriProtocol("odrm", "192.168.2.3-8901", "http://cisco.com"));
+        list.add(new UpdateServiceInstanceInternalStatusProtocol("odrm", "192.168.2.3-8901", OperationalStatus.UP));
+        list.add(new UnregisterServiceInstanceProtocol("odrm", "192.168.2.3-8901"));
+        GetServiceProtocol get = new GetServiceProtocol("odrm");
+        get.setWatcher(true);
+        list.add(get);
+        list.add(new GetServiceInstanceProtocol("odrm", "192.168.2.3-8901"));
+        QueryServiceProtocol query = new QueryServiceProtocol(Arrays.asList(new QueryCommand("datacenter", "equals", Arrays.asList("dc01", null))));
+        query.setMetadata(new HashMap<String, String>(metadata()));
+        list.add(query);
+        list.add(new GetMetadataProtocol("datacenter"));
+        list.add(new GetServiceChangingByVersionProtocol(Collections.singletonMap("odrm", 5L)));
+        list.add(new GetMetadataChangingByVersionProtocol(Collections.<String, Long>singletonMap("datacenter", null)));
+        list.add(new GetServiceChangingByTimeProtocol(Collections.singletonMap("odrm", service())));
+        list.add(new GetMetadataChangingByTimeProtocol(Collections.singletonMap("datacenter", metadataKey())));
+        list.add(new AttachSessionProtocol(Arrays.asList(new ServiceInstanceToken("odrm", "192.168.2.3-8901")), "session"));
+        list.add(new AuthProtocol(AuthScheme.DIRECTORY));
+        list.add(new DirectoryAuthProtocol("user", new byte[]{1}, false));
+        list.add(new IPAuthProtocol("192.168.2.3"));
+        list.add(new GetUserProtocol("admin"));
+        list.add(new CreateUserProtocol(user(), new byte[]{4, 5}));
+        list.add(new UpdateUserProtocol(user()));
+        list.add(new DeleteUserProtocol("admin"));
+        list.add(new SetUserPasswordProtocol("admin", new byte[0]));
+        list.add(new SetACLProtocol(new ACL(AuthScheme.DIRECTORY, "admin", 31)));
+        list.add(new GetACLProtocol(AuthScheme.DIRECTORY, "admin"));
+        list.add(new GetAllACLProtocol(AuthScheme.DIRECTORY));
+        list.add(new DeleteACLProtocol(AuthScheme.DIRECTORY, "admin"));
+        // the empty Protocols.
+        list.add(new GetServiceChangingByVersionProtocol());
+        list.add(new QueryServiceProtocol());
+        list.add(new RegisterServiceInstanceProtocol());
+        return list;
+    }
+
+    private static List<Response> responses(){
+        List<Response> list = new ArrayList<Response>();
+        list.add(new Response());
+        ConnectResponse connect = new ConnectResponse(1, 4000, "session", new byte[]{1, 2}, 3);
+        connect.setCodecs(Arrays.asList(BinaryProtocolCodec.NAME, JavaSerializationCodec.NAME));
+        list.add(connect);
+        list.add(new ConnectResponse(1, 4000, "session", null, 3));
+        list.add(new GetServiceResponse(service()));
+        list.add(new GetAllServicesResponse(Arrays.asList(instance(), instance())));
+        list.add(new QueryServiceResponse(Arrays.asList(instance())));
+        list.add(new GetServiceInstanceResponse(instance()));
+        list.add(new GetMetadataResponse(metadataKey()));
+        list.add(new GetServiceChangingByVersionResponse(Collections.singletonMap("odrm", service())));
+        list.add(new GetMetadataChangingByVersionResponse(Collections.singletonMap("datacenter", metadataKey())));
+        list.add(new GetServiceChangingByTimeResponse(Collections.singletonMap("odrm", service())));
+        list.add(new GetMetadataChangingByTimeResponse(Collections.singletonMap("datacenter", metadataKey())));
+        ItemResult item = new ItemResult();
+        item.setResult(false);
+        item.setError(ErrorCode.SERVICE_INSTANCE_NOT_EXIST);
+        item.setMessage("not exist");
+        list.add(new AttachSessionResponse(Collections.singletonMap(new ServiceInstanceToken("odrm", "192.168.2.3-8901"), item)));
+        list.add(new GetUserResponse(user()));
+        list.add(new GetAllUserResponse(Arrays.asList(user(), null)));
+        list.add(new GetACLResponse(new ACL(AuthScheme.DIRECTORY, "admin", 31)));
+        list.add(new GetAllACLResponse(Arrays.asList(new ACL(AuthScheme.DIRECTORY, "admin", 1))));
+        WatchedService watched = new WatchedService(service());
+        watched.setServiceInstanceEvents(Arrays.asList(new ServiceInstanceEvent("odrm", "192.168.2.3-8901", OperateType.Update)));
+        list.add(new WatcherEvent(Arrays.asList(watched), Arrays.asList(instance())));
+        list.add(new ServerStatusEvent(ServerStatus.Unknown));
+        list.add(new CloseSessionEvent("closed"));
+        // the empty Responses.
+        list.add(new GetServiceResponse());
+        list.add(new WatcherEvent());
+        return list;
+    }
+
+    @Test
+    public void testProtocolRoundTrip() throws IOException{
+        for(Protocol protocol : protocols()){
+            ProtocolHeader header = new ProtocolHeader(7, ProtocolType.GetService);
+            header.createTime = 12345;
+            byte[] bytes = codec.encodeProtocol(header, protocol);
+            Assert.assertEquals(BinaryProtocolCodec.MAGIC, bytes[0]);
+            Assert.assertFalse(protocol.getClass().getName(), hasJavaStream(bytes));
+
+            ProtocolCodec.ProtocolFrame frame = codec.decodeProtocol(bytes, 0, bytes.length);
+            Assert.assertEquals(7, frame.getHeader().getXid());
+            Assert.assertEquals(ProtocolType.GetService, frame.getHeader().getType());
+            Assert.assertEquals(12345, frame.getHeader().createTime);
+            Assert.assertEquals(protocol.getClass(), frame.getProtocol().getClass());
+            Assert.assertArrayEquals(protocol.getClass().getName(), bytes, codec.encodeProtocol(frame.getHeader(), frame.getProtocol()));
+        }
+
+        byte[] bytes = codec.encodeProtocol(new ProtocolHeader(-2, ProtocolType.Ping), null);
+        Assert.assertNull(codec.decodeProtocol(bytes, 0, bytes.length).getProtocol());
+    }
+
+    @Test
+    public void testResponseRoundTrip() throws IOException{
+        for(Response response : responses()){
+            ResponseHeader header = new ResponseHeader(7, 9, ErrorCode.SERVICE_NOT_EXIST);
+            byte[] bytes = codec.encodeResponse(header, response);
+            Assert.assertEquals(BinaryProtocolCodec.MAGIC, bytes[0]);
+            Assert.assertFalse(response.getClass().getName(), hasJavaStream(bytes));
+
+            // decode in the middle of a buffer.
+            byte[] buffer = new byte[bytes.length + 3];
+            System.arraycopy(bytes, 0, buffer, 2, bytes.length);
+            ProtocolCodec.ResponseFrame frame = codec.decodeResponse(buffer, 2, bytes.length);
+            Assert.assertEquals(7, frame.getHeader().getXid());
+            Assert.assertEquals(9, frame.getHeader().getDxid());
+            Assert.assertEquals(ErrorCode.SERVICE_NOT_EXIST, frame.getHeader().getErr());
+            Assert.assertEquals(response.getClass(), frame.getResponse().getClass());
+            Assert.assertArrayEquals(response.getClass().getName(), bytes, codec.encodeResponse(frame.getHeader(), frame.getResponse()));
+        }
+
+        ConnectResponse connect = (ConnectResponse) decode(responses().get(1));
+        Assert.assertEquals(Arrays.asList(BinaryProtocolCodec.NAME, JavaSerializationCodec.NAME), connect.getCodecs());
+        Assert.assertNull(((ConnectResponse) decode(responses().get(2))).getCodecs());
+    }
+
+    @Test
+    public void testJavaSerialization() throws IOException{
+        // the payload of the JavaSerializationCodec is accepted.
+        byte[] bytes = new JavaSerializationCodec().encodeResponse(new ResponseHeader(3, 4, ErrorCode.OK), new GetServiceResponse(new ModelService("odrm", "odrm")));
+        ProtocolCodec.ResponseFrame frame = codec.decodeResponse(bytes, 0, bytes.length);
+        Assert.assertEquals(3, frame.getHeader().getXid());
+        Assert.assertEquals("odrm", ((GetServiceResponse) frame.getResponse()).getService().getName());
+
+        // the body without the binary encoding falls back to the java serialization.
+        bytes = codec.encodeResponse(new ResponseHeader(3, 4, ErrorCode.OK), new CustomResponse("custom"));
+        Assert.assertEquals(BinaryProtocolCodec.MAGIC, bytes[0]);
+        Assert.assertEquals("custom", ((CustomResponse) codec.decodeResponse(bytes, 0, bytes.length).getResponse()).value);
+    }
+
+    @Test
+    public void testTruncated() throws IOException{
+        List<byte[]> payloads = new ArrayList<byte[]>();
+        for(Response response : responses()){
+            payloads.add(codec.encodeResponse(new ResponseHeader(1, 1, ErrorCode.OK), response));
+        }
+        for(byte[] bytes : payloads){
+            for(int len = 0; len < bytes.length; len ++){
+                try {
+                    codec.decodeResponse(bytes, 0, len);
+                    Assert.fail("The truncated payload should fail, length=" + len);
+                } catch (IOException e) {
+                    // expected.
+                }
+            }
+        }
+        for(Protocol protocol : protocols()){
+            byte[] bytes = codec.encodeProtocol(new ProtocolHeader(1, ProtocolType.GetService), protocol);
+            try {
+                codec.decodeProtocol(bytes, 0, bytes.length - 1);
+                Assert.fail("The truncated payload should fail - " + protocol.getClass().getName());
+            } catch (IOException e) {
+                // expected.
+            }
+        }
+    }
+
+    @Test
+    public void testOversizedLength() throws IOException{
+        // the list size is the last int of the empty list payload.
+        byte[] bytes = codec.encodeResponse(new ResponseHeader(1, 1, ErrorCode.OK), new GetAllUserResponse(new ArrayList<User>()));
+        for(int size : new int[]{Integer.MAX_VALUE, 1, -2, Integer.MIN_VALUE}){
+            assertDecodeFails(patchLastInt(bytes, size));
+        }
+
+        // the String length is the last int of the empty String payload.
+        bytes = codec.encodeResponse(new ResponseHeader(1, 1, ErrorCode.OK), new CloseSessionEvent(""));
+        for(int len : new int[]{Integer.MAX_VALUE, 1, -2}){
+            assertDecodeFails(patchLastInt(bytes, len));
+        }
+
+        // the map size.
+        bytes = codec.encodeResponse(new ResponseHeader(1, 1, ErrorCode.OK), new GetServiceChangingByVersionResponse(new HashMap<String, ModelService>()));
+        assertDecodeFails(patchLastInt(bytes, Integer.MAX_VALUE));
+
+        // the unknown magic, version and tag.
+        bytes = codec.encodeResponse(new ResponseHeader(1, 1, ErrorCode.OK), new Response());
+        byte[] patched = bytes.clone();
+        patched[0] = 0;
+        assertDecodeFails(patched);
+        patched = bytes.clone();
+        patched[1] = BinaryProtocolCodec.VERSION + 1;
+        assertDecodeFails(patched);
+        patched = bytes.clone();
+        patched[patched.length - 1] = 100;
+        assertDecodeFails(patched);
+    }
+
+    private Response decode(Response response) throws IOException{
+        byte[] bytes = codec.encodeResponse(new ResponseHeader(1, 1, ErrorCode.OK), response);
+        return codec.decodeResponse(bytes, 0, bytes.length).getResponse();
+    }
+
+    private void assertDecodeFails(byte[] bytes){
+        try {
+            codec.decodeResponse(bytes, 0, bytes.length);
+            Assert.fail("The corrupt payload should fail.");
+        } catch (IOException e) {
+            // expected.
+        }
+    }
+
+    private static byte[] patchLastInt(byte[] bytes, int value){
+        byte[] patched = bytes.clone();
+        ByteBuffer.wrap(patched).putInt(patched.length - 4, value);
+        return patched;
+    }
+
+    private static boolean hasJavaStream(byte[] bytes){
+        for(int i = 0; i + 1 < bytes.length; i ++){
+            if(bytes[i] == (byte) 0xAC && bytes[i + 1] == (byte) 0xED){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static class CustomResponse extends Response {
+        private static final long serialVersionUID = 1L;
+        private final String value;
+
+        public CustomResponse(String value){
+            this.value = value;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package com.cisco.oss.foundation.directory.query;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -83,4 +84,41 @@ public class QueryTest {
         Assert.assertTrue(query7.isMatch(meta2));
         Assert.assertFalse(query7.isMatch(meta1));
     }
+
+    @Test
+    public void testCompile(){
+        Map<String, String> meta1 = new HashMap<String, String>();
+        meta1.put("solution", "core");
+        meta1.put("datacenter", "data1");
+        meta1.put("address", "usa");
+
+        Map<String, String> meta2 = new HashMap<String, String>();
+        meta2.put("solution", "cim");
+        meta2.put("datacenter", "data5");
+
+        ServiceInstanceQuery query = new ServiceInstanceQuery()
+                .getPatternQueryCriterion("datacenter", "data[123]")
+                .getNotContainQueryCriterion("node")
+                .getInQueryCriterion("address", Arrays.asList("usa", "box"))
+                .getEqualQueryCriterion("solution", "core");
+
+        CompiledServiceInstanceQuery compiled = query.compile();
+        Assert.assertSame(compiled, query.compile());
+        Assert.assertEquals(4, compiled.getCriteria().size());
+        Assert.assertTrue(compiled.getCriteria().get(0) instanceof EqualQueryCriterion);
+        Assert.assertTrue(compiled.getCriteria().get(1) instanceof InQueryCriterion);
+        Assert.assertTrue(compiled.getCriteria().get(2) instanceof NotContainQueryCriterion);
+        Assert.assertTrue(compiled.getCriteria().get(3) instanceof PatternQueryCriterion);
+        Assert.assertTrue(compiled.isMatch(meta1));
+        Assert.assertFalse(compiled.isMatch(meta2));
+        Assert.assertFalse(compiled.isMatch(null));
+
+        // adding a QueryCriterion recompiles the query.
+        query.getContainQueryCriterion("node");
+        Assert.assertNotSame(compiled, query.compile());
+        Assert.assertFalse(query.compile().isMatch(meta1));
+
+        Assert.assertTrue(new ServiceInstanceQuery().compile().isEmpty());
+        Assert.assertTrue(new ServiceInstanceQuery().compile().isMatch(meta2));
+    }
 }
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.stats;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.cisco.oss.foundation.directory.proto.ProtocolType;
+import com.cisco.oss.foundation.directory.stats.PacketLatency.Stage;
+
+public class TestLatencyHistogram {
+
+    @Test
+    public void testBuckets(){
+        long previous = -1;
+        for(long v = 0; v < 100000; v ++){
+            int index = LatencyHistogram.indexOf(v);
+            long upper = LatencyHistogram.upperBoundOf(index);
+            Assert.assertTrue(upper >= v);
+            Assert.assertTrue(upper - v <= v / 8);
+            Assert.assertTrue(index >= previous);
+            previous = index;
+        }
+        Assert.assertEquals(LatencyHistogram.indexOf(Long.MAX_VALUE), LatencyHistogram.indexOf(1L << 50));
+    }
+
+    @Test
+    public void testPercentile(){
+        LatencyHistogram h = new LatencyHistogram();
+        Assert.assertEquals(0, h.getPercentile(99));
+        for(int i = 1; i <= 10000; i ++){
+            h.record(i * 1000L);
+        }
+        Assert.assertEquals(10000, h.getCount());
+        Assert.assertEquals(10000000L, h.getMax());
+        assertNear(5000000L, h.getPercentile(50));
+        assertNear(9900000L, h.getPercentile(99));
+        assertNear(9990000L, h.getPercentile(99.9));
+        Assert.assertEquals(10000000L, h.getPercentile(100));
+
+        h.reset();
+        Assert.assertEquals(0, h.getCount());
+        Assert.assertEquals(0, h.getPercentile(50));
+    }
+
+    @Test
+    public void testPacketLatencyMXBean(){
+        PacketLatency.getHistogram(ProtocolType.GetService, Stage.SERVER).record(2000000L);
+        PacketLatency.PacketLatencyStats stats = new PacketLatency.PacketLatencyStats();
+        Assert.assertTrue(stats.getCounts().get("GetService.SERVER") >= 1);
+        Assert.assertNull(stats.getCounts().get("GetService.CALLBACK"));
+        stats.reset();
+        Assert.assertNull(stats.getCounts().get("GetService.SERVER"));
+    }
+
+    private void assertNear(long expected, long actual){
+        Assert.assertTrue("expected " + expected + " but " + actual, actual >= expected && actual <= expected + expected / 8);
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.stats;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestServiceInstanceStats {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testLatency(){
+        ServiceInstanceStats stats = new ServiceInstanceStats(10 * SECOND);
+        Assert.assertEquals(0, stats.getLatency(0), 0);
+
+        stats.report(100, true, 0);
+        Assert.assertEquals(100, stats.getLatency(0), 0.001);
+
+        // the peak is taken at once.
+        stats.report(1000, true, SECOND);
+        Assert.assertEquals(1000, stats.getLatency(SECOND), 0.001);
+
+        // the lower latency moves the average by the elapsed time.
+        stats.report(0, true, 11 * SECOND);
+        Assert.assertEquals(1000 * Math.exp(-1), stats.getLatency(11 * SECOND), 0.001);
+
+        // the average decays without report.
+        Assert.assertEquals(1000 * Math.exp(-2), stats.getLatency(21 * SECOND), 0.001);
+
+        // after the idle time, the sample above the decayed peak is taken at once.
+        stats.report(200, true, 41 * SECOND);
+        Assert.assertEquals(200, stats.getLatency(41 * SECOND), 0.001);
+    }
+
+    @Test
+    public void testIdle(){
+        ServiceInstanceStats stats = new ServiceInstanceStats(10 * SECOND);
+        Assert.assertTrue(stats.isIdle(0));
+        stats.report(100, true, 0);
+        Assert.assertFalse(stats.isIdle(100 * SECOND));
+        Assert.assertTrue(stats.isIdle(100 * SECOND + 1));
+    }
+
+    @Test
+    public void testErrorRate(){
+        ServiceInstanceStats stats = new ServiceInstanceStats(10 * SECOND);
+        stats.report(100, true, 0);
+        Assert.assertEquals(0, stats.getErrorRate(0), 0);
+
+        // the burst failures move the error rate by the min sample weight.
+        for(int i = 0; i < 40; i ++){
+            stats.report(100, false, 0);
+        }
+        double expected = 1 - Math.pow(1 - ServiceInstanceStats.MIN_SAMPLE_WEIGHT, 40);
+        Assert.assertEquals(expected, stats.getErrorRate(0), 0.0001);
+
+        stats.report(100, true, 10 * SECOND);
+        Assert.assertEquals(expected * Math.exp(-1), stats.getErrorRate(10 * SECOND), 0.0001);
+
+        try {
+            new ServiceInstanceStats(0);
+            Assert.fail("The decay time must be positive");
+        } catch (IllegalArgumentException e) {
+            // expected.
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cisco.oss.foundation.directory.entity.ModelService;
+import com.cisco.oss.foundation.directory.entity.ModelServiceInstance;
+import com.cisco.oss.foundation.directory.entity.OperationalStatus;
+import com.cisco.oss.foundation.directory.entity.ServerStatus;
+import com.cisco.oss.foundation.directory.entity.WatchedService;
+import com.cisco.oss.foundation.directory.exception.ErrorCode;
+import com.cisco.oss.foundation.directory.proto.AttachSessionProtocol;
+import com.cisco.oss.foundation.directory.proto.ConnectProtocol;
+import com.cisco.oss.foundation.directory.proto.ConnectResponse;
+import com.cisco.oss.foundation.directory.proto.CreateUserProtocol;
+import com.cisco.oss.foundation.directory.proto.DeleteUserProtocol;
+import com.cisco.oss.foundation.directory.proto.GetACLProtocol;
+import com.cisco.oss.foundation.directory.proto.GetACLResponse;
+import com.cisco.oss.foundation.directory.proto.GetAllACLProtocol;
+import com.cisco.oss.foundation.directory.proto.GetAllACLResponse;
+import com.cisco.oss.foundation.directory.proto.GetAllServicesResponse;
+import com.cisco.oss.foundation.directory.proto.GetAllUserResponse;
+import com.cisco.oss.foundation.directory.proto.GetMetadataChangingByTimeProtocol;
+import com.cisco.oss.foundation.directory.proto.GetMetadataChangingByTimeResponse;
+import com.cisco.oss.foundation.directory.proto.GetMetadataChangingByVersionProtocol;
+import com.cisco.oss.foundation.directory.proto.GetMetadataChangingByVersionResponse;
+import com.cisco.oss.foundation.directory.proto.GetMetadataProtocol;
+import com.cisco.oss.foundation.directory.proto.GetMetadataResponse;
+import com.cisco.oss.foundation.directory.proto.GetServiceChangingByTimeProtocol;
+import com.cisco.oss.foundation.directory.proto.GetServiceChangingByTimeResponse;
+import com.cisco.oss.foundation.directory.proto.GetServiceChangingByVersionProtocol;
+import com.cisco.oss.foundation.directory.proto.GetServiceChangingByVersionResponse;
+import com.cisco.oss.foundation.directory.proto.GetServiceInstanceProtocol;
+import com.cisco.oss.foundation.directory.proto.GetServiceInstanceResponse;
+import com.cisco.oss.foundation.directory.proto.GetServiceProtocol;
+import com.cisco.oss.foundation.directory.proto.GetServiceResponse;
+import com.cisco.oss.foundation.directory.proto.GetUserProtocol;
+import com.cisco.oss.foundation.directory.proto.GetUserResponse;
+import com.cisco.oss.foundation.directory.proto.Protocol;
+import com.cisco.oss.foundation.directory.proto.ProtocolHeader;
+import com.cisco.oss.foundation.directory.proto.ProtocolType;
+import com.cisco.oss.foundation.directory.proto.QueryServiceProtocol;
+import com.cisco.oss.foundation.directory.proto.QueryServiceResponse;
+import com.cisco.oss.foundation.directory.proto.RegisterServiceInstanceProtocol;
+import com.cisco.oss.foundation.directory.proto.Response;
+import com.cisco.oss.foundation.directory.proto.ResponseHeader;
+import com.cisco.oss.foundation.directory.proto.SetACLProtocol;
+import com.cisco.oss.foundation.directory.proto.SetUserPasswordProtocol;
+import com.cisco.oss.foundation.directory.proto.UnregisterServiceInstanceProtocol;
+import com.cisco.oss.foundation.directory.proto.UpdateServiceInstanceInternalStatusProtocol;
+import com.cisco.oss.foundation.directory.proto.UpdateServiceInstanceProtocol;
+import com.cisco.oss.foundation.directory.proto.UpdateServiceInstanceStatusProtocol;
+import com.cisco.oss.foundation.directory.proto.UpdateServiceInstanceUriProtocol;
+import com.cisco.oss.foundation.directory.proto.UpdateUserProtocol;
+import com.cisco.oss.foundation.directory.proto.WatcherEvent;
+import com.cisco.oss.foundation.directory.proto.ServerEvent.CloseSessionEvent;
+import com.cisco.oss.foundation.directory.proto.ServerEvent.ServerStatusEvent;
+import com.cisco.oss.foundation.directory.utils.WebSocketSerializer.ProtocolDeserializer;
+import com.cisco.oss.foundation.directory.utils.WebSocketSerializer.ResponseDeserializer;
+
+public class TestWebSocketSerializer {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static ModelService service(){
+        Map<String, String> metadata = new HashMap<String, String>();
+        metadata.put("datacenter", "dc01");
+        List<ModelServiceInstance> instances = new ArrayList<ModelServiceInstance>();
+        instances.add(new ModelServiceInstance("odrm", "192.168.2.3-8901", "192.168.2.3-8901",
+                "http://cisco.com/vbo/odrm/setupsession", OperationalStatus.UP, "192.168.2.3", 8901, metadata));
+        ModelService service = new ModelService("odrm", "odrm");
+        service.setServiceInstances(instances);
+        return service;
+    }
+
+    private static List<Protocol> protocols() throws Exception{
+        List<Protocol> list = new ArrayList<Protocol>();
+        Class<?>[] classes = {Protocol.class, ConnectProtocol.class, RegisterServiceInstanceProtocol.class,
+                UpdateServiceInstanceProtocol.class, UpdateServiceInstanceStatusProtocol.class,
+                UpdateServiceInstanceUriProtocol.class, UpdateServiceInstanceInternalStatusProtocol.class,
+                UnregisterServiceInstanceProtocol.class, GetServiceProtocol.class, GetServiceInstanceProtocol.class,
+                QueryServiceProtocol.class, GetMetadataProtocol.class, GetServiceChangingByTimeProtocol.class,
+                GetMetadataChangingByTimeProtocol.class, GetServiceChangingByVersionProtocol.class,
+                GetMetadataChangingByVersionProtocol.class, AttachSessionProtocol.class, GetUserProtocol.class,
+                CreateUserProtocol.class, UpdateUserProtocol.class, DeleteUserProtocol.class,
+                SetUserPasswordProtocol.class, SetACLProtocol.class, GetACLProtocol.class, GetAllACLProtocol.class};
+        for(Class<?> clazz : classes){
+            list.add((Protocol) clazz.newInstance());
+        }
+        list.add(new GetServiceProtocol("odrm"));
+        return list;
+    }
+
+    // the AttachSessionResponse map keyed by ServiceInstanceToken has no JSON key deserializer.
+    private static List<Response> responses() throws Exception{
+        List<Response> list = new ArrayList<Response>();
+        Class<?>[] classes = {Response.class, ConnectResponse.class, GetServiceResponse.class,
+                GetAllServicesResponse.class, GetServiceInstanceResponse.class, QueryServiceResponse.class,
+                GetMetadataResponse.class, GetServiceChangingByTimeResponse.class,
+                GetMetadataChangingByTimeResponse.class, GetServiceChangingByVersionResponse.class,
+                GetMetadataChangingByVersionResponse.class, GetUserResponse.class,
+                GetAllUserResponse.class, GetACLResponse.class, GetAllACLResponse.class, WatcherEvent.class,
+                ServerStatusEvent.class, CloseSessionEvent.class};
+        for(Class<?> clazz : classes){
+            list.add((Response) clazz.newInstance());
+        }
+        list.add(new ConnectResponse(0, 4000, "1", null, 1));
+        list.add(new GetServiceResponse(service()));
+        List<WatchedService> watched = new ArrayList<WatchedService>();
+        watched.add(new WatchedService(service()));
+        list.add(new WatcherEvent(watched, null));
+        list.add(new ServerStatusEvent(ServerStatus.Unknown));
+        list.add(new CloseSessionEvent("closed"));
+        return list;
+    }
+
+    @Test
+    public void testStreamingProtocolRoundTrip() throws Exception{
+        for(Protocol protocol : protocols()){
+            ProtocolHeader header = new ProtocolHeader(7, ProtocolType.GetService);
+            String s = WebSocketSerializer.getStreamingProtocolSerializer(header, protocol).serializerAsString();
+            ProtocolDeserializer ds = WebSocketSerializer.getProtocolDeserializer(s);
+            Assert.assertEquals(7, ds.deserializerProtocolHeader().getXid());
+            Assert.assertEquals(ProtocolType.GetService, ds.deserializerProtocolHeader().getType());
+            assertSameBody(protocol, ds.deserializerProtocol());
+        }
+    }
+
+    @Test
+    public void testStreamingResponseRoundTrip() throws Exception{
+        for(Response response : responses()){
+            ResponseHeader header = new ResponseHeader(7, 9, ErrorCode.OK);
+            String s = WebSocketSerializer.getStreamingResponseSerializer(header, response).searializerAsString();
+            ResponseDeserializer ds = WebSocketSerializer.getResponseDeserializer(s);
+            Assert.assertEquals(7, ds.deserializerResponseHeader().getXid());
+            Assert.assertEquals(9, ds.deserializerResponseHeader().getDxid());
+            Assert.assertEquals(ErrorCode.OK, ds.deserializerResponseHeader().getErr());
+            assertSameBody(response, ds.deserializerResponse());
+        }
+
+        // the null body.
+        String s = WebSocketSerializer.getStreamingResponseSerializer(new ResponseHeader(1, 1, ErrorCode.OK), null).searializerAsString();
+        Assert.assertNull(WebSocketSerializer.getResponseDeserializer(s).deserializerResponse());
+    }
+
+    @Test
+    public void testLegacyEnvelope() throws Exception{
+        for(Protocol protocol : protocols()){
+            String s = WebSocketSerializer.getProtocolSerializer(new ProtocolHeader(3, ProtocolType.QueryService), protocol).serializerAsString();
+            ProtocolDeserializer ds = WebSocketSerializer.getProtocolDeserializer(s);
+            Assert.assertEquals(3, ds.deserializerProtocolHeader().getXid());
+            assertSameBody(protocol, ds.deserializerProtocol());
+        }
+        for(Response response : responses()){
+            String s = WebSocketSerializer.getResponseSerializer(new ResponseHeader(3, 5, ErrorCode.OK), response).searializerAsString();
+            ResponseDeserializer ds = WebSocketSerializer.getResponseDeserializer(s);
+            Assert.assertEquals(5, ds.deserializerResponseHeader().getDxid());
+            assertSameBody(response, ds.deserializerResponse());
+        }
+
+        // the legacy envelope written by the older server.
+        String legacy = "{\"responseHeader\":{\"xid\":4,\"dxid\":6,\"err\":\"OK\"},"
+                + "\"type\":\"" + GetServiceResponse.class.getName() + "\","
+                + "\"response\":" + MAPPER.writeValueAsString(MAPPER.writeValueAsString(new GetServiceResponse(service()))) + "}";
+        ResponseDeserializer ds = WebSocketSerializer.getResponseDeserializer(legacy);
+        Assert.assertEquals(4, ds.deserializerResponseHeader().getXid());
+        assertSameBody(new GetServiceResponse(service()), ds.deserializerResponse());
+    }
+
+    @Test
+    public void testResponseTypeId() throws Exception{
+        // the plain Response doesn't use the reserved type id 0.
+        String s = WebSocketSerializer.getStreamingResponseSerializer(new ResponseHeader(1, 1, ErrorCode.OK), new Response()).searializerAsString();
+        Assert.assertFalse(s, s.contains("\"t\":0"));
+        try {
+            WebSocketSerializer.getResponseDeserializer("{\"h\":{\"xid\":1,\"dxid\":1,\"err\":\"OK\"},\"t\":0,\"b\":{}}");
+            Assert.fail("The type id 0 is reserved.");
+        } catch (IOException e) {
+            // expected.
+        }
+
+        // the body class without a type id is written with the class name.
+        s = WebSocketSerializer.getStreamingResponseSerializer(new ResponseHeader(1, 1, ErrorCode.OK), new CustomResponse()).searializerAsString();
+        Assert.assertTrue(s, s.contains(CustomResponse.class.getName()));
+        Assert.assertEquals(CustomResponse.class, WebSocketSerializer.getResponseDeserializer(s).deserializerResponse().getClass());
+    }
+
+    private static void assertSameBody(Object expected, Object actual) throws Exception{
+        Assert.assertEquals(expected.getClass(), actual.getClass());
+        Assert.assertEquals(MAPPER.writeValueAsString(expected), MAPPER.writeValueAsString(actual));
+    }
+
+    public static class CustomResponse extends Response {
+        private static final long serialVersionUID = 1L;
+    }
+}
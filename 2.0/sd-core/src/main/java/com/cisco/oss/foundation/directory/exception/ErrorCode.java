@@ -268,6 +268,18 @@ public enum ErrorCode {
      */
     REQUEST_INTERUPTED("500.12"),
 
+    /**
+     * The request submitted the the DirectoryServiceClient timeout.
+     * Message: The directory request timeout.
+     */
+    REQUEST_TIMEOUT("500.13"),
+
+    /**
+     * The in-flight request window of the directory connection is full.
+     * Message: The directory request in-flight window is full.
+     */
+    REQUEST_WINDOW_FULL("500.14"),
+
     /**
      * The remote directory server get error. The directory server client of
      * directory api get a unrecognized error in HTTP Client.
@@ -0,0 +1,1348 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.proto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.cisco.oss.foundation.directory.entity.ACL;
+import com.cisco.oss.foundation.directory.entity.AuthScheme;
+import com.cisco.oss.foundation.directory.entity.BaseInfo;
+import com.cisco.oss.foundation.directory.entity.ClientType;
+import com.cisco.oss.foundation.directory.entity.ModelMetadataKey;
+import com.cisco.oss.foundation.directory.entity.ModelService;
+import com.cisco.oss.foundation.directory.entity.ModelServiceInstance;
+import com.cisco.oss.foundation.directory.entity.OperationalStatus;
+import com.cisco.oss.foundation.directory.entity.Permission;
+import com.cisco.oss.foundation.directory.entity.ProvidedServiceInstance;
+import com.cisco.oss.foundation.directory.entity.ServerStatus;
+import com.cisco.oss.foundation.directory.entity.ServiceInstanceEvent;
+import com.cisco.oss.foundation.directory.entity.ServiceInstanceToken;
+import com.cisco.oss.foundation.directory.entity.User;
+import com.cisco.oss.foundation.directory.entity.WatchedService;
+import com.cisco.oss.foundation.directory.exception.ErrorCode;
+import com.cisco.oss.foundation.directory.proto.AttachSessionResponse.ItemResult;
+import com.cisco.oss.foundation.directory.proto.QueryServiceProtocol.QueryCommand;
+import com.cisco.oss.foundation.directory.proto.ServerEvent.CloseSessionEvent;
+import com.cisco.oss.foundation.directory.proto.ServerEvent.ServerStatusEvent;
+import com.cisco.oss.foundation.directory.proto.ServiceInstanceOperate.OperateType;
+
+/**
+ * The hand-written binary ProtocolCodec.
+ *
+ * The payload starts with the codec magic and version, followed by the header fields and
+ * a body tag that identifies the Protocol or Response class. Strings, byte arrays, lists
+ * and maps are length prefixed, -1 is the length of null.
+ *
+ * The lengths and sizes read from the payload are checked against the remaining bytes
+ * before the allocation, the corrupt or hostile frame fails with IOException instead of
+ * a huge allocation.
+ *
+ * The Protocol or Response that has no binary encoding is written as a java serialization
+ * body. The payload of the JavaSerializationCodec is accepted on decode as well, so the
+ * codec interoperates with the peer that only speaks java serialization.
+ *
+ *
+ */
+public class BinaryProtocolCodec implements ProtocolCodec {
+
+    /**
+     * The codec name advertised in the ConnectResponse.
+     */
+    public static final String NAME = "binary";
+
+    /**
+     * The binary codec magic byte.
+     */
+    static final byte MAGIC = (byte) 0xB5;
+
+    /**
+     * The binary codec version.
+     */
+    static final byte VERSION = 1;
+
+    /**
+     * The UTF-8 charset.
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The null Date.
+     */
+    private static final long NULL_DATE = Long.MIN_VALUE;
+
+    // The body tags.
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_JAVA = 127;
+
+    private static final byte TAG_PROTOCOL = 1;
+    private static final byte TAG_CONNECT = 2;
+    private static final byte TAG_REGISTER = 3;
+    private static final byte TAG_UPDATE = 4;
+    private static final byte TAG_UPDATE_STATUS = 5;
+    private static final byte TAG_UPDATE_URI = 6;
+    private static final byte TAG_UPDATE_INTERNAL_STATUS = 7;
+    private static final byte TAG_UNREGISTER = 8;
+    private static final byte TAG_GET_SERVICE = 9;
+    private static final byte TAG_GET_SERVICE_INSTANCE = 10;
+    private static final byte TAG_QUERY_SERVICE = 11;
+    private static final byte TAG_GET_METADATA = 12;
+    private static final byte TAG_SERVICE_CHANGING_BY_VERSION = 13;
+    private static final byte TAG_METADATA_CHANGING_BY_VERSION = 14;
+    private static final byte TAG_SERVICE_CHANGING_BY_TIME = 15;
+    private static final byte TAG_METADATA_CHANGING_BY_TIME = 16;
+    private static final byte TAG_ATTACH_SESSION = 17;
+    private static final byte TAG_AUTH = 18;
+    private static final byte TAG_DIRECTORY_AUTH = 19;
+    private static final byte TAG_IP_AUTH = 20;
+    private static final byte TAG_GET_USER = 21;
+    private static final byte TAG_CREATE_USER = 22;
+    private static final byte TAG_UPDATE_USER = 23;
+    private static final byte TAG_DELETE_USER = 24;
+    private static final byte TAG_SET_USER_PASSWORD = 25;
+    private static final byte TAG_SET_ACL = 26;
+    private static final byte TAG_GET_ACL = 27;
+    private static final byte TAG_GET_ALL_ACL = 28;
+    private static final byte TAG_DELETE_ACL = 29;
+
+    private static final byte TAG_RESPONSE = 64;
+    private static final byte TAG_CONNECT_RESPONSE = 65;
+    private static final byte TAG_GET_SERVICE_RESPONSE = 66;
+    private static final byte TAG_GET_ALL_SERVICES_RESPONSE = 67;
+    private static final byte TAG_QUERY_SERVICE_RESPONSE = 68;
+    private static final byte TAG_GET_SERVICE_INSTANCE_RESPONSE = 69;
+    private static final byte TAG_GET_METADATA_RESPONSE = 70;
+    private static final byte TAG_SERVICE_CHANGING_BY_VERSION_RESPONSE = 71;
+    private static final byte TAG_METADATA_CHANGING_BY_VERSION_RESPONSE = 72;
+    private static final byte TAG_SERVICE_CHANGING_BY_TIME_RESPONSE = 73;
+    private static final byte TAG_METADATA_CHANGING_BY_TIME_RESPONSE = 74;
+    private static final byte TAG_ATTACH_SESSION_RESPONSE = 75;
+    private static final byte TAG_GET_USER_RESPONSE = 76;
+    private static final byte TAG_GET_ALL_USER_RESPONSE = 77;
+    private static final byte TAG_GET_ACL_RESPONSE = 78;
+    private static final byte TAG_GET_ALL_ACL_RESPONSE = 79;
+    private static final byte TAG_WATCHER_EVENT = 80;
+    private static final byte TAG_SERVER_STATUS_EVENT = 81;
+    private static final byte TAG_CLOSE_SESSION_EVENT = 82;
+
+    /**
+     * The body class to tag map.
+     */
+    private static final Map<Class<?>, Byte> TAGS = new HashMap<Class<?>, Byte>();
+
+    static {
+        TAGS.put(Protocol.class, TAG_PROTOCOL);
+        TAGS.put(ConnectProtocol.class, TAG_CONNECT);
+        TAGS.put(RegisterServiceInstanceProtocol.class, TAG_REGISTER);
+        TAGS.put(UpdateServiceInstanceProtocol.class, TAG_UPDATE);
+        TAGS.put(UpdateServiceInstanceStatusProtocol.class, TAG_UPDATE_STATUS);
+        TAGS.put(UpdateServiceInstanceUriProtocol.class, TAG_UPDATE_URI);
+        TAGS.put(UpdateServiceInstanceInternalStatusProtocol.class, TAG_UPDATE_INTERNAL_STATUS);
+        TAGS.put(UnregisterServiceInstanceProtocol.class, TAG_UNREGISTER);
+        TAGS.put(GetServiceProtocol.class, TAG_GET_SERVICE);
+        TAGS.put(GetServiceInstanceProtocol.class, TAG_GET_SERVICE_INSTANCE);
+        TAGS.put(QueryServiceProtocol.class, TAG_QUERY_SERVICE);
+        TAGS.put(GetMetadataProtocol.class, TAG_GET_METADATA);
+        TAGS.put(GetServiceChangingByVersionProtocol.class, TAG_SERVICE_CHANGING_BY_VERSION);
+        TAGS.put(GetMetadataChangingByVersionProtocol.class, TAG_METADATA_CHANGING_BY_VERSION);
+        TAGS.put(GetServiceChangingByTimeProtocol.class, TAG_SERVICE_CHANGING_BY_TIME);
+        TAGS.put(GetMetadataChangingByTimeProtocol.class, TAG_METADATA_CHANGING_BY_TIME);
+        TAGS.put(AttachSessionProtocol.class, TAG_ATTACH_SESSION);
+        TAGS.put(AuthProtocol.class, TAG_AUTH);
+        TAGS.put(DirectoryAuthProtocol.class, TAG_DIRECTORY_AUTH);
+        TAGS.put(IPAuthProtocol.class, TAG_IP_AUTH);
+        TAGS.put(GetUserProtocol.class, TAG_GET_USER);
+        TAGS.put(CreateUserProtocol.class, TAG_CREATE_USER);
+        TAGS.put(UpdateUserProtocol.class, TAG_UPDATE_USER);
+        TAGS.put(DeleteUserProtocol.class, TAG_DELETE_USER);
+        TAGS.put(SetUserPasswordProtocol.class, TAG_SET_USER_PASSWORD);
+        TAGS.put(SetACLProtocol.class, TAG_SET_ACL);
+        TAGS.put(GetACLProtocol.class, TAG_GET_ACL);
+        TAGS.put(GetAllACLProtocol.class, TAG_GET_ALL_ACL);
+        TAGS.put(DeleteACLProtocol.class, TAG_DELETE_ACL);
+
+        TAGS.put(Response.class, TAG_RESPONSE);
+        TAGS.put(ConnectResponse.class, TAG_CONNECT_RESPONSE);
+        TAGS.put(GetServiceResponse.class, TAG_GET_SERVICE_RESPONSE);
+        TAGS.put(GetAllServicesResponse.class, TAG_GET_ALL_SERVICES_RESPONSE);
+        TAGS.put(QueryServiceResponse.class, TAG_QUERY_SERVICE_RESPONSE);
+        TAGS.put(GetServiceInstanceResponse.class, TAG_GET_SERVICE_INSTANCE_RESPONSE);
+        TAGS.put(GetMetadataResponse.class, TAG_GET_METADATA_RESPONSE);
+        TAGS.put(GetServiceChangingByVersionResponse.class, TAG_SERVICE_CHANGING_BY_VERSION_RESPONSE);
+        TAGS.put(GetMetadataChangingByVersionResponse.class, TAG_METADATA_CHANGING_BY_VERSION_RESPONSE);
+        TAGS.put(GetServiceChangingByTimeResponse.class, TAG_SERVICE_CHANGING_BY_TIME_RESPONSE);
+        TAGS.put(GetMetadataChangingByTimeResponse.class, TAG_METADATA_CHANGING_BY_TIME_RESPONSE);
+        TAGS.put(AttachSessionResponse.class, TAG_ATTACH_SESSION_RESPONSE);
+        TAGS.put(GetUserResponse.class, TAG_GET_USER_RESPONSE);
+        TAGS.put(GetAllUserResponse.class, TAG_GET_ALL_USER_RESPONSE);
+        TAGS.put(GetACLResponse.class, TAG_GET_ACL_RESPONSE);
+        TAGS.put(GetAllACLResponse.class, TAG_GET_ALL_ACL_RESPONSE);
+        TAGS.put(WatcherEvent.class, TAG_WATCHER_EVENT);
+        TAGS.put(ServerStatusEvent.class, TAG_SERVER_STATUS_EVENT);
+        TAGS.put(CloseSessionEvent.class, TAG_CLOSE_SESSION_EVENT);
+    }
+
+    /**
+     * The fallback JavaSerializationCodec.
+     */
+    private final JavaSerializationCodec javaCodec = new JavaSerializationCodec();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] encodeProtocol(ProtocolHeader header, Protocol protocol) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(header.getXid());
+        out.writeInt(header.getType() == null ? -1 : header.getType().getId());
+        out.writeLong(header.createTime);
+        writeBody(out, protocol);
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ProtocolFrame decodeProtocol(byte[] data, int offset, int length) throws IOException {
+        if (length > 0 && data[offset] == JavaSerializationCodec.STREAM_MAGIC_HEAD) {
+            return javaCodec.decodeProtocol(data, offset, length);
+        }
+        DataInputStream in = openPayload(data, offset, length);
+        ProtocolHeader header = new ProtocolHeader(in.readInt(), ProtocolType.valueOf(in.readInt()));
+        header.createTime = in.readLong();
+        return new ProtocolFrame(header, (Protocol) readBody(in));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] encodeResponse(ResponseHeader header, Response response) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(header.getXid());
+        out.writeLong(header.getDxid());
+        writeEnum(out, header.getErr());
+        writeBody(out, response);
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ResponseFrame decodeResponse(byte[] data, int offset, int length) throws IOException {
+        if (length > 0 && data[offset] == JavaSerializationCodec.STREAM_MAGIC_HEAD) {
+            return javaCodec.decodeResponse(data, offset, length);
+        }
+        DataInputStream in = openPayload(data, offset, length);
+        ResponseHeader header = new ResponseHeader(in.readInt(), in.readLong(), readEnum(in, ErrorCode.class));
+        return new ResponseFrame(header, (Response) readBody(in));
+    }
+
+    /**
+     * Open the payload and check the magic and version.
+     *
+     * @param data
+     *         the payload.
+     * @param offset
+     *         the offset of the payload.
+     * @param length
+     *         the length of the payload.
+     * @return
+     *         the DataInputStream positioned after the version.
+     * @throws IOException
+     *         the IOException.
+     */
+    private DataInputStream openPayload(byte[] data, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        byte magic = in.readByte();
+        if (magic != MAGIC) {
+            throw new IOException("Unknown codec magic - " + magic);
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary codec version - " + version);
+        }
+        return in;
+    }
+
+    /**
+     * Write the Protocol or Response body.
+     *
+     * @param out
+     *         the DataOutputStream.
+     * @param body
+     *         the body Object.
+     * @throws IOException
+     *         the IOException.
+     */
+    private void writeBody(DataOutputStream out, Object body) throws IOException {
+        if (body == null) {
+            out.writeByte(TAG_NULL);
+            return;
+        }
+        Byte tag = TAGS.get(body.getClass());
+        if (tag == null) {
+            out.writeByte(TAG_JAVA);
+            writeSerializable(out, body);
+            return;
+        }
+        out.writeByte(tag);
+        switch (tag) {
+        case TAG_PROTOCOL:
+        case TAG_RESPONSE:
+            break;
+        case TAG_CONNECT: {
+            ConnectProtocol p = (ConnectProtocol) body;
+            out.writeInt(p.getProtocolVersion());
+            out.writeLong(p.getLastDxidSeen());
+            out.writeInt(p.getTimeOut());
+            writeString(out, p.getSessionId());
+            writeBytes(out, p.getPasswd());
+            writeEnum(out, p.getClientType());
+            writeString(out, p.getUserName());
+            writeBytes(out, p.getSecret());
+            out.writeBoolean(p.isObfuscated());
+            break;
+        }
+        case TAG_REGISTER: {
+            RegisterServiceInstanceProtocol p = (RegisterServiceInstanceProtocol) body;
+            writeProvidedServiceInstance(out, p.getProvidedServiceInstance());
+            out.writeBoolean(p.isRestRequest());
+            out.writeBoolean(p.isNoSession());
+            break;
+        }
+        case TAG_UPDATE: {
+            UpdateServiceInstanceProtocol p = (UpdateServiceInstanceProtocol) body;
+            writeProvidedServiceInstance(out, p.getProvidedServiceInstance());
+            writeFlags(out, p.isRestRequest(), p.isOwned(), p.isNoSession());
+            break;
+        }
+        case TAG_UPDATE_STATUS: {
+            UpdateServiceInstanceStatusProtocol p = (UpdateServiceInstanceStatusProtocol) body;
+            writeString(out, p.getServiceName());
+            writeString(out, p.getInstanceId());
+            writeEnum(out, p.getStatus());
+            writeFlags(out, p.isRestRequest(), p.isOwned(), p.isNoSession());
+            break;
+        }
+        case TAG_UPDATE_URI: {
+            UpdateServiceInstanceUriProtocol p = (UpdateServiceInstanceUriProtocol) body;
+            writeString(out, p.getServiceName());
+            writeString(out, p.getInstanceId());
+            writeString(out, p.getUri());
+            writeFlags(out, p.isRestRequest(), p.isOwned(), p.isNoSession());
+            break;
+        }
+        case TAG_UPDATE_INTERNAL_STATUS: {
+            UpdateServiceInstanceInternalStatusProtocol p = (UpdateServiceInstanceInternalStatusProtocol) body;
+            writeString(out, p.getServiceName());
+            writeString(out, p.getInstanceId());
+            writeEnum(out, p.getStatus());
+            writeFlags(out, p.isRestRequest(), p.isOwned(), p.isNoSession());
+            break;
+        }
+        case TAG_UNREGISTER: {
+            UnregisterServiceInstanceProtocol p = (UnregisterServiceInstanceProtocol) body;
+            writeString(out, p.getServiceName());
+            writeString(out, p.getInstanceId());
+            writeFlags(out, p.isRestRequest(), p.isOwned(), p.isNoSession());
+            break;
+        }
+        case TAG_GET_SERVICE: {
+            GetServiceProtocol p = (GetServiceProtocol) body;
+            writeString(out, p.getServiceName());
+            out.writeBoolean(p.isWatcher());
+            out.writeBoolean(p.isWithInstances());
+            break;
+        }
+        case TAG_GET_SERVICE_INSTANCE: {
+            GetServiceInstanceProtocol p = (GetServiceInstanceProtocol) body;
+            writeString(out, p.getServiceName());
+            writeString(out, p.getInstanceId());
+            break;
+        }
+        case TAG_QUERY_SERVICE: {
+            QueryServiceProtocol p = (QueryServiceProtocol) body;
+            List<QueryCommand> commands = p.getQueryCommands();
+            writeSize(out, commands);
+            if (commands != null) {
+                for (QueryCommand command : commands) {
+                    writeString(out, command.getName());
+                    writeString(out, command.getOperate());
+                    writeStringList(out, command.getValues());
+                }
+            }
+            writeStringMap(out, p.getMetadata());
+            break;
+        }
+        case TAG_GET_METADATA:
+            writeString(out, ((GetMetadataProtocol) body).getKeyName());
+            break;
+        case TAG_SERVICE_CHANGING_BY_VERSION:
+            writeLongMap(out, ((GetServiceChangingByVersionProtocol) body).getServices());
+            break;
+        case TAG_METADATA_CHANGING_BY_VERSION:
+            writeLongMap(out, ((GetMetadataChangingByVersionProtocol) body).getMetadatas());
+            break;
+        case TAG_SERVICE_CHANGING_BY_TIME:
+            writeModelServiceMap(out, ((GetServiceChangingByTimeProtocol) body).getServices());
+            break;
+        case TAG_METADATA_CHANGING_BY_TIME:
+            writeMetadataKeyMap(out, ((GetMetadataChangingByTimeProtocol) body).getMetadatas());
+            break;
+        case TAG_ATTACH_SESSION: {
+            AttachSessionProtocol p = (AttachSessionProtocol) body;
+            writeString(out, p.getSessionId());
+            List<ServiceInstanceToken> tokens = p.getServiceInstances();
+            writeSize(out, tokens);
+            if (tokens != null) {
+                for (ServiceInstanceToken token : tokens) {
+                    writeServiceInstanceToken(out, token);
+                }
+            }
+            break;
+        }
+        case TAG_AUTH:
+            writeEnum(out, ((AuthProtocol) body).getScheme());
+            break;
+        case TAG_DIRECTORY_AUTH: {
+            DirectoryAuthProtocol p = (DirectoryAuthProtocol) body;
+            writeString(out, p.getUserName());
+            writeBytes(out, p.getSecret());
+            out.writeBoolean(p.isObfuscated());
+            break;
+        }
+        case TAG_IP_AUTH:
+            writeString(out, ((IPAuthProtocol) body).getClientIP());
+            break;
+        case TAG_GET_USER:
+            writeString(out, ((GetUserProtocol) body).getUserName());
+            break;
+        case TAG_CREATE_USER: {
+            CreateUserProtocol p = (CreateUserProtocol) body;
+            writeUser(out, p.getUser());
+            writeBytes(out, p.getPassword());
+            break;
+        }
+        case TAG_UPDATE_USER:
+            writeUser(out, ((UpdateUserProtocol) body).getUser());
+            break;
+        case TAG_DELETE_USER:
+            writeString(out, ((DeleteUserProtocol) body).getUserName());
+            break;
+        case TAG_SET_USER_PASSWORD: {
+            SetUserPasswordProtocol p = (SetUserPasswordProtocol) body;
+            writeString(out, p.getUserName());
+            writeBytes(out, p.getSecret());
+            break;
+        }
+        case TAG_SET_ACL:
+            writeACL(out, ((SetACLProtocol) body).getAcl());
+            break;
+        case TAG_GET_ACL: {
+            GetACLProtocol p = (GetACLProtocol) body;
+            writeEnum(out, p.getScheme());
+            writeString(out, p.getId());
+            break;
+        }
+        case TAG_GET_ALL_ACL:
+            writeEnum(out, ((GetAllACLProtocol) body).getScheme());
+            break;
+        case TAG_DELETE_ACL: {
+            DeleteACLProtocol p = (DeleteACLProtocol) body;
+            writeEnum(out, p.getScheme());
+            writeString(out, p.getId());
+            break;
+        }
+        case TAG_CONNECT_RESPONSE: {
+            ConnectResponse r = (ConnectResponse) body;
+            out.writeInt(r.getProtocolVersion());
+            out.writeInt(r.getTimeOut());
+            writeString(out, r.getSessionId());
+            writeBytes(out, r.getPasswd());
+            out.writeInt(r.getServerId());
+            writeStringList(out, r.getCodecs());
+            break;
+        }
+        case TAG_GET_SERVICE_RESPONSE:
+            writeModelService(out, ((GetServiceResponse) body).getService());
+            break;
+        case TAG_GET_ALL_SERVICES_RESPONSE:
+            writeModelServiceInstances(out, ((GetAllServicesResponse) body).getInstances());
+            break;
+        case TAG_QUERY_SERVICE_RESPONSE:
+            writeModelServiceInstances(out, ((QueryServiceResponse) body).getInstances());
+            break;
+        case TAG_GET_SERVICE_INSTANCE_RESPONSE:
+            writeModelServiceInstance(out, ((GetServiceInstanceResponse) body).getServiceInstance());
+            break;
+        case TAG_GET_METADATA_RESPONSE:
+            writeMetadataKey(out, ((GetMetadataResponse) body).getMetadata());
+            break;
+        case TAG_SERVICE_CHANGING_BY_VERSION_RESPONSE:
+            writeModelServiceMap(out, ((GetServiceChangingByVersionResponse) body).getServices());
+            break;
+        case TAG_METADATA_CHANGING_BY_VERSION_RESPONSE:
+            writeMetadataKeyMap(out, ((GetMetadataChangingByVersionResponse) body).getMetadatas());
+            break;
+        case TAG_SERVICE_CHANGING_BY_TIME_RESPONSE:
+            writeModelServiceMap(out, ((GetServiceChangingByTimeResponse) body).getServices());
+            break;
+        case TAG_METADATA_CHANGING_BY_TIME_RESPONSE:
+            writeMetadataKeyMap(out, ((GetMetadataChangingByTimeResponse) body).getMetadatas());
+            break;
+        case TAG_ATTACH_SESSION_RESPONSE: {
+            Map<ServiceInstanceToken, ItemResult> results = ((AttachSessionResponse) body).getAttachingResult();
+            writeSize(out, results);
+            if (results != null) {
+                for (Entry<ServiceInstanceToken, ItemResult> entry : results.entrySet()) {
+                    writeServiceInstanceToken(out, entry.getKey());
+                    ItemResult item = entry.getValue();
+                    out.writeBoolean(item != null);
+                    if (item != null) {
+                        out.writeBoolean(item.isResult());
+                        writeEnum(out, item.getError());
+                        writeString(out, item.getMessage());
+                    }
+                }
+            }
+            break;
+        }
+        case TAG_GET_USER_RESPONSE:
+            writeUser(out, ((GetUserResponse) body).getUser());
+            break;
+        case TAG_GET_ALL_USER_RESPONSE: {
+            List<User> users = ((GetAllUserResponse) body).getUsers();
+            writeSize(out, users);
+            if (users != null) {
+                for (User user : users) {
+                    writeUser(out, user);
+                }
+            }
+            break;
+        }
+        case TAG_GET_ACL_RESPONSE:
+            writeACL(out, ((GetACLResponse) body).getAcl());
+            break;
+        case TAG_GET_ALL_ACL_RESPONSE: {
+            List<ACL> acls = ((GetAllACLResponse) body).getAcls();
+            writeSize(out, acls);
+            if (acls != null) {
+                for (ACL acl : acls) {
+                    writeACL(out, acl);
+                }
+            }
+            break;
+        }
+        case TAG_WATCHER_EVENT: {
+            WatcherEvent e = (WatcherEvent) body;
+            List<WatchedService> services = e.getServices();
+            writeSize(out, services);
+            if (services != null) {
+                for (WatchedService service : services) {
+                    writeWatchedService(out, service);
+                }
+            }
+            writeModelServiceInstances(out, e.getServiceInstances());
+            break;
+        }
+        case TAG_SERVER_STATUS_EVENT:
+            writeEnum(out, ((ServerStatusEvent) body).getServerStatus());
+            break;
+        case TAG_CLOSE_SESSION_EVENT:
+            writeString(out, ((CloseSessionEvent) body).getMessage());
+            break;
+        default:
+            throw new IOException("Unknown body tag - " + tag);
+        }
+    }
+
+    /**
+     * Read the Protocol or Response body.
+     *
+     * @param in
+     *         the DataInputStream.
+     * @return
+     *         the body Object.
+     * @throws IOException
+     *         the IOException.
+     */
+    private Object readBody(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+        case TAG_NULL:
+            return null;
+        case TAG_JAVA:
+            return readSerializable(in);
+        case TAG_PROTOCOL:
+            return new Protocol();
+        case TAG_RESPONSE:
+            return new Response();
+        case TAG_CONNECT: {
+            ConnectProtocol p = new ConnectProtocol();
+            p.setProtocolVersion(in.readInt());
+            p.setLastDxidSeen(in.readLong());
+            p.setTimeOut(in.readInt());
+            p.setSessionId(readString(in));
+            p.setPasswd(readBytes(in));
+            p.setClientType(readEnum(in, ClientType.class));
+            p.setUserName(readString(in));
+            p.setSecret(readBytes(in));
+            p.setObfuscated(in.readBoolean());
+            return p;
+        }
+        case TAG_REGISTER: {
+            ProvidedServiceInstance instance = readProvidedServiceInstance(in);
+            boolean restRequest = in.readBoolean();
+            return new RegisterServiceInstanceProtocol(instance, restRequest, in.readBoolean());
+        }
+        case TAG_UPDATE: {
+            UpdateServiceInstanceProtocol p = new UpdateServiceInstanceProtocol(readProvidedServiceInstance(in));
+            byte flags = in.readByte();
+            p.setRestRequest(isRestRequest(flags));
+            p.setOwned(isOwned(flags));
+            p.setNoSession(isNoSession(flags));
+            return p;
+        }
+        case TAG_UPDATE_STATUS: {
+            UpdateServiceInstanceStatusProtocol p = new UpdateServiceInstanceStatusProtocol(readString(in),
+                    readString(in), readEnum(in, OperationalStatus.class));
+            byte flags = in.readByte();
+            p.setRestRequest(isRestRequest(flags));
+            p.setOwned(isOwned(flags));
+            p.setNoSession(isNoSession(flags));
+            return p;
+        }
+        case TAG_UPDATE_URI: {
+            UpdateServiceInstanceUriProtocol p = new UpdateServiceInstanceUriProtocol(readString(in),
+                    readString(in), readString(in));
+            byte flags = in.readByte();
+            p.setRestRequest(isRestRequest(flags));
+            p.setOwned(isOwned(flags));
+            p.setNoSession(isNoSession(flags));
+            return p;
+        }
+        case TAG_UPDATE_INTERNAL_STATUS: {
+            UpdateServiceInstanceInternalStatusProtocol p = new UpdateServiceInstanceInternalStatusProtocol(
+                    readString(in), readString(in), readEnum(in, OperationalStatus.class));
+            byte flags = in.readByte();
+            p.setRestRequest(isRestRequest(flags));
+            p.setOwned(isOwned(flags));
+            p.setNoSession(isNoSession(flags));
+            return p;
+        }
+        case TAG_UNREGISTER: {
+            UnregisterServiceInstanceProtocol p = new UnregisterServiceInstanceProtocol(readString(in), readString(in));
+            byte flags = in.readByte();
+            p.setRestRequest(isRestRequest(flags));
+            p.setOwned(isOwned(flags));
+            p.setNoSession(isNoSession(flags));
+            return p;
+        }
+        case TAG_GET_SERVICE: {
+            GetServiceProtocol p = new GetServiceProtocol(readString(in));
+            p.setWatcher(in.readBoolean());
+            p.setWithInstances(in.readBoolean());
+            return p;
+        }
+        case TAG_GET_SERVICE_INSTANCE:
+            return new GetServiceInstanceProtocol(readString(in), readString(in));
+        case TAG_QUERY_SERVICE: {
+            int size = readSize(in);
+            List<QueryCommand> commands = null;
+            if (size >= 0) {
+                commands = new ArrayList<QueryCommand>(size);
+                for (int i = 0; i < size; i++) {
+                    commands.add(new QueryCommand(readString(in), readString(in), readStringList(in)));
+                }
+            }
+            QueryServiceProtocol p = new QueryServiceProtocol(commands);
+            p.setMetadata(readStringMap(in));
+            return p;
+        }
+        case TAG_GET_METADATA:
+            return new GetMetadataProtocol(readString(in));
+        case TAG_SERVICE_CHANGING_BY_VERSION:
+            return new GetServiceChangingByVersionProtocol(readLongMap(in));
+        case TAG_METADATA_CHANGING_BY_VERSION:
+            return new GetMetadataChangingByVersionProtocol(readLongMap(in));
+        case TAG_SERVICE_CHANGING_BY_TIME:
+            return new GetServiceChangingByTimeProtocol(readModelServiceMap(in));
+        case TAG_METADATA_CHANGING_BY_TIME:
+            return new GetMetadataChangingByTimeProtocol(readMetadataKeyMap(in));
+        case TAG_ATTACH_SESSION: {
+            String sessionId = readString(in);
+            int size = readSize(in);
+            List<ServiceInstanceToken> tokens = null;
+            if (size >= 0) {
+                tokens = new ArrayList<ServiceInstanceToken>(size);
+                for (int i = 0; i < size; i++) {
+                    tokens.add(readServiceInstanceToken(in));
+                }
+            }
+            return new AttachSessionProtocol(tokens, sessionId);
+        }
+        case TAG_AUTH:
+            return new AuthProtocol(readEnum(in, AuthScheme.class));
+        case TAG_DIRECTORY_AUTH:
+            return new DirectoryAuthProtocol(readString(in), readBytes(in), in.readBoolean());
+        case TAG_IP_AUTH:
+            return new IPAuthProtocol(readString(in));
+        case TAG_GET_USER:
+            return new GetUserProtocol(readString(in));
+        case TAG_CREATE_USER:
+            return new CreateUserProtocol(readUser(in), readBytes(in));
+        case TAG_UPDATE_USER:
+            return new UpdateUserProtocol(readUser(in));
+        case TAG_DELETE_USER:
+            return new DeleteUserProtocol(readString(in));
+        case TAG_SET_USER_PASSWORD:
+            return new SetUserPasswordProtocol(readString(in), readBytes(in));
+        case TAG_SET_ACL:
+            return new SetACLProtocol(readACL(in));
+        case TAG_GET_ACL:
+            return new GetACLProtocol(readEnum(in, AuthScheme.class), readString(in));
+        case TAG_GET_ALL_ACL:
+            return new GetAllACLProtocol(readEnum(in, AuthScheme.class));
+        case TAG_DELETE_ACL:
+            return new DeleteACLProtocol(readEnum(in, AuthScheme.class), readString(in));
+        case TAG_CONNECT_RESPONSE: {
+            ConnectResponse r = new ConnectResponse();
+            r.setProtocolVersion(in.readInt());
+            r.setTimeOut(in.readInt());
+            r.setSessionId(readString(in));
+            r.setPasswd(readBytes(in));
+            r.setServerId(in.readInt());
+            r.setCodecs(readStringList(in));
+            return r;
+        }
+        case TAG_GET_SERVICE_RESPONSE:
+            return new GetServiceResponse(readModelService(in));
+        case TAG_GET_ALL_SERVICES_RESPONSE:
+            return new GetAllServicesResponse(readModelServiceInstances(in));
+        case TAG_QUERY_SERVICE_RESPONSE:
+            return new QueryServiceResponse(readModelServiceInstances(in));
+        case TAG_GET_SERVICE_INSTANCE_RESPONSE:
+            return new GetServiceInstanceResponse(readModelServiceInstance(in));
+        case TAG_GET_METADATA_RESPONSE:
+            return new GetMetadataResponse(readMetadataKey(in));
+        case TAG_SERVICE_CHANGING_BY_VERSION_RESPONSE:
+            return new GetServiceChangingByVersionResponse(readModelServiceMap(in));
+        case TAG_METADATA_CHANGING_BY_VERSION_RESPONSE:
+            return new GetMetadataChangingByVersionResponse(readMetadataKeyMap(in));
+        case TAG_SERVICE_CHANGING_BY_TIME_RESPONSE:
+            return new GetServiceChangingByTimeResponse(readModelServiceMap(in));
+        case TAG_METADATA_CHANGING_BY_TIME_RESPONSE:
+            return new GetMetadataChangingByTimeResponse(readMetadataKeyMap(in));
+        case TAG_ATTACH_SESSION_RESPONSE: {
+            int size = readSize(in);
+            Map<ServiceInstanceToken, ItemResult> results = null;
+            if (size >= 0) {
+                results = new HashMap<ServiceInstanceToken, ItemResult>(capacity(size));
+                for (int i = 0; i < size; i++) {
+                    ServiceInstanceToken token = readServiceInstanceToken(in);
+                    ItemResult item = null;
+                    if (in.readBoolean()) {
+                        item = new ItemResult();
+                        item.setResult(in.readBoolean());
+                        item.setError(readEnum(in, ErrorCode.class));
+                        item.setMessage(readString(in));
+                    }
+                    results.put(token, item);
+                }
+            }
+            return new AttachSessionResponse(results);
+        }
+        case TAG_GET_USER_RESPONSE:
+            return new GetUserResponse(readUser(in));
+        case TAG_GET_ALL_USER_RESPONSE: {
+            int size = readSize(in);
+            List<User> users = null;
+            if (size >= 0) {
+                users = new ArrayList<User>(size);
+                for (int i = 0; i < size; i++) {
+                    users.add(readUser(in));
+                }
+            }
+            return new GetAllUserResponse(users);
+        }
+        case TAG_GET_ACL_RESPONSE:
+            return new GetACLResponse(readACL(in));
+        case TAG_GET_ALL_ACL_RESPONSE: {
+            int size = readSize(in);
+            List<ACL> acls = null;
+            if (size >= 0) {
+                acls = new ArrayList<ACL>(size);
+                for (int i = 0; i < size; i++) {
+                    acls.add(readACL(in));
+                }
+            }
+            return new GetAllACLResponse(acls);
+        }
+        case TAG_WATCHER_EVENT: {
+            int size = readSize(in);
+            List<WatchedService> services = null;
+            if (size >= 0) {
+                services = new ArrayList<WatchedService>(size);
+                for (int i = 0; i < size; i++) {
+                    services.add(readWatchedService(in));
+                }
+            }
+            return new WatcherEvent(services, readModelServiceInstances(in));
+        }
+        case TAG_SERVER_STATUS_EVENT:
+            return new ServerStatusEvent(readEnum(in, ServerStatus.class));
+        case TAG_CLOSE_SESSION_EVENT:
+            return new CloseSessionEvent(readString(in));
+        default:
+            throw new IOException("Unknown body tag - " + tag);
+        }
+    }
+
+    private static void writeFlags(DataOutputStream out, boolean restRequest, boolean isOwned, boolean noSession) throws IOException {
+        out.writeByte((restRequest ? 1 : 0) | (isOwned ? 2 : 0) | (noSession ? 4 : 0));
+    }
+
+    private static boolean isRestRequest(byte flags) {
+        return (flags & 1) != 0;
+    }
+
+    private static boolean isOwned(byte flags) {
+        return (flags & 2) != 0;
+    }
+
+    private static boolean isNoSession(byte flags) {
+        return (flags & 4) != 0;
+    }
+
+    private static void writeProvidedServiceInstance(DataOutputStream out, ProvidedServiceInstance instance) throws IOException {
+        out.writeBoolean(instance != null);
+        if (instance == null) {
+            return;
+        }
+        writeString(out, instance.getServiceName());
+        writeString(out, instance.getAddress());
+        out.writeInt(instance.getPort());
+        writeString(out, instance.getUri());
+        writeEnum(out, instance.getStatus());
+        out.writeBoolean(instance.isMonitorEnabled());
+        writeStringMap(out, instance.getMetadata());
+    }
+
+    private static ProvidedServiceInstance readProvidedServiceInstance(DataInputStream in) throws IOException {
+        if (! in.readBoolean()) {
+            return null;
+        }
+        ProvidedServiceInstance instance = new ProvidedServiceInstance(readString(in), readString(in), in.readInt());
+        instance.setUri(readString(in));
+        instance.setStatus(readEnum(in, OperationalStatus.class));
+        instance.setMonitorEnabled(in.readBoolean());
+        instance.setMetadata(readStringMap(in));
+        return instance;
+    }
+
+    private static void writeModelService(DataOutputStream out, ModelService service) throws IOException {
+        out.writeBoolean(service != null);
+        if (service == null) {
+            return;
+        }
+        writeString(out, service.getName());
+        writeString(out, service.getId());
+        writeDate(out, service.getCreateTime());
+        writeDate(out, service.getModifiedTime());
+        writeBaseInfo(out, service.getInfo());
+        writeModelServiceInstances(out, service.getServiceInstances());
+    }
+
+    private static ModelService readModelService(DataInputStream in) throws IOException {
+        if (! in.readBoolean()) {
+            return null;
+        }
+        ModelService service = new ModelService(readString(in), readString(in));
+        service.setCreateTime(readDate(in));
+        service.setModifiedTime(readDate(in));
+        service.setInfo(readBaseInfo(in));
+        service.setServiceInstances(readModelServiceInstances(in));
+        return service;
+    }
+
+    private static void writeModelServiceMap(DataOutputStream out, Map<String, ModelService> services) throws IOException {
+        writeSize(out, services);
+        if (services != null) {
+            for (Entry<String, ModelService> entry : services.entrySet()) {
+                writeString(out, entry.getKey());
+                writeModelService(out, entry.getValue());
+            }
+        }
+    }
+
+    private static Map<String, ModelService> readModelServiceMap(DataInputStream in) throws IOException {
+        int size = readSize(in);
+        if (size < 0) {
+            return null;
+        }
+        Map<String, ModelService> services = new HashMap<String, ModelService>(capacity(size));
+        for (int i = 0; i < size; i++) {
+            services.put(readString(in), readModelService(in));
+        }
+        return services;
+    }
+
+    private static void writeModelServiceInstances(DataOutputStream out, List<ModelServiceInstance> instances) throws IOException {
+        writeSize(out, instances);
+        if (instances != null) {
+            for (ModelServiceInstance instance : instances) {
+                writeModelServiceInstance(out, instance);
+            }
+        }
+    }
+
+    private static List<ModelServiceInstance> readModelServiceInstances(DataInputStream in) throws IOException {
+        int size = readSize(in);
+        if (size < 0) {
+            return null;
+        }
+        List<ModelServiceInstance> instances = new ArrayList<ModelServiceInstance>(size);
+        for (int i = 0; i < size; i++) {
+            instances.add(readModelServiceInstance(in));
+        }
+        return instances;
+    }
+
+    private static void writeModelServiceInstance(DataOutputStream out, ModelServiceInstance instance) throws IOException {
+        out.writeBoolean(instance != null);
+        if (instance == null) {
+            return;
+        }
+        writeString(out, instance.getServiceName());
+        writeString(out, instance.getInstanceId());
+        writeString(out, instance.getId());
+        writeString(out, instance.getUri());
+        writeEnum(out, instance.getStatus());
+        out.writeBoolean(instance.isMonitorEnabled());
+        writeString(out, instance.getAddress());
+        out.writeInt(instance.getPort());
+        writeDate(out, instance.getCreateTime());
+        writeDate(out, instance.getModifiedTime());
+        writeBaseInfo(out, instance.getInfo());
+        writeStringMap(out, instance.getMetadata());
+    }
+
+    private static ModelServiceInstance readModelServiceInstance(DataInputStream in) throws IOException {
+        if (! in.readBoolean()) {
+            return null;
+        }
+        ModelServiceInstance instance = new ModelServiceInstance();
+        instance.setServiceName(readString(in));
+        instance.setInstanceId(readString(in));
+        instance.setId(readString(in));
+        instance.setUri(readString(in));
+        instance.setStatus(readEnum(in, OperationalStatus.class));
+        instance.setMonitorEnabled(in.readBoolean());
+        instance.setAddress(readString(in));
+        instance.setPort(in.readInt());
+        instance.setCreateTime(readDate(in));
+        instance.setModifiedTime(readDate(in));
+        instance.setInfo(readBaseInfo(in));
+        instance.setMetadata(readStringMap(in));
+        return instance;
+    }
+
+    private static void writeMetadataKey(DataOutputStream out, ModelMetadataKey key) throws IOException {
+        out.writeBoolean(key != null);
+        if (key == null) {
+            return;
+        }
+        writeString(out, key.getName());
+        writeString(out, key.getId());
+        writeDate(out, key.getCreateTime());
+        writeDate(out, key.getModifiedTime());
+        writeBaseInfo(out, key.getInfo());
+        writeModelServiceInstances(out, key.getServiceInstances());
+    }
+
+    private static ModelMetadataKey readMetadataKey(DataInputStream in) throws IOException {
+        if (! in.readBoolean()) {
+            return null;
+        }
+        ModelMetadataKey key = new ModelMetadataKey(readString(in), readString(in));
+        key.setCreateTime(readDate(in));
+        key.setModifiedTime(readDate(in));
+        key.setInfo(readBaseInfo(in));
+        key.setServiceInstances(readModelServiceInstances(in));
+        return key;
+    }
+
+    private static void writeMetadataKeyMap(DataOutputStream out, Map<String, ModelMetadataKey> keys) throws IOException {
+        writeSize(out, keys);
+        if (keys != null) {
+            for (Entry<String, ModelMetadataKey> entry : keys.entrySet()) {
+                writeString(out, entry.getKey());
+                writeMetadataKey(out, entry.getValue());
+            }
+        }
+    }
+
+    private static Map<String, ModelMetadataKey> readMetadataKeyMap(DataInputStream in) throws IOException {
+        int size = readSize(in);
+        if (size < 0) {
+            return null;
+        }
+        Map<String, ModelMetadataKey> keys = new HashMap<String, ModelMetadataKey>(capacity(size));
+        for (int i = 0; i < size; i++) {
+            keys.put(readString(in), readMetadataKey(in));
+        }
+        return keys;
+    }
+
+    private static void writeWatchedService(DataOutputStream out, WatchedService service) throws IOException {
+        out.writeBoolean(service != null);
+        if (service == null) {
+            return;
+        }
+        writeModelService(out, service.getService());
+        List<ServiceInstanceEvent> events = service.getServiceInstanceEvents();
+        writeSize(out, events);
+        if (events != null) {
+            for (ServiceInstanceEvent event : events) {
+                writeString(out, event.getServiceName());
+                writeString(out, event.getInstanceId());
+                writeEnum(out, event.getOperateType());
+            }
+        }
+    }
+
+    private static WatchedService readWatchedService(DataInputStream in) throws IOException {
+        if (! in.readBoolean()) {
+            return null;
+        }
+        WatchedService service = new WatchedService(readModelService(in));
+        int size = readSize(in);
+        if (size >= 0) {
+            List<ServiceInstanceEvent> events = new ArrayList<ServiceInstanceEvent>(size);
+            for (int i = 0; i < size; i++) {
+                events.add(new ServiceInstanceEvent(readString(in), readString(in), readEnum(in, OperateType.class)));
+            }
+            service.setServiceInstanceEvents(events);
+        }
+        return service;
+    }
+
+    private static void writeServiceInstanceToken(DataOutputStream out, ServiceInstanceToken token) throws IOException {
+        writeString(out, token.getServiceName());
+        writeString(out, token.getInstanceId());
+    }
+
+    private static ServiceInstanceToken readServiceInstanceToken(DataInputStream in) throws IOException {
+        return new ServiceInstanceToken(readString(in), readString(in));
+    }
+
+    private static void writeUser(DataOutputStream out, User user) throws IOException {
+        out.writeBoolean(user != null);
+        if (user == null) {
+            return;
+        }
+        writeString(out, user.getName());
+        List<Permission> permissions = user.getPermission();
+        writeSize(out, permissions);
+        if (permissions != null) {
+            for (Permission permission : permissions) {
+                writeEnum(out, permission);
+            }
+        }
+    }
+
+    private static User readUser(DataInputStream in) throws IOException {
+        if (! in.readBoolean()) {
+            return null;
+        }
+        String name = readString(in);
+        int size = readSize(in);
+        List<Permission> permissions = null;
+        if (size >= 0) {
+            permissions = new ArrayList<Permission>(size);
+            for (int i = 0; i < size; i++) {
+                permissions.add(readEnum(in, Permission.class));
+            }
+        }
+        return new User(name, permissions);
+    }
+
+    private static void writeACL(DataOutputStream out, ACL acl) throws IOException {
+        out.writeBoolean(acl != null);
+        if (acl == null) {
+            return;
+        }
+        writeEnum(out, acl.getScheme());
+        writeString(out, acl.getId());
+        out.writeInt(acl.getPermission());
+    }
+
+    private static ACL readACL(DataInputStream in) throws IOException {
+        if (! in.readBoolean()) {
+            return null;
+        }
+        return new ACL(readEnum(in, AuthScheme.class), readString(in), in.readInt());
+    }
+
+    private static void writeBaseInfo(DataOutputStream out, BaseInfo info) throws IOException {
+        out.writeBoolean(info != null);
+        if (info == null) {
+            return;
+        }
+        out.writeLong(info.getCreateXid());
+        out.writeLong(info.getModifyXid());
+        out.writeLong(info.getCreateTime());
+        out.writeLong(info.getModifyTime());
+        out.writeLong(info.getVersion());
+    }
+
+    private static BaseInfo readBaseInfo(DataInputStream in) throws IOException {
+        if (! in.readBoolean()) {
+            return null;
+        }
+        return new BaseInfo(in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+    }
+
+    private static void writeDate(DataOutputStream out, Date date) throws IOException {
+        out.writeLong(date == null ? NULL_DATE : date.getTime());
+    }
+
+    private static Date readDate(DataInputStream in) throws IOException {
+        long time = in.readLong();
+        return time == NULL_DATE ? null : new Date(time);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            writeBytes(out, s.getBytes(UTF_8));
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = readLength(in);
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = readLength(in);
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeEnum(DataOutputStream out, Enum<?> e) throws IOException {
+        writeString(out, e == null ? null : e.name());
+    }
+
+    private static <T extends Enum<T>> T readEnum(DataInputStream in, Class<T> type) throws IOException {
+        String name = readString(in);
+        if (name == null) {
+            return null;
+        }
+        try {
+            return Enum.valueOf(type, name);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown " + type.getSimpleName() + " - " + name, e);
+        }
+    }
+
+    private static void writeStringList(DataOutputStream out, List<String> list) throws IOException {
+        writeSize(out, list);
+        if (list != null) {
+            for (String s : list) {
+                writeString(out, s);
+            }
+        }
+    }
+
+    private static List<String> readStringList(DataInputStream in) throws IOException {
+        int size = readSize(in);
+        if (size < 0) {
+            return null;
+        }
+        List<String> list = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(readString(in));
+        }
+        return list;
+    }
+
+    private static void writeStringMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        writeSize(out, map);
+        if (map != null) {
+            for (Entry<String, String> entry : map.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+        }
+    }
+
+    private static Map<String, String> readStringMap(DataInputStream in) throws IOException {
+        int size = readSize(in);
+        if (size < 0) {
+            return null;
+        }
+        Map<String, String> map = new HashMap<String, String>(capacity(size));
+        for (int i = 0; i < size; i++) {
+            map.put(readString(in), readString(in));
+        }
+        return map;
+    }
+
+    private static void writeLongMap(DataOutputStream out, Map<String, Long> map) throws IOException {
+        writeSize(out, map);
+        if (map != null) {
+            for (Entry<String, Long> entry : map.entrySet()) {
+                writeString(out, entry.getKey());
+                Long value = entry.getValue();
+                out.writeBoolean(value != null);
+                if (value != null) {
+                    out.writeLong(value);
+                }
+            }
+        }
+    }
+
+    private static Map<String, Long> readLongMap(DataInputStream in) throws IOException {
+        int size = readSize(in);
+        if (size < 0) {
+            return null;
+        }
+        Map<String, Long> map = new HashMap<String, Long>(capacity(size));
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            map.put(key, in.readBoolean() ? Long.valueOf(in.readLong()) : null);
+        }
+        return map;
+    }
+
+    private static void writeSize(DataOutputStream out, List<?> list) throws IOException {
+        out.writeInt(list == null ? -1 : list.size());
+    }
+
+    private static void writeSize(DataOutputStream out, Map<?, ?> map) throws IOException {
+        out.writeInt(map == null ? -1 : map.size());
+    }
+
+    /**
+     * Read the length of a String or byte array.
+     *
+     * @param in
+     *         the DataInputStream over the payload.
+     * @return
+     *         the length, -1 for null.
+     * @throws IOException
+     *         if the length is invalid or exceeds the remaining bytes.
+     */
+    private static int readLength(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < -1 || len > in.available()) {
+            throw new IOException("Invalid length " + len + ", remaining " + in.available() + " bytes");
+        }
+        return len;
+    }
+
+    /**
+     * Read the element count of a list or map.
+     *
+     * Every element takes at least 1 byte, so the count never exceeds the remaining bytes.
+     *
+     * @param in
+     *         the DataInputStream over the payload.
+     * @return
+     *         the count, -1 for null.
+     * @throws IOException
+     *         if the count is invalid or exceeds the remaining bytes.
+     */
+    private static int readSize(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < -1 || size > in.available()) {
+            throw new IOException("Invalid size " + size + ", remaining " + in.available() + " bytes");
+        }
+        return size;
+    }
+
+    private static int capacity(int size) {
+        return size < 3 ? size + 1 : (int) (size / 0.75f + 1);
+    }
+
+    private static void writeSerializable(DataOutputStream out, Object body) throws IOException {
+        if (! (body instanceof Serializable)) {
+            throw new IOException("Cannot encode " + body.getClass().getName());
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(body);
+        oos.flush();
+        writeBytes(out, baos.toByteArray());
+    }
+
+    private static Object readSerializable(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        if (bytes == null) {
+            throw new IOException("The java serialization body is null");
+        }
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Deserialize body failed - " + e.getMessage(), e);
+        }
+    }
+}
@@ -15,6 +15,8 @@
  */
 package com.cisco.oss.foundation.directory.proto;
 
+import java.util.List;
+
 /**
  * The SD API client connect Response.
  *
@@ -54,6 +56,12 @@ public class ConnectResponse extends Response {
      */
     private int serverId;
 
+    /**
+     * The names of the ProtocolCodecs the server accepts, null if the server only
+     * accepts the java serialization.
+     */
+    private List<String> codecs;
+
     public ConnectResponse() {
     }
 
@@ -105,4 +113,12 @@ public class ConnectResponse extends Response {
     public void setServerId(int serverId) {
         this.serverId = serverId;
     }
+
+    public List<String> getCodecs() {
+        return codecs;
+    }
+
+    public void setCodecs(List<String> codecs) {
+        this.codecs = codecs;
+    }
 }
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.proto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * The ProtocolCodec based on the java serialization.
+ *
+ * It is the fallback codec, every Serializable Protocol and Response can be encoded.
+ *
+ *
+ */
+public class JavaSerializationCodec implements ProtocolCodec {
+
+    /**
+     * The codec name.
+     */
+    public static final String NAME = "java";
+
+    /**
+     * The first byte of the java serialization stream, STREAM_MAGIC 0xACED.
+     */
+    static final byte STREAM_MAGIC_HEAD = (byte) 0xAC;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] encodeProtocol(ProtocolHeader header, Protocol protocol) throws IOException {
+        return writeObjects(header, protocol);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ProtocolFrame decodeProtocol(byte[] data, int offset, int length) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+        try {
+            ProtocolHeader header = (ProtocolHeader) ois.readObject();
+            Protocol protocol = (Protocol) ois.readObject();
+            return new ProtocolFrame(header, protocol);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Deserialize Protocol failed - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] encodeResponse(ResponseHeader header, Response response) throws IOException {
+        return writeObjects(header, response);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ResponseFrame decodeResponse(byte[] data, int offset, int length) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+        try {
+            ResponseHeader header = (ResponseHeader) ois.readObject();
+            Response response = (Response) ois.readObject();
+            return new ResponseFrame(header, response);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Deserialize Response failed - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Serialize the header and body Objects.
+     *
+     * @param header
+     *         the header Object.
+     * @param body
+     *         the body Object.
+     * @return
+     *         the serialized bytes.
+     * @throws IOException
+     *         the IOException.
+     */
+    private byte[] writeObjects(Object header, Object body) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(header);
+        oos.writeObject(body);
+        oos.flush();
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2014 Cisco Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cisco.oss.foundation.directory.proto;
+
+import java.io.IOException;
+
+/**
+ * The codec to encode and decode the Protocol and Response on the wire.
+ *
+ * The transport frames the encoded bytes with the length prefix, the codec only
+ * handles the frame payload.
+ *
+ *
+ */
+public interface ProtocolCodec {
+
+    /**
+     * Encode the ProtocolHeader and Protocol.
+     *
+     * @param header
+     *         the ProtocolHeader.
+     * @param protocol
+     *         the Protocol, it can be null.
+     * @return
+     *         the encoded bytes.
+     * @throws IOException
+     *         the IOException.
+     */
+    public byte[] encodeProtocol(ProtocolHeader header, Protocol protocol) throws IOException;
+
+    /**
+     * Decode the ProtocolHeader and Protocol.
+     *
+     * @param data
+     *         the frame payload.
+     * @param offset
+     *         the offset of the payload in data.
+     * @param length
+     *         the length of the payload.
+     * @return
+     *         the decoded ProtocolFrame.
+     * @throws IOException
+     *         the IOException.
+     */
+    public ProtocolFrame decodeProtocol(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Encode the ResponseHeader and Response.
+     *
+     * @param header
+     *         the ResponseHeader.
+     * @param response
+     *         the Response, it can be null.
+     * @return
+     *         the encoded bytes.
+     * @throws IOException
+     *         the IOException.
+     */
+    public byte[] encodeResponse(ResponseHeader header, Response response) throws IOException;
+
+    /**
+     * Decode the ResponseHeader and Response.
+     *
+     * @param data
+     *         the frame payload.
+     * @param offset
+     *         the offset of the payload in data.
+     * @param length
+     *         the length of the payload.
+     * @return
+     *         the decoded ResponseFrame.
+     * @throws IOException
+     *         the IOException.
+     */
+    public ResponseFrame decodeResponse(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * The decoded ProtocolHeader and Protocol.
+     *
+     *
+     */
+    public static class ProtocolFrame {
+
+        /**
+         * The ProtocolHeader.
+         */
+        private final ProtocolHeader header;
+
+        /**
+         * The Protocol.
+         */
+        private final Protocol protocol;
+
+        /**
+         * Constructor.
+         *
+         * @param header
+         *         the ProtocolHeader.
+         * @param protocol
+         *         the Protocol.
+         */
+        public ProtocolFrame(ProtocolHeader header, Protocol protocol){
+            this.header = header;
+            this.protocol = protocol;
+        }
+
+        /**
+         * Get the ProtocolHeader.
+         *
+         * @return
+         *         the ProtocolHeader.
+         */
+        public ProtocolHeader getHeader() {
+            return header;
+        }
+
+        /**
+         * Get the Protocol.
+         *
+         * @return
+         *         the Protocol.
+         */
+        public Protocol getProtocol() {
+            return protocol;
+        }
+    }
+
+    /**
+     * The decoded ResponseHeader and Response.
+     *
+     *
+     */
+    public static class ResponseFrame {
+
+        /**
+         * The ResponseHeader.
+         */
+        private final ResponseHeader header;
+
+        /**
+         * The Response.
+         */
+        private final Response response;
+
+        /**
+         * Constructor.
+         *
+         * @param header
+         *         the ResponseHeader.
+         * @param response
+         *         the Response.
+         */
+        public ResponseFrame(ResponseHeader header, Response response){
+            this.header = header;
+            this.response = response;
+        }
+
+        /**
+         * Get the ResponseHeader.
+         *
+         * @return
+         *         the ResponseHeader.
+         */
+        public ResponseHeader getHeader() {
+            return header;
+        }
+
+        /**
+         * Get the Response.
+         *
+         * @return
+         *         the Response.
+         */
+        public Response getResponse() {
+            return response;
+        }
+    }
+}
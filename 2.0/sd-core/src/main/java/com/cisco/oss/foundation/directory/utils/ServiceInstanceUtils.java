@@ -15,7 +15,6 @@
  */
 package com.cisco.oss.foundation.directory.utils;
 
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -52,14 +51,10 @@ public class ServiceInstanceUtils {
      *         the ServiceInstance Object.
      */
     public static ServiceInstance transferFromModelServiceInstance(ModelServiceInstance modelInstance){
-        Map<String, String> meta = new HashMap<String, String>();
-        if(modelInstance.getMetadata() != null){
-            for(Entry<String, String> en : modelInstance.getMetadata().entrySet()){
-                meta.put(en.getKey(), en.getValue());
-            }
-        }
+        // the ServiceInstance copies the metadata.
         return new ServiceInstance(modelInstance.getServiceName(), modelInstance.getInstanceId(), modelInstance.getUri(),
-                modelInstance.isMonitorEnabled(), modelInstance.getStatus(), modelInstance.getAddress(), modelInstance.getPort(), meta);
+                modelInstance.isMonitorEnabled(), modelInstance.getStatus(), modelInstance.getAddress(), modelInstance.getPort(),
+                modelInstance.getMetadata());
     }
 
     /**
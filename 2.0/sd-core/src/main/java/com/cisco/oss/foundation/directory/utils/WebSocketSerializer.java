@@ -16,20 +16,85 @@
 package com.cisco.oss.foundation.directory.utils;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
 
+import com.cisco.oss.foundation.directory.proto.AttachSessionProtocol;
+import com.cisco.oss.foundation.directory.proto.AttachSessionResponse;
+import com.cisco.oss.foundation.directory.proto.ConnectProtocol;
+import com.cisco.oss.foundation.directory.proto.ConnectResponse;
+import com.cisco.oss.foundation.directory.proto.CreateUserProtocol;
+import com.cisco.oss.foundation.directory.proto.DeleteUserProtocol;
+import com.cisco.oss.foundation.directory.proto.GetACLProtocol;
+import com.cisco.oss.foundation.directory.proto.GetACLResponse;
+import com.cisco.oss.foundation.directory.proto.GetAllACLProtocol;
+import com.cisco.oss.foundation.directory.proto.GetAllACLResponse;
+import com.cisco.oss.foundation.directory.proto.GetAllServicesResponse;
+import com.cisco.oss.foundation.directory.proto.GetAllUserResponse;
+import com.cisco.oss.foundation.directory.proto.GetMetadataChangingByTimeProtocol;
+import com.cisco.oss.foundation.directory.proto.GetMetadataChangingByTimeResponse;
+import com.cisco.oss.foundation.directory.proto.GetMetadataChangingByVersionProtocol;
+import com.cisco.oss.foundation.directory.proto.GetMetadataChangingByVersionResponse;
+import com.cisco.oss.foundation.directory.proto.GetMetadataProtocol;
+import com.cisco.oss.foundation.directory.proto.GetMetadataResponse;
+import com.cisco.oss.foundation.directory.proto.GetServiceChangingByTimeProtocol;
+import com.cisco.oss.foundation.directory.proto.GetServiceChangingByTimeResponse;
+import com.cisco.oss.foundation.directory.proto.GetServiceChangingByVersionProtocol;
+import com.cisco.oss.foundation.directory.proto.GetServiceChangingByVersionResponse;
+import com.cisco.oss.foundation.directory.proto.GetServiceInstanceProtocol;
+import com.cisco.oss.foundation.directory.proto.GetServiceInstanceResponse;
+import com.cisco.oss.foundation.directory.proto.GetServiceProtocol;
+import com.cisco.oss.foundation.directory.proto.GetServiceResponse;
+import com.cisco.oss.foundation.directory.proto.GetUserProtocol;
+import com.cisco.oss.foundation.directory.proto.GetUserResponse;
 import com.cisco.oss.foundation.directory.proto.Protocol;
 import com.cisco.oss.foundation.directory.proto.ProtocolHeader;
+import com.cisco.oss.foundation.directory.proto.ProtocolType;
+import com.cisco.oss.foundation.directory.proto.QueryServiceProtocol;
+import com.cisco.oss.foundation.directory.proto.QueryServiceResponse;
+import com.cisco.oss.foundation.directory.proto.RegisterServiceInstanceProtocol;
 import com.cisco.oss.foundation.directory.proto.Response;
 import com.cisco.oss.foundation.directory.proto.ResponseHeader;
+import com.cisco.oss.foundation.directory.proto.ServerEvent.CloseSessionEvent;
+import com.cisco.oss.foundation.directory.proto.ServerEvent.ServerStatusEvent;
+import com.cisco.oss.foundation.directory.proto.SetACLProtocol;
+import com.cisco.oss.foundation.directory.proto.SetUserPasswordProtocol;
+import com.cisco.oss.foundation.directory.proto.UnregisterServiceInstanceProtocol;
+import com.cisco.oss.foundation.directory.proto.UpdateServiceInstanceInternalStatusProtocol;
+import com.cisco.oss.foundation.directory.proto.UpdateServiceInstanceProtocol;
+import com.cisco.oss.foundation.directory.proto.UpdateServiceInstanceStatusProtocol;
+import com.cisco.oss.foundation.directory.proto.UpdateServiceInstanceUriProtocol;
+import com.cisco.oss.foundation.directory.proto.UpdateUserProtocol;
+import com.cisco.oss.foundation.directory.proto.WatcherEvent;
 
 /**
  * Serialize and deserialize utils for the Websocket JSON message.
  *
+ * Two envelope formats are supported. The legacy envelope serializes the body to
+ * a JSON String and embeds it in the pair object with the body class name. The
+ * streaming envelope writes the header, the type id and the body in one pass,
+ *
+ * <pre>
+ * {"h":{header}, "t":typeId, "b":{body}}
+ * </pre>
+ *
+ * The type id of a Protocol is the ProtocolType id. The type id of a Response is
+ * the ProtocolType id of the request it answers, the plain Response and the server
+ * events use the negative ids. The Response type id 0 is reserved and rejected, so
+ * the plain Response is never confused with an unknown type. A body class without
+ * a type id is written with the "c" class name field.
+ *
+ * The deserializers accept both envelopes.
  *
  */
 public class WebSocketSerializer {
@@ -38,6 +103,124 @@ public class WebSocketSerializer {
      */
     private static final ObjectMapper mapper = new ObjectMapper();
 
+    /**
+     * The streaming envelope header field name.
+     */
+    private static final String FIELD_HEADER = "h";
+
+    /**
+     * The streaming envelope body type id field name.
+     */
+    private static final String FIELD_TYPE_ID = "t";
+
+    /**
+     * The streaming envelope body class name field name.
+     */
+    private static final String FIELD_CLASS = "c";
+
+    /**
+     * The streaming envelope body field name.
+     */
+    private static final String FIELD_BODY = "b";
+
+    /**
+     * The legacy envelope body class name field name.
+     */
+    private static final String LEGACY_FIELD_TYPE = "type";
+
+    /**
+     * The reserved Response type id, it is never written.
+     */
+    private static final int RESERVED_RESPONSE_TYPE_ID = 0;
+
+    /**
+     * The plain Response type id, for the requests without a dedicated Response class.
+     */
+    private static final int PLAIN_RESPONSE_TYPE_ID = -4;
+
+    /**
+     * The WatcherEvent type id.
+     */
+    private static final int WATCHER_EVENT_TYPE_ID = -1;
+
+    /**
+     * The ServerStatusEvent type id.
+     */
+    private static final int SERVER_STATUS_EVENT_TYPE_ID = -2;
+
+    /**
+     * The CloseSessionEvent type id.
+     */
+    private static final int CLOSE_SESSION_EVENT_TYPE_ID = -3;
+
+    /**
+     * The Protocol class to type id map.
+     */
+    private static final Map<Class<?>, Integer> PROTOCOL_TYPE_IDS = new HashMap<Class<?>, Integer>();
+
+    /**
+     * The type id to Protocol class map.
+     */
+    private static final Map<Integer, Class<?>> PROTOCOL_CLASSES = new HashMap<Integer, Class<?>>();
+
+    /**
+     * The Response class to type id map.
+     */
+    private static final Map<Class<?>, Integer> RESPONSE_TYPE_IDS = new HashMap<Class<?>, Integer>();
+
+    /**
+     * The type id to Response class map.
+     */
+    private static final Map<Integer, Class<?>> RESPONSE_CLASSES = new HashMap<Integer, Class<?>>();
+
+    static {
+        registerProtocol(Protocol.class, ProtocolType.None);
+        registerProtocol(ConnectProtocol.class, ProtocolType.CreateSession);
+        registerProtocol(RegisterServiceInstanceProtocol.class, ProtocolType.RegisterServiceInstance);
+        registerProtocol(UpdateServiceInstanceProtocol.class, ProtocolType.UpdateServiceInstance);
+        registerProtocol(UpdateServiceInstanceStatusProtocol.class, ProtocolType.UpdateServiceInstanceStatus);
+        registerProtocol(UpdateServiceInstanceUriProtocol.class, ProtocolType.UpdateServiceInstanceUri);
+        registerProtocol(UpdateServiceInstanceInternalStatusProtocol.class, ProtocolType.UpdateServiceInstanceInternalStatus);
+        registerProtocol(UnregisterServiceInstanceProtocol.class, ProtocolType.UnregisterServiceInstance);
+        registerProtocol(GetServiceProtocol.class, ProtocolType.GetService);
+        registerProtocol(GetServiceInstanceProtocol.class, ProtocolType.GetServiceInstance);
+        registerProtocol(QueryServiceProtocol.class, ProtocolType.QueryService);
+        registerProtocol(GetMetadataProtocol.class, ProtocolType.GetMetadata);
+        registerProtocol(GetServiceChangingByTimeProtocol.class, ProtocolType.GetServiceChangingByTime);
+        registerProtocol(GetMetadataChangingByTimeProtocol.class, ProtocolType.GetMetadataChangingByTime);
+        registerProtocol(GetServiceChangingByVersionProtocol.class, ProtocolType.GetServiceChangingByVersion);
+        registerProtocol(GetMetadataChangingByVersionProtocol.class, ProtocolType.GetMetadataChangingByVersion);
+        registerProtocol(AttachSessionProtocol.class, ProtocolType.AttachSession);
+        registerProtocol(GetUserProtocol.class, ProtocolType.GetUser);
+        registerProtocol(CreateUserProtocol.class, ProtocolType.CreateUser);
+        registerProtocol(UpdateUserProtocol.class, ProtocolType.UpdateUser);
+        registerProtocol(DeleteUserProtocol.class, ProtocolType.DeleteUser);
+        registerProtocol(SetUserPasswordProtocol.class, ProtocolType.SetUserPassword);
+        registerProtocol(SetACLProtocol.class, ProtocolType.SetACL);
+        registerProtocol(GetACLProtocol.class, ProtocolType.GetACL);
+        registerProtocol(GetAllACLProtocol.class, ProtocolType.GetAllACL);
+
+        registerResponse(Response.class, PLAIN_RESPONSE_TYPE_ID);
+        registerResponse(ConnectResponse.class, ProtocolType.CreateSession.getId());
+        registerResponse(GetServiceResponse.class, ProtocolType.GetService.getId());
+        registerResponse(GetAllServicesResponse.class, ProtocolType.GetAllServices.getId());
+        registerResponse(GetServiceInstanceResponse.class, ProtocolType.GetServiceInstance.getId());
+        registerResponse(QueryServiceResponse.class, ProtocolType.QueryService.getId());
+        registerResponse(GetMetadataResponse.class, ProtocolType.GetMetadata.getId());
+        registerResponse(GetServiceChangingByTimeResponse.class, ProtocolType.GetServiceChangingByTime.getId());
+        registerResponse(GetMetadataChangingByTimeResponse.class, ProtocolType.GetMetadataChangingByTime.getId());
+        registerResponse(GetServiceChangingByVersionResponse.class, ProtocolType.GetServiceChangingByVersion.getId());
+        registerResponse(GetMetadataChangingByVersionResponse.class, ProtocolType.GetMetadataChangingByVersion.getId());
+        registerResponse(AttachSessionResponse.class, ProtocolType.AttachSession.getId());
+        registerResponse(GetUserResponse.class, ProtocolType.GetUser.getId());
+        registerResponse(GetAllUserResponse.class, ProtocolType.GetAllUser.getId());
+        registerResponse(GetACLResponse.class, ProtocolType.GetACL.getId());
+        registerResponse(GetAllACLResponse.class, ProtocolType.GetAllACL.getId());
+        registerResponse(WatcherEvent.class, WATCHER_EVENT_TYPE_ID);
+        registerResponse(ServerStatusEvent.class, SERVER_STATUS_EVENT_TYPE_ID);
+        registerResponse(CloseSessionEvent.class, CLOSE_SESSION_EVENT_TYPE_ID);
+    }
+
     /**
      * Serialize the Response.
      *
@@ -88,9 +271,61 @@ public class WebSocketSerializer {
         };
     }
 
+    /**
+     * Serialize the Response in the streaming envelope.
+     *
+     * @param header
+     *         the ResponseHeader.
+     * @param response
+     *         the Response.
+     * @return
+     *         the ResponseSerializer.
+     * @throws JsonGenerationException
+     * @throws JsonMappingException
+     * @throws IOException
+     */
+    public static ResponseSerializer getStreamingResponseSerializer(ResponseHeader header, Response response) throws JsonGenerationException, JsonMappingException, IOException{
+        final String s = writeEnvelope(header, response, RESPONSE_TYPE_IDS);
+        return new ResponseSerializer(){
+
+            @Override
+            public String searializerAsString() {
+                return s;
+            }
+
+        };
+    }
+
+    /**
+     * Serialize the Protocol in the streaming envelope.
+     *
+     * @param header
+     *         the ProtocolHeader.
+     * @param protocol
+     *         the Protocol.
+     * @return
+     *         the ProtocolSerializer.
+     * @throws JsonGenerationException
+     * @throws JsonMappingException
+     * @throws IOException
+     */
+    public static ProtocolSerializer getStreamingProtocolSerializer(ProtocolHeader header, Protocol protocol) throws JsonGenerationException, JsonMappingException, IOException{
+        final String s = writeEnvelope(header, protocol, PROTOCOL_TYPE_IDS);
+        return new ProtocolSerializer(){
+
+            @Override
+            public String serializerAsString() {
+                return s;
+            }
+
+        };
+    }
+
     /**
      * Deserialize the Protocol Json String.
      *
+     * It accepts both the streaming and the legacy envelope.
+     *
      * @param jsonStr
      *         the Protocol Json String
      * @return
@@ -100,23 +335,20 @@ public class WebSocketSerializer {
      * @throws IOException
      */
     public static ProtocolDeserializer getProtocolDeserializer(String jsonStr) throws JsonParseException, JsonMappingException, IOException{
-        final ProtocolPair p = mapper.readValue(jsonStr, ProtocolPair.class);
-        Protocol pp = null;
-        if(p.getType() != null){
-            pp = (Protocol) mapper.readValue(p.getProtocol(), p.getType());
-        }
-        final Protocol resp = pp;
+        Envelope e = readEnvelope(jsonStr, ProtocolHeader.class, "protocolHeader", "protocol", PROTOCOL_CLASSES);
+        final ProtocolHeader header = (ProtocolHeader) e.header;
+        final Protocol protocol = (Protocol) e.body;
 
         return new ProtocolDeserializer(){
 
             @Override
             public ProtocolHeader deserializerProtocolHeader() {
-                return p.getProtocolHeader();
+                return header;
             }
 
             @Override
             public Protocol deserializerProtocol() {
-                return resp;
+                return protocol;
             }
 
         };
@@ -125,6 +357,8 @@ public class WebSocketSerializer {
     /**
      * Deserialize the Response Json String.
      *
+     * It accepts both the streaming and the legacy envelope.
+     *
      * @param jsonStr
      *         The Response Json String.
      * @return
@@ -134,18 +368,15 @@ public class WebSocketSerializer {
      * @throws IOException
      */
     public static ResponseDeserializer getResponseDeserializer(String jsonStr) throws JsonParseException, JsonMappingException, IOException{
-        final ResponsePair p = mapper.readValue(jsonStr, ResponsePair.class);
-        Response rr = null;
-        if(p.getType() != null){
-            rr = (Response) mapper.readValue(p.getResponse(), p.getType());
-        }
-        final Response resp = rr;
+        Envelope e = readEnvelope(jsonStr, ResponseHeader.class, "responseHeader", "response", RESPONSE_CLASSES);
+        final ResponseHeader header = (ResponseHeader) e.header;
+        final Response resp = (Response) e.body;
 
         return new ResponseDeserializer(){
 
             @Override
             public ResponseHeader deserializerResponseHeader() {
-                return p.getResponseHeader();
+                return header;
             }
 
             @Override
@@ -207,6 +438,162 @@ public class WebSocketSerializer {
         return toJsonStr(p);
     }
 
+    /**
+     * Write the header and body to the streaming envelope in one generator pass.
+     *
+     * @param header
+     *         the ProtocolHeader or ResponseHeader.
+     * @param body
+     *         the Protocol or Response, can be null.
+     * @param typeIds
+     *         the body class to type id map.
+     * @return
+     *         the JSON String.
+     * @throws IOException
+     */
+    private static String writeEnvelope(Object header, Object body, Map<Class<?>, Integer> typeIds) throws IOException{
+        StringWriter writer = new StringWriter();
+        JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(writer);
+        try {
+            generator.writeStartObject();
+            generator.writeFieldName(FIELD_HEADER);
+            mapper.writeValue(generator, header);
+            if(body != null){
+                Integer typeId = typeIds.get(body.getClass());
+                if(typeId != null){
+                    generator.writeNumberField(FIELD_TYPE_ID, typeId);
+                } else {
+                    generator.writeStringField(FIELD_CLASS, body.getClass().getName());
+                }
+                generator.writeFieldName(FIELD_BODY);
+                mapper.writeValue(generator, body);
+            }
+            generator.writeEndObject();
+        } finally {
+            generator.close();
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Read the streaming or the legacy envelope in one parser pass.
+     *
+     * The body is bound directly from the parser when its type is already known,
+     * which is always the case for the streaming envelope written by this class.
+     *
+     * @param jsonStr
+     *         the JSON String.
+     * @param headerClass
+     *         the header class.
+     * @param legacyHeaderField
+     *         the header field name in the legacy envelope.
+     * @param legacyBodyField
+     *         the body field name in the legacy envelope.
+     * @param classes
+     *         the type id to body class map.
+     * @return
+     *         the Envelope.
+     * @throws IOException
+     */
+    private static Envelope readEnvelope(String jsonStr, Class<?> headerClass, String legacyHeaderField,
+            String legacyBodyField, Map<Integer, Class<?>> classes) throws IOException{
+        Envelope envelope = new Envelope();
+        Class<?> bodyClass = null;
+        JsonNode pendingBody = null;
+        String legacyBody = null;
+
+        JsonParser parser = mapper.getJsonFactory().createJsonParser(jsonStr);
+        try {
+            if(parser.nextToken() != JsonToken.START_OBJECT){
+                throw new JsonParseException("Expect the JSON Object envelope", parser.getCurrentLocation());
+            }
+            while(parser.nextToken() == JsonToken.FIELD_NAME){
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if(FIELD_HEADER.equals(name) || legacyHeaderField.equals(name)){
+                    envelope.header = token == JsonToken.VALUE_NULL ? null : mapper.readValue(parser, headerClass);
+                } else if(FIELD_TYPE_ID.equals(name)){
+                    int typeId = parser.getIntValue();
+                    bodyClass = classes.get(typeId);
+                    if(bodyClass == null){
+                        throw new JsonParseException("Unknown body type id - " + typeId, parser.getCurrentLocation());
+                    }
+                } else if(FIELD_CLASS.equals(name) || LEGACY_FIELD_TYPE.equals(name)){
+                    bodyClass = token == JsonToken.VALUE_NULL ? null : loadClass(parser.getText());
+                } else if(FIELD_BODY.equals(name)){
+                    if(token == JsonToken.VALUE_NULL){
+                        envelope.body = null;
+                    } else if(bodyClass != null){
+                        envelope.body = mapper.readValue(parser, bodyClass);
+                    } else {
+                        pendingBody = mapper.readTree(parser);
+                    }
+                } else if(legacyBodyField.equals(name)){
+                    legacyBody = token == JsonToken.VALUE_NULL ? null : parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+
+        if(bodyClass != null){
+            if(pendingBody != null){
+                envelope.body = mapper.readValue(pendingBody, bodyClass);
+            } else if(legacyBody != null){
+                envelope.body = mapper.readValue(legacyBody, bodyClass);
+            }
+        }
+        return envelope;
+    }
+
+    /**
+     * Load the body class by name.
+     *
+     * @param className
+     *         the class name.
+     * @return
+     *         the Class.
+     * @throws JsonMappingException
+     */
+    private static Class<?> loadClass(String className) throws JsonMappingException{
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new JsonMappingException("Unknown body class - " + className, e);
+        }
+    }
+
+    /**
+     * Register the Protocol class with its ProtocolType id.
+     *
+     * @param clazz
+     *         the Protocol class.
+     * @param type
+     *         the ProtocolType.
+     */
+    private static void registerProtocol(Class<? extends Protocol> clazz, ProtocolType type){
+        PROTOCOL_TYPE_IDS.put(clazz, type.getId());
+        PROTOCOL_CLASSES.put(type.getId(), clazz);
+    }
+
+    /**
+     * Register the Response class with its type id.
+     *
+     * @param clazz
+     *         the Response class.
+     * @param typeId
+     *         the type id.
+     */
+    private static void registerResponse(Class<? extends Response> clazz, int typeId){
+        if(typeId == RESERVED_RESPONSE_TYPE_ID || RESPONSE_CLASSES.containsKey(typeId)){
+            throw new IllegalArgumentException("Response type id " + typeId + " is reserved or registered - " + clazz);
+        }
+        RESPONSE_TYPE_IDS.put(clazz, typeId);
+        RESPONSE_CLASSES.put(typeId, clazz);
+    }
+
     /**
      * Transfer Object to JSON String.
      *
@@ -298,6 +685,21 @@ public class WebSocketSerializer {
         public Protocol deserializerProtocol();
     }
 
+    /**
+     * The decoded header and body of an envelope.
+     */
+    static class Envelope{
+        /**
+         * The ProtocolHeader or ResponseHeader.
+         */
+        Object header;
+
+        /**
+         * The Protocol or Response.
+         */
+        Object body;
+    }
+
     /**
      * The Response Pair to store Response.
      *